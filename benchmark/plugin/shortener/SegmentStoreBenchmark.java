@@ -0,0 +1,129 @@
+/*
+ * shortener - SegmentStoreBenchmark.java - Copyright © 2010 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugin.shortener;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import plugin.shortener.Segment.Entry;
+import freenet.support.Base64;
+import freenet.support.PooledExecutor;
+
+/**
+ * Benchmark for the lookups in a {@link SegmentStore}: the shortened key of
+ * an original key, and the original key of a shortened key, in a segment of
+ * the given size.
+ *
+ * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SegmentStoreBenchmark {
+
+	/** The number of entries in the segment. */
+	@Param( { "1000", "1000000" })
+	public int entryCount;
+
+	/** The directory of the segment. */
+	private File directory;
+
+	/** The segment store. */
+	private SegmentStore segmentStore;
+
+	/** The original keys in the segment. */
+	private String[] originalKeys;
+
+	/** The shortened keys in the segment. */
+	private String[] shortenedKeys;
+
+	/** The index of the next key to look up. */
+	private int keyIndex;
+
+	/**
+	 * Writes a segment with {@link #entryCount} random entries.
+	 *
+	 * @throws IOException
+	 *             if the segment can not be written
+	 */
+	@Setup
+	public void createSegment() throws IOException {
+		directory = TemporaryDirectory.create("benchmark");
+		PooledExecutor executor = new PooledExecutor();
+		executor.start();
+		segmentStore = new SegmentStore(directory, executor);
+		segmentStore.open();
+		Random random = new Random(1);
+		originalKeys = new String[entryCount];
+		shortenedKeys = new String[entryCount];
+		List<Entry> entries = new ArrayList<Entry>(entryCount);
+		byte[] routingKey = new byte[ShortenedKeyStore.ROUTING_KEY_LENGTH];
+		for (int index = 0; index < entryCount; ++index) {
+			random.nextBytes(routingKey);
+			originalKeys[index] = "CHK@" + Base64.encode(routingKey) + ",crypto,AAIC--8";
+			shortenedKeys[index] = "KSK@" + Integer.toString(index, 36);
+			entries.add(new Entry(Segment.encode(originalKeys[index]), Segment.encode(shortenedKeys[index])));
+		}
+		segmentStore.addSegment(entries);
+	}
+
+	/**
+	 * Removes the segment.
+	 */
+	@TearDown
+	public void deleteSegment() {
+		TemporaryDirectory.delete(directory);
+	}
+
+	/**
+	 * Looks up the shortened key of the next original key.
+	 *
+	 * @return The shortened key
+	 */
+	@Benchmark
+	public String getShortenedKey() {
+		keyIndex = (keyIndex + 1) % entryCount;
+		return segmentStore.getShortenedKey(originalKeys[keyIndex]);
+	}
+
+	/**
+	 * Looks up the original key of the next shortened key.
+	 *
+	 * @return The original key
+	 */
+	@Benchmark
+	public String getOriginalKey() {
+		keyIndex = (keyIndex + 1) % entryCount;
+		return segmentStore.getOriginalKey(shortenedKeys[keyIndex]);
+	}
+
+}
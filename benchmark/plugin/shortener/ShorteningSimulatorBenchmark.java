@@ -0,0 +1,73 @@
+/*
+ * shortener - ShorteningSimulatorBenchmark.java - Copyright © 2010 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugin.shortener;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import plugin.shortener.FakeInsertBackend.Latency;
+import plugin.shortener.ShorteningSimulator.Result;
+
+/**
+ * Benchmark for the real time the {@link ShorteningSimulator} needs to
+ * shorten a number of keys with the real {@link Shortener}. Inserts take no
+ * real time in the simulation, so this measures the shortener’s own work
+ * per key: its scheduling, searches, journal, and stores.
+ *
+ * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ShorteningSimulatorBenchmark {
+
+	/** The number of keys to shorten. */
+	@Param( { "1000" })
+	public int keyCount;
+
+	/** The number of key lengths that are tried in parallel. */
+	@Param( { "1", "3" })
+	public int searchWindow;
+
+	/**
+	 * Shortens {@link #keyCount} keys in a new simulation.
+	 *
+	 * @return The result of the simulation
+	 * @throws Exception
+	 *             if the simulation fails
+	 */
+	@Benchmark
+	public Result simulate() throws Exception {
+		FakeInsertBackend fakeInsertBackend = new FakeInsertBackend(1);
+		fakeInsertBackend.setLatency(Latency.logNormal(60 * 1000, 0.5));
+		fakeInsertBackend.setCollisionProbabilities(1, 1, 0.9, 0.2, 0.01, 0);
+		fakeInsertBackend.setTransientFailureProbability(0.05);
+		fakeInsertBackend.setFatalFailureProbability(0.001);
+		ShorteningSimulator shorteningSimulator = new ShorteningSimulator(fakeInsertBackend, 1);
+		shorteningSimulator.setSearchWindow(searchWindow);
+		return shorteningSimulator.run(keyCount);
+	}
+
+}
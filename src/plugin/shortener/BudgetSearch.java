@@ -0,0 +1,224 @@
+/*
+ * shortener - BudgetSearch.java - Copyright © 2010 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugin.shortener;
+
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import plugin.shortener.Shortener.KeyShorteningProgress;
+import plugin.shortener.Shortener.ShortenedKey;
+import freenet.keys.FreenetURI;
+import freenet.support.Logger;
+
+/**
+ * Searches a short key within a latency budget, trying several candidates
+ * per length in parallel. The candidates of a length are the substrings of
+ * the encoded routing key that start at the first characters. The shortest
+ * candidate that could be inserted is taken as soon as all shorter
+ * candidates have failed, or when the deadline has passed; if no candidate
+ * could be inserted by then, the first candidate that can be inserted
+ * afterwards is taken.
+ *
+ * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+ */
+class BudgetSearch extends KeySearch {
+
+	/** The time after which the shortest inserted candidate is taken. */
+	private final long deadline;
+
+	/** The lock that is notified when an attempt has finished. */
+	private final Object completionLock = new Object();
+
+	/**
+	 * Creates a new budget search.
+	 *
+	 * @param shortener
+	 *            The shortener the search runs for
+	 * @param key
+	 *            The normalized original key
+	 * @param originalKey
+	 *            The original key
+	 * @param keyShorteningProgress
+	 *            The progress of the job
+	 * @param keyClaims
+	 *            The claims on keys, or {@code null} if keys are not claimed
+	 * @param deadline
+	 *            The time after which the shortest inserted candidate is
+	 *            taken
+	 */
+	public BudgetSearch(Shortener shortener, String key, FreenetURI originalKey, KeyShorteningProgress keyShorteningProgress, KeyClaims keyClaims, long deadline) {
+		super(shortener, key, originalKey, keyShorteningProgress, keyClaims);
+		this.deadline = deadline;
+	}
+
+	//
+	// ACTIONS
+	//
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void search() {
+		String encodedRoutingKey = getEncodedRoutingKey();
+		int maximumLength = Math.min(Shortener.MAXIMUM_LENGTH, encodedRoutingKey.length());
+		/* a longer key has to be running to be ready when the budget is up. */
+		int searchWindow = Math.max(2, shortener.getSearchWindow());
+		int candidateCount = shortener.getCandidateCount();
+		LengthStatistics lengthStatistics = shortener.getLengthStatistics();
+		List<InsertAttempt> runningAttempts = new ArrayList<InsertAttempt>();
+		InsertAttempt successfulAttempt = null;
+		ShortenedKey importedKey = null;
+		int nextLength = maximumLength;
+		for (int index = 0; index < candidateCount; ++index) {
+			nextLength = Math.min(nextLength, shortener.getFirstUnoccupiedLength(encodedRoutingKey.substring(index)));
+		}
+		if (lengthStatistics != null) {
+			nextLength = Math.max(nextLength, Math.min(maximumLength, lengthStatistics.getStartLength()));
+		}
+		synchronized (completionLock) {
+			while (!keyShorteningProgress.isCancelled()) {
+				if (shortener.getStoredLength(key) != Integer.MAX_VALUE) {
+					/* another node or process was faster. */
+					importedKey = shortener.getShortenedKey(key);
+					break;
+				}
+				while ((nextLength <= maximumLength) && (runningAttempts.isEmpty() || (nextLength - runningAttempts.get(0).getLength() < searchWindow))) {
+					for (int index = 0; (index < candidateCount) && (index + nextLength <= encodedRoutingKey.length()); ++index) {
+						String candidate = encodedRoutingKey.substring(index, index + nextLength);
+						if (shortener.isSkipped(candidate)) {
+							continue;
+						}
+						try {
+							InsertAttempt insertAttempt = createInsertAttempt(nextLength, candidate);
+							runningAttempts.add(insertAttempt);
+							shortener.getNodeExecutor().execute(new CompletionNotifier(insertAttempt), "Inserting Key: KSK@" + candidate);
+						} catch (MalformedURLException mue1) {
+							Logger.error(this, "Could not create shortened key KSK@" + candidate + "!", mue1);
+							for (InsertAttempt runningAttempt : runningAttempts) {
+								runningAttempt.cancel();
+							}
+							finishSearch(null, null);
+							return;
+						}
+					}
+					++nextLength;
+				}
+				for (Iterator<InsertAttempt> runningAttemptIterator = runningAttempts.iterator(); runningAttemptIterator.hasNext();) {
+					InsertAttempt runningAttempt = runningAttemptIterator.next();
+					if (!runningAttempt.isFinished()) {
+						continue;
+					}
+					runningAttemptIterator.remove();
+					String candidate = getName(runningAttempt);
+					InsertOutcome insertOutcome = runningAttempt.getInsertOutcome();
+					if (lengthStatistics != null) {
+						lengthStatistics.recordOutcome(runningAttempt.getLength(), insertOutcome);
+					}
+					shortener.recordOutcome(candidate, insertOutcome);
+					if (insertOutcome == InsertOutcome.SUCCESS) {
+						if ((successfulAttempt == null) || (runningAttempt.getLength() < successfulAttempt.getLength())) {
+							successfulAttempt = runningAttempt;
+						}
+					} else if (insertOutcome == InsertOutcome.COLLISION) {
+						shortener.recordCollision(keyShorteningProgress, runningAttempt.getShortenedKey().toString());
+					} else {
+						/* only a collision may move us to a longer key. */
+						maximumLength = Math.min(maximumLength, runningAttempt.getLength() - 1);
+					}
+				}
+				for (Iterator<InsertAttempt> runningAttemptIterator = runningAttempts.iterator(); runningAttemptIterator.hasNext();) {
+					InsertAttempt runningAttempt = runningAttemptIterator.next();
+					if (runningAttempt.getLength() > maximumLength) {
+						runningAttempt.cancel();
+						runningAttemptIterator.remove();
+					}
+				}
+				if (successfulAttempt != null) {
+					/* longer candidates can not improve the result. */
+					maximumLength = Math.min(maximumLength, successfulAttempt.getLength() - 1);
+					for (Iterator<InsertAttempt> runningAttemptIterator = runningAttempts.iterator(); runningAttemptIterator.hasNext();) {
+						InsertAttempt runningAttempt = runningAttemptIterator.next();
+						if (runningAttempt.getLength() >= successfulAttempt.getLength()) {
+							runningAttempt.cancel();
+							runningAttemptIterator.remove();
+						}
+					}
+					if (runningAttempts.isEmpty() || (shortener.getClock().currentTimeMillis() >= deadline)) {
+						break;
+					}
+				}
+				if (runningAttempts.isEmpty()) {
+					if (nextLength > maximumLength) {
+						break;
+					}
+					continue;
+				}
+				if (!advance(runningAttempts.get(0))) {
+					break;
+				}
+				long waitTime = (successfulAttempt == null) ? 1000 : Math.min(1000, deadline - shortener.getClock().currentTimeMillis());
+				try {
+					shortener.getClock().waitOn(completionLock, Math.max(1, waitTime));
+				} catch (InterruptedException ie1) {
+					/* ignore, check again. */
+				}
+			}
+		}
+		for (InsertAttempt runningAttempt : runningAttempts) {
+			runningAttempt.cancel();
+		}
+		finishSearch(importedKey, successfulAttempt);
+	}
+
+	/**
+	 * Runs an insert attempt and wakes up the search when it has finished.
+	 *
+	 * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+	 */
+	private class CompletionNotifier implements Runnable {
+
+		/** The insert attempt to run. */
+		private final InsertAttempt insertAttempt;
+
+		/**
+		 * Creates a new completion notifier.
+		 *
+		 * @param insertAttempt
+		 *            The insert attempt to run
+		 */
+		public CompletionNotifier(InsertAttempt insertAttempt) {
+			this.insertAttempt = insertAttempt;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@SuppressWarnings("synthetic-access")
+		public void run() {
+			insertAttempt.run();
+			synchronized (completionLock) {
+				shortener.getClock().wakeAll(completionLock);
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,346 @@
+/*
+ * shortener - BulkShortening.java - Copyright © 2010 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugin.shortener;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import plugin.shortener.Shortener.KeyShorteningProgress;
+import plugin.shortener.Shortener.ShortenedKey;
+import plugin.shortener.ShorteningScheduler.Priority;
+import freenet.pluginmanager.PluginNotFoundException;
+import freenet.pluginmanager.PluginReplySender;
+import freenet.support.Logger;
+import freenet.support.SimpleFieldSet;
+import freenet.support.api.Bucket;
+import freenet.support.io.Closer;
+
+/**
+ * Shortens all keys from a newline-separated list. The list is read line by
+ * line while the keys are being shortened; only a limited number of keys is
+ * submitted to the {@link Shortener} at the same time, and reading stops
+ * while the scheduler is full. Every couple of seconds a “BulkProgress”
+ * message with the counters and the keys that finished since the last
+ * message is sent; a “BulkFinished” message follows once all keys have been
+ * shortened or the bulk shortening has been cancelled.
+ *
+ * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+ */
+public class BulkShortening implements Runnable {
+
+	/** The maximum number of keys that are shortened at the same time. */
+	private static final int MAXIMUM_RUNNING = 100;
+
+	/** The time between two progress messages (in milliseconds). */
+	private static final long PROGRESS_INTERVAL = 10 * 1000;
+
+	/** The ID of the bulk shortening. */
+	private final String id;
+
+	/** The key shortener. */
+	private final Shortener shortener;
+
+	/** The list of keys. */
+	private final Bucket keyList;
+
+	/** The sender for the progress messages. */
+	private final PluginReplySender replySender;
+
+	/** The keys that are currently being shortened. */
+	private final List<KeyShorteningProgress> runningKeys = new LinkedList<KeyShorteningProgress>();
+
+	/** The keys that were shortened since the last progress message. */
+	private final List<ShortenedKey> newShortenedKeys = new ArrayList<ShortenedKey>();
+
+	/** The keys that failed since the last progress message. */
+	private final List<String> newFailedKeys = new ArrayList<String>();
+
+	/** The number of keys read from the list. */
+	private int readKeys;
+
+	/** The number of invalid keys. */
+	private int invalidKeys;
+
+	/** The number of shortened keys. */
+	private int shortenedKeys;
+
+	/** The number of failed keys. */
+	private int failedKeys;
+
+	/** Whether the bulk shortening has been cancelled. */
+	private boolean cancelled;
+
+	/** The time the last progress message was sent. */
+	private long lastProgressTime;
+
+	/**
+	 * Creates a new bulk shortening.
+	 *
+	 * @param id
+	 *            The ID of the bulk shortening
+	 * @param shortener
+	 *            The key shortener
+	 * @param keyList
+	 *            The list of keys, one key per line
+	 * @param replySender
+	 *            The sender for the progress messages
+	 */
+	public BulkShortening(String id, Shortener shortener, Bucket keyList, PluginReplySender replySender) {
+		this.id = id;
+		this.shortener = shortener;
+		this.keyList = keyList;
+		this.replySender = replySender;
+		this.lastProgressTime = shortener.getClock().currentTimeMillis();
+	}
+
+	//
+	// ACCESSORS
+	//
+
+	/**
+	 * Returns the ID of the bulk shortening.
+	 *
+	 * @return The ID of the bulk shortening
+	 */
+	public String getId() {
+		return id;
+	}
+
+	/**
+	 * Returns whether the bulk shortening has been cancelled.
+	 *
+	 * @return {@code true} if the bulk shortening has been cancelled, {@code
+	 *         false} otherwise
+	 */
+	public synchronized boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * Adds the counters of this bulk shortening to the given message.
+	 *
+	 * @param message
+	 *            The message to add the counters to
+	 */
+	public synchronized void addCounters(SimpleFieldSet message) {
+		message.putSingle("Job", id);
+		message.put("Read", readKeys);
+		message.put("Invalid", invalidKeys);
+		message.put("Running", runningKeys.size());
+		message.put("Shortened", shortenedKeys);
+		message.put("Failed", failedKeys);
+		message.put("Cancelled", cancelled);
+	}
+
+	//
+	// ACTIONS
+	//
+
+	/**
+	 * Cancels the bulk shortening. No more keys are read from the list, and
+	 * the shortening of all running keys is released. Keys that other
+	 * clients have requested, too, keep being shortened; the bulk shortening
+	 * does not wait for them anymore.
+	 */
+	public void cancel() {
+		List<KeyShorteningProgress> cancelledKeys;
+		synchronized (this) {
+			cancelled = true;
+			cancelledKeys = new ArrayList<KeyShorteningProgress>(runningKeys);
+		}
+		for (KeyShorteningProgress keyShorteningProgress : cancelledKeys) {
+			if (!shortener.releaseKeyShortening(keyShorteningProgress) && !keyShorteningProgress.isFinished()) {
+				synchronized (this) {
+					runningKeys.remove(keyShorteningProgress);
+				}
+			}
+		}
+	}
+
+	//
+	// INTERFACE Runnable
+	//
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void run() {
+		BufferedReader keyReader = null;
+		try {
+			keyReader = new BufferedReader(new InputStreamReader(keyList.getInputStream(), "UTF-8"));
+			String line;
+			while (!isCancelled() && ((line = keyReader.readLine()) != null)) {
+				String key = line.trim();
+				if ((key.length() == 0) || key.startsWith("#")) {
+					continue;
+				}
+				synchronized (this) {
+					++readKeys;
+				}
+				while (!isCancelled() && (getRunningKeyCount() >= MAXIMUM_RUNNING)) {
+					collectFinishedKeys(PROGRESS_INTERVAL);
+				}
+				submit(key);
+				collectFinishedKeys(0);
+			}
+		} catch (IOException ioe1) {
+			Logger.error(this, "Could not read key list of bulk shortening " + id + "!", ioe1);
+		} finally {
+			Closer.close(keyReader);
+			keyList.free();
+			/* cancelled keys finish quickly; wait for them, too. */
+			while (getRunningKeyCount() > 0) {
+				collectFinishedKeys(PROGRESS_INTERVAL);
+			}
+			sendProgress("BulkFinished");
+		}
+	}
+
+	//
+	// PRIVATE METHODS
+	//
+
+	/**
+	 * Returns the number of keys that are currently being shortened.
+	 *
+	 * @return The number of running keys
+	 */
+	private synchronized int getRunningKeyCount() {
+		return runningKeys.size();
+	}
+
+	/**
+	 * Submits the given key to the shortener, waiting while the scheduler is
+	 * full.
+	 *
+	 * @param key
+	 *            The key to shorten
+	 */
+	private void submit(String key) {
+		while (!isCancelled()) {
+			try {
+				KeyShorteningProgress keyShorteningProgress = shortener.shortenKey(key, Priority.BULK);
+				boolean cancelledWhileSubmitting;
+				synchronized (this) {
+					cancelledWhileSubmitting = cancelled;
+					if (!cancelled) {
+						runningKeys.add(keyShorteningProgress);
+					}
+				}
+				if (cancelledWhileSubmitting) {
+					shortener.releaseKeyShortening(keyShorteningProgress);
+				}
+				return;
+			} catch (MalformedURLException mue1) {
+				synchronized (this) {
+					++invalidKeys;
+				}
+				return;
+			} catch (SchedulerFullException sfe1) {
+				if (getRunningKeyCount() > 0) {
+					collectFinishedKeys(sfe1.getRetryAfter() * 1000L);
+				} else {
+					try {
+						shortener.getClock().sleep(sfe1.getRetryAfter() * 1000L);
+					} catch (InterruptedException ie1) {
+						/* ignore, try again. */
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Removes all finished keys from the running keys, waiting up to the
+	 * given time for the oldest running key to finish. Sends a progress
+	 * message if the last one was sent long enough ago.
+	 *
+	 * @param timeout
+	 *            The maximum time to wait (in milliseconds)
+	 */
+	private void collectFinishedKeys(long timeout) {
+		KeyShorteningProgress oldestKey;
+		synchronized (this) {
+			oldestKey = runningKeys.isEmpty() ? null : runningKeys.get(0);
+		}
+		if ((oldestKey != null) && (timeout > 0)) {
+			oldestKey.waitUntilFinished(Math.min(timeout, Math.max(1, lastProgressTime + PROGRESS_INTERVAL - shortener.getClock().currentTimeMillis())));
+		}
+		synchronized (this) {
+			for (int index = runningKeys.size() - 1; index >= 0; --index) {
+				KeyShorteningProgress keyShorteningProgress = runningKeys.get(index);
+				if (!keyShorteningProgress.isFinished()) {
+					continue;
+				}
+				runningKeys.remove(index);
+				ShortenedKey shortenedKey = keyShorteningProgress.getShortenedKey();
+				if (shortenedKey != null) {
+					++shortenedKeys;
+					newShortenedKeys.add(shortenedKey);
+				} else {
+					++failedKeys;
+					newFailedKeys.add(keyShorteningProgress.getOriginalKey());
+				}
+			}
+		}
+		if (shortener.getClock().currentTimeMillis() - lastProgressTime >= PROGRESS_INTERVAL) {
+			sendProgress("BulkProgress");
+		}
+	}
+
+	/**
+	 * Sends a progress message containing the counters and the keys that
+	 * finished since the last progress message.
+	 *
+	 * @param messageName
+	 *            The name of the message
+	 */
+	private void sendProgress(String messageName) {
+		SimpleFieldSet message = new SimpleFieldSet(true);
+		message.putSingle("Message", messageName);
+		synchronized (this) {
+			addCounters(message);
+			int index = 0;
+			for (ShortenedKey shortenedKey : newShortenedKeys) {
+				message.putSingle("Shortened." + index + ".OriginalKey", shortenedKey.getOriginalKey());
+				message.putSingle("Shortened." + index + ".ShortenedKey", shortenedKey.getShortenedKey());
+				++index;
+			}
+			index = 0;
+			for (String failedKey : newFailedKeys) {
+				message.putSingle("Failed." + index + ".OriginalKey", failedKey);
+				++index;
+			}
+			newShortenedKeys.clear();
+			newFailedKeys.clear();
+		}
+		lastProgressTime = shortener.getClock().currentTimeMillis();
+		try {
+			replySender.send(message);
+		} catch (PluginNotFoundException pnfe1) {
+			Logger.normal(this, "Client of bulk shortening " + id + " is gone, cancelling.");
+			cancel();
+		}
+	}
+
+}
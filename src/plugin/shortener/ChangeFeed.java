@@ -0,0 +1,282 @@
+/*
+ * shortener - ChangeFeed.java - Copyright © 2010 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugin.shortener;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import plugin.shortener.ChangeLog.Change;
+import freenet.keys.FreenetURI;
+import freenet.support.Base64;
+
+/**
+ * The binary format of a batch of changes that is sent to other nodes. A
+ * batch starts with a header:
+ * <ul>
+ * <li>the magic number {@value #MAGIC} (4 bytes),</li>
+ * <li>the sequence number the batch starts after (8 bytes),</li>
+ * <li>the sequence number of the last change of the sending node (8
+ * bytes),</li>
+ * <li>the number of changes in the batch (4 bytes).</li>
+ * </ul>
+ * Every change consists of the difference between its sequence number and
+ * the sequence number of the change before it as a variable-length number
+ * (7 bits per byte, the highest bit marks a following byte), the original key
+ * in modified UTF-8, and the length of the shortened key (1 byte). The
+ * shortened key itself is not sent because it is “KSK@” followed by the
+ * given number of characters of the encoded routing key of the original key.
+ * Only names that are not a prefix of the encoded routing key (names
+ * allocated by a {@link CounterAllocator} and candidates at other offsets of
+ * the routing key) are sent, in modified UTF-8 after a length of {@code 0}.
+ *
+ * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+ */
+public class ChangeFeed {
+
+	/** The magic number of a batch. */
+	private static final int MAGIC = 0x53464431;
+
+	/** The prefix of all shortened keys. */
+	private static final String SHORTENED_KEY_PREFIX = "KSK@";
+
+	/** The sequence number the batch starts after. */
+	private final long since;
+
+	/** The sequence number of the last change of the sending node. */
+	private final long lastSequence;
+
+	/** The changes of the batch. */
+	private final List<Change> changes;
+
+	/**
+	 * Creates a new batch of changes.
+	 *
+	 * @param since
+	 *            The sequence number the batch starts after
+	 * @param lastSequence
+	 *            The sequence number of the last change of the sending node
+	 * @param changes
+	 *            The changes of the batch
+	 */
+	public ChangeFeed(long since, long lastSequence, List<Change> changes) {
+		this.since = since;
+		this.lastSequence = lastSequence;
+		this.changes = Collections.unmodifiableList(changes);
+	}
+
+	//
+	// ACCESSORS
+	//
+
+	/**
+	 * Returns the sequence number the batch starts after.
+	 *
+	 * @return The sequence number the batch starts after
+	 */
+	public long getSince() {
+		return since;
+	}
+
+	/**
+	 * Returns the sequence number of the last change of the sending node. If
+	 * it is larger than the sequence number of the last change in this batch,
+	 * there are more changes to fetch.
+	 *
+	 * @return The sequence number of the last change of the sending node
+	 */
+	public long getLastSequence() {
+		return lastSequence;
+	}
+
+	/**
+	 * Returns the changes of the batch.
+	 *
+	 * @return The changes of the batch
+	 */
+	public List<Change> getChanges() {
+		return changes;
+	}
+
+	/**
+	 * Returns the sequence number of the last change in this batch.
+	 *
+	 * @return The sequence number of the last change in this batch, or the
+	 *         sequence number the batch starts after if the batch is empty
+	 */
+	public long getLastChangeSequence() {
+		return changes.isEmpty() ? since : changes.get(changes.size() - 1).getSequence();
+	}
+
+	//
+	// ACTIONS
+	//
+
+	/**
+	 * Writes this batch to the given output stream.
+	 *
+	 * @param outputStream
+	 *            The output stream to write to
+	 * @throws IOException
+	 *             if an I/O error occurs, or a shortened key can not be
+	 *             written in this format
+	 */
+	public void write(OutputStream outputStream) throws IOException {
+		DataOutputStream dataOutputStream = new DataOutputStream(outputStream);
+		dataOutputStream.writeInt(MAGIC);
+		dataOutputStream.writeLong(since);
+		dataOutputStream.writeLong(lastSequence);
+		dataOutputStream.writeInt(changes.size());
+		long previousSequence = since;
+		for (Change change : changes) {
+			String shortenedKey = change.getShortenedKey();
+			int length = shortenedKey.length() - SHORTENED_KEY_PREFIX.length();
+			if (!shortenedKey.startsWith(SHORTENED_KEY_PREFIX) || (length > 255)) {
+				throw new IOException("Can not write shortened key: " + shortenedKey);
+			}
+			writeVariableLength(dataOutputStream, change.getSequence() - previousSequence);
+			dataOutputStream.writeUTF(change.getOriginalKey());
+			String name = shortenedKey.substring(SHORTENED_KEY_PREFIX.length());
+			if (CounterAllocator.isAllocatedName(name) || !getEncodedRoutingKey(change.getOriginalKey()).startsWith(name)) {
+				dataOutputStream.writeByte(0);
+				dataOutputStream.writeUTF(name);
+			} else {
+				dataOutputStream.writeByte(length);
+			}
+			previousSequence = change.getSequence();
+		}
+		dataOutputStream.flush();
+	}
+
+	/**
+	 * Reads a batch from the given input stream.
+	 *
+	 * @param inputStream
+	 *            The input stream to read from
+	 * @return The batch
+	 * @throws IOException
+	 *             if an I/O error occurs, or the batch is invalid
+	 */
+	public static ChangeFeed read(InputStream inputStream) throws IOException {
+		DataInputStream dataInputStream = new DataInputStream(inputStream);
+		if (dataInputStream.readInt() != MAGIC) {
+			throw new IOException("Not a batch of changes.");
+		}
+		long since = dataInputStream.readLong();
+		long lastSequence = dataInputStream.readLong();
+		int count = dataInputStream.readInt();
+		if (count < 0) {
+			throw new IOException("Invalid number of changes: " + count);
+		}
+		List<Change> changes = new ArrayList<Change>(Math.min(count, 10000));
+		long sequence = since;
+		for (int index = 0; index < count; ++index) {
+			long difference = readVariableLength(dataInputStream);
+			if (difference < 1) {
+				throw new IOException("Sequence numbers are not increasing.");
+			}
+			sequence += difference;
+			String originalKey = dataInputStream.readUTF();
+			int length = dataInputStream.readUnsignedByte();
+			if (length == 0) {
+				String name = dataInputStream.readUTF();
+				if (!CounterAllocator.isAllocatedName(name) && ((name.length() == 0) || !Shortener.isCandidate(name, getEncodedRoutingKey(originalKey)))) {
+					throw new IOException("Invalid name " + name + " for " + originalKey);
+				}
+				changes.add(new Change(sequence, originalKey, SHORTENED_KEY_PREFIX + name));
+				continue;
+			}
+			String encodedRoutingKey = getEncodedRoutingKey(originalKey);
+			if ((length < 1) || (length > encodedRoutingKey.length())) {
+				throw new IOException("Invalid length " + length + " for " + originalKey);
+			}
+			changes.add(new Change(sequence, originalKey, SHORTENED_KEY_PREFIX + encodedRoutingKey.substring(0, length)));
+		}
+		return new ChangeFeed(since, lastSequence, changes);
+	}
+
+	//
+	// PRIVATE METHODS
+	//
+
+	/**
+	 * Returns the Base64-encoded routing key of the given original key.
+	 *
+	 * @param originalKey
+	 *            The original key
+	 * @return The encoded routing key
+	 * @throws IOException
+	 *             if the original key is not a valid Freenet URI
+	 */
+	private static String getEncodedRoutingKey(String originalKey) throws IOException {
+		try {
+			return Base64.encode(new FreenetURI(originalKey).getRoutingKey());
+		} catch (MalformedURLException mue1) {
+			throw new IOException("Invalid original key: " + originalKey);
+		}
+	}
+
+	/**
+	 * Writes a non-negative number with 7 bits per byte, the lowest bits
+	 * first.
+	 *
+	 * @param dataOutputStream
+	 *            The output stream to write to
+	 * @param value
+	 *            The number to write
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	private static void writeVariableLength(DataOutputStream dataOutputStream, long value) throws IOException {
+		long remaining = value;
+		while ((remaining & ~0x7fL) != 0) {
+			dataOutputStream.writeByte((int) ((remaining & 0x7f) | 0x80));
+			remaining >>>= 7;
+		}
+		dataOutputStream.writeByte((int) remaining);
+	}
+
+	/**
+	 * Reads a number written by
+	 * {@link #writeVariableLength(DataOutputStream, long)}.
+	 *
+	 * @param dataInputStream
+	 *            The input stream to read from
+	 * @return The number
+	 * @throws IOException
+	 *             if an I/O error occurs, or the number is too long
+	 */
+	private static long readVariableLength(DataInputStream dataInputStream) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int nextByte = dataInputStream.readUnsignedByte();
+			value |= (long) (nextByte & 0x7f) << shift;
+			if ((nextByte & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Number is too long.");
+	}
+
+}
@@ -0,0 +1,598 @@
+/*
+ * shortener - ChangeLog.java - Copyright © 2010 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugin.shortener;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import freenet.support.Logger;
+
+/**
+ * Append-only log of all changes to the shortened keys. Every change has a
+ * sequence number that is larger than the sequence numbers of all earlier
+ * changes, so that other nodes can ask for all changes after the last change
+ * they have seen. Records are stored with their length and a CRC32 checksum,
+ * like the records of the {@link Journal}; a torn record at the end of the
+ * log is removed when the log is opened.
+ * <p>
+ * The log is not synced after every change; the journal records the sequence
+ * number of every shortened key, and changes that were lost are appended
+ * again when the journal is replayed.
+ * <p>
+ * A shared change log can be used by several processes at the same time.
+ * Changes are only appended between {@link #lock()} and {@link #unlock()},
+ * which hold an exclusive lock on the file and return the changes the other
+ * processes have appended since the last call, and every change is synced
+ * right away.
+ *
+ * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+ */
+public class ChangeLog {
+
+	/** The size of the header in front of every record (length and CRC). */
+	private static final int HEADER_SIZE = 8;
+
+	/** The maximum size of a single record. */
+	private static final int MAXIMUM_RECORD_SIZE = 1 << 16;
+
+	/** The number of records between two entries of the index. */
+	private static final int INDEX_INTERVAL = 256;
+
+	/** The log file. */
+	private final File file;
+
+	/** Whether the log is shared with other processes. */
+	private final boolean shared;
+
+	/** The lock for appending changes. */
+	private final ReentrantLock appendLock = new ReentrantLock();
+
+	/** The lock on the file while changes are appended to a shared log. */
+	private FileLock fileLock;
+
+	/** The channel of the opened log file. */
+	private FileChannel fileChannel;
+
+	/** The length of all valid records in the log. */
+	private long length;
+
+	/** The sequence number of the last change. */
+	private long lastSequence;
+
+	/** The number of records in the log. */
+	private long recordCount;
+
+	/** The sequence numbers of every {@link #INDEX_INTERVAL}th record. */
+	private long[] indexSequences = new long[64];
+
+	/** The offsets of every {@link #INDEX_INTERVAL}th record. */
+	private long[] indexOffsets = new long[64];
+
+	/** The number of entries in the index. */
+	private int indexSize;
+
+	/**
+	 * Creates a new change log.
+	 *
+	 * @param file
+	 *            The log file
+	 */
+	public ChangeLog(File file) {
+		this(file, false);
+	}
+
+	/**
+	 * Creates a new change log.
+	 *
+	 * @param file
+	 *            The log file
+	 * @param shared
+	 *            {@code true} if other processes use the same log file,
+	 *            {@code false} otherwise
+	 */
+	public ChangeLog(File file, boolean shared) {
+		this.file = file;
+		this.shared = shared;
+	}
+
+	//
+	// ACCESSORS
+	//
+
+	/**
+	 * Returns whether the log is shared with other processes.
+	 *
+	 * @return {@code true} if the log is shared, {@code false} otherwise
+	 */
+	public boolean isShared() {
+		return shared;
+	}
+
+	/**
+	 * Returns the sequence number of the last change.
+	 *
+	 * @return The sequence number of the last change, or {@code 0} if there
+	 *         are no changes
+	 */
+	public synchronized long getLastSequence() {
+		return lastSequence;
+	}
+
+	/**
+	 * Returns the changes with a sequence number larger than the given
+	 * sequence number, in the order they were made.
+	 *
+	 * @param since
+	 *            The sequence number of the last known change
+	 * @param maximumCount
+	 *            The maximum number of changes to return
+	 * @return The changes
+	 * @throws IOException
+	 *             if the log can not be read
+	 */
+	public List<Change> getChanges(long since, int maximumCount) throws IOException {
+		long offset;
+		long endOffset;
+		synchronized (this) {
+			if ((fileChannel == null) || (since >= lastSequence) || (maximumCount < 1)) {
+				return Collections.emptyList();
+			}
+			offset = 0;
+			int low = 0;
+			int high = indexSize - 1;
+			while (low <= high) {
+				int middle = (low + high) >>> 1;
+				if (indexSequences[middle] <= since) {
+					offset = indexOffsets[middle];
+					low = middle + 1;
+				} else {
+					high = middle - 1;
+				}
+			}
+			endOffset = length;
+		}
+		/* records before the end offset are never changed, no lock needed. */
+		List<Change> changes = new ArrayList<Change>();
+		FileInputStream fileInputStream = new FileInputStream(file);
+		try {
+			fileInputStream.getChannel().position(offset);
+			DataInputStream recordInputStream = new DataInputStream(new BufferedInputStream(fileInputStream));
+			while ((offset < endOffset) && (changes.size() < maximumCount)) {
+				int recordLength = recordInputStream.readInt();
+				recordInputStream.readInt();
+				byte[] payload = new byte[recordLength];
+				recordInputStream.readFully(payload);
+				offset += HEADER_SIZE + recordLength;
+				Change change = Change.decode(payload);
+				if (change.getSequence() > since) {
+					changes.add(change);
+				}
+			}
+		} finally {
+			fileInputStream.close();
+		}
+		return changes;
+	}
+
+	//
+	// ACTIONS
+	//
+
+	/**
+	 * Opens the change log. A torn or corrupt record at the end of the log is
+	 * removed, together with everything after it.
+	 *
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public synchronized void open() throws IOException {
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+		fileChannel = randomAccessFile.getChannel();
+		/* another process might be writing the last record right now. */
+		FileLock openLock = shared ? fileChannel.lock() : null;
+		try {
+			readRecords();
+		} finally {
+			if (openLock != null) {
+				openLock.release();
+			}
+		}
+	}
+
+	/**
+	 * Locks the log for appending changes. For a shared log, this waits for
+	 * an exclusive lock on the file and reads the changes other processes
+	 * have appended since the last call. Every call has to be followed by a
+	 * call to {@link #unlock()}.
+	 *
+	 * @return The changes appended by other processes, in the order they
+	 *         were appended
+	 * @throws IOException
+	 *             if the file can not be locked or read
+	 */
+	public List<Change> lock() throws IOException {
+		appendLock.lock();
+		if (!shared) {
+			return Collections.emptyList();
+		}
+		try {
+			synchronized (this) {
+				if (fileChannel == null) {
+					throw new IOException("Change log " + file + " is not open.");
+				}
+				fileLock = fileChannel.lock();
+				return readNewRecords();
+			}
+		} catch (IOException ioe1) {
+			unlock();
+			throw ioe1;
+		}
+	}
+
+	/**
+	 * Unlocks the log after {@link #lock()}.
+	 */
+	public void unlock() {
+		synchronized (this) {
+			if (fileLock != null) {
+				try {
+					fileLock.release();
+				} catch (IOException ioe1) {
+					Logger.error(this, "Could not unlock change log " + file + "!", ioe1);
+				}
+				fileLock = null;
+			}
+		}
+		appendLock.unlock();
+	}
+
+	/**
+	 * Appends a change with the next sequence number.
+	 *
+	 * @param originalKey
+	 *            The original key
+	 * @param shortenedKey
+	 *            The shortened key
+	 * @return The sequence number of the change
+	 * @throws IOException
+	 *             if the change can not be written
+	 */
+	public synchronized long append(String originalKey, String shortenedKey) throws IOException {
+		long sequence = lastSequence + 1;
+		append(sequence, originalKey, shortenedKey);
+		return sequence;
+	}
+
+	/**
+	 * Appends a change with the given sequence number. This is used to
+	 * restore changes from the journal that did not make it to the log.
+	 *
+	 * @param sequence
+	 *            The sequence number of the change
+	 * @param originalKey
+	 *            The original key
+	 * @param shortenedKey
+	 *            The shortened key
+	 * @throws IOException
+	 *             if the change can not be written
+	 * @throws IllegalArgumentException
+	 *             if the sequence number is not larger than the sequence
+	 *             number of the last change
+	 */
+	public synchronized void append(long sequence, String originalKey, String shortenedKey) throws IOException, IllegalArgumentException {
+		if (sequence <= lastSequence) {
+			throw new IllegalArgumentException("Sequence " + sequence + " is not after " + lastSequence + ".");
+		}
+		if (fileChannel == null) {
+			throw new IOException("Change log " + file + " is not open.");
+		}
+		if (shared && (fileLock == null)) {
+			throw new IllegalStateException("Shared change log " + file + " is not locked.");
+		}
+		byte[] payload = new Change(sequence, originalKey, shortenedKey).encode();
+		CRC32 crc32 = new CRC32();
+		crc32.update(payload);
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+		buffer.putInt(payload.length).putInt((int) crc32.getValue()).put(payload);
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			fileChannel.write(buffer);
+		}
+		if (shared) {
+			fileChannel.force(false);
+		}
+		addRecord(sequence, HEADER_SIZE + payload.length);
+	}
+
+	/**
+	 * Writes all changes to disk.
+	 *
+	 * @throws IOException
+	 *             if the log can not be synced
+	 */
+	public synchronized void sync() throws IOException {
+		if (fileChannel != null) {
+			fileChannel.force(false);
+		}
+	}
+
+	/**
+	 * Syncs and closes the change log.
+	 */
+	public synchronized void close() {
+		if (fileChannel == null) {
+			return;
+		}
+		try {
+			fileChannel.force(false);
+			fileChannel.close();
+		} catch (IOException ioe1) {
+			Logger.error(this, "Could not close change log " + file + "!", ioe1);
+		}
+		fileChannel = null;
+	}
+
+	//
+	// PRIVATE METHODS
+	//
+
+	/**
+	 * Reads all records of the log, removing a torn or corrupt record at the
+	 * end together with everything after it.
+	 *
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	private void readRecords() throws IOException {
+		DataInputStream recordInputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			while (true) {
+				int recordLength;
+				try {
+					recordLength = recordInputStream.readInt();
+				} catch (EOFException eofe1) {
+					break;
+				}
+				if ((recordLength < 0) || (recordLength > MAXIMUM_RECORD_SIZE)) {
+					break;
+				}
+				int checksum = recordInputStream.readInt();
+				byte[] payload = new byte[recordLength];
+				recordInputStream.readFully(payload);
+				CRC32 crc32 = new CRC32();
+				crc32.update(payload);
+				if ((int) crc32.getValue() != checksum) {
+					break;
+				}
+				Change change;
+				try {
+					change = Change.decode(payload);
+				} catch (IOException ioe1) {
+					Logger.error(this, "Could not decode change at " + length + " in change log " + file + "!", ioe1);
+					break;
+				}
+				if (change.getSequence() <= lastSequence) {
+					break;
+				}
+				addRecord(change.getSequence(), HEADER_SIZE + recordLength);
+			}
+		} catch (EOFException eofe1) {
+			/* torn record at the end, will be truncated below. */
+		} finally {
+			recordInputStream.close();
+		}
+		if (fileChannel.size() > length) {
+			Logger.normal(this, "Truncating change log " + file + " from " + fileChannel.size() + " to " + length + " bytes.");
+			fileChannel.truncate(length);
+			fileChannel.force(true);
+		}
+		fileChannel.position(length);
+	}
+
+	/**
+	 * Reads the records other processes have appended to a shared log. The
+	 * caller has to hold the exclusive lock on the file, so an incomplete
+	 * record at the end was left by a process that died while writing it, and
+	 * is removed.
+	 *
+	 * @return The changes that were read
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	private List<Change> readNewRecords() throws IOException {
+		long size = fileChannel.size();
+		if (size <= length) {
+			return Collections.emptyList();
+		}
+		ByteBuffer newRecords = ByteBuffer.allocate((int) Math.min(Integer.MAX_VALUE, size - length));
+		while (newRecords.hasRemaining() && (fileChannel.read(newRecords, length + newRecords.position()) >= 0)) {
+			/* keep reading. */
+		}
+		newRecords.flip();
+		List<Change> changes = new ArrayList<Change>();
+		while (newRecords.remaining() >= HEADER_SIZE) {
+			int recordLength = newRecords.getInt();
+			int checksum = newRecords.getInt();
+			if ((recordLength < 0) || (recordLength > MAXIMUM_RECORD_SIZE) || (recordLength > newRecords.remaining())) {
+				break;
+			}
+			byte[] payload = new byte[recordLength];
+			newRecords.get(payload);
+			CRC32 crc32 = new CRC32();
+			crc32.update(payload);
+			if ((int) crc32.getValue() != checksum) {
+				break;
+			}
+			Change change = Change.decode(payload);
+			if (change.getSequence() <= lastSequence) {
+				break;
+			}
+			addRecord(change.getSequence(), HEADER_SIZE + recordLength);
+			changes.add(change);
+		}
+		if (size > length) {
+			Logger.normal(this, "Truncating shared change log " + file + " from " + size + " to " + length + " bytes.");
+			fileChannel.truncate(length);
+			fileChannel.force(true);
+		}
+		fileChannel.position(length);
+		return changes;
+	}
+
+	/**
+	 * Records a record that has been read or written, adding it to the index
+	 * if necessary.
+	 *
+	 * @param sequence
+	 *            The sequence number of the record
+	 * @param recordLength
+	 *            The length of the record, including the header
+	 */
+	private void addRecord(long sequence, int recordLength) {
+		if ((recordCount % INDEX_INTERVAL) == 0) {
+			if (indexSize == indexSequences.length) {
+				long[] newIndexSequences = new long[indexSize * 2];
+				long[] newIndexOffsets = new long[indexSize * 2];
+				System.arraycopy(indexSequences, 0, newIndexSequences, 0, indexSize);
+				System.arraycopy(indexOffsets, 0, newIndexOffsets, 0, indexSize);
+				indexSequences = newIndexSequences;
+				indexOffsets = newIndexOffsets;
+			}
+			indexSequences[indexSize] = sequence;
+			indexOffsets[indexSize] = length;
+			++indexSize;
+		}
+		++recordCount;
+		length += recordLength;
+		lastSequence = sequence;
+	}
+
+	/**
+	 * A single change: an original key was shortened to a shortened key.
+	 *
+	 * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+	 */
+	public static class Change {
+
+		/** The sequence number of the change. */
+		private final long sequence;
+
+		/** The original key. */
+		private final String originalKey;
+
+		/** The shortened key. */
+		private final String shortenedKey;
+
+		/**
+		 * Creates a new change.
+		 *
+		 * @param sequence
+		 *            The sequence number of the change
+		 * @param originalKey
+		 *            The original key
+		 * @param shortenedKey
+		 *            The shortened key
+		 */
+		public Change(long sequence, String originalKey, String shortenedKey) {
+			this.sequence = sequence;
+			this.originalKey = originalKey;
+			this.shortenedKey = shortenedKey;
+		}
+
+		/**
+		 * Returns the sequence number of the change.
+		 *
+		 * @return The sequence number of the change
+		 */
+		public long getSequence() {
+			return sequence;
+		}
+
+		/**
+		 * Returns the original key.
+		 *
+		 * @return The original key
+		 */
+		public String getOriginalKey() {
+			return originalKey;
+		}
+
+		/**
+		 * Returns the shortened key.
+		 *
+		 * @return The shortened key
+		 */
+		public String getShortenedKey() {
+			return shortenedKey;
+		}
+
+		/**
+		 * Encodes this change.
+		 *
+		 * @return The encoded change
+		 */
+		byte[] encode() {
+			ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+			DataOutputStream dataOutputStream = new DataOutputStream(byteArrayOutputStream);
+			try {
+				dataOutputStream.writeLong(sequence);
+				dataOutputStream.writeUTF(originalKey);
+				dataOutputStream.writeUTF(shortenedKey);
+				dataOutputStream.close();
+			} catch (IOException ioe1) {
+				/* a ByteArrayOutputStream does not throw. */
+			}
+			return byteArrayOutputStream.toByteArray();
+		}
+
+		/**
+		 * Decodes a change.
+		 *
+		 * @param payload
+		 *            The encoded change
+		 * @return The decoded change
+		 * @throws IOException
+		 *             if the change can not be decoded
+		 */
+		static Change decode(byte[] payload) throws IOException {
+			DataInputStream dataInputStream = new DataInputStream(new ByteArrayInputStream(payload));
+			long sequence = dataInputStream.readLong();
+			String originalKey = dataInputStream.readUTF();
+			String shortenedKey = dataInputStream.readUTF();
+			return new Change(sequence, originalKey, shortenedKey);
+		}
+
+	}
+
+}
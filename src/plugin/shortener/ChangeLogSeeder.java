@@ -0,0 +1,115 @@
+/*
+ * shortener - ChangeLogSeeder.java - Copyright © 2010 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugin.shortener;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+import plugin.shortener.Segment.Entry;
+import plugin.shortener.Shortener.ShortenedKey;
+import freenet.support.Logger;
+
+/**
+ * Adds the shortened keys of a {@link Shortener} to its change log, so that
+ * other nodes can fetch keys that were shortened before the change log
+ * existed. The keys in memory are newer than the keys in the segments, so
+ * they are added first; a key from the segments is only added if the
+ * original key is not in memory.
+ *
+ * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+ */
+class ChangeLogSeeder {
+
+	/** The shortener whose shortened keys to add. */
+	private final Shortener shortener;
+
+	/** The segments with the older shortened keys. */
+	private final SegmentStore segmentStore;
+
+	/** The change log to add the shortened keys to. */
+	private final ChangeLog changeLog;
+
+	/**
+	 * Creates a new change log seeder.
+	 *
+	 * @param shortener
+	 *            The shortener whose shortened keys to add
+	 * @param segmentStore
+	 *            The segments with the older shortened keys
+	 * @param changeLog
+	 *            The change log to add the shortened keys to
+	 */
+	public ChangeLogSeeder(Shortener shortener, SegmentStore segmentStore, ChangeLog changeLog) {
+		this.shortener = shortener;
+		this.segmentStore = segmentStore;
+		this.changeLog = changeLog;
+	}
+
+	//
+	// ACTIONS
+	//
+
+	/**
+	 * Adds all shortened keys to the empty change log.
+	 *
+	 * @throws IOException
+	 *             if the change log can not be written
+	 */
+	public void seed() throws IOException {
+		int addedCount = appendMissingKeys(new HashSet<String>());
+		changeLog.sync();
+		if (addedCount > 0) {
+			Logger.normal(this, "Added " + addedCount + " shortened keys to change log.");
+		}
+	}
+
+	/**
+	 * Adds all shortened keys whose original keys are not contained in the
+	 * given set to the change log. The original keys of the added keys from
+	 * memory are added to the set. If the change log is shared, the caller
+	 * has to hold its lock.
+	 *
+	 * @param knownKeys
+	 *            The original keys that are already in the change log
+	 * @return The number of shortened keys that were added
+	 * @throws IOException
+	 *             if the change log can not be written
+	 */
+	public int appendMissingKeys(Set<String> knownKeys) throws IOException {
+		int addedCount = 0;
+		for (ShortenedKey shortenedKey : shortener.getShortenedKeys()) {
+			if (knownKeys.add(shortenedKey.getOriginalKey())) {
+				shortener.advanceStoredChangeSequence(changeLog.append(shortenedKey.getOriginalKey(), shortenedKey.getShortenedKey()));
+				++addedCount;
+			}
+		}
+		Iterator<Entry> entries = segmentStore.getEntries();
+		while (entries.hasNext()) {
+			Entry entry = entries.next();
+			String key = Segment.decode(entry.getKey());
+			if (!knownKeys.contains(key)) {
+				shortener.advanceStoredChangeSequence(changeLog.append(key, Segment.decode(entry.getValue())));
+				++addedCount;
+			}
+		}
+		return addedCount;
+	}
+
+}
@@ -0,0 +1,72 @@
+/*
+ * shortener - Clock.java - Copyright © 2010 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugin.shortener;
+
+/**
+ * Interface for the source of the time that the {@link Shortener} measures
+ * latencies, deadlines, and retry delays with. All threads of the shortener
+ * wait and wake each other through the clock, so that a simulated clock
+ * knows when nothing can happen anymore before the next point in time. The
+ * shortener uses the {@link SystemClock} on a node; the simulator of the
+ * test sources runs the real shortener in virtual time.
+ *
+ * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+ */
+public interface Clock {
+
+	/**
+	 * Returns the current time.
+	 *
+	 * @return The current time (in milliseconds)
+	 */
+	public long currentTimeMillis();
+
+	/**
+	 * Waits on the given monitor for at most the given time. The calling
+	 * thread has to own the monitor, as with {@link Object#wait(long)}.
+	 *
+	 * @param monitor
+	 *            The monitor to wait on
+	 * @param timeout
+	 *            The maximum time to wait (in milliseconds), or {@code 0} to
+	 *            wait until the monitor is notified
+	 * @throws InterruptedException
+	 *             if the wait is interrupted
+	 */
+	public void waitOn(Object monitor, long timeout) throws InterruptedException;
+
+	/**
+	 * Wakes up all threads that wait on the given monitor. The calling thread
+	 * has to own the monitor, as with {@link Object#notifyAll()}.
+	 *
+	 * @param monitor
+	 *            The monitor to wake up the waiting threads of
+	 */
+	public void wakeAll(Object monitor);
+
+	/**
+	 * Lets the calling thread sleep for the given time.
+	 *
+	 * @param time
+	 *            The time to sleep (in milliseconds)
+	 * @throws InterruptedException
+	 *             if the sleep is interrupted
+	 */
+	public void sleep(long time) throws InterruptedException;
+
+}
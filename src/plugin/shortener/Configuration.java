@@ -0,0 +1,198 @@
+/*
+ * shortener - Configuration.java - Copyright © 2010 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugin.shortener;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+import freenet.support.Logger;
+import freenet.support.io.Closer;
+
+/**
+ * The configuration of the plugin, read from a properties file in the data
+ * directory. Every option has a default, so the file does not have to exist;
+ * options with invalid values are logged and use their default, too.
+ * <p>
+ * The plugin reads the following options; times are given in seconds:
+ * <dl>
+ * <dt>{@code shared.directory}</dt>
+ * <dd>directory of the change log shared with other processes (none)</dd>
+ * <dt>{@code provisional.length}</dt>
+ * <dd>length of provisional keys, {@code 0} to not use them ({@code 0})</dd>
+ * <dt>{@code scheduler.workers}</dt>
+ * <dd>minimum number of keys shortened at once ({@code 4})</dd>
+ * <dt>{@code scheduler.queue}</dt>
+ * <dd>number of jobs per priority waiting for a worker ({@code 100})</dd>
+ * <dt>{@code search.window}</dt>
+ * <dd>number of key lengths tried in parallel ({@code 1})</dd>
+ * <dt>{@code search.candidates}</dt>
+ * <dd>candidates per length of a search with a budget ({@code 4})</dd>
+ * <dt>{@code drain.timeout}</dt>
+ * <dd>seconds running jobs are given to finish on shutdown ({@code 30})</dd>
+ * <dt>{@code start.adaptive}, {@code start.window},
+ * {@code start.threshold}, {@code start.minimumSamples},
+ * {@code start.exploration}</dt>
+ * <dd>choice of the start length from collision statistics ({@code false},
+ * {@code 1000}, {@code 0.1}, {@code 20}, {@code 0.02})</dd>
+ * <dt>{@code filter.enabled}, {@code filter.size}, {@code filter.hashes},
+ * {@code filter.verification}</dt>
+ * <dd>occupancy filter, its size in KiB ({@code false}, {@code 4096},
+ * {@code 7}, {@code 0.05})</dd>
+ * <dt>{@code counter.prefix}, {@code counter.blockSize}</dt>
+ * <dd>names allocated from the plugin’s namespace ({@code s.},
+ * {@code 100})</dd>
+ * <dt>{@code allocation}</dt>
+ * <dd>default allocation, {@code prefix} or {@code counter}
+ * ({@code prefix})</dd>
+ * <dt>{@code coordinator.enabled}</dt>
+ * <dd>whether keys are offered to peers first ({@code false})</dd>
+ * <dt>{@code coordinator.timeout}</dt>
+ * <dd>seconds a peer is given to shorten a key ({@code 1800})</dd>
+ * <dt>{@code peer.<i>n</i>.host}, {@code peer.<i>n</i>.port},
+ * {@code peer.<i>n</i>.name}, {@code peer.<i>n</i>.capacity}</dt>
+ * <dd>the peers, numbered from {@code 0} (none, {@code 9481},
+ * <i>host</i>:<i>port</i>, {@code 4})</dd>
+ * <dt>{@code fcp.maximumBudget}</dt>
+ * <dd>seconds of the largest budget an FCP client may request
+ * ({@code 60})</dd>
+ * <dt>{@code fcp.maximumTimeout}</dt>
+ * <dd>seconds of the largest timeout an FCP client may request
+ * ({@code 3600})</dd>
+ * </dl>
+ *
+ * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+ */
+public class Configuration {
+
+	/** The options. */
+	private final Properties properties = new Properties();
+
+	/**
+	 * Creates a new configuration, reading the given file if it exists.
+	 *
+	 * @param file
+	 *            The configuration file
+	 */
+	public Configuration(File file) {
+		if (!file.exists()) {
+			return;
+		}
+		InputStream configurationInputStream = null;
+		try {
+			configurationInputStream = new FileInputStream(file);
+			properties.load(configurationInputStream);
+		} catch (IOException ioe1) {
+			Logger.error(this, "Could not read configuration from " + file + "!", ioe1);
+		} finally {
+			Closer.close(configurationInputStream);
+		}
+	}
+
+	//
+	// ACCESSORS
+	//
+
+	/**
+	 * Returns the value of the given option.
+	 *
+	 * @param name
+	 *            The name of the option
+	 * @param defaultValue
+	 *            The value to return if the option is not set
+	 * @return The value of the option
+	 */
+	public String getString(String name, String defaultValue) {
+		String value = properties.getProperty(name);
+		return ((value == null) || (value.trim().length() == 0)) ? defaultValue : value.trim();
+	}
+
+	/**
+	 * Returns the value of the given option as a number.
+	 *
+	 * @param name
+	 *            The name of the option
+	 * @param defaultValue
+	 *            The value to return if the option is not set or invalid
+	 * @return The value of the option
+	 */
+	public int getInt(String name, int defaultValue) {
+		return (int) getLong(name, defaultValue);
+	}
+
+	/**
+	 * Returns the value of the given option as a number.
+	 *
+	 * @param name
+	 *            The name of the option
+	 * @param defaultValue
+	 *            The value to return if the option is not set or invalid
+	 * @return The value of the option
+	 */
+	public long getLong(String name, long defaultValue) {
+		String value = getString(name, null);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Long.parseLong(value);
+		} catch (NumberFormatException nfe1) {
+			Logger.error(this, "Invalid value for " + name + ": " + value);
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * Returns the value of the given option as a floating-point number.
+	 *
+	 * @param name
+	 *            The name of the option
+	 * @param defaultValue
+	 *            The value to return if the option is not set or invalid
+	 * @return The value of the option
+	 */
+	public double getDouble(String name, double defaultValue) {
+		String value = getString(name, null);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Double.parseDouble(value);
+		} catch (NumberFormatException nfe1) {
+			Logger.error(this, "Invalid value for " + name + ": " + value);
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * Returns the value of the given option as a boolean.
+	 *
+	 * @param name
+	 *            The name of the option
+	 * @param defaultValue
+	 *            The value to return if the option is not set
+	 * @return The value of the option
+	 */
+	public boolean getBoolean(String name, boolean defaultValue) {
+		String value = getString(name, null);
+		return (value == null) ? defaultValue : Boolean.parseBoolean(value);
+	}
+
+}
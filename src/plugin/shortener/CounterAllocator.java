@@ -0,0 +1,184 @@
+/*
+ * shortener - CounterAllocator.java - Copyright © 2010 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugin.shortener;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+
+/**
+ * Allocates short names from a namespace that belongs to the plugin: a
+ * configurable prefix followed by a counter in base
+ * {@value #BASE}. The counter is stored in a file and reserved in blocks,
+ * so that the file is only written once per block; the rest of a block is
+ * lost when the plugin is stopped. The file is locked while a block is
+ * reserved, so several processes can allocate names from the same file.
+ * <p>
+ * The prefix has to contain a character that is not part of Freenet’s
+ * Base64 alphabet, so that allocated names can never be mistaken for
+ * prefixes of routing keys.
+ *
+ * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+ */
+public class CounterAllocator {
+
+	/** The digits of the counter. */
+	private static final String DIGITS = "0123456789abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ";
+
+	/** The base of the counter. */
+	public static final int BASE = 62;
+
+	/** The file that stores the end of the last reserved block. */
+	private final File file;
+
+	/** The prefix of all allocated names. */
+	private final String prefix;
+
+	/** The number of counter values that are reserved at once. */
+	private final int blockSize;
+
+	/** The next counter value to allocate. */
+	private long next;
+
+	/** The end of the reserved block. */
+	private long blockEnd;
+
+	/**
+	 * Creates a new counter allocator.
+	 *
+	 * @param file
+	 *            The file that stores the counter
+	 * @param prefix
+	 *            The prefix of all allocated names
+	 * @param blockSize
+	 *            The number of counter values that are reserved at once
+	 * @throws IllegalArgumentException
+	 *             if the prefix does not contain a character outside of
+	 *             Freenet’s Base64 alphabet, or contains a “/”
+	 */
+	public CounterAllocator(File file, String prefix, int blockSize) throws IllegalArgumentException {
+		if (!isAllocatedName(prefix) || (prefix.indexOf('/') != -1)) {
+			throw new IllegalArgumentException("Invalid counter prefix: " + prefix);
+		}
+		this.file = file;
+		this.prefix = prefix;
+		this.blockSize = Math.max(1, blockSize);
+	}
+
+	//
+	// ACCESSORS
+	//
+
+	/**
+	 * Returns the prefix of all allocated names.
+	 *
+	 * @return The prefix of all allocated names
+	 */
+	public String getPrefix() {
+		return prefix;
+	}
+
+	//
+	// ACTIONS
+	//
+
+	/**
+	 * Allocates the next name. Every name is only returned once.
+	 *
+	 * @return The allocated name, without “KSK@”
+	 * @throws IOException
+	 *             if a new block can not be reserved
+	 */
+	public synchronized String allocate() throws IOException {
+		if (next >= blockEnd) {
+			reserveBlock();
+		}
+		return prefix + encode(next++);
+	}
+
+	//
+	// STATIC METHODS
+	//
+
+	/**
+	 * Encodes the given counter value.
+	 *
+	 * @param value
+	 *            The counter value (not negative)
+	 * @return The encoded counter value
+	 */
+	public static String encode(long value) {
+		StringBuilder encodedValue = new StringBuilder();
+		long remaining = value;
+		do {
+			encodedValue.append(DIGITS.charAt((int) (remaining % BASE)));
+			remaining /= BASE;
+		} while (remaining > 0);
+		return encodedValue.reverse().toString();
+	}
+
+	/**
+	 * Returns whether the given name of a shortened key was allocated from a
+	 * namespace, i.e. contains a character outside of Freenet’s Base64
+	 * alphabet. All other names are prefixes of routing keys.
+	 *
+	 * @param name
+	 *            The name of the shortened key, without “KSK@”
+	 * @return {@code true} if the name was allocated, {@code false} if it
+	 *         is a prefix of a routing key
+	 */
+	public static boolean isAllocatedName(String name) {
+		for (int index = 0; index < name.length(); ++index) {
+			if (PrefixTrie.ALPHABET.indexOf(name.charAt(index)) == -1) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	//
+	// PRIVATE METHODS
+	//
+
+	/**
+	 * Reserves the next block of counter values.
+	 *
+	 * @throws IOException
+	 *             if the counter file can not be read or written
+	 */
+	private void reserveBlock() throws IOException {
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+		try {
+			FileLock fileLock = randomAccessFile.getChannel().lock();
+			try {
+				long reserved = (randomAccessFile.length() >= 8) ? randomAccessFile.readLong() : 0;
+				randomAccessFile.seek(0);
+				randomAccessFile.writeLong(reserved + blockSize);
+				randomAccessFile.getChannel().force(false);
+				next = reserved;
+				blockEnd = reserved + blockSize;
+			} finally {
+				fileLock.release();
+			}
+		} finally {
+			randomAccessFile.close();
+		}
+	}
+
+}
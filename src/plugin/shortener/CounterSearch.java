@@ -0,0 +1,120 @@
+/*
+ * shortener - CounterSearch.java - Copyright © 2010 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugin.shortener;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+
+import plugin.shortener.Shortener.KeyShorteningProgress;
+import plugin.shortener.Shortener.ShortenedKey;
+import freenet.keys.FreenetURI;
+import freenet.support.Logger;
+
+/**
+ * Shortens the key to a name allocated by a {@link CounterAllocator}. An
+ * allocated name only collides if someone else inserted it, so a colliding
+ * name is skipped; after {@value #MAXIMUM_ALLOCATION_ATTEMPTS} names the
+ * search gives up.
+ *
+ * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+ */
+class CounterSearch extends KeySearch {
+
+	/** The number of allocated names a search tries before it gives up. */
+	static final int MAXIMUM_ALLOCATION_ATTEMPTS = 10;
+
+	/** The allocator for the names. */
+	private final CounterAllocator counterAllocator;
+
+	/**
+	 * Creates a new counter search.
+	 *
+	 * @param shortener
+	 *            The shortener the search runs for
+	 * @param key
+	 *            The normalized original key
+	 * @param originalKey
+	 *            The original key
+	 * @param keyShorteningProgress
+	 *            The progress of the job
+	 * @param keyClaims
+	 *            The claims on keys, or {@code null} if keys are not claimed
+	 * @param counterAllocator
+	 *            The allocator for the names
+	 */
+	public CounterSearch(Shortener shortener, String key, FreenetURI originalKey, KeyShorteningProgress keyShorteningProgress, KeyClaims keyClaims, CounterAllocator counterAllocator) {
+		super(shortener, key, originalKey, keyShorteningProgress, keyClaims);
+		this.counterAllocator = counterAllocator;
+	}
+
+	//
+	// ACTIONS
+	//
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void search() {
+		ShortenedKey shortenedKey = null;
+		for (int attempt = 0; (attempt < MAXIMUM_ALLOCATION_ATTEMPTS) && !keyShorteningProgress.isCancelled(); ++attempt) {
+			if ((shortenedKey = shortener.getShortenedKey(key)) != null) {
+				/* another node or process was faster. */
+				break;
+			}
+			String name;
+			try {
+				name = counterAllocator.allocate();
+			} catch (IOException ioe1) {
+				Logger.error(this, "Could not allocate name for " + key + "!", ioe1);
+				break;
+			}
+			if (shortener.getOriginalKey("KSK@" + name) != null) {
+				continue;
+			}
+			InsertAttempt insertAttempt;
+			try {
+				insertAttempt = createInsertAttempt(name.length(), name);
+			} catch (MalformedURLException mue1) {
+				Logger.error(this, "Could not create shortened key KSK@" + name + "!", mue1);
+				break;
+			}
+			if (!advance(insertAttempt)) {
+				break;
+			}
+			insertAttempt.run();
+			if (insertAttempt.waitForResult()) {
+				shortenedKey = shortener.storeFoundKey(key, "KSK@" + name, originalKey.getRoutingKey(), name);
+				break;
+			}
+			if (insertAttempt.getInsertOutcome() != InsertOutcome.COLLISION) {
+				/* only a collision may move us to the next name. */
+				break;
+			}
+			/* allocated names are never handed out again, so the collision is not recorded as an occupied prefix. */
+		}
+		if (shortenedKey == null) {
+			shortenedKey = shortener.getShortenedKey(key);
+		}
+		if (shortenedKey == null) {
+			shortener.recordFailure(keyShorteningProgress);
+		}
+		shortener.finishKeyShortening(keyShorteningProgress, shortenedKey);
+	}
+
+}
@@ -0,0 +1,73 @@
+/*
+ * shortener - DeadlineWatcher.java - Copyright © 2010 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugin.shortener;
+
+import plugin.shortener.Shortener.CancelReason;
+import plugin.shortener.Shortener.KeyShorteningProgress;
+import freenet.support.Logger;
+
+/**
+ * Cancels the key shortenings of a {@link Shortener} whose deadline has
+ * passed, checking once a second until the shortener is stopped.
+ *
+ * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+ */
+class DeadlineWatcher implements Runnable {
+
+	/** The time between two checks of the deadlines. */
+	private static final long CHECK_INTERVAL = 1000;
+
+	/** The shortener whose key shortenings to watch. */
+	private final Shortener shortener;
+
+	/**
+	 * Creates a new deadline watcher.
+	 *
+	 * @param shortener
+	 *            The shortener whose key shortenings to watch
+	 */
+	public DeadlineWatcher(Shortener shortener) {
+		this.shortener = shortener;
+	}
+
+	//
+	// INTERFACE Runnable
+	//
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void run() {
+		while (!shortener.isStopped()) {
+			try {
+				shortener.getClock().sleep(CHECK_INTERVAL);
+			} catch (InterruptedException ie1) {
+				/* ignore, check again. */
+			}
+			long now = shortener.getClock().currentTimeMillis();
+			for (KeyShorteningProgress keyShorteningProgress : shortener.getKeyShorteningProgresses()) {
+				long deadline = keyShorteningProgress.getDeadline();
+				if ((deadline != 0) && (deadline <= now) && !keyShorteningProgress.isCancelled() && !keyShorteningProgress.isFinished()) {
+					Logger.normal(this, "Shortening of " + keyShorteningProgress.getOriginalKey() + " expired.");
+					keyShorteningProgress.cancel(CancelReason.EXPIRED);
+				}
+			}
+		}
+	}
+
+}
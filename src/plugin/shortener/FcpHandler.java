@@ -0,0 +1,909 @@
+/*
+ * shortener - FcpHandler.java - Copyright © 2010 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugin.shortener;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import plugin.shortener.ChangeLog.Change;
+import plugin.shortener.FcpSubscription.CancelListener;
+import plugin.shortener.FeedImporter.ImportResult;
+import plugin.shortener.PeerCoordinator.PeerState;
+import plugin.shortener.Shortener.Allocation;
+import plugin.shortener.Shortener.CancelReason;
+import plugin.shortener.Shortener.KeyShorteningProgress;
+import plugin.shortener.Shortener.ShortenedKey;
+import plugin.shortener.ShorteningScheduler.Priority;
+import freenet.keys.FreenetURI;
+import freenet.pluginmanager.FredPluginFCP;
+import freenet.pluginmanager.PluginNotFoundException;
+import freenet.pluginmanager.PluginReplySender;
+import freenet.support.Executor;
+import freenet.support.Logger;
+import freenet.support.SimpleFieldSet;
+import freenet.support.api.Bucket;
+import freenet.support.io.ArrayBucket;
+import freenet.support.io.Closer;
+
+/**
+ * Handles the FCP messages sent to the plugin. Every message is a
+ * {@link SimpleFieldSet} with a “Message” field naming the command; an
+ * optional “Identifier” field is copied to the reply. The following commands
+ * are understood:
+ * <dl>
+ * <dt>Shorten</dt>
+ * <dd>Shortens the key in “Key”, with the optional “Priority” (“Interactive”
+ * or “Bulk”, the default) and the optional “Allocation” (“Prefix” or
+ * “Counter”, the configured default otherwise). With a “Budget” in
+ * milliseconds, several candidates are tried per length and the shortest key
+ * inserted within the budget is taken; clients with restricted access may
+ * not set a budget. With a “Timeout” in milliseconds, the shortening is
+ * cancelled once the timeout has passed. Budget and timeout are limited to
+ * the {@link #setMaximumBudget(long) maximum budget} and the
+ * {@link #setMaximumTimeout(long) maximum timeout}. Replies with
+ * “Shortened” or, if the key is still being shortened, “Shortening”.</dd>
+ * <dt>Lookup</dt>
+ * <dd>Looks up the shortened key for “OriginalKey” or the original key for
+ * “ShortenedKey”. Replies with “LookupResult”.</dd>
+ * <dt>BulkShorten</dt>
+ * <dd>Shortens all keys in the data of the message, one key per line, as a
+ * {@link BulkShortening}. Replies with “BulkStarted” containing the “Job”
+ * that is used for all further messages about the bulk shortening. Not
+ * allowed for clients with restricted access.</dd>
+ * <dt>Subscribe</dt>
+ * <dd>Subscribes to the events of the key in “Key” or, without a key, of all
+ * keys, as an {@link FcpSubscription}. Replies with “Subscribed” containing
+ * the “Subscription” that is contained in all events. Clients with
+ * restricted access may hold at most
+ * {@value #MAXIMUM_RESTRICTED_SUBSCRIPTIONS} subscriptions together.</dd>
+ * <dt>Unsubscribe</dt>
+ * <dd>Cancels the subscription in “Subscription”. Replies with
+ * “Unsubscribed”.</dd>
+ * <dt>Status</dt>
+ * <dd>Replies with “Status”, containing the state of the key in “Key”, the
+ * state of the bulk shortening in “Job” or, without either, the state of
+ * the plugin.</dd>
+ * <dt>Cancel</dt>
+ * <dd>Cancels the shortening of the key in “Key” or the bulk shortening in
+ * “Job”. Replies with “Cancelled”. Not allowed for clients with restricted
+ * access.</dd>
+ * <dt>GetChanges</dt>
+ * <dd>Replies with “Changes”, containing the changes after the sequence
+ * number in “Since”, at most “MaxCount”, as a {@link ChangeFeed} in the data
+ * of the reply.</dd>
+ * <dt>ImportChanges</dt>
+ * <dd>Applies the {@link ChangeFeed} in the data of the message, using the
+ * {@link FeedImporter}. The optional “Peer” names the node the changes are
+ * from; its position can be requested with a “Status” message containing
+ * “Peer”. Replies with “ChangesImported”. Not allowed for clients with
+ * restricted access.</dd>
+ * <dt>GetOccupancyFilter</dt>
+ * <dd>Replies with “OccupancyFilter”, containing the {@link OccupancyFilter}
+ * in the data of the reply.</dd>
+ * <dt>ImportOccupancyFilter</dt>
+ * <dd>Merges the {@link OccupancyFilter} in the data of the message into the
+ * filter of this node. Replies with “OccupancyFilterImported”. Not allowed
+ * for clients with restricted access.</dd>
+ * <dt>RegisterPeer</dt>
+ * <dd>Registers the shortener plugin on the node at “Host” and “Port” as
+ * the peer “Name” that shortens up to “Capacity” keys at the same time for
+ * this node. Replies with “PeerRegistered”. Not allowed for clients with
+ * restricted access.</dd>
+ * <dt>UnregisterPeer</dt>
+ * <dd>Removes the peer “Name”. Replies with “PeerUnregistered”. Not allowed
+ * for clients with restricted access.</dd>
+ * </dl>
+ * Errors are reported with an “Error” message containing a “Code” and a
+ * “Description”.
+ *
+ * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+ */
+public class FcpHandler {
+
+	/** The maximum number of subscriptions of clients with restricted access. */
+	static final int MAXIMUM_RESTRICTED_SUBSCRIPTIONS = 100;
+
+	/** The key shortener. */
+	private final Shortener shortener;
+
+	/** The resolver for shortened keys. */
+	private final KeyResolver keyResolver;
+
+	/** The importer for changes from other nodes. */
+	private final FeedImporter feedImporter;
+
+	/** The executor that runs the bulk shortenings. */
+	private final Executor executor;
+
+	/** The running bulk shortenings, by their IDs. */
+	private final ConcurrentMap<String, BulkShortening> bulkShortenings = new ConcurrentHashMap<String, BulkShortening>();
+
+	/** The counter for the IDs of bulk shortenings. */
+	private final AtomicLong bulkShorteningCounter = new AtomicLong();
+
+	/** The subscriptions, by their IDs. */
+	private final ConcurrentMap<String, FcpSubscription> subscriptions = new ConcurrentHashMap<String, FcpSubscription>();
+
+	/** The IDs of the subscriptions of clients with restricted access. */
+	private final Set<String> restrictedSubscriptions = new HashSet<String>();
+
+	/** The counter for the IDs of subscriptions. */
+	private final AtomicLong subscriptionCounter = new AtomicLong();
+
+	/** Removes cancelled subscriptions, e.g. when their client is gone. */
+	private final CancelListener subscriptionRemover = new CancelListener() {
+
+		@SuppressWarnings("synthetic-access")
+		public void subscriptionCancelled(FcpSubscription subscription) {
+			removeSubscription(subscription.getId());
+		}
+
+	};
+
+	/** The largest latency budget a client may request. */
+	private volatile long maximumBudget = 60 * 1000;
+
+	/** The largest timeout a client may request. */
+	private volatile long maximumTimeout = 60 * 60 * 1000;
+
+	/**
+	 * Creates a new FCP handler.
+	 *
+	 * @param shortener
+	 *            The key shortener
+	 * @param keyResolver
+	 *            The resolver for shortened keys
+	 * @param feedImporter
+	 *            The importer for changes from other nodes
+	 * @param executor
+	 *            The executor that runs the bulk shortenings
+	 */
+	public FcpHandler(Shortener shortener, KeyResolver keyResolver, FeedImporter feedImporter, Executor executor) {
+		this.shortener = shortener;
+		this.keyResolver = keyResolver;
+		this.feedImporter = feedImporter;
+		this.executor = executor;
+	}
+
+	//
+	// ACCESSORS
+	//
+
+	/**
+	 * Returns the largest latency budget a client may request. Larger budgets
+	 * are reduced to this budget.
+	 *
+	 * @return The maximum budget (in milliseconds)
+	 */
+	public long getMaximumBudget() {
+		return maximumBudget;
+	}
+
+	/**
+	 * Sets the largest latency budget a client may request. A search with a
+	 * budget keeps several inserts running for the whole budget, so a large
+	 * budget ties up the node’s insert capacity.
+	 *
+	 * @param maximumBudget
+	 *            The maximum budget (in milliseconds)
+	 */
+	public void setMaximumBudget(long maximumBudget) {
+		this.maximumBudget = Math.max(0, maximumBudget);
+	}
+
+	/**
+	 * Returns the largest timeout a client may request. Larger timeouts are
+	 * reduced to this timeout.
+	 *
+	 * @return The maximum timeout (in milliseconds)
+	 */
+	public long getMaximumTimeout() {
+		return maximumTimeout;
+	}
+
+	/**
+	 * Sets the largest timeout a client may request. Requests without a
+	 * timeout are not affected.
+	 *
+	 * @param maximumTimeout
+	 *            The maximum timeout (in milliseconds)
+	 */
+	public void setMaximumTimeout(long maximumTimeout) {
+		this.maximumTimeout = Math.max(0, maximumTimeout);
+	}
+
+	//
+	// ACTIONS
+	//
+
+	/**
+	 * Stops the handler, cancelling all bulk shortenings and subscriptions.
+	 */
+	public void stop() {
+		for (BulkShortening bulkShortening : bulkShortenings.values()) {
+			bulkShortening.cancel();
+		}
+		for (FcpSubscription subscription : subscriptions.values()) {
+			subscription.cancel();
+		}
+	}
+
+	/**
+	 * Handles a single FCP message.
+	 *
+	 * @param replySender
+	 *            The sender for the reply
+	 * @param parameters
+	 *            The parameters of the message
+	 * @param data
+	 *            The data of the message
+	 * @param accessType
+	 *            The access type of the client
+	 */
+	public void handle(PluginReplySender replySender, SimpleFieldSet parameters, Bucket data, int accessType) {
+		String message = parameters.get("Message");
+		SimpleFieldSet reply;
+		try {
+			if ("Shorten".equals(message)) {
+				reply = handleShorten(parameters, accessType);
+			} else if ("BulkShorten".equals(message)) {
+				/*
+				 * a single bulk request can queue thousands of inserts on
+				 * this node, so it is not open to restricted clients.
+				 */
+				if (accessType == FredPluginFCP.ACCESS_FCP_RESTRICTED) {
+					reply = createError(parameters, "AccessDenied", "BulkShorten requires full access.");
+				} else {
+					reply = handleBulkShorten(replySender, parameters, data);
+				}
+			} else if ("Subscribe".equals(message)) {
+				reply = handleSubscribe(replySender, parameters, accessType);
+			} else if ("Unsubscribe".equals(message)) {
+				reply = handleUnsubscribe(parameters);
+			} else if ("Lookup".equals(message)) {
+				reply = handleLookup(parameters);
+			} else if ("Status".equals(message)) {
+				reply = handleStatus(parameters);
+			} else if ("Cancel".equals(message)) {
+				if (accessType == FredPluginFCP.ACCESS_FCP_RESTRICTED) {
+					reply = createError(parameters, "AccessDenied", "Cancel requires full access.");
+				} else {
+					reply = handleCancel(parameters);
+				}
+			} else if ("GetChanges".equals(message)) {
+				reply = handleGetChanges(replySender, parameters);
+			} else if ("RegisterPeer".equals(message) || "UnregisterPeer".equals(message)) {
+				if (accessType == FredPluginFCP.ACCESS_FCP_RESTRICTED) {
+					reply = createError(parameters, "AccessDenied", message + " requires full access.");
+				} else if ("RegisterPeer".equals(message)) {
+					reply = handleRegisterPeer(parameters);
+				} else {
+					reply = handleUnregisterPeer(parameters);
+				}
+			} else if ("ImportChanges".equals(message)) {
+				if (accessType == FredPluginFCP.ACCESS_FCP_RESTRICTED) {
+					reply = createError(parameters, "AccessDenied", "ImportChanges requires full access.");
+				} else {
+					reply = handleImportChanges(parameters, data);
+				}
+			} else if ("GetOccupancyFilter".equals(message)) {
+				reply = handleGetOccupancyFilter(replySender, parameters);
+			} else if ("ImportOccupancyFilter".equals(message)) {
+				if (accessType == FredPluginFCP.ACCESS_FCP_RESTRICTED) {
+					reply = createError(parameters, "AccessDenied", "ImportOccupancyFilter requires full access.");
+				} else {
+					reply = handleImportOccupancyFilter(parameters, data);
+				}
+			} else {
+				reply = createError(parameters, "UnknownMessage", "Unknown message: " + message);
+			}
+		} catch (MalformedURLException mue1) {
+			reply = createError(parameters, "InvalidKey", mue1.getMessage());
+		}
+		if (reply == null) {
+			/* the reply has already been sent. */
+			return;
+		}
+		try {
+			replySender.send(reply);
+		} catch (PluginNotFoundException pnfe1) {
+			Logger.normal(this, "Could not send reply to " + replySender.getIdentifier() + ", plugin is gone.");
+		}
+	}
+
+	//
+	// PRIVATE METHODS
+	//
+
+	/**
+	 * Removes the subscription with the given ID.
+	 *
+	 * @param id
+	 *            The ID of the subscription
+	 */
+	private void removeSubscription(String id) {
+		subscriptions.remove(id);
+		synchronized (restrictedSubscriptions) {
+			restrictedSubscriptions.remove(id);
+		}
+	}
+
+	/**
+	 * Handles the “Shorten” message.
+	 *
+	 * @param parameters
+	 *            The parameters of the message
+	 * @param accessType
+	 *            The access type of the client
+	 * @return The reply
+	 * @throws MalformedURLException
+	 *             if the key is not a valid Freenet URI
+	 */
+	private SimpleFieldSet handleShorten(SimpleFieldSet parameters, int accessType) throws MalformedURLException {
+		String key = parameters.get("Key");
+		if (key == null) {
+			return createError(parameters, "MissingField", "Key is missing.");
+		}
+		Priority priority;
+		try {
+			priority = Priority.valueOf(parameters.get("Priority") == null ? "BULK" : parameters.get("Priority").toUpperCase());
+		} catch (IllegalArgumentException iae1) {
+			return createError(parameters, "InvalidPriority", "Unknown priority: " + parameters.get("Priority"));
+		}
+		Allocation allocation;
+		try {
+			allocation = (parameters.get("Allocation") == null) ? shortener.getDefaultAllocation() : Allocation.valueOf(parameters.get("Allocation").toUpperCase());
+		} catch (IllegalArgumentException iae1) {
+			return createError(parameters, "InvalidAllocation", "Unknown allocation: " + parameters.get("Allocation"));
+		}
+		long latencyBudget = parameters.getLong("Budget", 0);
+		if (latencyBudget < 0) {
+			return createError(parameters, "InvalidBudget", "Invalid budget: " + parameters.get("Budget"));
+		}
+		if ((latencyBudget > 0) && (accessType == FredPluginFCP.ACCESS_FCP_RESTRICTED)) {
+			/* a budget keeps several inserts per key running. */
+			return createError(parameters, "AccessDenied", "Budget requires full access.");
+		}
+		latencyBudget = Math.min(latencyBudget, maximumBudget);
+		long timeout = parameters.getLong("Timeout", 0);
+		if (timeout < 0) {
+			return createError(parameters, "InvalidTimeout", "Invalid timeout: " + parameters.get("Timeout"));
+		}
+		timeout = Math.min(timeout, maximumTimeout);
+		KeyShorteningProgress keyShorteningProgress;
+		try {
+			keyShorteningProgress = shortener.shortenKey(key, priority, allocation, latencyBudget, timeout);
+		} catch (SchedulerFullException sfe1) {
+			SimpleFieldSet reply = createError(parameters, "Busy", "Too many keys are waiting to be shortened.");
+			reply.put("RetryAfter", sfe1.getRetryAfter());
+			return reply;
+		}
+		ShortenedKey shortenedKey = keyShorteningProgress.getShortenedKey();
+		if (shortenedKey != null) {
+			SimpleFieldSet reply = createReply(parameters, "Shortened");
+			reply.putSingle("OriginalKey", shortenedKey.getOriginalKey());
+			reply.putSingle("ShortenedKey", shortenedKey.getShortenedKey());
+			return reply;
+		}
+		SimpleFieldSet reply = createReply(parameters, "Shortening");
+		reply.putSingle("OriginalKey", keyShorteningProgress.getOriginalKey());
+		return reply;
+	}
+
+	/**
+	 * Handles the “BulkShorten” message.
+	 *
+	 * @param replySender
+	 *            The sender for the progress messages
+	 * @param parameters
+	 *            The parameters of the message
+	 * @param data
+	 *            The list of keys
+	 * @return The reply
+	 */
+	private SimpleFieldSet handleBulkShorten(PluginReplySender replySender, SimpleFieldSet parameters, Bucket data) {
+		if (data == null) {
+			return createError(parameters, "MissingData", "The list of keys is missing.");
+		}
+		final String id = "Bulk-" + bulkShorteningCounter.incrementAndGet();
+		final BulkShortening bulkShortening = new BulkShortening(id, shortener, data, replySender);
+		bulkShortenings.put(id, bulkShortening);
+		executor.execute(new Runnable() {
+
+			@SuppressWarnings("synthetic-access")
+			public void run() {
+				try {
+					bulkShortening.run();
+				} finally {
+					bulkShortenings.remove(id);
+				}
+			}
+
+		}, "Shortener Bulk Shortening " + id);
+		SimpleFieldSet reply = createReply(parameters, "BulkStarted");
+		reply.putSingle("Job", id);
+		return reply;
+	}
+
+	/**
+	 * Handles the “Subscribe” message.
+	 *
+	 * @param replySender
+	 *            The sender for the events
+	 * @param parameters
+	 *            The parameters of the message
+	 * @param accessType
+	 *            The access type of the client
+	 * @return The reply
+	 * @throws MalformedURLException
+	 *             if the key is not a valid Freenet URI
+	 */
+	private SimpleFieldSet handleSubscribe(PluginReplySender replySender, SimpleFieldSet parameters, int accessType) throws MalformedURLException {
+		String key = (parameters.get("Key") == null) ? null : new FreenetURI(parameters.get("Key")).toString();
+		String id = "Subscription-" + subscriptionCounter.incrementAndGet();
+		if (accessType == FredPluginFCP.ACCESS_FCP_RESTRICTED) {
+			/* every subscription is called for every event of every key. */
+			synchronized (restrictedSubscriptions) {
+				if (restrictedSubscriptions.size() >= MAXIMUM_RESTRICTED_SUBSCRIPTIONS) {
+					return createError(parameters, "TooManySubscriptions", "Clients with restricted access may not have more than " + MAXIMUM_RESTRICTED_SUBSCRIPTIONS + " subscriptions.");
+				}
+				restrictedSubscriptions.add(id);
+			}
+		}
+		FcpSubscription subscription = new FcpSubscription(id, key, replySender, executor, shortener, subscriptionRemover);
+		subscriptions.put(id, subscription);
+		shortener.addShortenerListener(subscription);
+		SimpleFieldSet reply = createReply(parameters, "Subscribed");
+		reply.putSingle("Subscription", id);
+		return reply;
+	}
+
+	/**
+	 * Handles the “Unsubscribe” message.
+	 *
+	 * @param parameters
+	 *            The parameters of the message
+	 * @return The reply
+	 */
+	private SimpleFieldSet handleUnsubscribe(SimpleFieldSet parameters) {
+		if (parameters.get("Subscription") == null) {
+			return createError(parameters, "MissingField", "Subscription is missing.");
+		}
+		FcpSubscription subscription = subscriptions.get(parameters.get("Subscription"));
+		if (subscription != null) {
+			subscription.cancel();
+		}
+		SimpleFieldSet reply = createReply(parameters, "Unsubscribed");
+		reply.putSingle("Subscription", parameters.get("Subscription"));
+		reply.put("Found", subscription != null);
+		return reply;
+	}
+
+	/**
+	 * Handles the “Lookup” message.
+	 *
+	 * @param parameters
+	 *            The parameters of the message
+	 * @return The reply
+	 * @throws MalformedURLException
+	 *             if the key is not a valid Freenet URI
+	 */
+	private SimpleFieldSet handleLookup(SimpleFieldSet parameters) throws MalformedURLException {
+		SimpleFieldSet reply = createReply(parameters, "LookupResult");
+		if (parameters.get("OriginalKey") != null) {
+			String originalKey = new FreenetURI(parameters.get("OriginalKey")).toString();
+			ShortenedKey shortenedKey = shortener.getShortenedKey(originalKey);
+			reply.putSingle("OriginalKey", originalKey);
+			reply.put("Found", shortenedKey != null);
+			if (shortenedKey != null) {
+				reply.putSingle("ShortenedKey", shortenedKey.getShortenedKey());
+			}
+		} else if (parameters.get("ShortenedKey") != null) {
+			String shortenedKey = KeyResolver.normalize(parameters.get("ShortenedKey"));
+			String originalKey = keyResolver.resolveLocally(shortenedKey);
+			reply.putSingle("ShortenedKey", shortenedKey);
+			reply.put("Found", originalKey != null);
+			if (originalKey != null) {
+				reply.putSingle("OriginalKey", originalKey);
+			}
+		} else {
+			return createError(parameters, "MissingField", "OriginalKey or ShortenedKey is missing.");
+		}
+		return reply;
+	}
+
+	/**
+	 * Handles the “Status” message.
+	 *
+	 * @param parameters
+	 *            The parameters of the message
+	 * @return The reply
+	 * @throws MalformedURLException
+	 *             if the key is not a valid Freenet URI
+	 */
+	private SimpleFieldSet handleStatus(SimpleFieldSet parameters) throws MalformedURLException {
+		SimpleFieldSet reply = createReply(parameters, "Status");
+		if (parameters.get("Job") != null) {
+			BulkShortening bulkShortening = bulkShortenings.get(parameters.get("Job"));
+			if (bulkShortening == null) {
+				return createError(parameters, "UnknownJob", "Unknown job: " + parameters.get("Job"));
+			}
+			bulkShortening.addCounters(reply);
+			return reply;
+		}
+		if (parameters.get("Peer") != null) {
+			reply.putSingle("Peer", parameters.get("Peer"));
+			reply.put("Position", feedImporter.getPosition(parameters.get("Peer")));
+			return reply;
+		}
+		if (parameters.get("Key") != null) {
+			String key = new FreenetURI(parameters.get("Key")).toString();
+			reply.putSingle("Key", key);
+			KeyShorteningProgress keyShorteningProgress = shortener.getKeyShorteningProgress(key);
+			ShortenedKey shortenedKey = shortener.getShortenedKey(key);
+			if (keyShorteningProgress != null) {
+				reply.putSingle("State", getState(keyShorteningProgress));
+				if (keyShorteningProgress.getDeadline() != 0) {
+					reply.put("Deadline", keyShorteningProgress.getDeadline());
+				}
+				if (keyShorteningProgress.getCurrentKey() != null) {
+					reply.putSingle("CurrentKey", keyShorteningProgress.getCurrentKey());
+				}
+				if (shortenedKey != null) {
+					reply.putSingle("ShortenedKey", shortenedKey.getShortenedKey());
+				}
+				reply.put("Duration", System.currentTimeMillis() - keyShorteningProgress.getStartTime());
+			} else if (shortenedKey != null) {
+				reply.putSingle("State", "Shortened");
+				reply.putSingle("ShortenedKey", shortenedKey.getShortenedKey());
+			} else {
+				reply.putSingle("State", "Unknown");
+			}
+			return reply;
+		}
+		ShorteningScheduler shorteningScheduler = shortener.getShorteningScheduler();
+		InsertStatistics insertStatistics = shortener.getInsertStatistics();
+		InsertLimiter insertLimiter = shortener.getInsertLimiter();
+		reply.put("RunningShortenings", shortener.getKeyShorteningProgresses().size());
+		reply.put("ShortenedKeys", shortener.getShortenedKeyCount());
+		reply.put("LastChange", shortener.getChangeLog().getLastSequence());
+		reply.put("Queue.Interactive", shorteningScheduler.getQueueSize(Priority.INTERACTIVE));
+		reply.put("Queue.Bulk", shorteningScheduler.getQueueSize(Priority.BULK));
+		reply.put("Workers", shorteningScheduler.getRunningWorkers());
+		reply.put("Inserts.Started", insertStatistics.getInserts());
+		reply.put("Inserts.Successes", insertStatistics.getSuccesses());
+		reply.put("Inserts.Collisions", insertStatistics.getCollisions());
+		reply.put("Inserts.Retries", insertStatistics.getRetries());
+		reply.put("Inserts.GivenUp", insertStatistics.getGivenUp());
+		reply.put("Inserts.FatalFailures", insertStatistics.getFatalFailures());
+		reply.put("Limiter.Limit", insertLimiter.getLimit());
+		reply.put("Limiter.RunningInserts", insertLimiter.getRunningInserts());
+		LengthStatistics lengthStatistics = shortener.getLengthStatistics();
+		if (lengthStatistics != null) {
+			reply.put("StartLength", lengthStatistics.getLearnedStartLength());
+			for (int length = 1; (length < Shortener.MAXIMUM_LENGTH) && (lengthStatistics.getSampleCount(length) > 0); ++length) {
+				reply.put("Lengths." + length + ".Samples", lengthStatistics.getSampleCount(length));
+				reply.put("Lengths." + length + ".CollisionRate", lengthStatistics.getCollisionRate(length));
+			}
+		}
+		OccupancyFilter occupancyFilter = shortener.getOccupancyFilter();
+		if (occupancyFilter != null) {
+			reply.put("Filter.Skipped", occupancyFilter.getSkippedCount());
+			reply.put("Filter.Verified", occupancyFilter.getVerificationCount());
+			reply.put("Filter.FalsePositives", occupancyFilter.getFalsePositiveCount());
+			reply.put("Filter.FalsePositiveRate", occupancyFilter.getFalsePositiveRate());
+			reply.put("Filter.ExpectedFalsePositiveRate", occupancyFilter.getExpectedFalsePositiveRate());
+		}
+		PeerCoordinator peerCoordinator = shortener.getPeerCoordinator();
+		if (peerCoordinator != null) {
+			int index = 0;
+			for (PeerState peerState : peerCoordinator.getPeerStates()) {
+				reply.putSingle("Peers." + index + ".Name", peerState.getPeer().getName());
+				reply.put("Peers." + index + ".Capacity", peerState.getPeer().getCapacity());
+				reply.put("Peers." + index + ".Running", peerState.getRunning());
+				reply.put("Peers." + index + ".Shortened", peerState.getShortened());
+				reply.put("Peers." + index + ".NotShortened", peerState.getNotShortened());
+				reply.put("Peers." + index + ".Failures", peerState.getFailures());
+				reply.put("Peers." + index + ".Available", peerState.getBackoffUntil() <= System.currentTimeMillis());
+				++index;
+			}
+			reply.put("Peers.Count", index);
+		}
+		return reply;
+	}
+
+	/**
+	 * Handles the “Cancel” message.
+	 *
+	 * @param parameters
+	 *            The parameters of the message
+	 * @return The reply
+	 * @throws MalformedURLException
+	 *             if the key is not a valid Freenet URI
+	 */
+	private SimpleFieldSet handleCancel(SimpleFieldSet parameters) throws MalformedURLException {
+		if (parameters.get("Job") != null) {
+			BulkShortening bulkShortening = bulkShortenings.get(parameters.get("Job"));
+			SimpleFieldSet reply = createReply(parameters, "Cancelled");
+			reply.putSingle("Job", parameters.get("Job"));
+			reply.put("Found", bulkShortening != null);
+			if (bulkShortening != null) {
+				bulkShortening.cancel();
+			}
+			return reply;
+		}
+		String key = parameters.get("Key");
+		if (key == null) {
+			return createError(parameters, "MissingField", "Key or Job is missing.");
+		}
+		SimpleFieldSet reply = createReply(parameters, "Cancelled");
+		reply.putSingle("Key", key);
+		reply.put("Found", shortener.cancelKeyShortening(key));
+		return reply;
+	}
+
+	/**
+	 * Handles the “RegisterPeer” message.
+	 *
+	 * @param parameters
+	 *            The parameters of the message
+	 * @return The reply
+	 */
+	private SimpleFieldSet handleRegisterPeer(SimpleFieldSet parameters) {
+		String name = parameters.get("Name");
+		String host = parameters.get("Host");
+		if ((name == null) || (host == null)) {
+			return createError(parameters, "MissingField", "Name or Host is missing.");
+		}
+		PeerCoordinator peerCoordinator = shortener.getPeerCoordinator();
+		if (peerCoordinator == null) {
+			return createError(parameters, "NoCoordinator", "Keys are not given to peers.");
+		}
+		peerCoordinator.addPeer(new FcpPeer(name, host, parameters.getInt("Port", 9481), parameters.getInt("Capacity", 4)));
+		shortener.updateWorkerLimit();
+		SimpleFieldSet reply = createReply(parameters, "PeerRegistered");
+		reply.putSingle("Name", name);
+		return reply;
+	}
+
+	/**
+	 * Handles the “UnregisterPeer” message.
+	 *
+	 * @param parameters
+	 *            The parameters of the message
+	 * @return The reply
+	 */
+	private SimpleFieldSet handleUnregisterPeer(SimpleFieldSet parameters) {
+		String name = parameters.get("Name");
+		if (name == null) {
+			return createError(parameters, "MissingField", "Name is missing.");
+		}
+		PeerCoordinator peerCoordinator = shortener.getPeerCoordinator();
+		boolean found = (peerCoordinator != null) && peerCoordinator.removePeer(name);
+		shortener.updateWorkerLimit();
+		SimpleFieldSet reply = createReply(parameters, "PeerUnregistered");
+		reply.putSingle("Name", name);
+		reply.put("Found", found);
+		return reply;
+	}
+
+	/**
+	 * Handles the “GetChanges” message. The reply is sent by this method
+	 * because it carries data.
+	 *
+	 * @param replySender
+	 *            The sender for the reply
+	 * @param parameters
+	 *            The parameters of the message
+	 * @return The error reply, or {@code null} if the reply has been sent
+	 */
+	private SimpleFieldSet handleGetChanges(PluginReplySender replySender, SimpleFieldSet parameters) {
+		long since = Math.max(0, parameters.getLong("Since", 0));
+		int maximumCount = Math.max(1, Math.min(FeedPage.MAXIMUM_BATCH_SIZE, parameters.getInt("MaxCount", FeedPage.DEFAULT_BATCH_SIZE)));
+		ChangeLog changeLog = shortener.getChangeLog();
+		ByteArrayOutputStream batch = new ByteArrayOutputStream();
+		ChangeFeed changeFeed;
+		try {
+			List<Change> changes = changeLog.getChanges(since, maximumCount);
+			changeFeed = new ChangeFeed(since, changeLog.getLastSequence(), changes);
+			changeFeed.write(batch);
+		} catch (IOException ioe1) {
+			Logger.error(this, "Could not read changes since " + since + "!", ioe1);
+			return createError(parameters, "InternalError", "Could not read changes.");
+		}
+		SimpleFieldSet reply = createReply(parameters, "Changes");
+		reply.put("Since", since);
+		reply.put("Count", changeFeed.getChanges().size());
+		reply.put("LastChange", changeFeed.getLastChangeSequence());
+		reply.put("LastSequence", changeFeed.getLastSequence());
+		try {
+			replySender.send(reply, new ArrayBucket(batch.toByteArray()));
+		} catch (PluginNotFoundException pnfe1) {
+			Logger.normal(this, "Could not send reply to " + replySender.getIdentifier() + ", plugin is gone.");
+		}
+		return null;
+	}
+
+	/**
+	 * Handles the “ImportChanges” message.
+	 *
+	 * @param parameters
+	 *            The parameters of the message
+	 * @param data
+	 *            The batch of changes
+	 * @return The reply
+	 */
+	private SimpleFieldSet handleImportChanges(SimpleFieldSet parameters, Bucket data) {
+		if (data == null) {
+			return createError(parameters, "MissingData", "The changes are missing.");
+		}
+		String peer = parameters.get("Peer");
+		ImportResult importResult;
+		InputStream batchInputStream = null;
+		try {
+			batchInputStream = data.getInputStream();
+			importResult = feedImporter.importFeed(peer, batchInputStream);
+		} catch (IOException ioe1) {
+			return createError(parameters, "InvalidChanges", ioe1.getMessage());
+		} finally {
+			Closer.close(batchInputStream);
+			data.free();
+		}
+		SimpleFieldSet reply = createReply(parameters, "ChangesImported");
+		if (peer != null) {
+			reply.putSingle("Peer", peer);
+		}
+		reply.put("Imported", importResult.getImportedCount());
+		reply.put("Skipped", importResult.getSkippedCount());
+		reply.put("Position", importResult.getPosition());
+		reply.put("LastSequence", importResult.getLastSequence());
+		return reply;
+	}
+
+	/**
+	 * Handles the “GetOccupancyFilter” message. The reply is sent by this
+	 * method because it carries data.
+	 *
+	 * @param replySender
+	 *            The sender for the reply
+	 * @param parameters
+	 *            The parameters of the message
+	 * @return The error reply, or {@code null} if the reply has been sent
+	 */
+	private SimpleFieldSet handleGetOccupancyFilter(PluginReplySender replySender, SimpleFieldSet parameters) {
+		OccupancyFilter occupancyFilter = shortener.getOccupancyFilter();
+		if (occupancyFilter == null) {
+			return createError(parameters, "NoFilter", "The occupancy filter is disabled.");
+		}
+		ByteArrayOutputStream filter = new ByteArrayOutputStream();
+		try {
+			occupancyFilter.export(filter);
+		} catch (IOException ioe1) {
+			Logger.error(this, "Could not export occupancy filter!", ioe1);
+			return createError(parameters, "InternalError", "Could not export occupancy filter.");
+		}
+		SimpleFieldSet reply = createReply(parameters, "OccupancyFilter");
+		try {
+			replySender.send(reply, new ArrayBucket(filter.toByteArray()));
+		} catch (PluginNotFoundException pnfe1) {
+			Logger.normal(this, "Could not send reply to " + replySender.getIdentifier() + ", plugin is gone.");
+		}
+		return null;
+	}
+
+	/**
+	 * Handles the “ImportOccupancyFilter” message.
+	 *
+	 * @param parameters
+	 *            The parameters of the message
+	 * @param data
+	 *            The occupancy filter
+	 * @return The reply
+	 */
+	private SimpleFieldSet handleImportOccupancyFilter(SimpleFieldSet parameters, Bucket data) {
+		OccupancyFilter occupancyFilter = shortener.getOccupancyFilter();
+		if (occupancyFilter == null) {
+			if (data != null) {
+				data.free();
+			}
+			return createError(parameters, "NoFilter", "The occupancy filter is disabled.");
+		}
+		if (data == null) {
+			return createError(parameters, "MissingData", "The occupancy filter is missing.");
+		}
+		InputStream filterInputStream = null;
+		try {
+			filterInputStream = data.getInputStream();
+			occupancyFilter.merge(filterInputStream);
+		} catch (IOException ioe1) {
+			return createError(parameters, "InvalidFilter", ioe1.getMessage());
+		} finally {
+			Closer.close(filterInputStream);
+			data.free();
+		}
+		return createReply(parameters, "OccupancyFilterImported");
+	}
+
+	/**
+	 * Returns the state of the given running key shortening.
+	 *
+	 * @param keyShorteningProgress
+	 *            The progress of the key shortening
+	 * @return “Running” or “Upgrading”, or “Cancelled”, “Expired”, or
+	 *         “Stopping” if the key shortening has been cancelled but has not
+	 *         finished yet
+	 */
+	private static String getState(KeyShorteningProgress keyShorteningProgress) {
+		CancelReason cancelReason = keyShorteningProgress.getCancelReason();
+		if (cancelReason == CancelReason.CANCELLED) {
+			return "Cancelled";
+		} else if (cancelReason == CancelReason.EXPIRED) {
+			return "Expired";
+		} else if (cancelReason == CancelReason.STOPPED) {
+			return "Stopping";
+		}
+		return keyShorteningProgress.isUpgrade() ? "Upgrading" : "Running";
+	}
+
+	/**
+	 * Creates a reply, copying the identifier of the message.
+	 *
+	 * @param parameters
+	 *            The parameters of the message
+	 * @param message
+	 *            The name of the reply
+	 * @return The reply
+	 */
+	private static SimpleFieldSet createReply(SimpleFieldSet parameters, String message) {
+		SimpleFieldSet reply = new SimpleFieldSet(true);
+		reply.putSingle("Message", message);
+		if (parameters.get("Identifier") != null) {
+			reply.putSingle("Identifier", parameters.get("Identifier"));
+		}
+		return reply;
+	}
+
+	/**
+	 * Creates an error reply.
+	 *
+	 * @param parameters
+	 *            The parameters of the message
+	 * @param code
+	 *            The error code
+	 * @param description
+	 *            The description of the error
+	 * @return The error reply
+	 */
+	private static SimpleFieldSet createError(SimpleFieldSet parameters, String code, String description) {
+		SimpleFieldSet reply = createReply(parameters, "Error");
+		reply.putSingle("Code", code);
+		if (description != null) {
+			reply.putSingle("Description", description);
+		}
+		return reply;
+	}
+
+}
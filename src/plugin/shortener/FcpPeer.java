@@ -0,0 +1,339 @@
+/*
+ * shortener - FcpPeer.java - Copyright © 2010 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugin.shortener;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link ShorteningPeer} that is a shortener plugin on another node. Every
+ * key is sent over a new FCP connection to the node: the peer subscribes to
+ * the events of the key, sends a “Shorten” message, and waits for the result.
+ *
+ * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+ */
+public class FcpPeer implements ShorteningPeer {
+
+	/** The name of the plugin on the other node. */
+	private static final String PLUGIN_NAME = ShortenerPlugin.class.getName();
+
+	/** The maximum length of a line of an FCP message. */
+	private static final int MAXIMUM_LINE_LENGTH = 65536;
+
+	/** The counter for the names of the FCP connections. */
+	private static final AtomicLong connectionCounter = new AtomicLong();
+
+	/** The name of the peer. */
+	private final String name;
+
+	/** The host name of the node. */
+	private final String host;
+
+	/** The FCP port of the node. */
+	private final int port;
+
+	/** The number of keys the peer can shorten at the same time. */
+	private final int capacity;
+
+	/**
+	 * Creates a new FCP peer.
+	 *
+	 * @param name
+	 *            The name of the peer
+	 * @param host
+	 *            The host name of the node
+	 * @param port
+	 *            The FCP port of the node
+	 * @param capacity
+	 *            The number of keys the peer can shorten at the same time
+	 */
+	public FcpPeer(String name, String host, int port, int capacity) {
+		this.name = name;
+		this.host = host;
+		this.port = port;
+		this.capacity = Math.max(1, capacity);
+	}
+
+	//
+	// ACCESSORS
+	//
+
+	/**
+	 * Returns the host name of the node.
+	 *
+	 * @return The host name of the node
+	 */
+	public String getHost() {
+		return host;
+	}
+
+	/**
+	 * Returns the FCP port of the node.
+	 *
+	 * @return The FCP port of the node
+	 */
+	public int getPort() {
+		return port;
+	}
+
+	//
+	// INTERFACE ShorteningPeer
+	//
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public String shortenKey(String key, long timeout) throws PeerException {
+		long deadline = System.currentTimeMillis() + timeout;
+		Socket socket = new Socket();
+		try {
+			socket.connect(new InetSocketAddress(host, port), (int) Math.min(timeout, 30 * 1000));
+			InputStream inputStream = new BufferedInputStream(socket.getInputStream());
+			OutputStream outputStream = socket.getOutputStream();
+			String connectionName = "Shortener-Coordinator-" + System.identityHashCode(this) + "-" + connectionCounter.incrementAndGet();
+			writeMessage(outputStream, "ClientHello", "Name", connectionName, "ExpectedVersion", "2.0");
+			Message nodeHello = readMessage(socket, inputStream, deadline);
+			if (!"NodeHello".equals(nodeHello.getName())) {
+				throw new PeerException("Peer " + name + " answered " + nodeHello.getName() + " instead of NodeHello.");
+			}
+			writeMessage(outputStream, "FCPPluginMessage", "PluginName", PLUGIN_NAME, "Identifier", "Subscribe", "Param.Message", "Subscribe", "Param.Key", key);
+			writeMessage(outputStream, "FCPPluginMessage", "PluginName", PLUGIN_NAME, "Identifier", "Shorten", "Param.Message", "Shorten", "Param.Key", key, "Param.Priority", "Bulk");
+			String subscription = null;
+			try {
+				while (true) {
+					Message message = readMessage(socket, inputStream, deadline);
+					if (!"FCPPluginReply".equals(message.getName())) {
+						throw new PeerException("Peer " + name + " sent " + message.getName() + ": " + message.get("CodeDescription"));
+					}
+					String reply = message.get("Replies.Message");
+					if ("Subscribed".equals(reply)) {
+						subscription = message.get("Replies.Subscription");
+					} else if ("Error".equals(reply)) {
+						throw new PeerException("Peer " + name + " could not shorten " + key + ": " + message.get("Replies.Code") + " (" + message.get("Replies.Description") + ")");
+					} else if ("Shortened".equals(reply) || "KeyShortened".equals(reply)) {
+						return message.get("Replies.ShortenedKey");
+					} else if ("KeyShorteningFailed".equals(reply)) {
+						return null;
+					}
+				}
+			} finally {
+				if (subscription != null) {
+					try {
+						writeMessage(outputStream, "FCPPluginMessage", "PluginName", PLUGIN_NAME, "Identifier", "Unsubscribe", "Param.Message", "Unsubscribe", "Param.Subscription", subscription);
+					} catch (IOException ioe1) {
+						/* the connection is closed anyway. */
+					}
+				}
+			}
+		} catch (SocketTimeoutException ste1) {
+			throw new PeerException("Peer " + name + " did not shorten " + key + " in time.", ste1);
+		} catch (IOException ioe1) {
+			throw new PeerException("Could not talk to peer " + name + "!", ioe1);
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException ioe1) {
+				/* ignore. */
+			}
+		}
+	}
+
+	//
+	// PRIVATE METHODS
+	//
+
+	/**
+	 * Writes an FCP message.
+	 *
+	 * @param outputStream
+	 *            The output stream to write to
+	 * @param messageName
+	 *            The name of the message
+	 * @param fields
+	 *            The names and values of the fields, alternating
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	private static void writeMessage(OutputStream outputStream, String messageName, String... fields) throws IOException {
+		StringBuilder message = new StringBuilder(messageName).append('\n');
+		for (int index = 0; index < fields.length; index += 2) {
+			message.append(fields[index]).append('=').append(fields[index + 1]).append('\n');
+		}
+		message.append("EndMessage\n");
+		outputStream.write(message.toString().getBytes("UTF-8"));
+		outputStream.flush();
+	}
+
+	/**
+	 * Reads an FCP message. The data of a message is skipped.
+	 *
+	 * @param socket
+	 *            The socket of the connection
+	 * @param inputStream
+	 *            The input stream to read from
+	 * @param deadline
+	 *            The time until which to wait for the message
+	 * @return The message
+	 * @throws IOException
+	 *             if an I/O error occurs, or the deadline has passed
+	 */
+	private static Message readMessage(Socket socket, InputStream inputStream, long deadline) throws IOException {
+		long remaining = deadline - System.currentTimeMillis();
+		if (remaining <= 0) {
+			throw new SocketTimeoutException("Deadline has passed.");
+		}
+		socket.setSoTimeout((int) Math.min(Integer.MAX_VALUE, remaining));
+		String messageName;
+		while ((messageName = readLine(inputStream)).length() == 0) {
+			/* skip empty lines. */
+		}
+		Message message = new Message(messageName);
+		while (true) {
+			String line = readLine(inputStream);
+			if ("EndMessage".equals(line)) {
+				return message;
+			}
+			if ("Data".equals(line)) {
+				long dataLength = Long.parseLong(message.get("DataLength"));
+				while (dataLength > 0) {
+					long skipped = inputStream.skip(dataLength);
+					if (skipped <= 0) {
+						if (inputStream.read() == -1) {
+							throw new EOFException("Connection closed in data.");
+						}
+						skipped = 1;
+					}
+					dataLength -= skipped;
+				}
+				return message;
+			}
+			int equals = line.indexOf('=');
+			if (equals > 0) {
+				message.put(line.substring(0, equals), line.substring(equals + 1));
+			}
+		}
+	}
+
+	/**
+	 * Reads a single line in UTF-8.
+	 *
+	 * @param inputStream
+	 *            The input stream to read from
+	 * @return The line, without the line break
+	 * @throws IOException
+	 *             if an I/O error occurs, or the line is too long
+	 */
+	private static String readLine(InputStream inputStream) throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		int nextByte;
+		while ((nextByte = inputStream.read()) != '\n') {
+			if (nextByte == -1) {
+				throw new EOFException("Connection closed.");
+			}
+			if (line.size() >= MAXIMUM_LINE_LENGTH) {
+				throw new IOException("Line is too long.");
+			}
+			line.write(nextByte);
+		}
+		String decodedLine = line.toString("UTF-8");
+		return decodedLine.endsWith("\r") ? decodedLine.substring(0, decodedLine.length() - 1) : decodedLine;
+	}
+
+	/**
+	 * An FCP message.
+	 *
+	 * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+	 */
+	private static class Message {
+
+		/** The name of the message. */
+		private final String name;
+
+		/** The fields of the message. */
+		private final Map<String, String> fields = new HashMap<String, String>();
+
+		/**
+		 * Creates a new message.
+		 *
+		 * @param name
+		 *            The name of the message
+		 */
+		public Message(String name) {
+			this.name = name;
+		}
+
+		/**
+		 * Returns the name of the message.
+		 *
+		 * @return The name of the message
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * Returns the value of the given field.
+		 *
+		 * @param field
+		 *            The name of the field
+		 * @return The value of the field, or {@code null} if the message does
+		 *         not have the field
+		 */
+		public String get(String field) {
+			return fields.get(field);
+		}
+
+		/**
+		 * Sets the value of the given field.
+		 *
+		 * @param field
+		 *            The name of the field
+		 * @param value
+		 *            The value of the field
+		 */
+		public void put(String field, String value) {
+			fields.put(field, value);
+		}
+
+	}
+
+}
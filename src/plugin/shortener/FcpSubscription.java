@@ -0,0 +1,333 @@
+/*
+ * shortener - FcpSubscription.java - Copyright © 2010 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugin.shortener;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import plugin.shortener.Shortener.KeyShorteningProgress;
+import plugin.shortener.Shortener.ShortenedKey;
+import freenet.pluginmanager.PluginNotFoundException;
+import freenet.pluginmanager.PluginReplySender;
+import freenet.support.Executor;
+import freenet.support.Logger;
+import freenet.support.SimpleFieldSet;
+
+/**
+ * A subscription of an FCP client to key shortening events. Events are not
+ * sent from the threads that shorten the keys; they are queued, and a
+ * single sender per subscription sends them. Only the latest event of every
+ * key shortening is kept, so a slow client receives fewer events instead of
+ * an ever-growing backlog. The event that a key shortening has finished is
+ * never replaced, not even by an event of the next key shortening of the
+ * same key, e.g. the search for a shorter key than a provisional key. If
+ * more than {@value #MAXIMUM_PENDING_KEYS} key shortenings have unsent
+ * events, the oldest progress events make room for finish events; other
+ * events are dropped, and the client is told how many events it has
+ * missed. A subscription whose client is gone cancels itself and tells its
+ * {@link CancelListener}.
+ *
+ * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+ */
+public class FcpSubscription implements ShortenerListener {
+
+	/** The maximum number of key shortenings with unsent events. */
+	private static final int MAXIMUM_PENDING_KEYS = 1000;
+
+	/** The ID of the subscription. */
+	private final String id;
+
+	/** The key to send events for, {@code null} to send events for all keys. */
+	private final String key;
+
+	/** The sender for the events. */
+	private final PluginReplySender replySender;
+
+	/** The executor that runs the sender. */
+	private final Executor executor;
+
+	/** The shortener this subscription is registered with. */
+	private final Shortener shortener;
+
+	/** The listener for the cancellation, may be {@code null}. */
+	private final CancelListener cancelListener;
+
+	/** The unsent events, by their key shortenings. */
+	private final Map<KeyShorteningProgress, SimpleFieldSet> pendingEvents = new LinkedHashMap<KeyShorteningProgress, SimpleFieldSet>();
+
+	/** The number of events that were dropped since the last message. */
+	private int droppedEvents;
+
+	/** Whether the sender is running. */
+	private boolean senderRunning;
+
+	/** Whether the subscription has been cancelled. */
+	private boolean cancelled;
+
+	/**
+	 * Creates a new subscription.
+	 *
+	 * @param id
+	 *            The ID of the subscription
+	 * @param key
+	 *            The normalized key to send events for, or {@code null} to
+	 *            send events for all keys
+	 * @param replySender
+	 *            The sender for the events
+	 * @param executor
+	 *            The executor that runs the sender
+	 * @param shortener
+	 *            The shortener this subscription is registered with
+	 */
+	public FcpSubscription(String id, String key, PluginReplySender replySender, Executor executor, Shortener shortener) {
+		this(id, key, replySender, executor, shortener, null);
+	}
+
+	/**
+	 * Creates a new subscription.
+	 *
+	 * @param id
+	 *            The ID of the subscription
+	 * @param key
+	 *            The normalized key to send events for, or {@code null} to
+	 *            send events for all keys
+	 * @param replySender
+	 *            The sender for the events
+	 * @param executor
+	 *            The executor that runs the sender
+	 * @param shortener
+	 *            The shortener this subscription is registered with
+	 * @param cancelListener
+	 *            The listener for the cancellation, or {@code null}
+	 */
+	public FcpSubscription(String id, String key, PluginReplySender replySender, Executor executor, Shortener shortener, CancelListener cancelListener) {
+		this.id = id;
+		this.key = key;
+		this.replySender = replySender;
+		this.executor = executor;
+		this.shortener = shortener;
+		this.cancelListener = cancelListener;
+	}
+
+	//
+	// ACCESSORS
+	//
+
+	/**
+	 * Returns the ID of the subscription.
+	 *
+	 * @return The ID of the subscription
+	 */
+	public String getId() {
+		return id;
+	}
+
+	//
+	// ACTIONS
+	//
+
+	/**
+	 * Cancels the subscription. Events that have not been sent yet are
+	 * discarded, and the {@link CancelListener} is notified.
+	 */
+	public void cancel() {
+		shortener.removeShortenerListener(this);
+		synchronized (this) {
+			if (cancelled) {
+				return;
+			}
+			cancelled = true;
+			pendingEvents.clear();
+		}
+		if (cancelListener != null) {
+			cancelListener.subscriptionCancelled(this);
+		}
+	}
+
+	//
+	// INTERFACE ShortenerListener
+	//
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void keyShorteningAdvanced(KeyShorteningProgress keyShorteningProgress) {
+		SimpleFieldSet event = createEvent("KeyShorteningAdvanced", keyShorteningProgress);
+		event.putSingle("CurrentKey", keyShorteningProgress.getCurrentKey());
+		queueEvent(keyShorteningProgress, event, false);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void keyShorteningFinished(KeyShorteningProgress keyShorteningProgress) {
+		ShortenedKey shortenedKey = keyShorteningProgress.getShortenedKey();
+		SimpleFieldSet event;
+		if (shortenedKey != null) {
+			event = createEvent("KeyShortened", keyShorteningProgress);
+			event.putSingle("ShortenedKey", shortenedKey.getShortenedKey());
+		} else {
+			event = createEvent("KeyShorteningFailed", keyShorteningProgress);
+			event.put("Cancelled", keyShorteningProgress.isCancelled());
+			event.put("Expired", keyShorteningProgress.isExpired());
+		}
+		queueEvent(keyShorteningProgress, event, true);
+	}
+
+	//
+	// PRIVATE METHODS
+	//
+
+	/**
+	 * Creates an event message.
+	 *
+	 * @param messageName
+	 *            The name of the message
+	 * @param keyShorteningProgress
+	 *            The progress of the key shortening
+	 * @return The event message
+	 */
+	private SimpleFieldSet createEvent(String messageName, KeyShorteningProgress keyShorteningProgress) {
+		SimpleFieldSet event = new SimpleFieldSet(true);
+		event.putSingle("Message", messageName);
+		event.putSingle("Subscription", id);
+		event.putSingle("OriginalKey", keyShorteningProgress.getOriginalKey());
+		return event;
+	}
+
+	/**
+	 * Queues the given event, replacing an unsent progress event of the same
+	 * key shortening, and starts the sender if it is not running.
+	 *
+	 * @param keyShorteningProgress
+	 *            The key shortening the event is about
+	 * @param event
+	 *            The event
+	 * @param finished
+	 *            {@code true} if the event tells that the key shortening has
+	 *            finished, {@code false} if it is a progress event
+	 */
+	private void queueEvent(KeyShorteningProgress keyShorteningProgress, SimpleFieldSet event, boolean finished) {
+		if ((key != null) && !key.equals(keyShorteningProgress.getOriginalKey())) {
+			return;
+		}
+		synchronized (this) {
+			if (cancelled) {
+				return;
+			}
+			if (!pendingEvents.containsKey(keyShorteningProgress) && (pendingEvents.size() >= MAXIMUM_PENDING_KEYS)) {
+				if (!finished || !dropProgressEvent()) {
+					++droppedEvents;
+					return;
+				}
+			}
+			pendingEvents.remove(keyShorteningProgress);
+			pendingEvents.put(keyShorteningProgress, event);
+			if (senderRunning) {
+				return;
+			}
+			senderRunning = true;
+		}
+		executor.execute(new Sender(), "Shortener FCP Subscription " + id);
+	}
+
+	/**
+	 * Drops the oldest unsent progress event. The caller has to hold the lock
+	 * on this subscription.
+	 *
+	 * @return {@code true} if a progress event was dropped, {@code false} if
+	 *         all unsent events tell that a key shortening has finished
+	 */
+	private boolean dropProgressEvent() {
+		for (Iterator<SimpleFieldSet> events = pendingEvents.values().iterator(); events.hasNext();) {
+			if ("KeyShorteningAdvanced".equals(events.next().get("Message"))) {
+				events.remove();
+				++droppedEvents;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Listener that is notified when a subscription is cancelled, either by
+	 * {@link FcpSubscription#cancel()} or because its client is gone.
+	 *
+	 * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+	 */
+	public interface CancelListener {
+
+		/**
+		 * Notifies the listener that the given subscription has been
+		 * cancelled.
+		 *
+		 * @param subscription
+		 *            The cancelled subscription
+		 */
+		public void subscriptionCancelled(FcpSubscription subscription);
+
+	}
+
+	/**
+	 * Sends the queued events until there are no more.
+	 *
+	 * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+	 */
+	private class Sender implements Runnable {
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@SuppressWarnings("synthetic-access")
+		public void run() {
+			while (true) {
+				SimpleFieldSet event;
+				synchronized (FcpSubscription.this) {
+					if (cancelled) {
+						senderRunning = false;
+						return;
+					}
+					if (droppedEvents > 0) {
+						event = new SimpleFieldSet(true);
+						event.putSingle("Message", "EventsDropped");
+						event.putSingle("Subscription", id);
+						event.put("Count", droppedEvents);
+						droppedEvents = 0;
+					} else {
+						Iterator<SimpleFieldSet> events = pendingEvents.values().iterator();
+						if (!events.hasNext()) {
+							senderRunning = false;
+							return;
+						}
+						event = events.next();
+						events.remove();
+					}
+				}
+				try {
+					replySender.send(event);
+				} catch (PluginNotFoundException pnfe1) {
+					Logger.normal(this, "Client of subscription " + id + " is gone, cancelling.");
+					cancel();
+				}
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,240 @@
+/*
+ * shortener - FeedImporter.java - Copyright © 2010 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugin.shortener;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import plugin.shortener.ChangeLog.Change;
+import plugin.shortener.Shortener.ShortenedKey;
+import freenet.support.Logger;
+import freenet.support.io.Closer;
+
+/**
+ * Applies batches of changes from other nodes to the {@link Shortener}. For
+ * every peer the sequence number of the last change that was applied is
+ * stored, so that the next batch can be requested from there. Applying the
+ * same changes again does not change anything, so batches may overlap.
+ *
+ * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+ */
+public class FeedImporter {
+
+	/** The key shortener. */
+	private final Shortener shortener;
+
+	/** The file that stores the positions of the peers. */
+	private final File positionFile;
+
+	/** The sequence numbers of the last applied changes, by peer. */
+	private final Properties positions = new Properties();
+
+	/**
+	 * Creates a new feed importer.
+	 *
+	 * @param shortener
+	 *            The key shortener
+	 * @param positionFile
+	 *            The file that stores the positions of the peers
+	 */
+	public FeedImporter(Shortener shortener, File positionFile) {
+		this.shortener = shortener;
+		this.positionFile = positionFile;
+		if (positionFile.exists()) {
+			InputStream positionInputStream = null;
+			try {
+				positionInputStream = new FileInputStream(positionFile);
+				positions.load(positionInputStream);
+			} catch (IOException ioe1) {
+				Logger.error(this, "Could not read peer positions from " + positionFile + "!", ioe1);
+			} finally {
+				Closer.close(positionInputStream);
+			}
+		}
+	}
+
+	//
+	// ACCESSORS
+	//
+
+	/**
+	 * Returns the sequence number of the last change of the given peer that
+	 * was applied.
+	 *
+	 * @param peer
+	 *            The name of the peer
+	 * @return The sequence number of the last applied change, or {@code 0} if
+	 *         no change of the peer has been applied
+	 */
+	public synchronized long getPosition(String peer) {
+		try {
+			return Long.parseLong(positions.getProperty(peer, "0"));
+		} catch (NumberFormatException nfe1) {
+			return 0;
+		}
+	}
+
+	//
+	// ACTIONS
+	//
+
+	/**
+	 * Reads a batch of changes from the given input stream and applies it.
+	 * If a peer is given, the batch must not start after the last applied
+	 * change of the peer, and the position of the peer is updated.
+	 *
+	 * @param peer
+	 *            The name of the peer, or {@code null} to apply the batch
+	 *            without tracking the position
+	 * @param inputStream
+	 *            The input stream containing the batch
+	 * @return The result of the import
+	 * @throws IOException
+	 *             if the batch can not be read, or would leave a gap
+	 */
+	public ImportResult importFeed(String peer, InputStream inputStream) throws IOException {
+		ChangeFeed changeFeed = ChangeFeed.read(inputStream);
+		if ((peer != null) && (changeFeed.getSince() > getPosition(peer))) {
+			throw new IOException("Batch starts after " + changeFeed.getSince() + " but only changes until " + getPosition(peer) + " have been applied.");
+		}
+		List<ShortenedKey> importedKeys = new ArrayList<ShortenedKey>(changeFeed.getChanges().size());
+		for (Change change : changeFeed.getChanges()) {
+			importedKeys.add(new ShortenedKey(change.getOriginalKey(), change.getShortenedKey()));
+		}
+		int importedCount = shortener.importShortenedKeys(importedKeys);
+		long position = changeFeed.getLastChangeSequence();
+		if (peer != null) {
+			synchronized (this) {
+				position = Math.max(position, getPosition(peer));
+				positions.setProperty(peer, String.valueOf(position));
+				savePositions();
+			}
+		}
+		return new ImportResult(importedCount, importedKeys.size() - importedCount, position, changeFeed.getLastSequence());
+	}
+
+	//
+	// PRIVATE METHODS
+	//
+
+	/**
+	 * Writes the positions of all peers to the position file.
+	 */
+	private void savePositions() {
+		File temporaryFile = new File(positionFile.getPath() + ".tmp");
+		FileOutputStream positionOutputStream = null;
+		try {
+			positionOutputStream = new FileOutputStream(temporaryFile);
+			positions.store(positionOutputStream, "Last applied changes of peers");
+			positionOutputStream.getFD().sync();
+			positionOutputStream.close();
+			positionOutputStream = null;
+			if (!temporaryFile.renameTo(positionFile) && (!positionFile.delete() || !temporaryFile.renameTo(positionFile))) {
+				Logger.error(this, "Could not rename " + temporaryFile + " to " + positionFile + "!");
+			}
+		} catch (IOException ioe1) {
+			Logger.error(this, "Could not write peer positions to " + positionFile + "!", ioe1);
+		} finally {
+			Closer.close(positionOutputStream);
+		}
+	}
+
+	/**
+	 * The result of an import.
+	 *
+	 * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+	 */
+	public static class ImportResult {
+
+		/** The number of changes that were applied. */
+		private final int importedCount;
+
+		/** The number of changes that were already known. */
+		private final int skippedCount;
+
+		/** The sequence number of the last applied change. */
+		private final long position;
+
+		/** The sequence number of the last change of the peer. */
+		private final long lastSequence;
+
+		/**
+		 * Creates a new import result.
+		 *
+		 * @param importedCount
+		 *            The number of changes that were applied
+		 * @param skippedCount
+		 *            The number of changes that were already known
+		 * @param position
+		 *            The sequence number of the last applied change
+		 * @param lastSequence
+		 *            The sequence number of the last change of the peer
+		 */
+		public ImportResult(int importedCount, int skippedCount, long position, long lastSequence) {
+			this.importedCount = importedCount;
+			this.skippedCount = skippedCount;
+			this.position = position;
+			this.lastSequence = lastSequence;
+		}
+
+		/**
+		 * Returns the number of changes that were applied.
+		 *
+		 * @return The number of applied changes
+		 */
+		public int getImportedCount() {
+			return importedCount;
+		}
+
+		/**
+		 * Returns the number of changes that were already known.
+		 *
+		 * @return The number of skipped changes
+		 */
+		public int getSkippedCount() {
+			return skippedCount;
+		}
+
+		/**
+		 * Returns the sequence number of the last applied change. The next
+		 * batch should start after it.
+		 *
+		 * @return The sequence number of the last applied change
+		 */
+		public long getPosition() {
+			return position;
+		}
+
+		/**
+		 * Returns the sequence number of the last change of the peer.
+		 *
+		 * @return The sequence number of the last change of the peer
+		 */
+		public long getLastSequence() {
+			return lastSequence;
+		}
+
+	}
+
+}
@@ -0,0 +1,90 @@
+/*
+ * shortener - FeedPage.java - Copyright © 2010 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugin.shortener;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import plugin.shortener.ChangeLog.Change;
+import freenet.support.Logger;
+
+/**
+ * This page returns the changes after the sequence number given in the
+ * “since” parameter as a {@link ChangeFeed}. At most “max” changes are
+ * returned; the sequence number of the last change is also sent in the
+ * “X-Shortener-Last-Sequence” header.
+ *
+ * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+ */
+public class FeedPage implements Page {
+
+	/** The default number of changes per batch. */
+	public static final int DEFAULT_BATCH_SIZE = 1000;
+
+	/** The maximum number of changes per batch. */
+	public static final int MAXIMUM_BATCH_SIZE = 10000;
+
+	/** The change log. */
+	private final ChangeLog changeLog;
+
+	/**
+	 * Creates a new feed page.
+	 *
+	 * @param changeLog
+	 *            The change log
+	 */
+	public FeedPage(ChangeLog changeLog) {
+		this.changeLog = changeLog;
+	}
+
+	//
+	// INTERFACE Page
+	//
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public String getPath() {
+		return "Feed";
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public Response handleRequest(Request request) {
+		long since = Math.max(0, request.getHttpRequest().getLongParam("since", 0));
+		int maximumCount = Math.max(1, Math.min(MAXIMUM_BATCH_SIZE, request.getHttpRequest().getIntParam("max", DEFAULT_BATCH_SIZE)));
+		ByteArrayOutputStream batch = new ByteArrayOutputStream();
+		long lastSequence;
+		try {
+			List<Change> changes = changeLog.getChanges(since, maximumCount);
+			lastSequence = changeLog.getLastSequence();
+			new ChangeFeed(since, lastSequence, changes).write(batch);
+		} catch (IOException ioe1) {
+			Logger.error(this, "Could not read changes since " + since + "!", ioe1);
+			return new Response(500, "Internal Server Error", "text/plain", "Could not read changes.");
+		}
+		Map<String, String> headers = new HashMap<String, String>();
+		headers.put("X-Shortener-Last-Sequence", String.valueOf(lastSequence));
+		return new Response(200, "OK", "application/octet-stream", headers, batch.toByteArray());
+	}
+
+}
@@ -0,0 +1,61 @@
+/*
+ * shortener - FreenetInsertBackend.java - Copyright © 2010 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugin.shortener;
+
+import freenet.client.HighLevelSimpleClient;
+import freenet.client.InsertException;
+import freenet.keys.FreenetURI;
+
+/**
+ * {@link InsertBackend} that inserts the redirects into Freenet using the
+ * node’s {@link HighLevelSimpleClient}.
+ *
+ * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+ */
+public class FreenetInsertBackend implements InsertBackend {
+
+	/** The node’s high-level simple client. */
+	private final HighLevelSimpleClient highLevelSimpleClient;
+
+	/**
+	 * Creates a new Freenet insert backend.
+	 *
+	 * @param highLevelSimpleClient
+	 *            The node’s high-level simple client
+	 */
+	public FreenetInsertBackend(HighLevelSimpleClient highLevelSimpleClient) {
+		this.highLevelSimpleClient = highLevelSimpleClient;
+	}
+
+	//
+	// INTERFACE InsertBackend
+	//
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public InsertOutcome insertRedirect(FreenetURI shortenedKey, FreenetURI originalKey) {
+		try {
+			highLevelSimpleClient.insertRedirect(shortenedKey, originalKey);
+			return InsertOutcome.SUCCESS;
+		} catch (InsertException ie1) {
+			return InsertOutcome.classify(ie1);
+		}
+	}
+
+}
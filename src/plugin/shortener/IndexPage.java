@@ -30,6 +30,9 @@ import freenet.l10n.BaseL10n;
  */
 public class IndexPage extends TemplatePage {
 
+	/** The number of shortened keys shown on a single page. */
+	private static final int PAGE_SIZE = 100;
+
 	/** The key shortener. */
 	private final Shortener shortener;
 
@@ -60,9 +63,20 @@ public class IndexPage extends TemplatePage {
 	 * {@inheritDoc}
 	 */
 	@Override
-	protected void processTemplate(Template template) {
+	protected void processTemplate(Request request, Template template) {
+		int pageCount = Math.max(1, (shortener.getShortenedKeyCount() + PAGE_SIZE - 1) / PAGE_SIZE);
+		int page = Math.min(Math.max(1, request.getHttpRequest().getIntParam("page", 1)), pageCount);
 		template.set("inProgressKeys", shortener.getKeyShorteningProgresses());
-		template.set("shortenedKeys", shortener.getShortenedKeys());
+		template.set("cancelledKeys", shortener.getCancelledKeyShortenings());
+		template.set("shortenedKeys", shortener.getShortenedKeys((page - 1) * PAGE_SIZE, PAGE_SIZE));
+		template.set("page", page);
+		template.set("pageCount", pageCount);
+		template.set("previousPage", page - 1);
+		template.set("nextPage", page + 1);
+		template.set("hasPreviousPage", page > 1);
+		template.set("hasNextPage", page < pageCount);
+		template.set("statistics", shortener.getInsertStatistics());
+		template.set("limiter", shortener.getInsertLimiter());
 	}
 
 }
@@ -0,0 +1,257 @@
+/*
+ * shortener - InsertAttempt.java - Copyright © 2010 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugin.shortener;
+
+import freenet.keys.FreenetURI;
+import freenet.support.Logger;
+
+/**
+ * A single attempt to insert a redirect from a shortened key to an original
+ * key. Attempts are {@link Runnable}s so that several of them can be run in
+ * parallel; the result can be collected with {@link #waitForResult()}.
+ * Transient failures are retried on the same key according to a
+ * {@link RetryPolicy}. Every insert waits for a free slot in an
+ * {@link InsertLimiter}. While it runs, an attempt is registered with the
+ * {@link RunningAttempts} of its shortener.
+ *
+ * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+ */
+class InsertAttempt implements Runnable {
+
+	/** The backend to insert the redirect with. */
+	private final InsertBackend insertBackend;
+
+	/** The length of the shortened key. */
+	private final int length;
+
+	/** The shortened key to insert. */
+	private final FreenetURI shortenedKey;
+
+	/** The key the redirect points to. */
+	private final FreenetURI originalKey;
+
+	/** The retry policy for transient failures. */
+	private final RetryPolicy retryPolicy;
+
+	/** The statistics to record the outcome in. */
+	private final InsertStatistics insertStatistics;
+
+	/** The limiter for concurrently running inserts. */
+	private final InsertLimiter insertLimiter;
+
+	/** The running attempts to register with. */
+	private final RunningAttempts runningAttempts;
+
+	/** The clock that measures latencies and retry delays. */
+	private final Clock clock;
+
+	/** Whether this attempt has been cancelled. */
+	private boolean cancelled;
+
+	/** Whether this attempt has finished. */
+	private boolean finished;
+
+	/** The outcome of the insert. */
+	private InsertOutcome insertOutcome;
+
+	/**
+	 * Creates a new insert attempt.
+	 *
+	 * @param insertBackend
+	 *            The backend to insert the redirect with
+	 * @param length
+	 *            The length of the shortened key
+	 * @param shortenedKey
+	 *            The shortened key to insert
+	 * @param originalKey
+	 *            The key the redirect points to
+	 * @param retryPolicy
+	 *            The retry policy for transient failures
+	 * @param insertStatistics
+	 *            The statistics to record the outcome in
+	 * @param insertLimiter
+	 *            The limiter for concurrently running inserts
+	 * @param runningAttempts
+	 *            The running attempts to register with
+	 * @param clock
+	 *            The clock that measures latencies and retry delays
+	 */
+	public InsertAttempt(InsertBackend insertBackend, int length, FreenetURI shortenedKey, FreenetURI originalKey, RetryPolicy retryPolicy, InsertStatistics insertStatistics, InsertLimiter insertLimiter, RunningAttempts runningAttempts, Clock clock) {
+		this.insertBackend = insertBackend;
+		this.length = length;
+		this.shortenedKey = shortenedKey;
+		this.originalKey = originalKey;
+		this.retryPolicy = retryPolicy;
+		this.insertStatistics = insertStatistics;
+		this.insertLimiter = insertLimiter;
+		this.runningAttempts = runningAttempts;
+		this.clock = clock;
+	}
+
+	//
+	// ACCESSORS
+	//
+
+	/**
+	 * Returns the length of the shortened key.
+	 *
+	 * @return The length of the shortened key
+	 */
+	public int getLength() {
+		return length;
+	}
+
+	/**
+	 * Returns the shortened key of this attempt.
+	 *
+	 * @return The shortened key
+	 */
+	public FreenetURI getShortenedKey() {
+		return shortenedKey;
+	}
+
+	/**
+	 * Returns whether the insert has finished, including all retries.
+	 *
+	 * @return {@code true} if the insert has finished, {@code false} if it is
+	 *         still running or has not been started
+	 */
+	public synchronized boolean isFinished() {
+		return finished;
+	}
+
+	/**
+	 * Returns the outcome of the insert. Transient failures are only reported
+	 * once all retries have been used up.
+	 *
+	 * @return The outcome of the insert, or {@code null} if the insert has not
+	 *         finished (yet)
+	 */
+	public synchronized InsertOutcome getInsertOutcome() {
+		return insertOutcome;
+	}
+
+	/**
+	 * Returns whether this attempt has been cancelled.
+	 *
+	 * @return {@code true} if this attempt has been cancelled, {@code false}
+	 *         otherwise
+	 */
+	public synchronized boolean isCancelled() {
+		return cancelled;
+	}
+
+	//
+	// ACTIONS
+	//
+
+	/**
+	 * Cancels this attempt. If the attempt has not been started yet it will
+	 * not insert anything when it is run; an insert that is already running
+	 * can not be stopped but its result will be ignored. An attempt that is
+	 * waiting for the {@link InsertLimiter} stops waiting.
+	 */
+	public void cancel() {
+		synchronized (this) {
+			cancelled = true;
+			clock.wakeAll(this);
+		}
+		insertLimiter.wakeUp();
+	}
+
+	/**
+	 * Waits until this attempt has finished or has been cancelled.
+	 *
+	 * @return {@code true} if the redirect was inserted, {@code false} if the
+	 *         insert failed or the attempt was cancelled
+	 */
+	public synchronized boolean waitForResult() {
+		while (!finished && !cancelled) {
+			try {
+				clock.waitOn(this, 0);
+			} catch (InterruptedException ie1) {
+				/* ignore, keep waiting. */
+			}
+		}
+		return (insertOutcome == InsertOutcome.SUCCESS) && !cancelled;
+	}
+
+	//
+	// INTERFACE Runnable
+	//
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void run() {
+		int retries = 0;
+		InsertOutcome outcome = null;
+		runningAttempts.add(this);
+		try {
+			while (insertLimiter.acquire(this)) {
+				insertStatistics.recordInsert();
+				long startTime = clock.currentTimeMillis();
+				try {
+					outcome = insertBackend.insertRedirect(shortenedKey, originalKey);
+				} catch (RuntimeException re1) {
+					Logger.error(this, "Could not insert " + shortenedKey + "!", re1);
+					outcome = InsertOutcome.FATAL;
+				} finally {
+					insertLimiter.release(clock.currentTimeMillis() - startTime, outcome);
+				}
+				boolean retry = (outcome == InsertOutcome.TRANSIENT) && retryPolicy.canRetry(retries);
+				insertStatistics.recordOutcome(outcome, retry);
+				if (!retry) {
+					break;
+				}
+				waitBeforeRetry(retryPolicy.getDelay(retries++));
+			}
+		} finally {
+			synchronized (this) {
+				insertOutcome = outcome;
+				finished = true;
+				clock.wakeAll(this);
+			}
+			runningAttempts.remove(this);
+		}
+	}
+
+	//
+	// PRIVATE METHODS
+	//
+
+	/**
+	 * Waits the given time before the next retry, returning early if this
+	 * attempt is cancelled.
+	 *
+	 * @param delay
+	 *            The time to wait (in milliseconds)
+	 */
+	private synchronized void waitBeforeRetry(long delay) {
+		long end = clock.currentTimeMillis() + delay;
+		long now;
+		while (!cancelled && ((now = clock.currentTimeMillis()) < end)) {
+			try {
+				clock.waitOn(this, end - now);
+			} catch (InterruptedException ie1) {
+				/* ignore, keep waiting. */
+			}
+		}
+	}
+
+}
@@ -0,0 +1,44 @@
+/*
+ * shortener - InsertBackend.java - Copyright © 2010 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugin.shortener;
+
+import freenet.keys.FreenetURI;
+
+/**
+ * Interface for the backends that insert the redirects from shortened keys
+ * to original keys. The {@link Shortener} uses a {@link FreenetInsertBackend}
+ * on a node; the fake backend of the test sources allows measuring it
+ * without one.
+ *
+ * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+ */
+public interface InsertBackend {
+
+	/**
+	 * Inserts a redirect from the given shortened key to the given original
+	 * key, waiting until the insert has finished.
+	 *
+	 * @param shortenedKey
+	 *            The shortened key to insert
+	 * @param originalKey
+	 *            The key the redirect points to
+	 * @return The outcome of the insert
+	 */
+	public InsertOutcome insertRedirect(FreenetURI shortenedKey, FreenetURI originalKey);
+
+}
@@ -0,0 +1,404 @@
+/*
+ * shortener - InsertLimiter.java - Copyright © 2010 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugin.shortener;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import net.pterodactylus.util.template.Accessor;
+import freenet.support.TimeUtil;
+
+/**
+ * Limits the number of concurrently running inserts. The limit is adjusted
+ * using additive increase and multiplicative decrease: every insert that
+ * finishes within the target latency raises the limit by roughly one per
+ * round trip, every insert that is too slow or fails with a
+ * {@link InsertOutcome#TRANSIENT transient} error cuts it down.
+ *
+ * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+ */
+public class InsertLimiter {
+
+	/** The maximum number of limit changes to remember. */
+	private static final int MAXIMUM_HISTORY_SIZE = 20;
+
+	/** The lowest allowed limit. */
+	private final int minimumLimit;
+
+	/** The highest allowed limit. */
+	private final int maximumLimit;
+
+	/** The latency above which an insert counts as congested. */
+	private final long targetLatency;
+
+	/** The factor the limit is multiplied with on congestion. */
+	private final double decreaseFactor;
+
+	/** The clock that dates the changes of the limit and that attempts wait on. */
+	private final Clock clock;
+
+	/** The current limit. */
+	private double limit;
+
+	/** The number of running inserts. */
+	private int runningInserts;
+
+	/** The moving average of the insert latency (in milliseconds). */
+	private double averageLatency = -1;
+
+	/** The moving average of the transient failure rate. */
+	private double failureRate;
+
+	/** The time of the last decrease. */
+	private long lastDecrease;
+
+	/** The last changes of the limit. */
+	private final LinkedList<LimitChange> history = new LinkedList<LimitChange>();
+
+	/** The listeners for changes of the limit. */
+	private final List<LimitListener> limitListeners = new CopyOnWriteArrayList<LimitListener>();
+
+	/**
+	 * Creates a new insert limiter.
+	 *
+	 * @param initialLimit
+	 *            The initial limit
+	 * @param minimumLimit
+	 *            The lowest allowed limit
+	 * @param maximumLimit
+	 *            The highest allowed limit
+	 * @param targetLatency
+	 *            The latency above which an insert counts as congested (in
+	 *            milliseconds)
+	 * @param decreaseFactor
+	 *            The factor the limit is multiplied with on congestion
+	 */
+	public InsertLimiter(int initialLimit, int minimumLimit, int maximumLimit, long targetLatency, double decreaseFactor) {
+		this(initialLimit, minimumLimit, maximumLimit, targetLatency, decreaseFactor, SystemClock.INSTANCE);
+	}
+
+	/**
+	 * Creates a new insert limiter.
+	 *
+	 * @param initialLimit
+	 *            The initial limit
+	 * @param minimumLimit
+	 *            The lowest allowed limit
+	 * @param maximumLimit
+	 *            The highest allowed limit
+	 * @param targetLatency
+	 *            The latency above which an insert counts as congested (in
+	 *            milliseconds)
+	 * @param decreaseFactor
+	 *            The factor the limit is multiplied with on congestion
+	 * @param clock
+	 *            The clock that dates the changes of the limit and that
+	 *            attempts wait on
+	 */
+	public InsertLimiter(int initialLimit, int minimumLimit, int maximumLimit, long targetLatency, double decreaseFactor, Clock clock) {
+		this.minimumLimit = minimumLimit;
+		this.maximumLimit = maximumLimit;
+		this.targetLatency = targetLatency;
+		this.decreaseFactor = decreaseFactor;
+		this.clock = clock;
+		this.limit = initialLimit;
+		history.add(new LimitChange(clock.currentTimeMillis(), initialLimit));
+	}
+
+	//
+	// LISTENER MANAGEMENT
+	//
+
+	/**
+	 * Adds a listener for changes of the limit.
+	 *
+	 * @param limitListener
+	 *            The listener to add
+	 */
+	public void addLimitListener(LimitListener limitListener) {
+		limitListeners.add(limitListener);
+	}
+
+	/**
+	 * Removes a listener for changes of the limit.
+	 *
+	 * @param limitListener
+	 *            The listener to remove
+	 */
+	public void removeLimitListener(LimitListener limitListener) {
+		limitListeners.remove(limitListener);
+	}
+
+	//
+	// ACCESSORS
+	//
+
+	/**
+	 * Returns the current limit.
+	 *
+	 * @return The maximum number of concurrently running inserts
+	 */
+	public synchronized int getLimit() {
+		return (int) limit;
+	}
+
+	/**
+	 * Returns the number of currently running inserts.
+	 *
+	 * @return The number of running inserts
+	 */
+	public synchronized int getRunningInserts() {
+		return runningInserts;
+	}
+
+	/**
+	 * Returns the moving average of the insert latency.
+	 *
+	 * @return The average insert latency (in milliseconds), or {@code -1} if
+	 *         no insert has finished yet
+	 */
+	public synchronized long getAverageLatency() {
+		return (long) averageLatency;
+	}
+
+	/**
+	 * Returns the moving average of the transient failure rate.
+	 *
+	 * @return The transient failure rate, between {@code 0} and {@code 1}
+	 */
+	public synchronized double getFailureRate() {
+		return failureRate;
+	}
+
+	/**
+	 * Returns the last changes of the limit, oldest first.
+	 *
+	 * @return The last limit changes
+	 */
+	public synchronized List<LimitChange> getHistory() {
+		return new ArrayList<LimitChange>(history);
+	}
+
+	//
+	// ACTIONS
+	//
+
+	/**
+	 * Waits until another insert may be started and counts it as running,
+	 * unless the given attempt is cancelled while waiting. Every successful
+	 * call to this method has to be followed by a call to
+	 * {@link #release(long, InsertOutcome)}.
+	 *
+	 * @param insertAttempt
+	 *            The attempt that wants to start an insert
+	 * @return {@code true} if the insert may be started, {@code false} if the
+	 *         attempt has been cancelled
+	 */
+	public synchronized boolean acquire(InsertAttempt insertAttempt) {
+		while ((runningInserts >= (int) limit) && !insertAttempt.isCancelled()) {
+			try {
+				clock.waitOn(this, 0);
+			} catch (InterruptedException ie1) {
+				/* ignore, check again. */
+			}
+		}
+		if (insertAttempt.isCancelled()) {
+			return false;
+		}
+		++runningInserts;
+		return true;
+	}
+
+	/**
+	 * Wakes up all attempts that are waiting in
+	 * {@link #acquire(InsertAttempt)} so that cancelled attempts can stop
+	 * waiting.
+	 */
+	public synchronized void wakeUp() {
+		clock.wakeAll(this);
+	}
+
+	/**
+	 * Counts an insert as finished and adjusts the limit according to its
+	 * latency and outcome.
+	 *
+	 * @param latency
+	 *            The latency of the insert (in milliseconds)
+	 * @param insertOutcome
+	 *            The outcome of the insert, or {@code null} if no insert was
+	 *            made
+	 */
+	public void release(long latency, InsertOutcome insertOutcome) {
+		int newLimit;
+		synchronized (this) {
+			--runningInserts;
+			clock.wakeAll(this);
+			if (insertOutcome == null) {
+				return;
+			}
+			averageLatency = (averageLatency < 0) ? latency : (averageLatency * 0.875 + latency * 0.125);
+			boolean failed = insertOutcome == InsertOutcome.TRANSIENT;
+			failureRate = failureRate * 0.875 + (failed ? 0.125 : 0);
+			long now = clock.currentTimeMillis();
+			int oldLimit = (int) limit;
+			if (failed || (latency > targetLatency)) {
+				/* decrease at most once per round trip. */
+				if ((now - lastDecrease) > averageLatency) {
+					limit = Math.max(minimumLimit, limit * decreaseFactor);
+					lastDecrease = now;
+				}
+			} else if (insertOutcome != InsertOutcome.FATAL) {
+				limit = Math.min(maximumLimit, limit + 1 / limit);
+			}
+			newLimit = (int) limit;
+			if (newLimit == oldLimit) {
+				return;
+			}
+			history.add(new LimitChange(now, newLimit));
+			while (history.size() > MAXIMUM_HISTORY_SIZE) {
+				history.removeFirst();
+			}
+		}
+		/* listeners are notified without holding the lock. */
+		for (LimitListener limitListener : limitListeners) {
+			limitListener.limitChanged(newLimit);
+		}
+	}
+
+	/**
+	 * Interface for listeners that are notified when the limit of an
+	 * {@link InsertLimiter} changes.
+	 *
+	 * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+	 */
+	public interface LimitListener {
+
+		/**
+		 * Notifies a listener that the limit has changed.
+		 *
+		 * @param limit
+		 *            The new limit
+		 */
+		public void limitChanged(int limit);
+
+	}
+
+	/**
+	 * A change of the limit.
+	 *
+	 * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+	 */
+	public static class LimitChange {
+
+		/** The time of the change. */
+		private final long time;
+
+		/** The new limit. */
+		private final int limit;
+
+		/**
+		 * Creates a new limit change.
+		 *
+		 * @param time
+		 *            The time of the change
+		 * @param limit
+		 *            The new limit
+		 */
+		public LimitChange(long time, int limit) {
+			this.time = time;
+			this.limit = limit;
+		}
+
+		/**
+		 * Returns the time of the change.
+		 *
+		 * @return The time of the change
+		 */
+		public long getTime() {
+			return time;
+		}
+
+		/**
+		 * Returns the new limit.
+		 *
+		 * @return The new limit
+		 */
+		public int getLimit() {
+			return limit;
+		}
+
+	}
+
+	/**
+	 * {@link Accessor} implementation that returns the current state of an
+	 * {@link InsertLimiter}.
+	 *
+	 * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+	 */
+	public static class InsertLimiterAccessor implements Accessor {
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public Object get(Object object, String member) {
+			InsertLimiter insertLimiter = (InsertLimiter) object;
+			if ("limit".equals(member)) {
+				return insertLimiter.getLimit();
+			} else if ("runningInserts".equals(member)) {
+				return insertLimiter.getRunningInserts();
+			} else if ("averageLatency".equals(member)) {
+				long averageLatency = insertLimiter.getAverageLatency();
+				return (averageLatency < 0) ? "" : TimeUtil.formatTime(averageLatency, 2, true);
+			} else if ("failureRate".equals(member)) {
+				return String.format("%.1f%%", insertLimiter.getFailureRate() * 100);
+			} else if ("history".equals(member)) {
+				return insertLimiter.getHistory();
+			}
+			return null;
+		}
+
+	}
+
+	/**
+	 * {@link Accessor} implementation that returns all fields of a
+	 * {@link LimitChange}.
+	 *
+	 * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+	 */
+	public static class LimitChangeAccessor implements Accessor {
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public Object get(Object object, String member) {
+			LimitChange limitChange = (LimitChange) object;
+			if ("age".equals(member)) {
+				return TimeUtil.formatTime(System.currentTimeMillis() - limitChange.getTime(), 2, false);
+			} else if ("limit".equals(member)) {
+				return limitChange.getLimit();
+			}
+			return null;
+		}
+
+	}
+
+}
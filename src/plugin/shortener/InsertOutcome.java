@@ -0,0 +1,67 @@
+/*
+ * shortener - InsertOutcome.java - Copyright © 2010 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugin.shortener;
+
+import freenet.client.InsertException;
+
+/**
+ * The possible outcomes of inserting a redirect.
+ *
+ * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+ */
+public enum InsertOutcome {
+
+	/** The redirect was inserted. */
+	SUCCESS,
+
+	/** The shortened key is already occupied. */
+	COLLISION,
+
+	/** The insert failed but might succeed when it is retried. */
+	TRANSIENT,
+
+	/** The insert failed and will not succeed when it is retried. */
+	FATAL;
+
+	/**
+	 * Classifies the given insert exception. Only a
+	 * {@link InsertException#COLLISION} means that the shortened key is
+	 * already taken; overload and routing errors are only a sign of the
+	 * network’s current state and are considered transient. Bucket and
+	 * internal errors are problems of the local node that a retry does not
+	 * fix, so they are fatal.
+	 *
+	 * @param insertException
+	 *            The insert exception to classify
+	 * @return The outcome of the insert
+	 */
+	public static InsertOutcome classify(InsertException insertException) {
+		switch (insertException.getMode()) {
+			case InsertException.COLLISION:
+				return COLLISION;
+			case InsertException.REJECTED_OVERLOAD:
+			case InsertException.ROUTE_NOT_FOUND:
+			case InsertException.ROUTE_REALLY_NOT_FOUND:
+			case InsertException.TOO_MANY_RETRIES_IN_BLOCKS:
+				return TRANSIENT;
+			default:
+				return FATAL;
+		}
+	}
+
+}
@@ -0,0 +1,188 @@
+/*
+ * shortener - InsertStatistics.java - Copyright © 2010 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugin.shortener;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.pterodactylus.util.template.Accessor;
+
+/**
+ * Counts the decisions that were made after inserting redirects.
+ *
+ * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+ */
+public class InsertStatistics {
+
+	/** The number of inserts that were started. */
+	private final AtomicLong inserts = new AtomicLong();
+
+	/** The number of successful inserts. */
+	private final AtomicLong successes = new AtomicLong();
+
+	/** The number of inserts that collided. */
+	private final AtomicLong collisions = new AtomicLong();
+
+	/** The number of transient failures that were retried. */
+	private final AtomicLong retries = new AtomicLong();
+
+	/** The number of transient failures that were not retried anymore. */
+	private final AtomicLong givenUp = new AtomicLong();
+
+	/** The number of fatal failures. */
+	private final AtomicLong fatalFailures = new AtomicLong();
+
+	//
+	// ACCESSORS
+	//
+
+	/**
+	 * Returns the number of inserts that were started.
+	 *
+	 * @return The number of inserts
+	 */
+	public long getInserts() {
+		return inserts.get();
+	}
+
+	/**
+	 * Returns the number of successful inserts.
+	 *
+	 * @return The number of successful inserts
+	 */
+	public long getSuccesses() {
+		return successes.get();
+	}
+
+	/**
+	 * Returns the number of inserts that collided.
+	 *
+	 * @return The number of collisions
+	 */
+	public long getCollisions() {
+		return collisions.get();
+	}
+
+	/**
+	 * Returns the number of transient failures that were retried.
+	 *
+	 * @return The number of retries
+	 */
+	public long getRetries() {
+		return retries.get();
+	}
+
+	/**
+	 * Returns the number of transient failures that were not retried
+	 * because the retries were exhausted.
+	 *
+	 * @return The number of given up inserts
+	 */
+	public long getGivenUp() {
+		return givenUp.get();
+	}
+
+	/**
+	 * Returns the number of fatal failures.
+	 *
+	 * @return The number of fatal failures
+	 */
+	public long getFatalFailures() {
+		return fatalFailures.get();
+	}
+
+	/**
+	 * Returns the number of inserts that did not result in a shortened key.
+	 *
+	 * @return The number of wasted inserts
+	 */
+	public long getWastedInserts() {
+		return collisions.get() + retries.get() + givenUp.get() + fatalFailures.get();
+	}
+
+	//
+	// ACTIONS
+	//
+
+	/**
+	 * Records the start of an insert.
+	 */
+	public void recordInsert() {
+		inserts.incrementAndGet();
+	}
+
+	/**
+	 * Records the outcome of an insert.
+	 *
+	 * @param insertOutcome
+	 *            The outcome of the insert
+	 * @param retried
+	 *            {@code true} if a transient failure is going to be retried,
+	 *            {@code false} otherwise
+	 */
+	public void recordOutcome(InsertOutcome insertOutcome, boolean retried) {
+		switch (insertOutcome) {
+			case SUCCESS:
+				successes.incrementAndGet();
+				break;
+			case COLLISION:
+				collisions.incrementAndGet();
+				break;
+			case TRANSIENT:
+				(retried ? retries : givenUp).incrementAndGet();
+				break;
+			case FATAL:
+				fatalFailures.incrementAndGet();
+				break;
+		}
+	}
+
+	/**
+	 * {@link Accessor} implementation that returns all counters of an
+	 * {@link InsertStatistics}.
+	 *
+	 * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+	 */
+	public static class InsertStatisticsAccessor implements Accessor {
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public Object get(Object object, String member) {
+			InsertStatistics insertStatistics = (InsertStatistics) object;
+			if ("inserts".equals(member)) {
+				return insertStatistics.getInserts();
+			} else if ("successes".equals(member)) {
+				return insertStatistics.getSuccesses();
+			} else if ("collisions".equals(member)) {
+				return insertStatistics.getCollisions();
+			} else if ("retries".equals(member)) {
+				return insertStatistics.getRetries();
+			} else if ("givenUp".equals(member)) {
+				return insertStatistics.getGivenUp();
+			} else if ("fatalFailures".equals(member)) {
+				return insertStatistics.getFatalFailures();
+			} else if ("wastedInserts".equals(member)) {
+				return insertStatistics.getWastedInserts();
+			}
+			return null;
+		}
+
+	}
+
+}
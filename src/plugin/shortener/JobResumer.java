@@ -0,0 +1,114 @@
+/*
+ * shortener - JobResumer.java - Copyright © 2010 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugin.shortener;
+
+import java.net.MalformedURLException;
+import java.util.Queue;
+
+import plugin.shortener.ShorteningScheduler.Priority;
+import freenet.support.Logger;
+
+/**
+ * Starts the key shortenings and the searches for shorter keys of a
+ * {@link Shortener} that were not finished when the shortener was stopped.
+ * If the scheduler is full, the resumer waits until it expects the scheduler
+ * to have room again. Keys are only removed from the queues once their job
+ * has been submitted, so that they are still written to the journal when
+ * it is emptied in the meantime.
+ *
+ * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+ */
+class JobResumer implements Runnable {
+
+	/** The shortener to resume the jobs of. */
+	private final Shortener shortener;
+
+	/** The keys whose shortening has to be resumed. */
+	private final Queue<String> keysToResume;
+
+	/** The keys whose search for a shorter key has to be resumed. */
+	private final Queue<String> keysToUpgrade;
+
+	/**
+	 * Creates a new job resumer.
+	 *
+	 * @param shortener
+	 *            The shortener to resume the jobs of
+	 * @param keysToResume
+	 *            The keys whose shortening has to be resumed
+	 * @param keysToUpgrade
+	 *            The keys whose search for a shorter key has to be resumed
+	 */
+	public JobResumer(Shortener shortener, Queue<String> keysToResume, Queue<String> keysToUpgrade) {
+		this.shortener = shortener;
+		this.keysToResume = keysToResume;
+		this.keysToUpgrade = keysToUpgrade;
+	}
+
+	//
+	// INTERFACE Runnable
+	//
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void run() {
+		String key;
+		while (!shortener.isStopped() && ((key = keysToResume.peek()) != null)) {
+			try {
+				shortener.shortenKey(key, Priority.BULK);
+			} catch (MalformedURLException mue1) {
+				Logger.error(this, "Invalid key in journal: " + key, mue1);
+			} catch (SchedulerFullException sfe1) {
+				waitForScheduler(sfe1);
+				continue;
+			}
+			keysToResume.remove();
+		}
+		while (!shortener.isStopped() && ((key = keysToUpgrade.peek()) != null)) {
+			try {
+				shortener.upgradeKey(key);
+			} catch (MalformedURLException mue1) {
+				Logger.error(this, "Invalid key in journal: " + key, mue1);
+			} catch (SchedulerFullException sfe1) {
+				waitForScheduler(sfe1);
+				continue;
+			}
+			keysToUpgrade.remove();
+		}
+	}
+
+	//
+	// PRIVATE METHODS
+	//
+
+	/**
+	 * Waits until the full scheduler is expected to have room again.
+	 *
+	 * @param schedulerFullException
+	 *            The exception of the full scheduler
+	 */
+	private void waitForScheduler(SchedulerFullException schedulerFullException) {
+		try {
+			shortener.getClock().sleep(schedulerFullException.getRetryAfter() * 1000L);
+		} catch (InterruptedException ie1) {
+			/* ignore, try again. */
+		}
+	}
+
+}
@@ -0,0 +1,602 @@
+/*
+ * shortener - Journal.java - Copyright © 2010 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugin.shortener;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import freenet.support.Executor;
+import freenet.support.Logger;
+import freenet.support.io.Closer;
+
+/**
+ * Append-only journal of everything that happens to shortened keys. Every
+ * record is stored with its length and a CRC32 checksum so that a record that
+ * was only partially written when the node went down can be detected and
+ * removed when the journal is opened again.
+ * <p>
+ * Records are written by a single writer that collects all records that are
+ * waiting at the time, writes them, and syncs the journal once for all of
+ * them (group commit). If the records can not be written, the journal is
+ * truncated to its last good position, everybody waiting for the records is
+ * notified of the failure, and the records are written again together with
+ * the next record.
+ *
+ * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+ */
+public class Journal {
+
+	/** The size of the header in front of every record (length and CRC). */
+	private static final int HEADER_SIZE = 8;
+
+	/** The maximum size of a single record. */
+	private static final int MAXIMUM_RECORD_SIZE = 1 << 20;
+
+	/** The journal file. */
+	private final File file;
+
+	/** The executor that runs the writer. */
+	private final Executor executor;
+
+	/** The clock that waits for the writer. */
+	private final Clock clock;
+
+	/** The records that are waiting to be written. */
+	private List<byte[]> pendingRecords = new ArrayList<byte[]>();
+
+	/** The sequence number of the last record that was queued. */
+	private long queuedSequence;
+
+	/** The sequence number of the last record that was synced. */
+	private long syncedSequence;
+
+	/** The sequence number of the last record that could not be written. */
+	private long failedSequence;
+
+	/** The reason the last records could not be written. */
+	private IOException failure;
+
+	/** Whether the writer is running. */
+	private boolean writerRunning;
+
+	/** Whether the journal has been closed. */
+	private boolean closed;
+
+	/** The channel of the opened journal file. */
+	private FileChannel fileChannel;
+
+	/**
+	 * Creates a new journal.
+	 *
+	 * @param file
+	 *            The journal file
+	 * @param executor
+	 *            The executor that runs the writer
+	 */
+	public Journal(File file, Executor executor) {
+		this(file, executor, SystemClock.INSTANCE);
+	}
+
+	/**
+	 * Creates a new journal.
+	 *
+	 * @param file
+	 *            The journal file
+	 * @param executor
+	 *            The executor that runs the writer
+	 * @param clock
+	 *            The clock that waits for the writer
+	 */
+	public Journal(File file, Executor executor, Clock clock) {
+		this.file = file;
+		this.executor = executor;
+		this.clock = clock;
+	}
+
+	//
+	// ACTIONS
+	//
+
+	/**
+	 * Opens the journal, handing every valid record to the given handler. A
+	 * torn or corrupt record at the end of the journal is removed, together
+	 * with everything after it.
+	 *
+	 * @param recordHandler
+	 *            The handler for the records in the journal
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public synchronized void open(RecordHandler recordHandler) throws IOException {
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+		boolean opened = false;
+		try {
+			FileChannel openedFileChannel = randomAccessFile.getChannel();
+			readRecords(recordHandler, openedFileChannel);
+			fileChannel = openedFileChannel;
+			opened = true;
+		} finally {
+			if (!opened) {
+				Closer.close(randomAccessFile);
+			}
+		}
+		if (!pendingRecords.isEmpty()) {
+			startWriter();
+		}
+	}
+
+	/**
+	 * Queues the given record for writing.
+	 *
+	 * @param record
+	 *            The record to write
+	 * @return The sequence number of the record, to be used with
+	 *         {@link #waitForSync(long)}
+	 * @throws IllegalStateException
+	 *             if the journal has been closed
+	 */
+	public synchronized long write(Record record) throws IllegalStateException {
+		if (closed) {
+			throw new IllegalStateException("Journal " + file + " is closed.");
+		}
+		byte[] payload = record.encode();
+		CRC32 crc32 = new CRC32();
+		crc32.update(payload);
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+		buffer.putInt(payload.length).putInt((int) crc32.getValue()).put(payload);
+		pendingRecords.add(buffer.array());
+		++queuedSequence;
+		if (!writerRunning && (fileChannel != null)) {
+			startWriter();
+		}
+		return queuedSequence;
+	}
+
+	/**
+	 * Waits until the record with the given sequence number has been written
+	 * and synced.
+	 *
+	 * @param sequence
+	 *            The sequence number of the record
+	 * @throws IOException
+	 *             if the record could not be written
+	 */
+	public synchronized void waitForSync(long sequence) throws IOException {
+		while ((syncedSequence < sequence) && (fileChannel != null)) {
+			if (sequence <= failedSequence) {
+				throw (IOException) new IOException("Could not write record " + sequence + " to journal " + file + "!").initCause(failure);
+			}
+			try {
+				clock.waitOn(this, 0);
+			} catch (InterruptedException ie1) {
+				/* ignore, keep waiting. */
+			}
+		}
+	}
+
+	/**
+	 * Removes all records from the journal. This is used once everything the
+	 * journal contains has been written somewhere else. Records that are
+	 * still queued are written before the journal is emptied.
+	 *
+	 * @throws IOException
+	 *             if the queued records or the journal can not be written
+	 */
+	public synchronized void reset() throws IOException {
+		while ((writerRunning || !pendingRecords.isEmpty()) && (fileChannel != null)) {
+			if (!writerRunning) {
+				/* the writer only stops with queued records if it failed. */
+				throw (IOException) new IOException("Could not write queued records to journal " + file + "!").initCause(failure);
+			}
+			try {
+				clock.waitOn(this, 0);
+			} catch (InterruptedException ie1) {
+				/* ignore, keep waiting. */
+			}
+		}
+		if (fileChannel == null) {
+			return;
+		}
+		fileChannel.truncate(0);
+		fileChannel.force(true);
+		fileChannel.position(0);
+	}
+
+	/**
+	 * Writes all queued records and closes the journal. No records can be
+	 * written after the journal has been closed.
+	 */
+	public void close() {
+		FileChannel closedFileChannel;
+		synchronized (this) {
+			closed = true;
+			if (!writerRunning && !pendingRecords.isEmpty() && (fileChannel != null)) {
+				/* the last write failed, try once more. */
+				startWriter();
+			}
+			try {
+				waitForSync(queuedSequence);
+			} catch (IOException ioe1) {
+				Logger.error(this, "Could not write all records to journal " + file + "!", ioe1);
+			}
+			closedFileChannel = fileChannel;
+			fileChannel = null;
+			clock.wakeAll(this);
+		}
+		if (closedFileChannel != null) {
+			try {
+				closedFileChannel.close();
+			} catch (IOException ioe1) {
+				Logger.error(this, "Could not close journal " + file + "!", ioe1);
+			}
+		}
+	}
+
+	//
+	// PRIVATE METHODS
+	//
+
+	/**
+	 * Hands every valid record of the journal to the given handler, and
+	 * removes a torn or corrupt record at the end of the journal together
+	 * with everything after it. Afterwards the given file channel is
+	 * positioned at the end of the valid records.
+	 *
+	 * @param recordHandler
+	 *            The handler for the records in the journal
+	 * @param openedFileChannel
+	 *            The file channel of the journal
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	private void readRecords(RecordHandler recordHandler, FileChannel openedFileChannel) throws IOException {
+		DataInputStream recordInputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		long validLength = 0;
+		try {
+			while (true) {
+				int length;
+				try {
+					length = recordInputStream.readInt();
+				} catch (EOFException eofe1) {
+					break;
+				}
+				if ((length < 0) || (length > MAXIMUM_RECORD_SIZE)) {
+					break;
+				}
+				int checksum = recordInputStream.readInt();
+				byte[] payload = new byte[length];
+				recordInputStream.readFully(payload);
+				CRC32 crc32 = new CRC32();
+				crc32.update(payload);
+				if ((int) crc32.getValue() != checksum) {
+					break;
+				}
+				Record record;
+				try {
+					record = Record.decode(payload);
+				} catch (IOException ioe1) {
+					Logger.error(this, "Could not decode record at " + validLength + " in journal " + file + "!", ioe1);
+					break;
+				}
+				recordHandler.handleRecord(record);
+				validLength += HEADER_SIZE + length;
+			}
+		} catch (EOFException eofe1) {
+			/* torn record at the end, will be truncated below. */
+		} finally {
+			recordInputStream.close();
+		}
+		if (openedFileChannel.size() > validLength) {
+			Logger.normal(this, "Truncating journal " + file + " from " + openedFileChannel.size() + " to " + validLength + " bytes.");
+			openedFileChannel.truncate(validLength);
+			openedFileChannel.force(true);
+		}
+		openedFileChannel.position(validLength);
+	}
+
+	/**
+	 * Starts the writer. The caller has to hold the lock on this journal.
+	 */
+	private void startWriter() {
+		writerRunning = true;
+		failedSequence = 0;
+		failure = null;
+		executor.execute(new Writer(), "Shortener Journal Writer");
+	}
+
+	/**
+	 * Removes everything after the given position from the journal and moves
+	 * the position of the channel there, so that a partially written batch
+	 * is overwritten by the next batch.
+	 *
+	 * @param writeChannel
+	 *            The channel of the journal
+	 * @param position
+	 *            The position after the last completely written record
+	 */
+	private void truncate(FileChannel writeChannel, long position) {
+		try {
+			writeChannel.truncate(position);
+			writeChannel.position(position);
+		} catch (IOException ioe1) {
+			Logger.error(this, "Could not truncate journal " + file + " to " + position + " bytes!", ioe1);
+		}
+	}
+
+	/**
+	 * The writer that writes all queued records and syncs the journal.
+	 *
+	 * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+	 */
+	private class Writer implements Runnable {
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@SuppressWarnings("synthetic-access")
+		public void run() {
+			while (true) {
+				List<byte[]> records;
+				long sequence;
+				FileChannel writeChannel;
+				synchronized (Journal.this) {
+					if (pendingRecords.isEmpty() || (fileChannel == null)) {
+						writerRunning = false;
+						clock.wakeAll(Journal.this);
+						return;
+					}
+					records = pendingRecords;
+					pendingRecords = new ArrayList<byte[]>();
+					sequence = queuedSequence;
+					writeChannel = fileChannel;
+				}
+				long position = -1;
+				try {
+					position = writeChannel.position();
+					ByteArrayOutputStream batch = new ByteArrayOutputStream();
+					for (byte[] record : records) {
+						batch.write(record);
+					}
+					ByteBuffer buffer = ByteBuffer.wrap(batch.toByteArray());
+					while (buffer.hasRemaining()) {
+						writeChannel.write(buffer);
+					}
+					writeChannel.force(false);
+				} catch (IOException ioe1) {
+					Logger.error(this, "Could not write " + records.size() + " records to journal " + file + "!", ioe1);
+					synchronized (Journal.this) {
+						if (position != -1) {
+							truncate(writeChannel, position);
+						}
+						/* keep the records to write them with the next record. */
+						records.addAll(pendingRecords);
+						pendingRecords = records;
+						failedSequence = sequence;
+						failure = ioe1;
+						writerRunning = false;
+						clock.wakeAll(Journal.this);
+					}
+					return;
+				}
+				synchronized (Journal.this) {
+					syncedSequence = sequence;
+					clock.wakeAll(Journal.this);
+				}
+			}
+		}
+
+	}
+
+	/**
+	 * Interface for handlers of records read from a journal.
+	 *
+	 * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+	 */
+	public interface RecordHandler {
+
+		/**
+		 * Handles the given record.
+		 *
+		 * @param record
+		 *            The record read from the journal
+		 */
+		public void handleRecord(Record record);
+
+	}
+
+	/**
+	 * A single record of the journal.
+	 *
+	 * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+	 */
+	public static class Record {
+
+		/**
+		 * The types of records.
+		 *
+		 * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+		 */
+		public enum Type {
+
+			/** The shortening of a key was requested. */
+			STARTED,
+
+			/** A key was shortened. */
+			SHORTENED,
+
+			/** The shortening of a key failed. */
+			FAILED,
+
+			/** A shortened key for a key that is being shortened collided. */
+			COLLISION,
+
+			/** All changes of a shared change log up to a sequence are stored. */
+			POSITION,
+
+			/** The search for a shorter key than a provisional one started. */
+			UPGRADING
+
+		}
+
+		/** The type of the record. */
+		private final Type type;
+
+		/** The original key. */
+		private final String originalKey;
+
+		/** The shortened key, if any. */
+		private final String shortenedKey;
+
+		/** The sequence number of the change in the {@link ChangeLog}. */
+		private final long changeSequence;
+
+		/**
+		 * Creates a new record.
+		 *
+		 * @param type
+		 *            The type of the record
+		 * @param originalKey
+		 *            The original key
+		 * @param shortenedKey
+		 *            The shortened key, or {@code null} if the record has no
+		 *            shortened key
+		 */
+		public Record(Type type, String originalKey, String shortenedKey) {
+			this(type, originalKey, shortenedKey, 0);
+		}
+
+		/**
+		 * Creates a new record.
+		 *
+		 * @param type
+		 *            The type of the record
+		 * @param originalKey
+		 *            The original key
+		 * @param shortenedKey
+		 *            The shortened key, or {@code null} if the record has no
+		 *            shortened key
+		 * @param changeSequence
+		 *            The sequence number of the change in the
+		 *            {@link ChangeLog}, or {@code 0} if the record has no
+		 *            change
+		 */
+		public Record(Type type, String originalKey, String shortenedKey, long changeSequence) {
+			this.type = type;
+			this.originalKey = originalKey;
+			this.shortenedKey = shortenedKey;
+			this.changeSequence = changeSequence;
+		}
+
+		/**
+		 * Returns the type of the record.
+		 *
+		 * @return The type of the record
+		 */
+		public Type getType() {
+			return type;
+		}
+
+		/**
+		 * Returns the original key.
+		 *
+		 * @return The original key
+		 */
+		public String getOriginalKey() {
+			return originalKey;
+		}
+
+		/**
+		 * Returns the shortened key.
+		 *
+		 * @return The shortened key, or {@code null} if the record has no
+		 *         shortened key
+		 */
+		public String getShortenedKey() {
+			return shortenedKey;
+		}
+
+		/**
+		 * Returns the sequence number of the change in the {@link ChangeLog}.
+		 *
+		 * @return The sequence number of the change, or {@code 0} if the
+		 *         record has no change
+		 */
+		public long getChangeSequence() {
+			return changeSequence;
+		}
+
+		/**
+		 * Encodes this record.
+		 *
+		 * @return The encoded record
+		 */
+		byte[] encode() {
+			ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+			DataOutputStream dataOutputStream = new DataOutputStream(byteArrayOutputStream);
+			try {
+				dataOutputStream.writeByte(type.ordinal());
+				dataOutputStream.writeUTF(originalKey);
+				dataOutputStream.writeBoolean(shortenedKey != null);
+				if (shortenedKey != null) {
+					dataOutputStream.writeUTF(shortenedKey);
+				}
+				dataOutputStream.writeLong(changeSequence);
+				dataOutputStream.close();
+			} catch (IOException ioe1) {
+				/* a ByteArrayOutputStream does not throw. */
+			}
+			return byteArrayOutputStream.toByteArray();
+		}
+
+		/**
+		 * Decodes a record.
+		 *
+		 * @param payload
+		 *            The encoded record
+		 * @return The decoded record
+		 * @throws IOException
+		 *             if the record can not be decoded
+		 */
+		static Record decode(byte[] payload) throws IOException {
+			DataInputStream dataInputStream = new DataInputStream(new ByteArrayInputStream(payload));
+			int typeOrdinal = dataInputStream.readUnsignedByte();
+			if (typeOrdinal >= Type.values().length) {
+				throw new IOException("Unknown record type: " + typeOrdinal);
+			}
+			String originalKey = dataInputStream.readUTF();
+			String shortenedKey = dataInputStream.readBoolean() ? dataInputStream.readUTF() : null;
+			long changeSequence = dataInputStream.readLong();
+			return new Record(Type.values()[typeOrdinal], originalKey, shortenedKey, changeSequence);
+		}
+
+	}
+
+}
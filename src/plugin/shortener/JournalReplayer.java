@@ -0,0 +1,144 @@
+/*
+ * shortener - JournalReplayer.java - Copyright © 2010 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugin.shortener;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import plugin.shortener.Journal.Record;
+import plugin.shortener.Journal.Record.Type;
+import plugin.shortener.Journal.RecordHandler;
+import freenet.keys.FreenetURI;
+import freenet.support.Logger;
+
+/**
+ * Restores the shortened keys and the collided prefixes of a
+ * {@link Shortener} from the records of its journal, and collects the keys
+ * whose shortening has not finished.
+ *
+ * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+ */
+class JournalReplayer implements RecordHandler {
+
+	/** The shortener to restore. */
+	private final Shortener shortener;
+
+	/** The keys whose shortening has not finished, in journal order. */
+	private final Set<String> unfinishedKeys = new LinkedHashSet<String>();
+
+	/** The keys whose search for a shorter key has not finished. */
+	private final Set<String> unfinishedUpgrades = new LinkedHashSet<String>();
+
+	/** Whether changes missing from the change log are appended. */
+	private final boolean restoreChanges;
+
+	/**
+	 * Creates a new journal replayer.
+	 *
+	 * @param shortener
+	 *            The shortener to restore
+	 * @param restoreChanges
+	 *            {@code true} to append changes that are missing from the
+	 *            change log, {@code false} if the change log is filled later
+	 */
+	public JournalReplayer(Shortener shortener, boolean restoreChanges) {
+		this.shortener = shortener;
+		this.restoreChanges = restoreChanges;
+	}
+
+	//
+	// ACCESSORS
+	//
+
+	/**
+	 * Returns the keys whose shortening was started but has neither succeeded
+	 * nor failed.
+	 *
+	 * @return The unfinished keys
+	 */
+	public Set<String> getUnfinishedKeys() {
+		return unfinishedKeys;
+	}
+
+	/**
+	 * Returns the keys whose search for a shorter key than their provisional
+	 * key was started but has not finished.
+	 *
+	 * @return The unfinished upgrades
+	 */
+	public Set<String> getUnfinishedUpgrades() {
+		return unfinishedUpgrades;
+	}
+
+	//
+	// INTERFACE RecordHandler
+	//
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void handleRecord(Record record) {
+		if (record.getType() == Type.STARTED) {
+			unfinishedKeys.add(record.getOriginalKey());
+			return;
+		}
+		if (record.getType() == Type.UPGRADING) {
+			unfinishedUpgrades.add(record.getOriginalKey());
+			return;
+		}
+		if (record.getType() == Type.FAILED) {
+			unfinishedKeys.remove(record.getOriginalKey());
+			unfinishedUpgrades.remove(record.getOriginalKey());
+			return;
+		}
+		if (record.getType() == Type.COLLISION) {
+			String name = record.getShortenedKey().substring(record.getShortenedKey().indexOf('@') + 1);
+			if (!CounterAllocator.isAllocatedName(name)) {
+				/* older journals also recorded collisions of allocated names. */
+				shortener.markOccupied(name);
+			}
+			return;
+		}
+		shortener.advanceStoredChangeSequence(record.getChangeSequence());
+		if (record.getType() == Type.POSITION) {
+			return;
+		}
+		unfinishedKeys.remove(record.getOriginalKey());
+		unfinishedUpgrades.remove(record.getOriginalKey());
+		try {
+			byte[] routingKey = new FreenetURI(record.getOriginalKey()).getRoutingKey();
+			String prefix = record.getShortenedKey().substring(record.getShortenedKey().indexOf('@') + 1);
+			if (!Shortener.matchesRoutingKey(prefix, routingKey)) {
+				Logger.error(this, "Shortened key in journal does not match original key: " + record.getOriginalKey() + " → " + record.getShortenedKey());
+				return;
+			}
+			shortener.addShortenedKey(record.getOriginalKey(), routingKey, prefix);
+			ChangeLog changeLog = shortener.getChangeLog();
+			if (restoreChanges && (record.getChangeSequence() > changeLog.getLastSequence())) {
+				changeLog.append(record.getChangeSequence(), record.getOriginalKey(), record.getShortenedKey());
+			}
+		} catch (MalformedURLException mue1) {
+			Logger.error(this, "Invalid key in journal: " + record.getOriginalKey() + " → " + record.getShortenedKey(), mue1);
+		} catch (IOException ioe1) {
+			Logger.error(this, "Could not restore " + record.getOriginalKey() + " to change log!", ioe1);
+		}
+	}
+
+}
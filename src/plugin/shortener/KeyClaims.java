@@ -0,0 +1,270 @@
+/*
+ * shortener - KeyClaims.java - Copyright © 2010 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugin.shortener;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.channels.FileLock;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import freenet.support.Logger;
+import freenet.support.io.Closer;
+
+/**
+ * Claims on keys that are being shortened, shared by several processes
+ * through a directory. A claim is a file that is created atomically; only
+ * the process that created it shortens the key, all others wait for the
+ * result. Claims of processes that died are taken over once they have not
+ * been touched for {@value #STALE_TIME} milliseconds. Taking over and
+ * releasing a claim happen under an exclusive lock on a lock file in the
+ * directory, so that only one process can replace a stale claim. As file
+ * locks are held by the whole process, the threads of this process are
+ * synchronized on this object first.
+ *
+ * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+ */
+public class KeyClaims {
+
+	/** The time after which an untouched claim is taken over. */
+	private static final long STALE_TIME = 30 * 60 * 1000;
+
+	/** The directory of the claim files. */
+	private final File directory;
+
+	/** The file that is locked while a claim is taken over or released. */
+	private final File lockFile;
+
+	/** The name of this process. */
+	private final String owner;
+
+	/**
+	 * Creates new key claims.
+	 *
+	 * @param directory
+	 *            The directory of the claim files
+	 * @param owner
+	 *            The name of this process, unique among all processes using
+	 *            the directory
+	 */
+	public KeyClaims(File directory, String owner) {
+		this.directory = directory;
+		this.lockFile = new File(directory, "claims.lock");
+		this.owner = owner;
+		if (!directory.exists() && !directory.mkdirs()) {
+			Logger.error(this, "Could not create claim directory " + directory + "!");
+		}
+	}
+
+	//
+	// ACTIONS
+	//
+
+	/**
+	 * Claims the given key. A claim of this process is claimed again; a stale
+	 * claim of another process is taken over.
+	 *
+	 * @param key
+	 *            The normalized original key
+	 * @return {@code true} if this process holds the claim, {@code false} if
+	 *         another process does
+	 */
+	public boolean claim(String key) {
+		File claimFile = getClaimFile(key);
+		try {
+			if (claimFile.createNewFile()) {
+				writeOwner(claimFile);
+				return true;
+			}
+			if (owner.equals(readOwner(claimFile))) {
+				touch(key);
+				return true;
+			}
+			if (isStale(claimFile) && takeOverStaleClaim(claimFile)) {
+				Logger.normal(this, "Took over stale claim for " + key + ".");
+				return true;
+			}
+		} catch (IOException ioe1) {
+			Logger.error(this, "Could not claim " + key + "!", ioe1);
+		}
+		return false;
+	}
+
+	/**
+	 * Marks the claim of the given key as still being used.
+	 *
+	 * @param key
+	 *            The normalized original key
+	 */
+	public void touch(String key) {
+		getClaimFile(key).setLastModified(System.currentTimeMillis());
+	}
+
+	/**
+	 * Releases the claim of the given key, if this process holds it.
+	 *
+	 * @param key
+	 *            The normalized original key
+	 */
+	public synchronized void release(String key) {
+		File claimFile = getClaimFile(key);
+		try {
+			RandomAccessFile lockRandomAccessFile = new RandomAccessFile(lockFile, "rw");
+			try {
+				/* the claim must not be taken over between reading and deleting. */
+				FileLock fileLock = lockRandomAccessFile.getChannel().lock();
+				try {
+					if (owner.equals(readOwner(claimFile)) && !claimFile.delete()) {
+						Logger.error(this, "Could not release claim for " + key + "!");
+					}
+				} finally {
+					fileLock.release();
+				}
+			} finally {
+				lockRandomAccessFile.close();
+			}
+		} catch (IOException ioe1) {
+			Logger.error(this, "Could not release claim for " + key + "!", ioe1);
+		}
+	}
+
+	//
+	// PRIVATE METHODS
+	//
+
+	/**
+	 * Returns the claim file of the given key.
+	 *
+	 * @param key
+	 *            The normalized original key
+	 * @return The claim file
+	 */
+	private File getClaimFile(String key) {
+		try {
+			byte[] hash = MessageDigest.getInstance("SHA-256").digest(key.getBytes("UTF-8"));
+			StringBuilder fileName = new StringBuilder();
+			for (int index = 0; index < 16; ++index) {
+				fileName.append(Integer.toHexString((hash[index] >> 4) & 0x0f)).append(Integer.toHexString(hash[index] & 0x0f));
+			}
+			return new File(directory, fileName.append(".claim").toString());
+		} catch (NoSuchAlgorithmException nsae1) {
+			/* all JVMs have to support SHA-256. */
+			throw new RuntimeException(nsae1);
+		} catch (UnsupportedEncodingException uee1) {
+			/* all JVMs have to support UTF-8. */
+			throw new RuntimeException(uee1);
+		}
+	}
+
+	/**
+	 * Returns whether the given claim file has not been touched for
+	 * {@value #STALE_TIME} milliseconds.
+	 *
+	 * @param claimFile
+	 *            The claim file
+	 * @return {@code true} if the claim is stale, {@code false} otherwise
+	 */
+	private boolean isStale(File claimFile) {
+		return (System.currentTimeMillis() - claimFile.lastModified()) > STALE_TIME;
+	}
+
+	/**
+	 * Replaces the given stale claim file with a claim of this process. The
+	 * claim is checked again under the lock because another process might
+	 * have taken it over in the meantime.
+	 *
+	 * @param claimFile
+	 *            The claim file
+	 * @return {@code true} if this process holds the claim now, {@code false}
+	 *         if another process does
+	 * @throws IOException
+	 *             if the lock file or the claim file can not be written
+	 */
+	private synchronized boolean takeOverStaleClaim(File claimFile) throws IOException {
+		RandomAccessFile lockRandomAccessFile = new RandomAccessFile(lockFile, "rw");
+		try {
+			FileLock fileLock = lockRandomAccessFile.getChannel().lock();
+			try {
+				if (claimFile.exists() && (!isStale(claimFile) || !claimFile.delete())) {
+					return false;
+				}
+				if (!claimFile.createNewFile()) {
+					return false;
+				}
+				writeOwner(claimFile);
+				return true;
+			} finally {
+				fileLock.release();
+			}
+		} finally {
+			lockRandomAccessFile.close();
+		}
+	}
+
+	/**
+	 * Writes the name of this process to the given claim file.
+	 *
+	 * @param claimFile
+	 *            The claim file
+	 * @throws IOException
+	 *             if the file can not be written
+	 */
+	private void writeOwner(File claimFile) throws IOException {
+		OutputStream claimOutputStream = new FileOutputStream(claimFile);
+		try {
+			claimOutputStream.write(owner.getBytes("UTF-8"));
+		} finally {
+			Closer.close(claimOutputStream);
+		}
+	}
+
+	/**
+	 * Reads the name of the process that holds the given claim.
+	 *
+	 * @param claimFile
+	 *            The claim file
+	 * @return The name of the process, or {@code null} if the file does not
+	 *         exist
+	 * @throws IOException
+	 *             if the file can not be read
+	 */
+	private String readOwner(File claimFile) throws IOException {
+		if (!claimFile.exists()) {
+			return null;
+		}
+		InputStream claimInputStream = new FileInputStream(claimFile);
+		try {
+			byte[] buffer = new byte[(int) Math.min(4096, claimFile.length())];
+			int read = 0;
+			int bytes;
+			while ((read < buffer.length) && ((bytes = claimInputStream.read(buffer, read, buffer.length - read)) > 0)) {
+				read += bytes;
+			}
+			return new String(buffer, 0, read, "UTF-8");
+		} finally {
+			Closer.close(claimInputStream);
+		}
+	}
+
+}
@@ -0,0 +1,221 @@
+/*
+ * shortener - KeyResolver.java - Copyright © 2010 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugin.shortener;
+
+import java.net.MalformedURLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import freenet.client.FetchException;
+import freenet.client.HighLevelSimpleClient;
+import freenet.keys.FreenetURI;
+
+/**
+ * Resolves shortened keys. Keys that were shortened by this plugin are
+ * resolved from the {@link Shortener}’s stores. Other keys are checked by
+ * fetching them from the network; the result of that check is cached for a
+ * while.
+ *
+ * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+ */
+public class KeyResolver {
+
+	/** The maximum number of cached network lookups. */
+	private static final int CACHE_SIZE = 1000;
+
+	/** The time network lookups are cached (in milliseconds). */
+	private static final long CACHE_TIME = 10 * 60 * 1000;
+
+	/** The key shortener. */
+	private final Shortener shortener;
+
+	/** The client to fetch unknown keys with. */
+	private final HighLevelSimpleClient highLevelSimpleClient;
+
+	/** The cached network lookups, least recently used first. */
+	private final Map<String, CachedLookup> cachedLookups = new LinkedHashMap<String, CachedLookup>(16, 0.75f, true) {
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		protected boolean removeEldestEntry(Entry<String, CachedLookup> eldest) {
+			return size() > CACHE_SIZE;
+		}
+
+	};
+
+	/**
+	 * Creates a new key resolver.
+	 *
+	 * @param shortener
+	 *            The key shortener
+	 * @param highLevelSimpleClient
+	 *            The client to fetch unknown keys with
+	 */
+	public KeyResolver(Shortener shortener, HighLevelSimpleClient highLevelSimpleClient) {
+		this.shortener = shortener;
+		this.highLevelSimpleClient = highLevelSimpleClient;
+	}
+
+	//
+	// ACTIONS
+	//
+
+	/**
+	 * Normalizes a shortened key. The key may be given with or without the
+	 * leading slash and with or without the “KSK@”.
+	 *
+	 * @param shortenedKey
+	 *            The shortened key
+	 * @return The normalized shortened key
+	 * @throws MalformedURLException
+	 *             if the key is not a valid Freenet URI
+	 */
+	public static String normalize(String shortenedKey) throws MalformedURLException {
+		String key = shortenedKey.trim();
+		while (key.startsWith("/")) {
+			key = key.substring(1);
+		}
+		if (key.indexOf('@') == -1) {
+			key = "KSK@" + key;
+		}
+		return new FreenetURI(key).toString();
+	}
+
+	/**
+	 * Returns the key the given shortened key points to without accessing
+	 * the network.
+	 *
+	 * @param shortenedKey
+	 *            The normalized shortened key
+	 * @return The original key, or {@code null} if the shortened key was not
+	 *         created by this plugin
+	 */
+	public String resolveLocally(String shortenedKey) {
+		return shortener.getOriginalKey(shortenedKey);
+	}
+
+	/**
+	 * Resolves the given shortened key. If the key was not created by this
+	 * plugin, it is fetched from the network to check whether it exists; as
+	 * the node follows the redirect itself, the shortened key is returned in
+	 * that case.
+	 *
+	 * @param shortenedKey
+	 *            The normalized shortened key
+	 * @return The key to redirect to, or {@code null} if the shortened key
+	 *         does not exist
+	 */
+	public String resolve(String shortenedKey) {
+		String originalKey = resolveLocally(shortenedKey);
+		if (originalKey != null) {
+			return originalKey;
+		}
+		synchronized (cachedLookups) {
+			CachedLookup cachedLookup = cachedLookups.get(shortenedKey);
+			if ((cachedLookup != null) && (cachedLookup.getTime() > System.currentTimeMillis() - CACHE_TIME)) {
+				return cachedLookup.exists() ? shortenedKey : null;
+			}
+		}
+		Boolean exists = fetch(shortenedKey);
+		if (exists == null) {
+			return null;
+		}
+		synchronized (cachedLookups) {
+			cachedLookups.put(shortenedKey, new CachedLookup(exists));
+		}
+		return exists ? shortenedKey : null;
+	}
+
+	//
+	// PRIVATE METHODS
+	//
+
+	/**
+	 * Fetches the given key, without downloading more than the first byte of
+	 * the data it points to.
+	 *
+	 * @param shortenedKey
+	 *            The normalized shortened key
+	 * @return {@code true} if the key exists, {@code false} if it does not
+	 *         exist, {@code null} if that could not be determined
+	 */
+	private Boolean fetch(String shortenedKey) {
+		try {
+			highLevelSimpleClient.fetch(new FreenetURI(shortenedKey), 1);
+			return true;
+		} catch (MalformedURLException mue1) {
+			return false;
+		} catch (FetchException fe1) {
+			int mode = fe1.getMode();
+			if (mode == FetchException.TOO_BIG) {
+				return true;
+			}
+			if ((mode == FetchException.DATA_NOT_FOUND) || (mode == FetchException.ALL_DATA_NOT_FOUND) || (mode == FetchException.RECENTLY_FAILED)) {
+				return false;
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * The result of a network lookup.
+	 *
+	 * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+	 */
+	private static class CachedLookup {
+
+		/** Whether the key exists. */
+		private final boolean exists;
+
+		/** The time of the lookup. */
+		private final long time = System.currentTimeMillis();
+
+		/**
+		 * Creates a new cached lookup.
+		 *
+		 * @param exists
+		 *            Whether the key exists
+		 */
+		public CachedLookup(boolean exists) {
+			this.exists = exists;
+		}
+
+		/**
+		 * Returns whether the key exists.
+		 *
+		 * @return {@code true} if the key exists, {@code false} otherwise
+		 */
+		public boolean exists() {
+			return exists;
+		}
+
+		/**
+		 * Returns the time of the lookup.
+		 *
+		 * @return The time of the lookup
+		 */
+		public long getTime() {
+			return time;
+		}
+
+	}
+
+}
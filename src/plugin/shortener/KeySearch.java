@@ -0,0 +1,180 @@
+/*
+ * shortener - KeySearch.java - Copyright © 2010 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugin.shortener;
+
+import java.net.MalformedURLException;
+
+import plugin.shortener.Shortener.KeyShorteningProgress;
+import plugin.shortener.Shortener.ShortenedKey;
+import freenet.keys.FreenetURI;
+import freenet.support.Base64;
+
+/**
+ * The search for the shortened key of a {@link ShorteningJob}. Every search
+ * inserts candidates until one of them succeeds, stores the shortened key,
+ * and finishes the job’s progress.
+ *
+ * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+ */
+abstract class KeySearch {
+
+	/** The shortener the search runs for. */
+	protected final Shortener shortener;
+
+	/** The normalized original key. */
+	protected final String key;
+
+	/** The original key. */
+	protected final FreenetURI originalKey;
+
+	/** The progress of the job. */
+	protected final KeyShorteningProgress keyShorteningProgress;
+
+	/** The claims on keys, or null if keys are not claimed. */
+	protected final KeyClaims keyClaims;
+
+	/**
+	 * Creates a new key search.
+	 *
+	 * @param shortener
+	 *            The shortener the search runs for
+	 * @param key
+	 *            The normalized original key
+	 * @param originalKey
+	 *            The original key
+	 * @param keyShorteningProgress
+	 *            The progress of the job
+	 * @param keyClaims
+	 *            The claims on keys, or {@code null} if keys are not claimed
+	 */
+	protected KeySearch(Shortener shortener, String key, FreenetURI originalKey, KeyShorteningProgress keyShorteningProgress, KeyClaims keyClaims) {
+		this.shortener = shortener;
+		this.key = key;
+		this.originalKey = originalKey;
+		this.keyShorteningProgress = keyShorteningProgress;
+		this.keyClaims = keyClaims;
+	}
+
+	//
+	// ACTIONS
+	//
+
+	/**
+	 * Searches the shortened key, stores it, and finishes the progress of
+	 * the job.
+	 */
+	public abstract void search();
+
+	//
+	// PROTECTED METHODS
+	//
+
+	/**
+	 * Returns the Base64-encoded routing key of the original key.
+	 *
+	 * @return The encoded routing key
+	 */
+	protected String getEncodedRoutingKey() {
+		return Base64.encode(originalKey.getRoutingKey());
+	}
+
+	/**
+	 * Creates an attempt to insert the shortened key with the given name.
+	 *
+	 * @param length
+	 *            The length that the attempt is counted for
+	 * @param name
+	 *            The name of the shortened key, without “KSK@”
+	 * @return The insert attempt
+	 * @throws MalformedURLException
+	 *             if the name does not form a valid key
+	 */
+	protected InsertAttempt createInsertAttempt(int length, String name) throws MalformedURLException {
+		return shortener.createInsertAttempt(length, new FreenetURI("KSK@" + name), originalKey);
+	}
+
+	/**
+	 * Shows the given attempt as the attempt that is currently waited for,
+	 * telling the listeners if its key differs from the previous one.
+	 *
+	 * @param insertAttempt
+	 *            The insert attempt that is waited for
+	 * @return {@code true} if the attempt may be run, {@code false} if the
+	 *         key shortening has been cancelled
+	 */
+	protected boolean advance(InsertAttempt insertAttempt) {
+		if (keyClaims != null) {
+			keyClaims.touch(key);
+		}
+		String currentKey = insertAttempt.getShortenedKey().toString();
+		if (!currentKey.equals(keyShorteningProgress.getCurrentKey())) {
+			keyShorteningProgress.setCurrentKey(currentKey);
+			shortener.fireKeyShorteningAdvanced(keyShorteningProgress);
+		}
+		return keyShorteningProgress.setCurrentAttempt(insertAttempt);
+	}
+
+	/**
+	 * Stores the key of the successful attempt, and finishes the progress of
+	 * the job.
+	 *
+	 * @param importedKey
+	 *            The shortened key another node or process has stored, or
+	 *            {@code null}
+	 * @param successfulAttempt
+	 *            The attempt whose key has been inserted, or {@code null}
+	 */
+	protected void finishSearch(ShortenedKey importedKey, InsertAttempt successfulAttempt) {
+		boolean upgrade = keyShorteningProgress.isUpgrade();
+		if ((importedKey == null) && keyShorteningProgress.isCancelled()) {
+			importedKey = shortener.getShortenedKey(key);
+		}
+		ShortenedKey shortenedKey = null;
+		if (importedKey != null) {
+			/* another node shortened the key; its record is in the journal. */
+			shortenedKey = importedKey;
+			if (upgrade) {
+				shortener.recordFailure(keyShorteningProgress);
+			}
+		} else if (successfulAttempt != null) {
+			String name = getName(successfulAttempt);
+			shortenedKey = shortener.storeFoundKey(key, "KSK@" + name, originalKey.getRoutingKey(), name);
+		} else {
+			shortener.recordFailure(keyShorteningProgress);
+			if (upgrade) {
+				/* the provisional key stays. */
+				shortenedKey = shortener.getShortenedKey(key);
+			}
+		}
+		/* remove the progress only after the key has been stored. */
+		shortener.finishKeyShortening(keyShorteningProgress, shortenedKey);
+	}
+
+	/**
+	 * Returns the name of the shortened key of the given attempt.
+	 *
+	 * @param insertAttempt
+	 *            The insert attempt
+	 * @return The name of the shortened key, without “KSK@”
+	 */
+	protected static String getName(InsertAttempt insertAttempt) {
+		String shortenedKey = insertAttempt.getShortenedKey().toString();
+		return shortenedKey.substring(shortenedKey.indexOf('@') + 1);
+	}
+
+}
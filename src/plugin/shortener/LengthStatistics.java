@@ -0,0 +1,339 @@
+/*
+ * shortener - LengthStatistics.java - Copyright © 2010 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugin.shortener;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import freenet.support.Logger;
+import freenet.support.io.Closer;
+
+/**
+ * Collision statistics by prefix length, used to choose the length a new
+ * shortening job starts at. For every length the outcomes of the last
+ * inserts (collision or success) are kept in a sliding window; a job starts
+ * at the shortest length whose observed success rate reaches the threshold,
+ * or that has not been tried often enough to tell. A small share of jobs
+ * still starts at the shortest length so that the statistics of the skipped
+ * lengths stay current. The statistics are stored in a file so that they
+ * survive restarts.
+ *
+ * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+ */
+public class LengthStatistics {
+
+	/** The file that stores the statistics. */
+	private final File file;
+
+	/** The number of outcomes that are kept per length. */
+	private final int windowSize;
+
+	/** The random number generator for the exploration. */
+	private final Random random;
+
+	/** The windows of outcomes, by length. */
+	private final Window[] windows = new Window[Shortener.MAXIMUM_LENGTH + 1];
+
+	/** The success rate a length needs to be started at. */
+	private double threshold = 0.1;
+
+	/** The number of outcomes that are needed to skip a length. */
+	private int minimumSamples = 20;
+
+	/** The share of jobs that start at the shortest length. */
+	private double explorationRate = 0.02;
+
+	/**
+	 * Creates new length statistics, reading the given file if it exists.
+	 *
+	 * @param file
+	 *            The file that stores the statistics, or {@code null} to not
+	 *            store them
+	 * @param windowSize
+	 *            The number of outcomes that are kept per length
+	 * @param random
+	 *            The random number generator for the exploration
+	 */
+	public LengthStatistics(File file, int windowSize, Random random) {
+		this.file = file;
+		this.windowSize = Math.max(1, windowSize);
+		this.random = random;
+		for (int length = 1; length < windows.length; ++length) {
+			windows[length] = new Window(this.windowSize);
+		}
+		if ((file != null) && file.exists()) {
+			try {
+				load();
+			} catch (IOException ioe1) {
+				Logger.error(this, "Could not read length statistics from " + file + "!", ioe1);
+			}
+		}
+	}
+
+	//
+	// ACCESSORS
+	//
+
+	/**
+	 * Sets the success rate a length needs to be started at.
+	 *
+	 * @param threshold
+	 *            The success rate (between {@code 0} and {@code 1})
+	 */
+	public synchronized void setThreshold(double threshold) {
+		this.threshold = threshold;
+	}
+
+	/**
+	 * Sets the number of outcomes that are needed before a length can be
+	 * skipped.
+	 *
+	 * @param minimumSamples
+	 *            The minimum number of outcomes
+	 */
+	public synchronized void setMinimumSamples(int minimumSamples) {
+		this.minimumSamples = Math.max(1, minimumSamples);
+	}
+
+	/**
+	 * Sets the share of jobs that start at the shortest length regardless of
+	 * the statistics.
+	 *
+	 * @param explorationRate
+	 *            The share of jobs (between {@code 0} and {@code 1})
+	 */
+	public synchronized void setExplorationRate(double explorationRate) {
+		this.explorationRate = explorationRate;
+	}
+
+	/**
+	 * Returns the number of outcomes that are known for the given length.
+	 *
+	 * @param length
+	 *            The length of the prefix
+	 * @return The number of outcomes
+	 */
+	public synchronized int getSampleCount(int length) {
+		return windows[length].count;
+	}
+
+	/**
+	 * Returns the share of inserts of the given length that collided.
+	 *
+	 * @param length
+	 *            The length of the prefix
+	 * @return The collision rate, or {@code 0} if no outcomes are known
+	 */
+	public synchronized double getCollisionRate(int length) {
+		Window window = windows[length];
+		return (window.count == 0) ? 0 : (window.collisionCount / (double) window.count);
+	}
+
+	/**
+	 * Returns the length the search of the next job should start at.
+	 *
+	 * @return The length to start at
+	 */
+	public synchronized int getStartLength() {
+		if (random.nextDouble() < explorationRate) {
+			return 1;
+		}
+		return getLearnedStartLength();
+	}
+
+	/**
+	 * Returns the shortest length that has not been tried often enough or
+	 * whose success rate reaches the threshold, without exploration.
+	 *
+	 * @return The learned start length
+	 */
+	public synchronized int getLearnedStartLength() {
+		for (int length = 1; length < Shortener.MAXIMUM_LENGTH; ++length) {
+			Window window = windows[length];
+			if ((window.count < minimumSamples) || ((1 - window.collisionCount / (double) window.count) >= threshold)) {
+				return length;
+			}
+		}
+		return Shortener.MAXIMUM_LENGTH;
+	}
+
+	//
+	// ACTIONS
+	//
+
+	/**
+	 * Records the outcome of an insert. Only collisions and successes say
+	 * something about the occupation of a length; other outcomes are
+	 * ignored.
+	 *
+	 * @param length
+	 *            The length of the prefix
+	 * @param insertOutcome
+	 *            The outcome of the insert
+	 */
+	public synchronized void recordOutcome(int length, InsertOutcome insertOutcome) {
+		if ((length < 1) || (length >= windows.length)) {
+			return;
+		}
+		if (insertOutcome == InsertOutcome.COLLISION) {
+			windows[length].add(true);
+		} else if (insertOutcome == InsertOutcome.SUCCESS) {
+			windows[length].add(false);
+		}
+	}
+
+	/**
+	 * Writes the statistics to the file.
+	 */
+	public void save() {
+		if (file == null) {
+			return;
+		}
+		File temporaryFile = new File(file.getPath() + ".tmp");
+		FileOutputStream fileOutputStream = null;
+		try {
+			fileOutputStream = new FileOutputStream(temporaryFile);
+			DataOutputStream statisticsOutputStream = new DataOutputStream(new BufferedOutputStream(fileOutputStream));
+			synchronized (this) {
+				statisticsOutputStream.writeInt(windows.length - 1);
+				for (int length = 1; length < windows.length; ++length) {
+					Window window = windows[length];
+					statisticsOutputStream.writeInt(window.count);
+					for (int index = 0; index < window.count; ++index) {
+						statisticsOutputStream.writeBoolean(window.get(index));
+					}
+				}
+			}
+			statisticsOutputStream.flush();
+			fileOutputStream.getFD().sync();
+			fileOutputStream.close();
+			fileOutputStream = null;
+			if (!temporaryFile.renameTo(file) && (!file.delete() || !temporaryFile.renameTo(file))) {
+				Logger.error(this, "Could not rename " + temporaryFile + " to " + file + "!");
+			}
+		} catch (IOException ioe1) {
+			Logger.error(this, "Could not write length statistics to " + file + "!", ioe1);
+		} finally {
+			Closer.close(fileOutputStream);
+		}
+	}
+
+	//
+	// PRIVATE METHODS
+	//
+
+	/**
+	 * Reads the statistics from the file. If the stored windows are larger
+	 * than the current windows, only the newest outcomes are kept.
+	 *
+	 * @throws IOException
+	 *             if the file can not be read
+	 */
+	private synchronized void load() throws IOException {
+		InputStream fileInputStream = new FileInputStream(file);
+		try {
+			DataInputStream statisticsInputStream = new DataInputStream(new BufferedInputStream(fileInputStream));
+			int lengthCount = statisticsInputStream.readInt();
+			for (int length = 1; length <= lengthCount; ++length) {
+				int count = statisticsInputStream.readInt();
+				for (int index = 0; index < count; ++index) {
+					boolean collision = statisticsInputStream.readBoolean();
+					if (length < windows.length) {
+						windows[length].add(collision);
+					}
+				}
+			}
+		} finally {
+			Closer.close(fileInputStream);
+		}
+	}
+
+	/**
+	 * The sliding window of the outcomes of a single length.
+	 *
+	 * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+	 */
+	private static class Window {
+
+		/** The outcomes, {@code true} for collisions, as a ring buffer. */
+		final boolean[] collisions;
+
+		/** The index of the oldest outcome. */
+		int first;
+
+		/** The number of outcomes. */
+		int count;
+
+		/** The number of collisions. */
+		int collisionCount;
+
+		/**
+		 * Creates a new window.
+		 *
+		 * @param size
+		 *            The number of outcomes to keep
+		 */
+		Window(int size) {
+			collisions = new boolean[size];
+		}
+
+		/**
+		 * Adds an outcome, dropping the oldest outcome if the window is full.
+		 *
+		 * @param collision
+		 *            {@code true} if the insert collided, {@code false} if it
+		 *            succeeded
+		 */
+		void add(boolean collision) {
+			if (count == collisions.length) {
+				if (collisions[first]) {
+					--collisionCount;
+				}
+				collisions[first] = collision;
+				first = (first + 1) % collisions.length;
+			} else {
+				collisions[(first + count++) % collisions.length] = collision;
+			}
+			if (collision) {
+				++collisionCount;
+			}
+		}
+
+		/**
+		 * Returns an outcome.
+		 *
+		 * @param index
+		 *            The index of the outcome, {@code 0} being the oldest
+		 * @return {@code true} if the insert collided, {@code false} if it
+		 *         succeeded
+		 */
+		boolean get(int index) {
+			return collisions[(first + index) % collisions.length];
+		}
+
+	}
+
+}
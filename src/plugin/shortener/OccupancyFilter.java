@@ -0,0 +1,445 @@
+/*
+ * shortener - OccupancyFilter.java - Copyright © 2010 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugin.shortener;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+import freenet.support.Logger;
+import freenet.support.io.Closer;
+
+/**
+ * A Bloom filter of the prefixes that are known to be occupied, fed with the
+ * shortened keys and the collisions of this node and merged with the filters
+ * of other nodes. A prefix the filter contains is not inserted; because a
+ * Bloom filter can contain prefixes that were never added, a small share of
+ * these prefixes is inserted anyway, and the inserts that succeed are
+ * counted as false positives. Together with the number of skipped prefixes
+ * this tells how many free prefixes the filter has wrongly skipped.
+ * <p>
+ * The filter is stored in a file so that it survives restarts. Filters can
+ * only be merged if they have the same size and number of hash functions.
+ *
+ * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+ */
+public class OccupancyFilter {
+
+	/** The file that stores the filter. */
+	private final File file;
+
+	/** The random number generator for the verification. */
+	private final Random random;
+
+	/** The bits of the filter. */
+	private final long[] words;
+
+	/** The number of hash functions. */
+	private final int hashCount;
+
+	/** The share of contained prefixes that are inserted anyway. */
+	private double verificationRate = 0.05;
+
+	/** The number of prefixes that were skipped. */
+	private long skippedCount;
+
+	/** The number of contained prefixes that were inserted anyway. */
+	private long verificationCount;
+
+	/** The number of contained prefixes that turned out to be free. */
+	private long falsePositiveCount;
+
+	/** Whether the filter has changed since it was saved. */
+	private boolean dirty;
+
+	/**
+	 * Creates a new occupancy filter, reading the given file if it exists
+	 * and has the same size and number of hash functions.
+	 *
+	 * @param file
+	 *            The file that stores the filter, or {@code null} to not
+	 *            store it
+	 * @param size
+	 *            The size of the filter in bytes (rounded up to a multiple of
+	 *            8)
+	 * @param hashCount
+	 *            The number of hash functions
+	 * @param random
+	 *            The random number generator for the verification
+	 */
+	public OccupancyFilter(File file, int size, int hashCount, Random random) {
+		this.file = file;
+		this.words = new long[Math.max(1, (size + 7) / 8)];
+		this.hashCount = Math.max(1, hashCount);
+		this.random = random;
+		if ((file != null) && file.exists()) {
+			try {
+				load();
+			} catch (IOException ioe1) {
+				Logger.error(this, "Could not read occupancy filter from " + file + "!", ioe1);
+			}
+		}
+	}
+
+	//
+	// ACCESSORS
+	//
+
+	/**
+	 * Sets the share of contained prefixes that are inserted anyway to find
+	 * out how often the filter is wrong.
+	 *
+	 * @param verificationRate
+	 *            The share of prefixes (between {@code 0} and {@code 1})
+	 */
+	public synchronized void setVerificationRate(double verificationRate) {
+		this.verificationRate = verificationRate;
+	}
+
+	/**
+	 * Returns the number of prefixes that were not inserted because the
+	 * filter contained them.
+	 *
+	 * @return The number of skipped prefixes
+	 */
+	public synchronized long getSkippedCount() {
+		return skippedCount;
+	}
+
+	/**
+	 * Returns the number of prefixes that the filter contained but that were
+	 * inserted anyway.
+	 *
+	 * @return The number of verified prefixes
+	 */
+	public synchronized long getVerificationCount() {
+		return verificationCount;
+	}
+
+	/**
+	 * Returns the number of verified prefixes that could be inserted, i.e.
+	 * that the filter contained although they were free.
+	 *
+	 * @return The number of false positives
+	 */
+	public synchronized long getFalsePositiveCount() {
+		return falsePositiveCount;
+	}
+
+	/**
+	 * Returns the share of verified prefixes that were free.
+	 *
+	 * @return The observed false-positive rate, or {@code 0} if no prefix
+	 *         has been verified
+	 */
+	public synchronized double getFalsePositiveRate() {
+		return (verificationCount == 0) ? 0 : (falsePositiveCount / (double) verificationCount);
+	}
+
+	/**
+	 * Returns the false-positive rate the filter should have with its
+	 * current number of set bits.
+	 *
+	 * @return The expected false-positive rate
+	 */
+	public synchronized double getExpectedFalsePositiveRate() {
+		long setBits = 0;
+		for (long word : words) {
+			setBits += Long.bitCount(word);
+		}
+		return Math.pow(setBits / (words.length * 64.0), hashCount);
+	}
+
+	/**
+	 * Returns whether the filter contains the given prefix. The prefix may
+	 * be free even if it is contained.
+	 *
+	 * @param prefix
+	 *            The prefix of the encoded routing key
+	 * @return {@code true} if the prefix is probably occupied, {@code false}
+	 *         if it is not known to be occupied
+	 */
+	public synchronized boolean mightContain(String prefix) {
+		long hash = hash(prefix);
+		for (int index = 0; index < hashCount; ++index) {
+			long bit = getBit(hash, index);
+			if ((words[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	//
+	// ACTIONS
+	//
+
+	/**
+	 * Adds the given prefix to the filter.
+	 *
+	 * @param prefix
+	 *            The occupied prefix of the encoded routing key
+	 */
+	public synchronized void add(String prefix) {
+		long hash = hash(prefix);
+		for (int index = 0; index < hashCount; ++index) {
+			long bit = getBit(hash, index);
+			if ((words[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+				words[(int) (bit >>> 6)] |= 1L << bit;
+				dirty = true;
+			}
+		}
+	}
+
+	/**
+	 * Returns whether the given prefix should not be inserted. Prefixes the
+	 * filter does not contain are always inserted; of the contained prefixes,
+	 * a share of {@link #setVerificationRate(double)} is inserted anyway.
+	 *
+	 * @param prefix
+	 *            The prefix of the encoded routing key
+	 * @return {@code true} to skip the prefix, {@code false} to insert it
+	 */
+	public synchronized boolean shouldSkip(String prefix) {
+		if (!mightContain(prefix)) {
+			return false;
+		}
+		dirty = true;
+		if (random.nextDouble() < verificationRate) {
+			++verificationCount;
+			return false;
+		}
+		++skippedCount;
+		return true;
+	}
+
+	/**
+	 * Records the outcome of an insert of the given prefix. If the filter
+	 * contains a prefix that could be inserted, a false positive is counted.
+	 * Collided and inserted prefixes are added to the filter; other outcomes
+	 * are ignored.
+	 *
+	 * @param prefix
+	 *            The prefix of the encoded routing key
+	 * @param insertOutcome
+	 *            The outcome of the insert
+	 */
+	public synchronized void recordOutcome(String prefix, InsertOutcome insertOutcome) {
+		if ((insertOutcome != InsertOutcome.SUCCESS) && (insertOutcome != InsertOutcome.COLLISION)) {
+			return;
+		}
+		if ((insertOutcome == InsertOutcome.SUCCESS) && mightContain(prefix)) {
+			++falsePositiveCount;
+			dirty = true;
+		}
+		add(prefix);
+	}
+
+	/**
+	 * Writes the bits of the filter to the given output stream, to be merged
+	 * into the filter of another node.
+	 *
+	 * @param outputStream
+	 *            The output stream to write to
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public void export(OutputStream outputStream) throws IOException {
+		DataOutputStream filterOutputStream = new DataOutputStream(new BufferedOutputStream(outputStream));
+		synchronized (this) {
+			writeBits(filterOutputStream);
+		}
+		filterOutputStream.flush();
+	}
+
+	/**
+	 * Reads the bits of a filter written by {@link #export(OutputStream)} and
+	 * adds all its prefixes to this filter.
+	 *
+	 * @param inputStream
+	 *            The input stream to read from
+	 * @throws IOException
+	 *             if the filter can not be read, or has a different size or
+	 *             number of hash functions
+	 */
+	public void merge(InputStream inputStream) throws IOException {
+		DataInputStream filterInputStream = new DataInputStream(new BufferedInputStream(inputStream));
+		long[] otherWords = readBits(filterInputStream);
+		synchronized (this) {
+			for (int index = 0; index < words.length; ++index) {
+				if ((otherWords[index] & ~words[index]) != 0) {
+					words[index] |= otherWords[index];
+					dirty = true;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes the filter and its counters to the file, if it has changed
+	 * since it was last written.
+	 */
+	public void save() {
+		if (file == null) {
+			return;
+		}
+		File temporaryFile = new File(file.getPath() + ".tmp");
+		FileOutputStream fileOutputStream = null;
+		try {
+			DataOutputStream filterOutputStream;
+			synchronized (this) {
+				if (!dirty) {
+					return;
+				}
+				fileOutputStream = new FileOutputStream(temporaryFile);
+				filterOutputStream = new DataOutputStream(new BufferedOutputStream(fileOutputStream));
+				writeBits(filterOutputStream);
+				filterOutputStream.writeLong(skippedCount);
+				filterOutputStream.writeLong(verificationCount);
+				filterOutputStream.writeLong(falsePositiveCount);
+				dirty = false;
+			}
+			filterOutputStream.flush();
+			fileOutputStream.getFD().sync();
+			fileOutputStream.close();
+			fileOutputStream = null;
+			if (!temporaryFile.renameTo(file) && (!file.delete() || !temporaryFile.renameTo(file))) {
+				Logger.error(this, "Could not rename " + temporaryFile + " to " + file + "!");
+			}
+		} catch (IOException ioe1) {
+			Logger.error(this, "Could not write occupancy filter to " + file + "!", ioe1);
+		} finally {
+			Closer.close(fileOutputStream);
+		}
+	}
+
+	//
+	// PRIVATE METHODS
+	//
+
+	/**
+	 * Reads the filter and its counters from the file.
+	 *
+	 * @throws IOException
+	 *             if the file can not be read, or contains a filter with a
+	 *             different size or number of hash functions
+	 */
+	private synchronized void load() throws IOException {
+		InputStream fileInputStream = new FileInputStream(file);
+		try {
+			DataInputStream filterInputStream = new DataInputStream(new BufferedInputStream(fileInputStream));
+			long[] storedWords = readBits(filterInputStream);
+			System.arraycopy(storedWords, 0, words, 0, words.length);
+			skippedCount = filterInputStream.readLong();
+			verificationCount = filterInputStream.readLong();
+			falsePositiveCount = filterInputStream.readLong();
+		} finally {
+			Closer.close(fileInputStream);
+		}
+	}
+
+	/**
+	 * Returns the bit of the given hash function for a prefix, using double
+	 * hashing on the two halves of the hash of the prefix.
+	 *
+	 * @param hash
+	 *            The hash of the prefix
+	 * @param index
+	 *            The index of the hash function
+	 * @return The index of the bit
+	 */
+	private long getBit(long hash, int index) {
+		int firstHash = (int) hash;
+		int secondHash = (int) (hash >>> 32) | 1;
+		return ((firstHash + index * (long) secondHash) & 0x7fffffffffffffffL) % (words.length * 64L);
+	}
+
+	/**
+	 * Writes the number of hash functions, the number of words, and the
+	 * words of the filter. The caller has to hold the lock of this filter.
+	 *
+	 * @param filterOutputStream
+	 *            The output stream to write to
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	private void writeBits(DataOutputStream filterOutputStream) throws IOException {
+		filterOutputStream.writeInt(hashCount);
+		filterOutputStream.writeInt(words.length);
+		for (long word : words) {
+			filterOutputStream.writeLong(word);
+		}
+	}
+
+	/**
+	 * Reads the words of a filter written by
+	 * {@link #writeBits(DataOutputStream)}.
+	 *
+	 * @param filterInputStream
+	 *            The input stream to read from
+	 * @return The words of the filter
+	 * @throws IOException
+	 *             if the filter can not be read, or has a different size or
+	 *             number of hash functions
+	 */
+	private long[] readBits(DataInputStream filterInputStream) throws IOException {
+		int storedHashCount = filterInputStream.readInt();
+		int wordCount = filterInputStream.readInt();
+		if ((storedHashCount != hashCount) || (wordCount != words.length)) {
+			throw new IOException("Filter has " + (wordCount * 8L) + " bytes and " + storedHashCount + " hash functions, not " + (words.length * 8L) + " bytes and " + hashCount + ".");
+		}
+		long[] storedWords = new long[wordCount];
+		for (int index = 0; index < wordCount; ++index) {
+			storedWords[index] = filterInputStream.readLong();
+		}
+		return storedWords;
+	}
+
+	//
+	// STATIC METHODS
+	//
+
+	/**
+	 * Calculates the 64-bit FNV-1a hash of the given prefix. The hash does
+	 * not depend on the JVM, so filters of different nodes can be merged.
+	 *
+	 * @param prefix
+	 *            The prefix to hash
+	 * @return The hash of the prefix
+	 */
+	private static long hash(String prefix) {
+		long hash = 0xcbf29ce484222325L;
+		for (int index = 0; index < prefix.length(); ++index) {
+			hash ^= prefix.charAt(index);
+			hash *= 0x100000001b3L;
+		}
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+
+}
@@ -353,4 +353,27 @@ public interface Page {
 
 	}
 
+	/**
+	 * {@link Response} implementation that tells the client that the request
+	 * can not be handled right now and should be retried later.
+	 *
+	 * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+	 */
+	public class ServiceUnavailableResponse extends Response {
+
+		/**
+		 * Creates a new “service unavailable” response.
+		 *
+		 * @param retryAfter
+		 *            The number of seconds after which the request should be
+		 *            retried
+		 * @param text
+		 *            The text in the response body
+		 */
+		public ServiceUnavailableResponse(int retryAfter, String text) {
+			super(503, "Service Unavailable", "text/plain; charset=utf-8", createHeader("Retry-After", String.valueOf(retryAfter)), Response.getBytes(text));
+		}
+
+	}
+
 }
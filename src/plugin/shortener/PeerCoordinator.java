@@ -0,0 +1,337 @@
+/*
+ * shortener - PeerCoordinator.java - Copyright © 2010 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugin.shortener;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import freenet.support.Logger;
+
+/**
+ * Distributes keys to {@link ShorteningPeer}s so that several nodes shorten
+ * keys at the same time. A key is given to the peer with the most free
+ * capacity; if no peer has free capacity, the key is shortened locally. A
+ * peer that fails is not used for a while, starting with
+ * {@value #MINIMUM_BACKOFF} milliseconds and doubling with every further
+ * failure up to {@value #MAXIMUM_BACKOFF} milliseconds; its key is given to
+ * another peer or shortened locally.
+ *
+ * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+ */
+public class PeerCoordinator {
+
+	/** The time a peer is not used after its first failure. */
+	private static final long MINIMUM_BACKOFF = 30 * 1000;
+
+	/** The longest time a peer is not used after failures. */
+	private static final long MAXIMUM_BACKOFF = 30 * 60 * 1000;
+
+	/** The peers. */
+	private final List<PeerState> peerStates = new ArrayList<PeerState>();
+
+	/** The time a peer may take to shorten a key (in milliseconds). */
+	private volatile long timeout;
+
+	/**
+	 * Creates a new peer coordinator.
+	 *
+	 * @param timeout
+	 *            The time a peer may take to shorten a key (in milliseconds)
+	 */
+	public PeerCoordinator(long timeout) {
+		this.timeout = timeout;
+	}
+
+	//
+	// ACCESSORS
+	//
+
+	/**
+	 * Returns the states of all peers.
+	 *
+	 * @return The states of all peers
+	 */
+	public synchronized List<PeerState> getPeerStates() {
+		return new ArrayList<PeerState>(peerStates);
+	}
+
+	/**
+	 * Returns the number of keys all peers can shorten at the same time.
+	 *
+	 * @return The capacity of all peers
+	 */
+	public synchronized int getCapacity() {
+		int capacity = 0;
+		for (PeerState peerState : peerStates) {
+			capacity += peerState.getPeer().getCapacity();
+		}
+		return capacity;
+	}
+
+	/**
+	 * Returns the time a peer may take to shorten a key.
+	 *
+	 * @return The timeout (in milliseconds)
+	 */
+	public long getTimeout() {
+		return timeout;
+	}
+
+	/**
+	 * Sets the time a peer may take to shorten a key.
+	 *
+	 * @param timeout
+	 *            The timeout (in milliseconds)
+	 */
+	public void setTimeout(long timeout) {
+		this.timeout = timeout;
+	}
+
+	//
+	// ACTIONS
+	//
+
+	/**
+	 * Adds a peer, replacing a peer with the same name.
+	 *
+	 * @param peer
+	 *            The peer to add
+	 */
+	public synchronized void addPeer(ShorteningPeer peer) {
+		removePeer(peer.getName());
+		peerStates.add(new PeerState(peer));
+	}
+
+	/**
+	 * Removes the peer with the given name. Keys the peer is shortening are
+	 * not affected.
+	 *
+	 * @param name
+	 *            The name of the peer
+	 * @return {@code true} if the peer was removed, {@code false} if there is
+	 *         no peer with the given name
+	 */
+	public synchronized boolean removePeer(String name) {
+		for (int index = 0; index < peerStates.size(); ++index) {
+			if (peerStates.get(index).getPeer().getName().equals(name)) {
+				peerStates.remove(index);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Lets a peer shorten the given key. If a peer fails, the key is given to
+	 * another peer.
+	 *
+	 * @param key
+	 *            The normalized key to shorten
+	 * @return The shortened key, or {@code null} if no peer was available or
+	 *         could shorten the key
+	 */
+	public String shortenKey(String key) {
+		Set<PeerState> triedPeers = new HashSet<PeerState>();
+		PeerState peerState;
+		while ((peerState = acquirePeer(triedPeers)) != null) {
+			triedPeers.add(peerState);
+			try {
+				String shortenedKey = peerState.getPeer().shortenKey(key, timeout);
+				peerState.succeeded(shortenedKey != null);
+				return shortenedKey;
+			} catch (PeerException pe1) {
+				Logger.normal(this, "Peer " + peerState.getPeer().getName() + " failed: " + pe1.getMessage());
+				peerState.failed();
+			} finally {
+				synchronized (this) {
+					peerState.release();
+				}
+			}
+		}
+		return null;
+	}
+
+	//
+	// PRIVATE METHODS
+	//
+
+	/**
+	 * Returns the peer with the most free capacity that has not been tried
+	 * yet and is not backing off, and marks it as busy with one more key.
+	 *
+	 * @param triedPeers
+	 *            The peers that have already been tried
+	 * @return The peer, or {@code null} if no peer is available
+	 */
+	private synchronized PeerState acquirePeer(Set<PeerState> triedPeers) {
+		long now = System.currentTimeMillis();
+		PeerState bestPeerState = null;
+		double bestLoad = 1;
+		for (PeerState peerState : peerStates) {
+			if (triedPeers.contains(peerState) || (peerState.getBackoffUntil() > now)) {
+				continue;
+			}
+			double load = peerState.getRunning() / (double) peerState.getPeer().getCapacity();
+			if (load < bestLoad) {
+				bestLoad = load;
+				bestPeerState = peerState;
+			}
+		}
+		if (bestPeerState != null) {
+			bestPeerState.acquire();
+		}
+		return bestPeerState;
+	}
+
+	/**
+	 * The state of a peer.
+	 *
+	 * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+	 */
+	public static class PeerState {
+
+		/** The peer. */
+		private final ShorteningPeer peer;
+
+		/** The number of keys the peer is shortening. */
+		private int running;
+
+		/** The number of keys the peer has shortened. */
+		private int shortened;
+
+		/** The number of keys the peer could not shorten. */
+		private int notShortened;
+
+		/** The number of failures of the peer. */
+		private int failures;
+
+		/** The number of failures since the last success. */
+		private int consecutiveFailures;
+
+		/** The time until which the peer is not used. */
+		private long backoffUntil;
+
+		/**
+		 * Creates a new peer state.
+		 *
+		 * @param peer
+		 *            The peer
+		 */
+		PeerState(ShorteningPeer peer) {
+			this.peer = peer;
+		}
+
+		/**
+		 * Returns the peer.
+		 *
+		 * @return The peer
+		 */
+		public ShorteningPeer getPeer() {
+			return peer;
+		}
+
+		/**
+		 * Returns the number of keys the peer is shortening.
+		 *
+		 * @return The number of running keys
+		 */
+		public synchronized int getRunning() {
+			return running;
+		}
+
+		/**
+		 * Returns the number of keys the peer has shortened.
+		 *
+		 * @return The number of shortened keys
+		 */
+		public synchronized int getShortened() {
+			return shortened;
+		}
+
+		/**
+		 * Returns the number of keys the peer could not shorten.
+		 *
+		 * @return The number of keys that were not shortened
+		 */
+		public synchronized int getNotShortened() {
+			return notShortened;
+		}
+
+		/**
+		 * Returns the number of failures of the peer.
+		 *
+		 * @return The number of failures
+		 */
+		public synchronized int getFailures() {
+			return failures;
+		}
+
+		/**
+		 * Returns the time until which the peer is not used.
+		 *
+		 * @return The end of the backoff, or a time in the past if the peer
+		 *         can be used
+		 */
+		public synchronized long getBackoffUntil() {
+			return backoffUntil;
+		}
+
+		/**
+		 * Marks the peer as busy with one more key.
+		 */
+		synchronized void acquire() {
+			++running;
+		}
+
+		/**
+		 * Marks the peer as busy with one less key.
+		 */
+		synchronized void release() {
+			--running;
+		}
+
+		/**
+		 * Records that the peer answered.
+		 *
+		 * @param keyShortened
+		 *            {@code true} if the peer shortened the key, {@code false}
+		 *            if it could not
+		 */
+		synchronized void succeeded(boolean keyShortened) {
+			if (keyShortened) {
+				++shortened;
+			} else {
+				++notShortened;
+			}
+			consecutiveFailures = 0;
+		}
+
+		/**
+		 * Records a failure of the peer and starts its backoff.
+		 */
+		synchronized void failed() {
+			++failures;
+			long backoff = MINIMUM_BACKOFF << Math.min(consecutiveFailures++, 16);
+			backoffUntil = System.currentTimeMillis() + Math.min(backoff, MAXIMUM_BACKOFF);
+		}
+
+	}
+
+}
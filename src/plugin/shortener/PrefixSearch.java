@@ -0,0 +1,196 @@
+/*
+ * shortener - PrefixSearch.java - Copyright © 2010 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugin.shortener;
+
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import plugin.shortener.Shortener.KeyShorteningProgress;
+import plugin.shortener.Shortener.ShortenedKey;
+import freenet.keys.FreenetURI;
+import freenet.support.Logger;
+
+/**
+ * Searches the shortest prefix of the encoded routing key that can be
+ * inserted, starting at the first length that is not known to be occupied.
+ * With a {@link Shortener#setSearchWindow(int) search window} larger than
+ * {@code 1}, the next lengths are already being inserted while the shorter
+ * ones are still running; the shortest successful insert wins, and longer
+ * attempts are cancelled. Longer attempts that have already been inserted
+ * when the search ends are not lost: if no shorter key was found, the
+ * shortest of them is taken, the others are marked as occupied. Transient
+ * failures are retried by the {@link InsertAttempt} according to the
+ * shortener’s {@link RetryPolicy}; the search only gives up on a length when
+ * the retry policy does. A search for a shorter key than the stored
+ * provisional key only tries lengths below the length of the stored key.
+ *
+ * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+ */
+class PrefixSearch extends KeySearch {
+
+	/**
+	 * Creates a new prefix search.
+	 *
+	 * @param shortener
+	 *            The shortener the search runs for
+	 * @param key
+	 *            The normalized original key
+	 * @param originalKey
+	 *            The original key
+	 * @param keyShorteningProgress
+	 *            The progress of the job
+	 * @param keyClaims
+	 *            The claims on keys, or {@code null} if keys are not claimed
+	 */
+	public PrefixSearch(Shortener shortener, String key, FreenetURI originalKey, KeyShorteningProgress keyShorteningProgress, KeyClaims keyClaims) {
+		super(shortener, key, originalKey, keyShorteningProgress, keyClaims);
+	}
+
+	//
+	// ACTIONS
+	//
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void search() {
+		String encodedRoutingKey = getEncodedRoutingKey();
+		int maximumLength = getMaximumLength(encodedRoutingKey);
+		int nextLength = getStartLength(encodedRoutingKey, maximumLength);
+		boolean upgrade = keyShorteningProgress.isUpgrade();
+		int searchWindow = shortener.getSearchWindow();
+		LengthStatistics lengthStatistics = shortener.getLengthStatistics();
+		List<InsertAttempt> runningAttempts = new ArrayList<InsertAttempt>();
+		InsertAttempt successfulAttempt = null;
+		ShortenedKey importedKey = null;
+		while ((successfulAttempt == null) && !keyShorteningProgress.isCancelled()) {
+			int shortestLength = runningAttempts.isEmpty() ? nextLength : runningAttempts.get(0).getLength();
+			int storedLength = shortener.getStoredLength(key);
+			if ((storedLength != Integer.MAX_VALUE) && (!upgrade || (storedLength <= shortestLength))) {
+				/* another node or process was faster. */
+				importedKey = shortener.getShortenedKey(key);
+				break;
+			}
+			while ((runningAttempts.size() < searchWindow) && (nextLength <= maximumLength)) {
+				String prefix = encodedRoutingKey.substring(0, nextLength);
+				if (shortener.isSkipped(prefix)) {
+					++nextLength;
+					continue;
+				}
+				try {
+					InsertAttempt insertAttempt = createInsertAttempt(nextLength, prefix);
+					runningAttempts.add(insertAttempt);
+					if (searchWindow > 1) {
+						shortener.getNodeExecutor().execute(insertAttempt, "Inserting Key: KSK@" + prefix);
+					}
+				} catch (MalformedURLException mue1) {
+					Logger.error(this, "Could not create shortened key KSK@" + prefix + "!", mue1);
+					for (InsertAttempt runningAttempt : runningAttempts) {
+						runningAttempt.cancel();
+					}
+					finishSearch(null, null);
+					return;
+				}
+				++nextLength;
+			}
+			if (runningAttempts.isEmpty()) {
+				break;
+			}
+			InsertAttempt shortestAttempt = runningAttempts.remove(0);
+			if (!advance(shortestAttempt)) {
+				shortestAttempt.cancel();
+				break;
+			}
+			if (searchWindow == 1) {
+				shortestAttempt.run();
+			}
+			boolean successful = shortestAttempt.waitForResult();
+			if (lengthStatistics != null) {
+				lengthStatistics.recordOutcome(shortestAttempt.getLength(), shortestAttempt.getInsertOutcome());
+			}
+			shortener.recordOutcome(getName(shortestAttempt), shortestAttempt.getInsertOutcome());
+			if (successful) {
+				successfulAttempt = shortestAttempt;
+			} else if (shortestAttempt.getInsertOutcome() == InsertOutcome.COLLISION) {
+				shortener.recordCollision(keyShorteningProgress, shortestAttempt.getShortenedKey().toString());
+			} else {
+				/* only a collision may move us to a longer key. */
+				break;
+			}
+		}
+		for (InsertAttempt runningAttempt : runningAttempts) {
+			if (!runningAttempt.isFinished() || (runningAttempt.getInsertOutcome() != InsertOutcome.SUCCESS)) {
+				runningAttempt.cancel();
+				continue;
+			}
+			/* the redirect has been inserted, it occupies its key now. */
+			if ((successfulAttempt == null) && (importedKey == null) && !keyShorteningProgress.isCancelled()) {
+				successfulAttempt = runningAttempt;
+			} else {
+				shortener.markOccupied(getName(runningAttempt));
+			}
+			shortener.recordOutcome(getName(runningAttempt), InsertOutcome.SUCCESS);
+		}
+		finishSearch(importedKey, successfulAttempt);
+	}
+
+	//
+	// PROTECTED METHODS
+	//
+
+	/**
+	 * Returns the length of the longest prefix that is tried.
+	 *
+	 * @param encodedRoutingKey
+	 *            The Base64-encoded routing key
+	 * @return The maximum length
+	 */
+	protected int getMaximumLength(String encodedRoutingKey) {
+		int maximumLength = Math.min(Shortener.MAXIMUM_LENGTH, encodedRoutingKey.length());
+		if (keyShorteningProgress.isUpgrade()) {
+			maximumLength = Math.min(maximumLength, shortener.getStoredLength(key) - 1);
+		}
+		return maximumLength;
+	}
+
+	/**
+	 * Returns the length of the first prefix that is tried: the shortest
+	 * prefix that is not known to be occupied, but not shorter than the
+	 * start length of the length statistics.
+	 *
+	 * @param encodedRoutingKey
+	 *            The Base64-encoded routing key
+	 * @param maximumLength
+	 *            The length of the longest prefix that is tried
+	 * @return The start length
+	 */
+	protected int getStartLength(String encodedRoutingKey, int maximumLength) {
+		int startLength = shortener.getFirstUnoccupiedLength(encodedRoutingKey);
+		LengthStatistics lengthStatistics = shortener.getLengthStatistics();
+		if (lengthStatistics != null) {
+			startLength = Math.max(startLength, Math.min(maximumLength, lengthStatistics.getStartLength()));
+		}
+		while ((startLength <= maximumLength) && shortener.isOccupied(encodedRoutingKey.substring(0, startLength))) {
+			++startLength;
+		}
+		return startLength;
+	}
+
+}
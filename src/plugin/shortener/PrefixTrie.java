@@ -0,0 +1,126 @@
+/*
+ * shortener - PrefixTrie.java - Copyright © 2010 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugin.shortener;
+
+/**
+ * Trie of Base64-encoded routing key prefixes that are known to be occupied,
+ * i.e. for which a “KSK@” key already exists. It is used to skip the inserts
+ * of shortened keys that would only collide anyway.
+ *
+ * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+ */
+public class PrefixTrie {
+
+	/** The characters of Freenet’s Base64 alphabet. */
+	static final String ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789~-";
+
+	/** The root node, representing the empty prefix. */
+	private final Node root = new Node();
+
+	/** The number of occupied prefixes. */
+	private int size;
+
+	/**
+	 * Returns the number of prefixes that are marked as occupied.
+	 *
+	 * @return The number of occupied prefixes
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Marks the given prefix as occupied.
+	 *
+	 * @param prefix
+	 *            The occupied prefix
+	 */
+	public synchronized void markOccupied(String prefix) {
+		Node node = root;
+		for (int index = 0; index < prefix.length(); ++index) {
+			int childIndex = ALPHABET.indexOf(prefix.charAt(index));
+			if (childIndex == -1) {
+				return;
+			}
+			if (node.children[childIndex] == null) {
+				node.children[childIndex] = new Node();
+			}
+			node = node.children[childIndex];
+		}
+		if (!node.occupied) {
+			node.occupied = true;
+			++size;
+		}
+	}
+
+	/**
+	 * Returns whether the given prefix is known to be occupied.
+	 *
+	 * @param prefix
+	 *            The prefix to check
+	 * @return {@code true} if the prefix is known to be occupied, {@code false}
+	 *         otherwise
+	 */
+	public synchronized boolean isOccupied(String prefix) {
+		Node node = root;
+		for (int index = 0; (node != null) && (index < prefix.length()); ++index) {
+			int childIndex = ALPHABET.indexOf(prefix.charAt(index));
+			node = (childIndex == -1) ? null : node.children[childIndex];
+		}
+		return (node != null) && node.occupied;
+	}
+
+	/**
+	 * Returns the length of the shortest prefix of the given encoded routing
+	 * key that is not known to be occupied.
+	 *
+	 * @param encodedRoutingKey
+	 *            The Base64-encoded routing key
+	 * @return The length of the first prefix not known to be occupied (at
+	 *         least {@code 1})
+	 */
+	public synchronized int getFirstUnoccupiedLength(String encodedRoutingKey) {
+		Node node = root;
+		int length = 0;
+		while (length < encodedRoutingKey.length()) {
+			int childIndex = ALPHABET.indexOf(encodedRoutingKey.charAt(length));
+			node = (childIndex == -1) ? null : node.children[childIndex];
+			++length;
+			if ((node == null) || !node.occupied) {
+				return length;
+			}
+		}
+		return length + 1;
+	}
+
+	/**
+	 * A single node of the trie.
+	 *
+	 * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+	 */
+	private static class Node {
+
+		/** The child nodes, indexed by their position in the alphabet. */
+		final Node[] children = new Node[ALPHABET.length()];
+
+		/** Whether the prefix ending at this node is occupied. */
+		boolean occupied;
+
+	}
+
+}
@@ -0,0 +1,131 @@
+/*
+ * shortener - ProvisionalSearch.java - Copyright © 2010 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugin.shortener;
+
+import java.net.MalformedURLException;
+
+import plugin.shortener.Shortener.KeyShorteningProgress;
+import plugin.shortener.Shortener.ShortenedKey;
+import freenet.keys.FreenetURI;
+import freenet.support.Logger;
+
+/**
+ * First inserts a provisional key of a fixed length, which almost never
+ * collides, and finishes the job with it; the search for a shorter key
+ * continues in the background with bulk priority and replaces the
+ * provisional key once it has found one. If the provisional key can not be
+ * inserted, the shortest prefix is searched as by a {@link PrefixSearch}.
+ *
+ * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+ */
+class ProvisionalSearch extends PrefixSearch {
+
+	/** The length of the provisional key. */
+	private final int provisionalLength;
+
+	/**
+	 * Creates a new provisional search.
+	 *
+	 * @param shortener
+	 *            The shortener the search runs for
+	 * @param key
+	 *            The normalized original key
+	 * @param originalKey
+	 *            The original key
+	 * @param keyShorteningProgress
+	 *            The progress of the job
+	 * @param keyClaims
+	 *            The claims on keys, or {@code null} if keys are not claimed
+	 * @param provisionalLength
+	 *            The length of the provisional key
+	 */
+	public ProvisionalSearch(Shortener shortener, String key, FreenetURI originalKey, KeyShorteningProgress keyShorteningProgress, KeyClaims keyClaims, int provisionalLength) {
+		super(shortener, key, originalKey, keyShorteningProgress, keyClaims);
+		this.provisionalLength = provisionalLength;
+	}
+
+	//
+	// ACTIONS
+	//
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void search() {
+		String encodedRoutingKey = getEncodedRoutingKey();
+		int maximumLength = getMaximumLength(encodedRoutingKey);
+		if ((provisionalLength > getStartLength(encodedRoutingKey, maximumLength)) && (provisionalLength <= maximumLength) && shortenKeyProvisionally(encodedRoutingKey)) {
+			return;
+		}
+		super.search();
+	}
+
+	//
+	// PRIVATE METHODS
+	//
+
+	/**
+	 * Inserts the provisional key, stores it, finishes the job with it, and
+	 * starts the search for a shorter key in the background.
+	 *
+	 * @param encodedRoutingKey
+	 *            The Base64-encoded routing key
+	 * @return {@code true} if the job has been finished, either with the
+	 *         provisional key or as failed because no key could be created,
+	 *         {@code false} if the provisional key could not be inserted and
+	 *         the key has to be shortened normally
+	 */
+	private boolean shortenKeyProvisionally(String encodedRoutingKey) {
+		String prefix = encodedRoutingKey.substring(0, provisionalLength);
+		if (shortener.isSkipped(prefix)) {
+			return false;
+		}
+		InsertAttempt insertAttempt;
+		try {
+			insertAttempt = createInsertAttempt(provisionalLength, prefix);
+		} catch (MalformedURLException mue1) {
+			Logger.error(this, "Could not create shortened key KSK@" + prefix + "!", mue1);
+			finishSearch(null, null);
+			return true;
+		}
+		if (!advance(insertAttempt)) {
+			return false;
+		}
+		insertAttempt.run();
+		boolean successful = insertAttempt.waitForResult();
+		shortener.recordOutcome(prefix, insertAttempt.getInsertOutcome());
+		if (!successful) {
+			if (insertAttempt.getInsertOutcome() == InsertOutcome.COLLISION) {
+				shortener.markOccupied(prefix);
+			}
+			return false;
+		}
+		ShortenedKey shortenedKey = shortener.storeFoundKey(key, "KSK@" + prefix, originalKey.getRoutingKey(), prefix);
+		shortener.finishKeyShortening(keyShorteningProgress, shortenedKey);
+		try {
+			shortener.upgradeKey(key);
+		} catch (MalformedURLException mue1) {
+			/* the key was valid before. */
+		} catch (SchedulerFullException sfe1) {
+			Logger.normal(this, "Scheduler is full, keeping provisional key " + shortenedKey.getShortenedKey() + ".");
+		}
+		return true;
+	}
+
+}
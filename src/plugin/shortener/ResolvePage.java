@@ -0,0 +1,70 @@
+/*
+ * shortener - ResolvePage.java - Copyright © 2010 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugin.shortener;
+
+import java.net.MalformedURLException;
+
+/**
+ * This page redirects a shortened key to the key it points to.
+ *
+ * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+ */
+public class ResolvePage implements Page {
+
+	/** The key resolver. */
+	private final KeyResolver keyResolver;
+
+	/**
+	 * Creates a new page that resolves shortened keys.
+	 *
+	 * @param keyResolver
+	 *            The key resolver to use
+	 */
+	public ResolvePage(KeyResolver keyResolver) {
+		this.keyResolver = keyResolver;
+	}
+
+	//
+	// INTERFACE Page
+	//
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public String getPath() {
+		return "Resolve";
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public Response handleRequest(Request request) {
+		String shortenedKey;
+		try {
+			shortenedKey = KeyResolver.normalize(request.getHttpRequest().getParam("key"));
+		} catch (MalformedURLException mue1) {
+			return new RedirectResponse("/Shortener/InvalidKey");
+		}
+		String resolvedKey = keyResolver.resolve(shortenedKey);
+		if (resolvedKey == null) {
+			return new RedirectResponse("/Shortener/UnknownKey", false);
+		}
+		return new RedirectResponse("/" + resolvedKey);
+	}
+
+}
@@ -0,0 +1,121 @@
+/*
+ * shortener - RetryPolicy.java - Copyright © 2010 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugin.shortener;
+
+import java.util.Random;
+
+/**
+ * Bounded exponential backoff with jitter for inserts that failed with a
+ * {@link InsertOutcome#TRANSIENT transient} error.
+ *
+ * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+ */
+public class RetryPolicy {
+
+	/** The random number generator for the jitter. */
+	private final Random random;
+
+	/** The maximum number of retries. */
+	private final int maximumRetries;
+
+	/** The delay before the first retry (in milliseconds). */
+	private final long initialDelay;
+
+	/** The maximum delay between two retries (in milliseconds). */
+	private final long maximumDelay;
+
+	/**
+	 * Creates a new retry policy.
+	 *
+	 * @param maximumRetries
+	 *            The maximum number of retries
+	 * @param initialDelay
+	 *            The delay before the first retry (in milliseconds)
+	 * @param maximumDelay
+	 *            The maximum delay between two retries (in milliseconds)
+	 */
+	public RetryPolicy(int maximumRetries, long initialDelay, long maximumDelay) {
+		this(maximumRetries, initialDelay, maximumDelay, new Random());
+	}
+
+	/**
+	 * Creates a new retry policy that takes the jitter from the given random
+	 * number generator, so that the delays can be repeated.
+	 *
+	 * @param maximumRetries
+	 *            The maximum number of retries
+	 * @param initialDelay
+	 *            The delay before the first retry (in milliseconds)
+	 * @param maximumDelay
+	 *            The maximum delay between two retries (in milliseconds)
+	 * @param random
+	 *            The random number generator for the jitter
+	 */
+	public RetryPolicy(int maximumRetries, long initialDelay, long maximumDelay, Random random) {
+		this.random = random;
+		this.maximumRetries = maximumRetries;
+		this.initialDelay = initialDelay;
+		this.maximumDelay = maximumDelay;
+	}
+
+	/**
+	 * Returns the maximum number of retries.
+	 *
+	 * @return The maximum number of retries
+	 */
+	public int getMaximumRetries() {
+		return maximumRetries;
+	}
+
+	/**
+	 * Returns whether another retry is allowed after the given number of
+	 * retries.
+	 *
+	 * @param retries
+	 *            The number of retries that have already been made
+	 * @return {@code true} if another retry is allowed, {@code false}
+	 *         otherwise
+	 */
+	public boolean canRetry(int retries) {
+		return retries < maximumRetries;
+	}
+
+	/**
+	 * Returns the delay before the given retry. The delay doubles with every
+	 * retry until it reaches the maximum delay; a random jitter of up to half
+	 * the delay is subtracted so that parallel inserts do not retry in
+	 * lockstep.
+	 *
+	 * @param retry
+	 *            The number of the retry (starting at {@code 0})
+	 * @return The delay before the retry (in milliseconds)
+	 */
+	public long getDelay(int retry) {
+		long delay = initialDelay;
+		for (int doubling = 0; (doubling < retry) && (delay < maximumDelay); ++doubling) {
+			delay *= 2;
+		}
+		delay = Math.min(delay, maximumDelay);
+		long jitter;
+		synchronized (random) {
+			jitter = (long) (random.nextDouble() * delay / 2);
+		}
+		return delay - jitter;
+	}
+
+}
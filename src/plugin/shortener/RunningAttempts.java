@@ -0,0 +1,138 @@
+/*
+ * shortener - RunningAttempts.java - Copyright © 2010 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugin.shortener;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Keeps track of the {@link InsertAttempt}s that are currently running so
+ * that a stopping {@link Shortener} can cancel them and wait until they have
+ * returned. Parallel attempts of a search window are run by the node’s
+ * executor, so they can outlive the job that started them.
+ *
+ * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+ */
+class RunningAttempts {
+
+	/** The attempts that are currently running. */
+	private final Set<InsertAttempt> insertAttempts = new HashSet<InsertAttempt>();
+
+	/** The clock that waits are measured with. */
+	private final Clock clock;
+
+	/** Whether all attempts have been cancelled. */
+	private boolean cancelled;
+
+	/**
+	 * Creates new running attempts.
+	 *
+	 * @param clock
+	 *            The clock that waits are measured with
+	 */
+	public RunningAttempts(Clock clock) {
+		this.clock = clock;
+	}
+
+	//
+	// ACCESSORS
+	//
+
+	/**
+	 * Returns the number of attempts that are currently running.
+	 *
+	 * @return The number of running attempts
+	 */
+	public synchronized int size() {
+		return insertAttempts.size();
+	}
+
+	//
+	// ACTIONS
+	//
+
+	/**
+	 * Adds an attempt that has started to run. If all attempts have already
+	 * been cancelled, the attempt is cancelled, too.
+	 *
+	 * @param insertAttempt
+	 *            The attempt that has started
+	 */
+	public void add(InsertAttempt insertAttempt) {
+		boolean cancelAttempt;
+		synchronized (this) {
+			insertAttempts.add(insertAttempt);
+			cancelAttempt = cancelled;
+		}
+		if (cancelAttempt) {
+			insertAttempt.cancel();
+		}
+	}
+
+	/**
+	 * Removes an attempt that has returned.
+	 *
+	 * @param insertAttempt
+	 *            The attempt that has returned
+	 */
+	public synchronized void remove(InsertAttempt insertAttempt) {
+		insertAttempts.remove(insertAttempt);
+		clock.wakeAll(this);
+	}
+
+	/**
+	 * Cancels all running attempts and all attempts that are started
+	 * afterwards. Inserts that are already running in the backend can not be
+	 * stopped; they return when the backend returns.
+	 */
+	public void cancelAll() {
+		List<InsertAttempt> cancelledAttempts;
+		synchronized (this) {
+			cancelled = true;
+			cancelledAttempts = new ArrayList<InsertAttempt>(insertAttempts);
+		}
+		for (InsertAttempt insertAttempt : cancelledAttempts) {
+			insertAttempt.cancel();
+		}
+	}
+
+	/**
+	 * Waits until no attempt is running anymore, or the given time has
+	 * passed.
+	 *
+	 * @param timeout
+	 *            The maximum time to wait (in milliseconds)
+	 * @return {@code true} if no attempt is running anymore, {@code false}
+	 *         otherwise
+	 */
+	public synchronized boolean waitUntilEmpty(long timeout) {
+		long end = clock.currentTimeMillis() + timeout;
+		long now;
+		while (!insertAttempts.isEmpty() && ((now = clock.currentTimeMillis()) < end)) {
+			try {
+				clock.waitOn(this, end - now);
+			} catch (InterruptedException ie1) {
+				/* ignore, keep waiting. */
+			}
+		}
+		return insertAttempts.isEmpty();
+	}
+
+}
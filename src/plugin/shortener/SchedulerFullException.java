@@ -0,0 +1,53 @@
+/*
+ * shortener - SchedulerFullException.java - Copyright © 2010 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugin.shortener;
+
+/**
+ * Exception that is thrown when a job is submitted to a
+ * {@link ShorteningScheduler} whose queue is already full.
+ *
+ * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+ */
+public class SchedulerFullException extends Exception {
+
+	/** The number of seconds after which a new submission might succeed. */
+	private final int retryAfter;
+
+	/**
+	 * Creates a new scheduler full exception.
+	 *
+	 * @param retryAfter
+	 *            The number of seconds after which a new submission might
+	 *            succeed
+	 */
+	public SchedulerFullException(int retryAfter) {
+		super("Scheduler queue is full, retry after " + retryAfter + " seconds.");
+		this.retryAfter = retryAfter;
+	}
+
+	/**
+	 * Returns the number of seconds after which a new submission might
+	 * succeed.
+	 *
+	 * @return The number of seconds to wait before retrying
+	 */
+	public int getRetryAfter() {
+		return retryAfter;
+	}
+
+}
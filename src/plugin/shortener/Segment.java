@@ -0,0 +1,671 @@
+/*
+ * shortener - Segment.java - Copyright © 2010 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugin.shortener;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+
+import freenet.support.io.Closer;
+
+/**
+ * An immutable, memory-mapped file of shortened keys. A segment contains two
+ * sorted tables: one sorted by original key, one sorted by shortened key.
+ * Each table consists of blocks of up to {@value #BLOCK_SIZE} entries whose
+ * keys are prefix-compressed against the previous key in the block, followed
+ * by a sparse index that contains the first key of every block.
+ * <p>
+ * All lookups are performed directly on the mapped file; only the value that
+ * is found is decoded into a {@link String}.
+ *
+ * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+ */
+public class Segment {
+
+	/** The magic number at the start of every segment (“SSEG”). */
+	private static final int MAGIC = 0x53534547;
+
+	/** The version of the segment format. */
+	private static final int VERSION = 1;
+
+	/** The size of the segment header. */
+	private static final int HEADER_SIZE = 48;
+
+	/** The maximum number of entries in a block. */
+	private static final int BLOCK_SIZE = 16;
+
+	/** Compares byte arrays as unsigned bytes. */
+	public static final Comparator<byte[]> BYTES_COMPARATOR = new Comparator<byte[]>() {
+
+		public int compare(byte[] leftBytes, byte[] rightBytes) {
+			return compareBytes(leftBytes, leftBytes.length, rightBytes, rightBytes.length);
+		}
+
+	};
+
+	/** The segment file. */
+	private final File file;
+
+	/** The mapped content of the segment file. */
+	private final MappedByteBuffer buffer;
+
+	/** The number of entries in the segment. */
+	private final int entryCount;
+
+	/** The table sorted by original key. */
+	private final Table originalKeyTable;
+
+	/** The table sorted by shortened key. */
+	private final Table shortenedKeyTable;
+
+	/**
+	 * Maps the given segment file.
+	 *
+	 * @param file
+	 *            The segment file
+	 * @throws IOException
+	 *             if the file can not be mapped or is not a valid segment
+	 */
+	public Segment(File file) throws IOException {
+		this.file = file;
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+		try {
+			buffer = randomAccessFile.getChannel().map(MapMode.READ_ONLY, 0, randomAccessFile.length());
+		} finally {
+			Closer.close(randomAccessFile);
+		}
+		if ((buffer.capacity() < HEADER_SIZE) || (buffer.getInt(0) != MAGIC) || (buffer.getInt(4) != VERSION)) {
+			throw new IOException("Not a valid segment: " + file);
+		}
+		entryCount = buffer.getInt(8);
+		originalKeyTable = new Table((int) buffer.getLong(16), (int) buffer.getLong(24));
+		shortenedKeyTable = new Table((int) buffer.getLong(32), (int) buffer.getLong(40));
+	}
+
+	//
+	// ACCESSORS
+	//
+
+	/**
+	 * Returns the segment file.
+	 *
+	 * @return The segment file
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Returns the number of entries in this segment.
+	 *
+	 * @return The number of entries
+	 */
+	public int getEntryCount() {
+		return entryCount;
+	}
+
+	/**
+	 * Returns the shortened key for the given original key.
+	 *
+	 * @param originalKey
+	 *            The normalized original key
+	 * @return The shortened key, or {@code null} if this segment does not
+	 *         contain the original key
+	 */
+	public String getShortenedKey(String originalKey) {
+		return decode(originalKeyTable.find(encode(originalKey)));
+	}
+
+	/**
+	 * Returns the original key for the given shortened key.
+	 *
+	 * @param shortenedKey
+	 *            The shortened key
+	 * @return The original key, or {@code null} if this segment does not
+	 *         contain the shortened key
+	 */
+	public String getOriginalKey(String shortenedKey) {
+		return decode(shortenedKeyTable.find(encode(shortenedKey)));
+	}
+
+	/**
+	 * Returns a cursor over all entries of this segment, sorted by original
+	 * key.
+	 *
+	 * @return A cursor over the entries, sorted by original key
+	 */
+	public Cursor getOriginalKeyCursor() {
+		return originalKeyTable.cursor();
+	}
+
+	/**
+	 * Returns a cursor over all entries of this segment, sorted by shortened
+	 * key. The keys of this cursor are the shortened keys, the values are the
+	 * original keys.
+	 *
+	 * @return A cursor over the entries, sorted by shortened key
+	 */
+	public Cursor getShortenedKeyCursor() {
+		return shortenedKeyTable.cursor();
+	}
+
+	//
+	// STATIC METHODS
+	//
+
+	/**
+	 * Writes a new segment. Both iterators must return the same entries, the
+	 * first sorted by original key, the second sorted by shortened key (with
+	 * the shortened key as the key of the entry). The second iterator may
+	 * return additional entries for aliases: shortened keys that have been
+	 * replaced by a shorter key but still redirect to their original key.
+	 * The segment is written to a
+	 * temporary file that is synced and then renamed to the given file; if
+	 * the segment can not be written, the temporary file is removed.
+	 *
+	 * @param file
+	 *            The file to write the segment to
+	 * @param entriesByOriginalKey
+	 *            The entries, sorted by original key
+	 * @param entriesByShortenedKey
+	 *            The entries with key and value swapped, sorted by shortened
+	 *            key
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public static void write(File file, Iterator<Entry> entriesByOriginalKey, Iterator<Entry> entriesByShortenedKey) throws IOException {
+		File temporaryFile = new File(file.getPath() + ".tmp");
+		FileOutputStream fileOutputStream = new FileOutputStream(temporaryFile);
+		long[] originalKeyTable;
+		long[] shortenedKeyTable;
+		boolean written = false;
+		try {
+			DataOutputStream dataOutputStream = new DataOutputStream(new BufferedOutputStream(fileOutputStream));
+			dataOutputStream.write(new byte[HEADER_SIZE]);
+			originalKeyTable = writeTable(dataOutputStream, entriesByOriginalKey);
+			shortenedKeyTable = writeTable(dataOutputStream, entriesByShortenedKey);
+			dataOutputStream.flush();
+			if (originalKeyTable[2] > shortenedKeyTable[2]) {
+				throw new IOException("Table of shortened keys is too small: " + originalKeyTable[2] + " and " + shortenedKeyTable[2]);
+			}
+			FileChannel fileChannel = fileOutputStream.getChannel();
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.putInt(MAGIC).putInt(VERSION).putInt((int) originalKeyTable[2]).putInt(0);
+			header.putLong(originalKeyTable[0]).putLong(originalKeyTable[1]);
+			header.putLong(shortenedKeyTable[0]).putLong(shortenedKeyTable[1]);
+			header.flip();
+			while (header.hasRemaining()) {
+				fileChannel.write(header, header.position());
+			}
+			fileChannel.force(true);
+			written = true;
+		} finally {
+			Closer.close(fileOutputStream);
+			if (!written) {
+				temporaryFile.delete();
+			}
+		}
+		if (!temporaryFile.renameTo(file)) {
+			throw new IOException("Could not rename " + temporaryFile + " to " + file);
+		}
+	}
+
+	/**
+	 * Encodes the given string as UTF-8.
+	 *
+	 * @param string
+	 *            The string to encode
+	 * @return The encoded string
+	 */
+	public static byte[] encode(String string) {
+		try {
+			return string.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException uee1) {
+			/* every JVM needs to support UTF-8. */
+			return null;
+		}
+	}
+
+	/**
+	 * Decodes the given UTF-8 bytes.
+	 *
+	 * @param bytes
+	 *            The bytes to decode (may be {@code null})
+	 * @return The decoded string, or {@code null} if {@code bytes} is
+	 *         {@code null}
+	 */
+	public static String decode(byte[] bytes) {
+		if (bytes == null) {
+			return null;
+		}
+		try {
+			return new String(bytes, "UTF-8");
+		} catch (UnsupportedEncodingException uee1) {
+			/* every JVM needs to support UTF-8. */
+			return null;
+		}
+	}
+
+	/**
+	 * Compares the first bytes of the given arrays as unsigned bytes.
+	 *
+	 * @param leftBytes
+	 *            The first array
+	 * @param leftLength
+	 *            The number of bytes of the first array to compare
+	 * @param rightBytes
+	 *            The second array
+	 * @param rightLength
+	 *            The number of bytes of the second array to compare
+	 * @return A negative number, {@code 0}, or a positive number if the first
+	 *         array is less than, equal to, or greater than the second
+	 */
+	static int compareBytes(byte[] leftBytes, int leftLength, byte[] rightBytes, int rightLength) {
+		int length = Math.min(leftLength, rightLength);
+		for (int index = 0; index < length; ++index) {
+			int difference = (leftBytes[index] & 0xff) - (rightBytes[index] & 0xff);
+			if (difference != 0) {
+				return difference;
+			}
+		}
+		return leftLength - rightLength;
+	}
+
+	//
+	// PRIVATE METHODS
+	//
+
+	/**
+	 * Writes a single table.
+	 *
+	 * @param dataOutputStream
+	 *            The output stream to write to
+	 * @param entries
+	 *            The sorted entries of the table
+	 * @return The offset of the first block, the offset of the index, and the
+	 *         number of entries
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	private static long[] writeTable(DataOutputStream dataOutputStream, Iterator<Entry> entries) throws IOException {
+		long blocksOffset = dataOutputStream.size();
+		List<Integer> blockOffsets = new ArrayList<Integer>();
+		List<byte[]> blockKeys = new ArrayList<byte[]>();
+		List<Entry> block = new ArrayList<Entry>(BLOCK_SIZE);
+		byte[] lastKey = null;
+		int entryCount = 0;
+		while (entries.hasNext() || !block.isEmpty()) {
+			if (entries.hasNext()) {
+				Entry entry = entries.next();
+				if ((lastKey != null) && (compareBytes(lastKey, lastKey.length, entry.getKey(), entry.getKey().length) >= 0)) {
+					throw new IOException("Entries are not sorted or not unique.");
+				}
+				lastKey = entry.getKey();
+				block.add(entry);
+				++entryCount;
+				if (block.size() < BLOCK_SIZE) {
+					continue;
+				}
+			}
+			blockOffsets.add(dataOutputStream.size());
+			blockKeys.add(block.get(0).getKey());
+			dataOutputStream.writeShort(block.size());
+			byte[] previousKey = new byte[0];
+			for (Entry blockEntry : block) {
+				byte[] key = blockEntry.getKey();
+				int sharedLength = 0;
+				while ((sharedLength < previousKey.length) && (sharedLength < key.length) && (previousKey[sharedLength] == key[sharedLength])) {
+					++sharedLength;
+				}
+				writeVarInt(dataOutputStream, sharedLength);
+				writeVarInt(dataOutputStream, key.length - sharedLength);
+				dataOutputStream.write(key, sharedLength, key.length - sharedLength);
+				writeVarInt(dataOutputStream, blockEntry.getValue().length);
+				dataOutputStream.write(blockEntry.getValue());
+				previousKey = key;
+			}
+			block.clear();
+		}
+		long indexOffset = dataOutputStream.size();
+		dataOutputStream.writeInt(blockOffsets.size());
+		int indexEntryOffset = dataOutputStream.size() + blockOffsets.size() * 4;
+		for (byte[] blockKey : blockKeys) {
+			dataOutputStream.writeInt(indexEntryOffset);
+			indexEntryOffset += 8 + blockKey.length;
+		}
+		for (int blockIndex = 0; blockIndex < blockOffsets.size(); ++blockIndex) {
+			dataOutputStream.writeInt(blockOffsets.get(blockIndex));
+			dataOutputStream.writeInt(blockKeys.get(blockIndex).length);
+			dataOutputStream.write(blockKeys.get(blockIndex));
+		}
+		return new long[] { blocksOffset, indexOffset, entryCount };
+	}
+
+	/**
+	 * Writes a variable-length integer.
+	 *
+	 * @param dataOutputStream
+	 *            The output stream to write to
+	 * @param value
+	 *            The value to write (must not be negative)
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	private static void writeVarInt(DataOutputStream dataOutputStream, int value) throws IOException {
+		int remaining = value;
+		while (remaining >= 0x80) {
+			dataOutputStream.writeByte((remaining & 0x7f) | 0x80);
+			remaining >>>= 7;
+		}
+		dataOutputStream.writeByte(remaining);
+	}
+
+	/**
+	 * Reads a variable-length integer.
+	 *
+	 * @param byteBuffer
+	 *            The buffer to read from
+	 * @return The read value
+	 */
+	private static int readVarInt(ByteBuffer byteBuffer) {
+		int value = 0;
+		int shift = 0;
+		int currentByte;
+		do {
+			currentByte = byteBuffer.get() & 0xff;
+			value |= (currentByte & 0x7f) << shift;
+			shift += 7;
+		} while ((currentByte & 0x80) != 0);
+		return value;
+	}
+
+	/**
+	 * A sorted table within the segment.
+	 *
+	 * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+	 */
+	private class Table {
+
+		/** The offset of the first block. */
+		private final int blocksOffset;
+
+		/** The offset of the index. */
+		private final int indexOffset;
+
+		/** The number of blocks. */
+		private final int blockCount;
+
+		/**
+		 * Creates a new table.
+		 *
+		 * @param blocksOffset
+		 *            The offset of the first block
+		 * @param indexOffset
+		 *            The offset of the index
+		 */
+		public Table(int blocksOffset, int indexOffset) {
+			this.blocksOffset = blocksOffset;
+			this.indexOffset = indexOffset;
+			this.blockCount = buffer.getInt(indexOffset);
+		}
+
+		/**
+		 * Finds the value for the given key.
+		 *
+		 * @param key
+		 *            The key to find
+		 * @return The value, or {@code null} if the key is not in this table
+		 */
+		@SuppressWarnings("synthetic-access")
+		public byte[] find(byte[] key) {
+			ByteBuffer tableBuffer = buffer.duplicate();
+			int low = 0;
+			int high = blockCount - 1;
+			int block = -1;
+			while (low <= high) {
+				int middle = (low + high) >>> 1;
+				int indexEntryOffset = tableBuffer.getInt(indexOffset + 4 + middle * 4);
+				int blockKeyLength = tableBuffer.getInt(indexEntryOffset + 4);
+				int comparison = compareBuffer(tableBuffer, indexEntryOffset + 8, blockKeyLength, key);
+				if (comparison <= 0) {
+					block = middle;
+					low = middle + 1;
+				} else {
+					high = middle - 1;
+				}
+			}
+			if (block == -1) {
+				return null;
+			}
+			int blockOffset = tableBuffer.getInt(tableBuffer.getInt(indexOffset + 4 + block * 4));
+			Cursor cursor = new Cursor(tableBuffer, blockOffset, indexOffset);
+			while (cursor.next()) {
+				int comparison = compareBytes(cursor.keyBytes, cursor.keyLength, key, key.length);
+				if (comparison == 0) {
+					return cursor.getValue();
+				} else if (comparison > 0) {
+					break;
+				}
+			}
+			return null;
+		}
+
+		/**
+		 * Returns a cursor over all entries of this table.
+		 *
+		 * @return A cursor over all entries
+		 */
+		@SuppressWarnings("synthetic-access")
+		public Cursor cursor() {
+			return new Cursor(buffer.duplicate(), blocksOffset, indexOffset);
+		}
+
+		/**
+		 * Compares the bytes in the buffer with the given bytes.
+		 *
+		 * @param byteBuffer
+		 *            The buffer
+		 * @param offset
+		 *            The offset of the bytes in the buffer
+		 * @param length
+		 *            The number of bytes in the buffer
+		 * @param bytes
+		 *            The bytes to compare with
+		 * @return A negative number, {@code 0}, or a positive number if the
+		 *         bytes in the buffer are less than, equal to, or greater than
+		 *         the given bytes
+		 */
+		private int compareBuffer(ByteBuffer byteBuffer, int offset, int length, byte[] bytes) {
+			int commonLength = Math.min(length, bytes.length);
+			for (int index = 0; index < commonLength; ++index) {
+				int difference = (byteBuffer.get(offset + index) & 0xff) - (bytes[index] & 0xff);
+				if (difference != 0) {
+					return difference;
+				}
+			}
+			return length - bytes.length;
+		}
+
+	}
+
+	/**
+	 * Cursor that reads the entries of a table sequentially.
+	 *
+	 * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+	 */
+	public static class Cursor {
+
+		/** The buffer to read from. */
+		private final ByteBuffer byteBuffer;
+
+		/** The offset at which the blocks end. */
+		private final int endOffset;
+
+		/** The remaining entries in the current block. */
+		private int remainingBlockEntries;
+
+		/** The bytes of the current key. */
+		private byte[] keyBytes = new byte[128];
+
+		/** The length of the current key. */
+		private int keyLength;
+
+		/** The offset of the current value. */
+		private int valueOffset;
+
+		/** The length of the current value. */
+		private int valueLength;
+
+		/**
+		 * Creates a new cursor.
+		 *
+		 * @param byteBuffer
+		 *            The buffer to read from
+		 * @param startOffset
+		 *            The offset of the first block to read
+		 * @param endOffset
+		 *            The offset at which the blocks end
+		 */
+		Cursor(ByteBuffer byteBuffer, int startOffset, int endOffset) {
+			this.byteBuffer = byteBuffer;
+			this.endOffset = endOffset;
+			byteBuffer.position(startOffset);
+		}
+
+		/**
+		 * Moves the cursor to the next entry.
+		 *
+		 * @return {@code true} if the cursor is on an entry, {@code false} if
+		 *         there are no more entries
+		 */
+		@SuppressWarnings("synthetic-access")
+		public boolean next() {
+			if (remainingBlockEntries == 0) {
+				if (byteBuffer.position() >= endOffset) {
+					return false;
+				}
+				remainingBlockEntries = byteBuffer.getShort() & 0xffff;
+				keyLength = 0;
+			}
+			int sharedLength = readVarInt(byteBuffer);
+			int suffixLength = readVarInt(byteBuffer);
+			keyLength = sharedLength + suffixLength;
+			if (keyLength > keyBytes.length) {
+				keyBytes = Arrays.copyOf(keyBytes, Math.max(keyLength, keyBytes.length * 2));
+			}
+			byteBuffer.get(keyBytes, sharedLength, suffixLength);
+			valueLength = readVarInt(byteBuffer);
+			valueOffset = byteBuffer.position();
+			byteBuffer.position(valueOffset + valueLength);
+			--remainingBlockEntries;
+			return true;
+		}
+
+		/**
+		 * Returns the key of the current entry.
+		 *
+		 * @return The key of the current entry
+		 */
+		public byte[] getKey() {
+			return Arrays.copyOf(keyBytes, keyLength);
+		}
+
+		/**
+		 * Returns the value of the current entry.
+		 *
+		 * @return The value of the current entry
+		 */
+		public byte[] getValue() {
+			byte[] value = new byte[valueLength];
+			for (int index = 0; index < valueLength; ++index) {
+				value[index] = byteBuffer.get(valueOffset + index);
+			}
+			return value;
+		}
+
+	}
+
+	/**
+	 * A key-value pair that is written to a segment.
+	 *
+	 * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+	 */
+	public static class Entry {
+
+		/** The key. */
+		private final byte[] key;
+
+		/** The value. */
+		private final byte[] value;
+
+		/**
+		 * Creates a new entry.
+		 *
+		 * @param key
+		 *            The key
+		 * @param value
+		 *            The value
+		 */
+		public Entry(byte[] key, byte[] value) {
+			this.key = key;
+			this.value = value;
+		}
+
+		/**
+		 * Returns the key.
+		 *
+		 * @return The key
+		 */
+		public byte[] getKey() {
+			return key;
+		}
+
+		/**
+		 * Returns the value.
+		 *
+		 * @return The value
+		 */
+		public byte[] getValue() {
+			return value;
+		}
+
+		/**
+		 * Returns an entry with key and value swapped.
+		 *
+		 * @return The swapped entry
+		 */
+		public Entry swap() {
+			return new Entry(value, key);
+		}
+
+	}
+
+}
@@ -0,0 +1,183 @@
+/*
+ * shortener - SegmentFlusher.java - Copyright © 2010 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugin.shortener;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import plugin.shortener.Segment.Entry;
+import plugin.shortener.Shortener.ShortenedKey;
+import plugin.shortener.ShortenedKeyStore.Snapshot;
+import freenet.support.Executor;
+import freenet.support.Logger;
+
+/**
+ * Writes the shortened keys that a {@link Shortener} keeps in memory to a new
+ * segment once there are more than {@link #getFlushThreshold()} of them, and
+ * empties the journal afterwards.
+ *
+ * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+ */
+class SegmentFlusher {
+
+	/** The shortener whose shortened keys to flush. */
+	private final Shortener shortener;
+
+	/** The executor that runs the flushes. */
+	private final Executor executor;
+
+	/** The segments the shortened keys are written to. */
+	private final SegmentStore segmentStore;
+
+	/** The journal that is emptied after a flush. */
+	private final Journal journal;
+
+	/** The change log that is synced before the journal is emptied. */
+	private final ChangeLog changeLog;
+
+	/** The number of shortened keys in memory that triggers a flush. */
+	private volatile int flushThreshold = 10000;
+
+	/** Whether a flush is running. */
+	private boolean flushing;
+
+	/**
+	 * Creates a new segment flusher.
+	 *
+	 * @param shortener
+	 *            The shortener whose shortened keys to flush
+	 * @param executor
+	 *            The executor that runs the flushes
+	 * @param segmentStore
+	 *            The segments the shortened keys are written to
+	 * @param journal
+	 *            The journal that is emptied after a flush
+	 * @param changeLog
+	 *            The change log that is synced before the journal is emptied
+	 */
+	public SegmentFlusher(Shortener shortener, Executor executor, SegmentStore segmentStore, Journal journal, ChangeLog changeLog) {
+		this.shortener = shortener;
+		this.executor = executor;
+		this.segmentStore = segmentStore;
+		this.journal = journal;
+		this.changeLog = changeLog;
+	}
+
+	//
+	// ACCESSORS
+	//
+
+	/**
+	 * Returns the number of shortened keys that are kept in memory before
+	 * they are written to a new segment.
+	 *
+	 * @return The flush threshold
+	 */
+	public int getFlushThreshold() {
+		return flushThreshold;
+	}
+
+	/**
+	 * Sets the number of shortened keys that are kept in memory before they
+	 * are written to a new segment.
+	 *
+	 * @param flushThreshold
+	 *            The new flush threshold
+	 */
+	public void setFlushThreshold(int flushThreshold) {
+		this.flushThreshold = Math.max(1, flushThreshold);
+	}
+
+	//
+	// ACTIONS
+	//
+
+	/**
+	 * Starts writing the shortened keys to a new segment if more than
+	 * {@link #getFlushThreshold()} shortened keys are kept in memory.
+	 */
+	public void flushIfNecessary() {
+		synchronized (this) {
+			if (flushing || (shortener.getShortenedKeys().size() < flushThreshold)) {
+				return;
+			}
+			flushing = true;
+		}
+		executor.execute(new Runnable() {
+
+			@SuppressWarnings("synthetic-access")
+			public void run() {
+				try {
+					flush();
+				} catch (IOException ioe1) {
+					Logger.error(this, "Could not write shortened keys to segment!", ioe1);
+				} finally {
+					synchronized (SegmentFlusher.this) {
+						flushing = false;
+					}
+				}
+			}
+
+		}, "Shortener Segment Writer");
+	}
+
+	//
+	// PRIVATE METHODS
+	//
+
+	/**
+	 * Writes all shortened keys that are kept in memory, and their aliases,
+	 * to a new segment and removes them from memory and from the journal.
+	 * Until the new segment has been written, no shortened keys can be added.
+	 * The state of the key shortenings that have not finished yet is written
+	 * to the emptied journal again.
+	 *
+	 * @throws IOException
+	 *             if the segment can not be written
+	 */
+	private void flush() throws IOException {
+		synchronized (shortener.getStoreLock()) {
+			Snapshot snapshot = shortener.getShortenedKeys();
+			List<Entry> entries = new ArrayList<Entry>();
+			for (ShortenedKey shortenedKey : snapshot) {
+				entries.add(new Entry(Segment.encode(shortenedKey.getOriginalKey()), Segment.encode(shortenedKey.getShortenedKey())));
+			}
+			List<Entry> aliases = new ArrayList<Entry>();
+			for (Map.Entry<String, String> alias : snapshot.getAliases().entrySet()) {
+				aliases.add(new Entry(Segment.encode(alias.getValue()), Segment.encode(alias.getKey())));
+			}
+			segmentStore.addSegment(entries, aliases);
+			shortener.clearShortenedKeys();
+			/* the journal restores lost changes, so sync before emptying it. */
+			changeLog.sync();
+			journal.reset();
+			shortener.writeJournalState();
+		}
+		LengthStatistics lengthStatistics = shortener.getLengthStatistics();
+		if (lengthStatistics != null) {
+			lengthStatistics.save();
+		}
+		OccupancyFilter occupancyFilter = shortener.getOccupancyFilter();
+		if (occupancyFilter != null) {
+			occupancyFilter.save();
+		}
+	}
+
+}
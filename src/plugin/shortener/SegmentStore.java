@@ -0,0 +1,550 @@
+/*
+ * shortener - SegmentStore.java - Copyright © 2010 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugin.shortener;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import plugin.shortener.Segment.Cursor;
+import plugin.shortener.Segment.Entry;
+import freenet.support.Executor;
+import freenet.support.Logger;
+
+/**
+ * Manages the {@link Segment}s in a directory. New segments are added when
+ * the in-memory shortened keys are flushed; once there are more than
+ * {@value #MAXIMUM_SEGMENTS} segments, all segments are merged into a single
+ * segment in the background.
+ * <p>
+ * Segment files are named “segment-<i>number</i>.dat”, a higher number
+ * denoting a newer segment. When several segments contain the same key, the
+ * newest segment wins. A shortened key that has been replaced by a shorter
+ * key stays in the table of shortened keys as an alias, because it still
+ * redirects to its original key; merging keeps these aliases.
+ *
+ * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+ */
+public class SegmentStore {
+
+	/** The number of segments above which segments are merged. */
+	private static final int MAXIMUM_SEGMENTS = 4;
+
+	/** The pattern for segment file names. */
+	private static final Pattern SEGMENT_PATTERN = Pattern.compile("segment-(\\d+)\\.dat");
+
+	/** The pattern for the names of merged segments that were not renamed. */
+	private static final Pattern COMPACTED_PATTERN = Pattern.compile("segment-(\\d+)\\.compact");
+
+	/** Comparator that sorts entries by their keys. */
+	private static final Comparator<Entry> ENTRY_COMPARATOR = new Comparator<Entry>() {
+
+		public int compare(Entry leftEntry, Entry rightEntry) {
+			return Segment.BYTES_COMPARATOR.compare(leftEntry.getKey(), rightEntry.getKey());
+		}
+
+	};
+
+	/** The directory of the segments. */
+	private final File directory;
+
+	/** The executor that runs the merges. */
+	private final Executor executor;
+
+	/** The segments, newest first. The list is replaced on every change. */
+	private volatile List<NumberedSegment> segments = Collections.emptyList();
+
+	/** The number of the next segment. */
+	private int nextSegmentNumber = 1;
+
+	/** Whether segments are currently being merged. */
+	private boolean compacting;
+
+	/**
+	 * Creates a new segment store.
+	 *
+	 * @param directory
+	 *            The directory of the segments
+	 * @param executor
+	 *            The executor that runs the merges
+	 */
+	public SegmentStore(File directory, Executor executor) {
+		this.directory = directory;
+		this.executor = executor;
+	}
+
+	//
+	// ACCESSORS
+	//
+
+	/**
+	 * Returns the number of segments.
+	 *
+	 * @return The number of segments
+	 */
+	public int getSegmentCount() {
+		return segments.size();
+	}
+
+	/**
+	 * Returns the number of entries in all segments. Keys that are contained
+	 * in more than one segment are counted more than once.
+	 *
+	 * @return The number of entries
+	 */
+	public int getEntryCount() {
+		int entryCount = 0;
+		for (NumberedSegment segment : segments) {
+			entryCount += segment.getSegment().getEntryCount();
+		}
+		return entryCount;
+	}
+
+	/**
+	 * Returns the shortened key for the given original key.
+	 *
+	 * @param originalKey
+	 *            The normalized original key
+	 * @return The shortened key, or {@code null} if no segment contains the
+	 *         original key
+	 */
+	public String getShortenedKey(String originalKey) {
+		for (NumberedSegment segment : segments) {
+			String shortenedKey = segment.getSegment().getShortenedKey(originalKey);
+			if (shortenedKey != null) {
+				return shortenedKey;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the original key for the given shortened key.
+	 *
+	 * @param shortenedKey
+	 *            The shortened key
+	 * @return The original key, or {@code null} if no segment contains the
+	 *         shortened key
+	 */
+	public String getOriginalKey(String shortenedKey) {
+		for (NumberedSegment segment : segments) {
+			String originalKey = segment.getSegment().getOriginalKey(shortenedKey);
+			if (originalKey != null) {
+				return originalKey;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns entries of all segments, sorted by original key.
+	 *
+	 * @param offset
+	 *            The index of the first entry to return
+	 * @param count
+	 *            The maximum number of entries to return
+	 * @return The entries (original key as key, shortened key as value)
+	 */
+	public List<Entry> getEntries(int offset, int count) {
+		List<Entry> entries = new ArrayList<Entry>();
+		Iterator<Entry> entryIterator = getEntries();
+		for (int index = 0; entryIterator.hasNext() && (index < offset + count); ++index) {
+			Entry entry = entryIterator.next();
+			if (index >= offset) {
+				entries.add(entry);
+			}
+		}
+		return entries;
+	}
+
+	/**
+	 * Returns an iterator over the entries of all segments, sorted by original
+	 * key. Segments that are added or merged later are not visible to the
+	 * iterator.
+	 *
+	 * @return An iterator over all entries (original key as key, shortened
+	 *         key as value)
+	 */
+	public Iterator<Entry> getEntries() {
+		return new MergingIterator(getCursors(segments, true));
+	}
+
+	//
+	// ACTIONS
+	//
+
+	/**
+	 * Maps all segments in the directory. Merges that were interrupted after
+	 * the merged segment was written are finished; temporary files are
+	 * removed.
+	 *
+	 * @throws IOException
+	 *             if a segment can not be mapped
+	 */
+	public synchronized void open() throws IOException {
+		File[] files = directory.listFiles();
+		if (files == null) {
+			throw new IOException("Can not list " + directory);
+		}
+		for (File file : files) {
+			Matcher compactedMatcher = COMPACTED_PATTERN.matcher(file.getName());
+			if (compactedMatcher.matches()) {
+				finishCompaction(file, Integer.parseInt(compactedMatcher.group(1)));
+			} else if (file.getName().endsWith(".tmp")) {
+				file.delete();
+			}
+		}
+		List<NumberedSegment> openedSegments = new ArrayList<NumberedSegment>();
+		for (File file : directory.listFiles()) {
+			Matcher segmentMatcher = SEGMENT_PATTERN.matcher(file.getName());
+			if (segmentMatcher.matches()) {
+				int number = Integer.parseInt(segmentMatcher.group(1));
+				openedSegments.add(new NumberedSegment(number, new Segment(file)));
+				nextSegmentNumber = Math.max(nextSegmentNumber, number + 1);
+			}
+		}
+		Collections.sort(openedSegments);
+		segments = Collections.unmodifiableList(openedSegments);
+	}
+
+	/**
+	 * Writes the given entries to a new segment.
+	 *
+	 * @param entries
+	 *            The entries to write (original key as key, shortened key as
+	 *            value), in any order
+	 * @throws IOException
+	 *             if the segment can not be written
+	 */
+	public void addSegment(List<Entry> entries) throws IOException {
+		addSegment(entries, Collections.<Entry> emptyList());
+	}
+
+	/**
+	 * Writes the given entries and aliases to a new segment. Aliases are
+	 * shortened keys that have been replaced by a shorter key; they are only
+	 * found by their shortened key.
+	 *
+	 * @param entries
+	 *            The entries to write (original key as key, shortened key as
+	 *            value), in any order
+	 * @param aliases
+	 *            The aliases to write (original key as key, shortened key as
+	 *            value), in any order
+	 * @throws IOException
+	 *             if the segment can not be written
+	 */
+	public synchronized void addSegment(List<Entry> entries, List<Entry> aliases) throws IOException {
+		if (entries.isEmpty() && aliases.isEmpty()) {
+			return;
+		}
+		List<Entry> entriesByOriginalKey = new ArrayList<Entry>(entries);
+		Collections.sort(entriesByOriginalKey, ENTRY_COMPARATOR);
+		removeDuplicates(entriesByOriginalKey);
+		List<Entry> entriesByShortenedKey = new ArrayList<Entry>(aliases.size() + entriesByOriginalKey.size());
+		for (Entry alias : aliases) {
+			entriesByShortenedKey.add(alias.swap());
+		}
+		for (Entry entry : entriesByOriginalKey) {
+			entriesByShortenedKey.add(entry.swap());
+		}
+		/* the sort is stable, so a current entry wins over an alias. */
+		Collections.sort(entriesByShortenedKey, ENTRY_COMPARATOR);
+		removeDuplicates(entriesByShortenedKey);
+		int number = nextSegmentNumber++;
+		File file = getSegmentFile(number);
+		Segment.write(file, entriesByOriginalKey.iterator(), entriesByShortenedKey.iterator());
+		List<NumberedSegment> newSegments = new ArrayList<NumberedSegment>(segments);
+		newSegments.add(0, new NumberedSegment(number, new Segment(file)));
+		segments = Collections.unmodifiableList(newSegments);
+		if ((newSegments.size() > MAXIMUM_SEGMENTS) && !compacting) {
+			compacting = true;
+			executor.execute(new Compactor(newSegments), "Shortener Segment Merger");
+		}
+	}
+
+	//
+	// PRIVATE METHODS
+	//
+
+	/**
+	 * Returns the file of the segment with the given number.
+	 *
+	 * @param number
+	 *            The number of the segment
+	 * @return The file of the segment
+	 */
+	private File getSegmentFile(int number) {
+		return new File(directory, String.format("segment-%08d.dat", number));
+	}
+
+	/**
+	 * Finishes a merge: all segments up to the given number are removed, the
+	 * merged segment is renamed to the segment with the given number.
+	 *
+	 * @param compactedFile
+	 *            The file of the merged segment
+	 * @param number
+	 *            The number of the newest segment that was merged
+	 * @throws IOException
+	 *             if the merged segment can not be renamed
+	 */
+	private void finishCompaction(File compactedFile, int number) throws IOException {
+		for (File file : directory.listFiles()) {
+			Matcher segmentMatcher = SEGMENT_PATTERN.matcher(file.getName());
+			if (segmentMatcher.matches() && (Integer.parseInt(segmentMatcher.group(1)) <= number)) {
+				if (!file.delete()) {
+					throw new IOException("Could not delete " + file);
+				}
+			}
+		}
+		if (!compactedFile.renameTo(getSegmentFile(number))) {
+			throw new IOException("Could not rename " + compactedFile);
+		}
+	}
+
+	/**
+	 * Removes entries with duplicate keys from the given sorted list, keeping
+	 * the last entry of every key.
+	 *
+	 * @param entries
+	 *            The sorted entries
+	 */
+	private static void removeDuplicates(List<Entry> entries) {
+		for (int index = entries.size() - 1; index > 0; --index) {
+			if (Segment.BYTES_COMPARATOR.compare(entries.get(index - 1).getKey(), entries.get(index).getKey()) == 0) {
+				entries.remove(index - 1);
+			}
+		}
+	}
+
+	/**
+	 * Returns a cursor for every one of the given segments.
+	 *
+	 * @param segments
+	 *            The segments, newest first
+	 * @param byOriginalKey
+	 *            {@code true} to return cursors sorted by original key,
+	 *            {@code false} to return cursors sorted by shortened key
+	 * @return The cursors, newest first
+	 */
+	private static List<Cursor> getCursors(List<NumberedSegment> segments, boolean byOriginalKey) {
+		List<Cursor> cursors = new ArrayList<Cursor>();
+		for (NumberedSegment segment : segments) {
+			cursors.add(byOriginalKey ? segment.getSegment().getOriginalKeyCursor() : segment.getSegment().getShortenedKeyCursor());
+		}
+		return cursors;
+	}
+
+	/**
+	 * A segment and its number.
+	 *
+	 * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+	 */
+	private static class NumberedSegment implements Comparable<NumberedSegment> {
+
+		/** The number of the segment. */
+		private final int number;
+
+		/** The segment. */
+		private final Segment segment;
+
+		/**
+		 * Creates a new numbered segment.
+		 *
+		 * @param number
+		 *            The number of the segment
+		 * @param segment
+		 *            The segment
+		 */
+		public NumberedSegment(int number, Segment segment) {
+			this.number = number;
+			this.segment = segment;
+		}
+
+		/**
+		 * Returns the number of the segment.
+		 *
+		 * @return The number of the segment
+		 */
+		public int getNumber() {
+			return number;
+		}
+
+		/**
+		 * Returns the segment.
+		 *
+		 * @return The segment
+		 */
+		public Segment getSegment() {
+			return segment;
+		}
+
+		/**
+		 * Sorts segments newest first.
+		 *
+		 * @param otherSegment
+		 *            The segment to compare to
+		 * @return The result of the comparison
+		 */
+		public int compareTo(NumberedSegment otherSegment) {
+			return (otherSegment.number < number) ? -1 : ((otherSegment.number == number) ? 0 : 1);
+		}
+
+	}
+
+	/**
+	 * Iterator that merges the entries of several cursors, sorted by key. If
+	 * more than one cursor contains the same key, the entry of the first
+	 * cursor is returned.
+	 *
+	 * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+	 */
+	private static class MergingIterator implements Iterator<Entry> {
+
+		/** The cursors, newest first. */
+		private final List<Cursor> cursors;
+
+		/** The current key of every cursor, {@code null} if it is exhausted. */
+		private final byte[][] currentKeys;
+
+		/**
+		 * Creates a new merging iterator.
+		 *
+		 * @param cursors
+		 *            The cursors to merge, newest first
+		 */
+		public MergingIterator(List<Cursor> cursors) {
+			this.cursors = cursors;
+			currentKeys = new byte[cursors.size()][];
+			for (int cursorIndex = 0; cursorIndex < cursors.size(); ++cursorIndex) {
+				advance(cursorIndex);
+			}
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		public boolean hasNext() {
+			for (byte[] currentKey : currentKeys) {
+				if (currentKey != null) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		public Entry next() {
+			int smallestCursor = -1;
+			for (int cursorIndex = 0; cursorIndex < currentKeys.length; ++cursorIndex) {
+				if ((currentKeys[cursorIndex] != null) && ((smallestCursor == -1) || (Segment.BYTES_COMPARATOR.compare(currentKeys[cursorIndex], currentKeys[smallestCursor]) < 0))) {
+					smallestCursor = cursorIndex;
+				}
+			}
+			if (smallestCursor == -1) {
+				throw new NoSuchElementException();
+			}
+			byte[] key = currentKeys[smallestCursor];
+			Entry entry = new Entry(key, cursors.get(smallestCursor).getValue());
+			for (int cursorIndex = 0; cursorIndex < currentKeys.length; ++cursorIndex) {
+				if ((currentKeys[cursorIndex] != null) && (Segment.BYTES_COMPARATOR.compare(currentKeys[cursorIndex], key) == 0)) {
+					advance(cursorIndex);
+				}
+			}
+			return entry;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		/**
+		 * Moves the given cursor to its next entry.
+		 *
+		 * @param cursorIndex
+		 *            The index of the cursor
+		 */
+		private void advance(int cursorIndex) {
+			Cursor cursor = cursors.get(cursorIndex);
+			currentKeys[cursorIndex] = cursor.next() ? cursor.getKey() : null;
+		}
+
+	}
+
+	/**
+	 * Merges a list of segments into a single segment.
+	 *
+	 * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+	 */
+	private class Compactor implements Runnable {
+
+		/** The segments to merge, newest first. */
+		private final List<NumberedSegment> mergedSegments;
+
+		/**
+		 * Creates a new compactor.
+		 *
+		 * @param mergedSegments
+		 *            The segments to merge, newest first
+		 */
+		public Compactor(List<NumberedSegment> mergedSegments) {
+			this.mergedSegments = mergedSegments;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@SuppressWarnings("synthetic-access")
+		public void run() {
+			int number = mergedSegments.get(0).getNumber();
+			File compactedFile = new File(directory, String.format("segment-%08d.compact", number));
+			try {
+				Segment.write(compactedFile, new MergingIterator(getCursors(mergedSegments, true)), new MergingIterator(getCursors(mergedSegments, false)));
+				synchronized (SegmentStore.this) {
+					finishCompaction(compactedFile, number);
+					List<NumberedSegment> newSegments = new ArrayList<NumberedSegment>(segments);
+					newSegments.removeAll(mergedSegments);
+					newSegments.add(new NumberedSegment(number, new Segment(getSegmentFile(number))));
+					Collections.sort(newSegments);
+					segments = Collections.unmodifiableList(newSegments);
+				}
+			} catch (IOException ioe1) {
+				Logger.error(this, "Could not merge segments!", ioe1);
+			} finally {
+				synchronized (SegmentStore.this) {
+					compacting = false;
+				}
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,229 @@
+/*
+ * shortener - SharedChangeFollower.java - Copyright © 2010 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugin.shortener;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import plugin.shortener.ChangeLog.Change;
+import plugin.shortener.Journal.Record;
+import plugin.shortener.Journal.Record.Type;
+import plugin.shortener.Shortener.CancelReason;
+import plugin.shortener.Shortener.KeyShorteningProgress;
+import freenet.keys.FreenetURI;
+import freenet.support.Logger;
+
+/**
+ * Keeps the shortened keys of a {@link Shortener} in sync with the shared
+ * change log that several processes use: the changes of the other processes
+ * are stored when the shortener starts, whenever the shortener appends a
+ * change itself, and every couple of seconds until the shortener is stopped.
+ *
+ * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+ */
+class SharedChangeFollower implements Runnable {
+
+	/** The time between two reads of the shared change log. */
+	private static final long FOLLOW_INTERVAL = 5 * 1000;
+
+	/** The shortener whose shared change log to follow. */
+	private final Shortener shortener;
+
+	/** The journal that records the stored changes. */
+	private final Journal journal;
+
+	/** The shared change log. */
+	private final ChangeLog changeLog;
+
+	/** The segments with the older shortened keys. */
+	private final SegmentStore segmentStore;
+
+	/** Writes the stored changes to segments. */
+	private final SegmentFlusher segmentFlusher;
+
+	/**
+	 * Creates a new shared change follower.
+	 *
+	 * @param shortener
+	 *            The shortener whose shared change log to follow
+	 * @param journal
+	 *            The journal that records the stored changes
+	 * @param changeLog
+	 *            The shared change log
+	 * @param segmentStore
+	 *            The segments with the older shortened keys
+	 * @param segmentFlusher
+	 *            Writes the stored changes to segments
+	 */
+	public SharedChangeFollower(Shortener shortener, Journal journal, ChangeLog changeLog, SegmentStore segmentStore, SegmentFlusher segmentFlusher) {
+		this.shortener = shortener;
+		this.journal = journal;
+		this.changeLog = changeLog;
+		this.segmentStore = segmentStore;
+		this.segmentFlusher = segmentFlusher;
+	}
+
+	//
+	// ACTIONS
+	//
+
+	/**
+	 * Stores all changes of the shared change log that were made since the
+	 * shortener last stored one. If the shortener has never stored a change
+	 * from the shared change log, the shortened keys that are not in the
+	 * shared change log yet are added to it.
+	 *
+	 * @throws IOException
+	 *             if the shared change log can not be read or written
+	 */
+	public void join() throws IOException {
+		synchronized (shortener.getStoreLock()) {
+			changeLog.lock();
+			try {
+				Set<String> sharedKeys = (shortener.getStoredChangeSequence() == 0) ? new HashSet<String>() : null;
+				List<Change> changes;
+				while (!(changes = changeLog.getChanges(shortener.getStoredChangeSequence(), 1000)).isEmpty()) {
+					storeChanges(changes);
+					if (sharedKeys != null) {
+						for (Change change : changes) {
+							sharedKeys.add(change.getOriginalKey());
+						}
+					}
+				}
+				if (sharedKeys != null) {
+					int addedCount = new ChangeLogSeeder(shortener, segmentStore, changeLog).appendMissingKeys(sharedKeys);
+					Logger.normal(this, "Added " + addedCount + " shortened keys to shared change log.");
+				}
+			} finally {
+				changeLog.unlock();
+			}
+			journal.write(new Record(Type.POSITION, "", null, shortener.getStoredChangeSequence()));
+		}
+	}
+
+	/**
+	 * Reads the changes of the other processes from the shared change log.
+	 */
+	public void follow() {
+		if (shortener.isStopped()) {
+			return;
+		}
+		synchronized (shortener.getStoreLock()) {
+			try {
+				List<Change> changes = changeLog.lock();
+				try {
+					storeChanges(changes);
+				} finally {
+					changeLog.unlock();
+				}
+			} catch (IOException ioe1) {
+				Logger.error(this, "Could not read shared change log!", ioe1);
+			}
+		}
+		segmentFlusher.flushIfNecessary();
+	}
+
+	/**
+	 * Stores the changes that other processes appended to the shared change
+	 * log. Keys that are already stored with a key that is not longer are
+	 * skipped; running shortenings of the stored keys are cancelled. The
+	 * caller has to hold the store lock of the shortener.
+	 *
+	 * @param changes
+	 *            The changes of the other processes
+	 */
+	public void storeChanges(List<Change> changes) {
+		for (Change change : changes) {
+			shortener.advanceStoredChangeSequence(change.getSequence());
+			String key = change.getOriginalKey();
+			String prefix = change.getShortenedKey().substring(change.getShortenedKey().indexOf('@') + 1);
+			if ((shortener.getStoredLength(key) <= prefix.length()) || (shortener.getOriginalKey(change.getShortenedKey()) != null)) {
+				continue;
+			}
+			try {
+				byte[] routingKey = new FreenetURI(key).getRoutingKey();
+				if (!Shortener.matchesRoutingKey(prefix, routingKey)) {
+					Logger.error(this, "Shortened key in shared change log does not match original key: " + key + " → " + change.getShortenedKey());
+					continue;
+				}
+				journal.write(new Record(Type.SHORTENED, key, change.getShortenedKey(), change.getSequence()));
+				shortener.addShortenedKey(key, routingKey, prefix);
+			} catch (MalformedURLException mue1) {
+				Logger.error(this, "Invalid key in shared change log: " + key, mue1);
+				continue;
+			}
+			KeyShorteningProgress keyShorteningProgress = shortener.getKeyShorteningProgress(key);
+			if (keyShorteningProgress != null) {
+				keyShorteningProgress.cancel(CancelReason.CANCELLED);
+			}
+		}
+	}
+
+	/**
+	 * Waits until this process holds the claim on the given key, or another
+	 * process has shortened the key.
+	 *
+	 * @param keyClaims
+	 *            The claims on keys
+	 * @param key
+	 *            The normalized original key
+	 * @param keyShorteningProgress
+	 *            The progress of the key shortening
+	 * @return {@code true} if this process holds the claim, {@code false} if
+	 *         the key has been shortened or the key shortening was cancelled
+	 */
+	public boolean waitForClaim(KeyClaims keyClaims, String key, KeyShorteningProgress keyShorteningProgress) {
+		while (!keyClaims.claim(key)) {
+			if (keyShorteningProgress.isCancelled() || shortener.isStopped()) {
+				return false;
+			}
+			try {
+				shortener.getClock().sleep(FOLLOW_INTERVAL);
+			} catch (InterruptedException ie1) {
+				/* ignore, check again. */
+			}
+			follow();
+			if (shortener.getShortenedKey(key) != null) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	//
+	// INTERFACE Runnable
+	//
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void run() {
+		while (!shortener.isStopped()) {
+			try {
+				shortener.getClock().sleep(FOLLOW_INTERVAL);
+			} catch (InterruptedException ie1) {
+				/* ignore, check again. */
+			}
+			follow();
+		}
+	}
+
+}
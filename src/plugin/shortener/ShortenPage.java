@@ -19,6 +19,8 @@ package plugin.shortener;
 
 import java.net.MalformedURLException;
 
+import plugin.shortener.ShorteningScheduler.Priority;
+
 /**
  * This page lists all keys that are currently being shortened.
  *
@@ -66,9 +68,11 @@ public class ShortenPage implements Page {
 		}
 		String keyString = request.getHttpRequest().getPartAsString("key", 256);
 		try {
-			shortener.shortenKey(keyString);
+			shortener.shortenKey(keyString, Priority.INTERACTIVE);
 		} catch (MalformedURLException mue1) {
 			return new RedirectResponse("/Shortener/InvalidKey");
+		} catch (SchedulerFullException sfe1) {
+			return new ServiceUnavailableResponse(sfe1.getRetryAfter(), ShortenerPlugin.l10n.getBase().getString("Page.Busy.Text"));
 		}
 		return new RedirectResponse("/Shortener/Index");
 	}
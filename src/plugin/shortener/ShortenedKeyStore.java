@@ -0,0 +1,589 @@
+/*
+ * shortener - ShortenedKeyStore.java - Copyright © 2010 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugin.shortener;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import plugin.shortener.Shortener.ShortenedKey;
+import freenet.support.Base64;
+
+/**
+ * Stores the shortened keys in the order they were added. Readers never
+ * block: {@link #getSnapshot()} returns an immutable view of the store that
+ * is not affected by later changes, without copying the stored keys.
+ * <p>
+ * Shortened keys are not stored as objects. Every shortened key is a record
+ * in a couple of primitive arrays: the routing key of the original key, the
+ * number of routing key characters used for the shortened key, and the rest
+ * of the original key as UTF-8. The original key and the shortened key are
+ * only turned into strings when a {@link ShortenedKey} is requested. Names
+ * that are not a prefix of the encoded routing key, like the names allocated
+ * by a {@link CounterAllocator}, are stored as strings, with a length of
+ * {@code 0}.
+ * <p>
+ * Two hash tables map original keys and shortened keys to their records.
+ * <p>
+ * The arrays only ever grow at the end. Appending a key writes beyond the
+ * end of all existing snapshots so that the arrays can be shared; replacing
+ * a key copies the arrays of the lengths and the names.
+ * <p>
+ * A replaced shortened key, e.g. a provisional key, still redirects to its
+ * original key, so it is kept as an alias: it is only found by
+ * {@link #getOriginalKey(String)}, and listed by
+ * {@link Snapshot#getAliases()}. Replacements are rare, so the aliases are
+ * kept in a map that is copied for every replacement.
+ *
+ * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+ */
+public class ShortenedKeyStore {
+
+	/** The length of the routing keys. */
+	public static final int ROUTING_KEY_LENGTH = 32;
+
+	/** The key types that are stored as their index. */
+	private static final String[] KEY_TYPES = { "CHK", "SSK", "USK" };
+
+	/** The key type of original keys that are stored completely. */
+	private static final byte VERBATIM = -1;
+
+	/** The current snapshot. */
+	private volatile Snapshot snapshot = new Snapshot(new Records(16), 0, Collections.<String, String> emptyMap(), 0);
+
+	/** The number of used slots in the table of shortened keys. */
+	private int shortenedKeySlots;
+
+	//
+	// ACCESSORS
+	//
+
+	/**
+	 * Returns the shortened key for the given original key.
+	 *
+	 * @param originalKey
+	 *            The normalized original key
+	 * @return The shortened key, or {@code null} if the key has not been
+	 *         shortened
+	 */
+	public ShortenedKey get(String originalKey) {
+		return snapshot.find(originalKey);
+	}
+
+	/**
+	 * Returns the original key for the given shortened key, which may also be
+	 * an alias.
+	 *
+	 * @param shortenedKey
+	 *            The shortened key
+	 * @return The original key, or {@code null} if no key has been shortened
+	 *         to the given key
+	 */
+	public String getOriginalKey(String shortenedKey) {
+		return snapshot.findOriginalKey(shortenedKey);
+	}
+
+	/**
+	 * Returns an immutable snapshot of the current content of the store.
+	 *
+	 * @return The current snapshot
+	 */
+	public Snapshot getSnapshot() {
+		return snapshot;
+	}
+
+	//
+	// ACTIONS
+	//
+
+	/**
+	 * Stores a shortened key, replacing a shortened key that is already
+	 * stored for the same original key; the replaced shortened key is kept as
+	 * an alias. The shortened key consists of the first {@code length}
+	 * characters of the Base64-encoded routing key.
+	 *
+	 * @param originalKey
+	 *            The normalized original key
+	 * @param routingKey
+	 *            The routing key of the original key (
+	 *            {@value #ROUTING_KEY_LENGTH} bytes)
+	 * @param length
+	 *            The number of routing key characters in the shortened key
+	 */
+	public void put(String originalKey, byte[] routingKey, int length) {
+		put(originalKey, routingKey, length, null);
+	}
+
+	/**
+	 * Stores a shortened key with a name that is not a prefix of the encoded
+	 * routing key, replacing a shortened key that is already stored for the
+	 * same original key; the replaced shortened key is kept as an alias.
+	 *
+	 * @param originalKey
+	 *            The normalized original key
+	 * @param routingKey
+	 *            The routing key of the original key (
+	 *            {@value #ROUTING_KEY_LENGTH} bytes)
+	 * @param name
+	 *            The name of the shortened key, without “KSK@”
+	 */
+	public void put(String originalKey, byte[] routingKey, String name) {
+		put(originalKey, routingKey, 0, name);
+	}
+
+	//
+	// PRIVATE METHODS
+	//
+
+	/**
+	 * Stores a shortened key, replacing a shortened key that is already
+	 * stored for the same original key.
+	 *
+	 * @param originalKey
+	 *            The normalized original key
+	 * @param routingKey
+	 *            The routing key of the original key
+	 * @param length
+	 *            The number of routing key characters in the shortened key,
+	 *            or {@code 0} if a name is given
+	 * @param name
+	 *            The name, or {@code null} if the shortened key is a prefix
+	 *            of the routing key
+	 */
+	private synchronized void put(String originalKey, byte[] routingKey, int length, String name) {
+		if (routingKey.length != ROUTING_KEY_LENGTH) {
+			throw new IllegalArgumentException("Routing key has " + routingKey.length + " bytes, not " + ROUTING_KEY_LENGTH + ".");
+		}
+		Snapshot oldSnapshot = snapshot;
+		Records records = oldSnapshot.records;
+		int size = oldSnapshot.size;
+		Map<String, String> aliases = oldSnapshot.aliases;
+		int hash = originalKey.hashCode();
+		int index = records.find(originalKey, hash, size);
+		if ((size == records.capacity()) || (shortenedKeySlots == records.capacity())) {
+			records = records.grow(size);
+			shortenedKeySlots = size;
+		}
+		if (index != -1) {
+			String replacedKey = records.getShortenedKey(index);
+			records = records.replace(index, length, name);
+			if (!replacedKey.equals(records.getShortenedKey(index))) {
+				Map<String, String> newAliases = new HashMap<String, String>(aliases);
+				newAliases.put(replacedKey, originalKey);
+				aliases = Collections.unmodifiableMap(newAliases);
+			}
+		} else {
+			records.append(size++, originalKey, hash, routingKey, length, name);
+		}
+		++shortenedKeySlots;
+		snapshot = new Snapshot(records, size, aliases, oldSnapshot.version + 1);
+	}
+
+	/**
+	 * The arrays the records are stored in.
+	 *
+	 * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+	 */
+	private static class Records {
+
+		/** The routing keys, {@value ShortenedKeyStore#ROUTING_KEY_LENGTH} bytes each. */
+		private final byte[] routingKeys;
+
+		/** The number of routing key characters in the shortened keys. */
+		private final byte[] lengths;
+
+		/** The names of the shortened keys, or null for prefixes. */
+		private final String[] names;
+
+		/** The index of the key types, or {@link ShortenedKeyStore#VERBATIM}. */
+		private final byte[] keyTypes;
+
+		/** The rest of the original keys, after the routing key, as UTF-8. */
+		private final byte[][] suffixes;
+
+		/** The hash codes of the original keys. */
+		private final int[] hashes;
+
+		/** Hash table of the original keys, containing the index + 1. */
+		private final int[] slots;
+
+		/** Hash table of the shortened keys, containing the index + 1. */
+		private final int[] shortenedKeySlots;
+
+		/**
+		 * Creates empty records.
+		 *
+		 * @param capacity
+		 *            The number of records that can be stored
+		 */
+		public Records(int capacity) {
+			this(new byte[capacity * ROUTING_KEY_LENGTH], new byte[capacity], new String[capacity], new byte[capacity], new byte[capacity][], new int[capacity], new int[capacity * 2], new int[capacity * 2]);
+		}
+
+		/**
+		 * Creates records that use the given arrays.
+		 *
+		 * @param routingKeys
+		 *            The routing keys
+		 * @param lengths
+		 *            The lengths of the shortened keys
+		 * @param names
+		 *            The names of the shortened keys
+		 * @param keyTypes
+		 *            The key types
+		 * @param suffixes
+		 *            The suffixes of the original keys
+		 * @param hashes
+		 *            The hash codes of the original keys
+		 * @param slots
+		 *            The hash table of the original keys
+		 * @param shortenedKeySlots
+		 *            The hash table of the shortened keys
+		 */
+		private Records(byte[] routingKeys, byte[] lengths, String[] names, byte[] keyTypes, byte[][] suffixes, int[] hashes, int[] slots, int[] shortenedKeySlots) {
+			this.routingKeys = routingKeys;
+			this.lengths = lengths;
+			this.names = names;
+			this.keyTypes = keyTypes;
+			this.suffixes = suffixes;
+			this.hashes = hashes;
+			this.slots = slots;
+			this.shortenedKeySlots = shortenedKeySlots;
+		}
+
+		/**
+		 * Returns the number of records that can be stored.
+		 *
+		 * @return The capacity of the records
+		 */
+		public int capacity() {
+			return lengths.length;
+		}
+
+		/**
+		 * Returns the index of the given original key.
+		 *
+		 * @param originalKey
+		 *            The normalized original key
+		 * @param hash
+		 *            The hash code of the original key
+		 * @param size
+		 *            The number of valid records
+		 * @return The index of the original key, or {@code -1} if the key is
+		 *         not stored
+		 */
+		public int find(String originalKey, int hash, int size) {
+			int mask = slots.length - 1;
+			for (int slot = spread(hash) & mask; slots[slot] != 0; slot = (slot + 1) & mask) {
+				int index = slots[slot] - 1;
+				if ((index < size) && (hashes[index] == hash) && getOriginalKey(index).equals(originalKey)) {
+					return index;
+				}
+			}
+			return -1;
+		}
+
+		/**
+		 * Returns the index of the given shortened key.
+		 *
+		 * @param shortenedKey
+		 *            The shortened key
+		 * @param size
+		 *            The number of valid records
+		 * @return The index of the shortened key, or {@code -1} if the key is
+		 *         not stored
+		 */
+		public int findShortenedKey(String shortenedKey, int size) {
+			int mask = shortenedKeySlots.length - 1;
+			for (int slot = spread(shortenedKey.hashCode()) & mask; shortenedKeySlots[slot] != 0; slot = (slot + 1) & mask) {
+				int index = shortenedKeySlots[slot] - 1;
+				/* slots of replaced shortened keys are not removed. */
+				if ((index < size) && getShortenedKey(index).equals(shortenedKey)) {
+					return index;
+				}
+			}
+			return -1;
+		}
+
+		/**
+		 * Returns the original key of the given record.
+		 *
+		 * @param index
+		 *            The index of the record
+		 * @return The original key
+		 */
+		public String getOriginalKey(int index) {
+			String suffix = Segment.decode(suffixes[index]);
+			if (keyTypes[index] == VERBATIM) {
+				return suffix;
+			}
+			return KEY_TYPES[keyTypes[index]] + "@" + Base64.encode(getRoutingKey(index)) + suffix;
+		}
+
+		/**
+		 * Returns the shortened key of the given record.
+		 *
+		 * @param index
+		 *            The index of the record
+		 * @return The shortened key
+		 */
+		public String getShortenedKey(int index) {
+			if (names[index] != null) {
+				return "KSK@" + names[index];
+			}
+			return "KSK@" + Base64.encode(getRoutingKey(index)).substring(0, lengths[index] & 0xff);
+		}
+
+		/**
+		 * Stores a new record. The index must not be used by any snapshot.
+		 *
+		 * @param index
+		 *            The index of the new record
+		 * @param originalKey
+		 *            The normalized original key
+		 * @param hash
+		 *            The hash code of the original key
+		 * @param routingKey
+		 *            The routing key of the original key
+		 * @param length
+		 *            The number of routing key characters in the shortened
+		 *            key, or {@code 0} if a name is given
+		 * @param name
+		 *            The name, or {@code null}
+		 */
+		public void append(int index, String originalKey, int hash, byte[] routingKey, int length, String name) {
+			System.arraycopy(routingKey, 0, routingKeys, index * ROUTING_KEY_LENGTH, ROUTING_KEY_LENGTH);
+			lengths[index] = (byte) length;
+			names[index] = name;
+			String encodedRoutingKey = Base64.encode(routingKey);
+			keyTypes[index] = VERBATIM;
+			suffixes[index] = Segment.encode(originalKey);
+			for (byte keyType = 0; keyType < KEY_TYPES.length; ++keyType) {
+				String prefix = KEY_TYPES[keyType] + "@" + encodedRoutingKey;
+				if (originalKey.startsWith(prefix)) {
+					keyTypes[index] = keyType;
+					suffixes[index] = Segment.encode(originalKey.substring(prefix.length()));
+					break;
+				}
+			}
+			hashes[index] = hash;
+			insertSlot(slots, hash, index);
+			insertSlot(shortenedKeySlots, getShortenedKey(index).hashCode(), index);
+		}
+
+		/**
+		 * Returns records that differ from these records only in the
+		 * shortened key of the given record. The slots of the old shortened
+		 * key are kept because older snapshots still use them.
+		 *
+		 * @param index
+		 *            The index of the record to change
+		 * @param length
+		 *            The new length of the shortened key, or {@code 0} if a
+		 *            name is given
+		 * @param name
+		 *            The new name, or {@code null}
+		 * @return The new records
+		 */
+		public Records replace(int index, int length, String name) {
+			byte[] newLengths = lengths.clone();
+			newLengths[index] = (byte) length;
+			String[] newNames = names.clone();
+			newNames[index] = name;
+			Records records = new Records(routingKeys, newLengths, newNames, keyTypes, suffixes, hashes, slots, shortenedKeySlots);
+			insertSlot(shortenedKeySlots, records.getShortenedKey(index).hashCode(), index);
+			return records;
+		}
+
+		/**
+		 * Returns a copy of these records with twice the capacity. The hash
+		 * tables are rebuilt.
+		 *
+		 * @param size
+		 *            The number of valid records
+		 * @return The new records
+		 */
+		public Records grow(int size) {
+			int capacity = capacity() * 2;
+			Records records = new Records(Arrays.copyOf(routingKeys, capacity * ROUTING_KEY_LENGTH), Arrays.copyOf(lengths, capacity), Arrays.copyOf(names, capacity), Arrays.copyOf(keyTypes, capacity), Arrays.copyOf(suffixes, capacity), Arrays.copyOf(hashes, capacity), new int[capacity * 2], new int[capacity * 2]);
+			for (int index = 0; index < size; ++index) {
+				insertSlot(records.slots, hashes[index], index);
+				insertSlot(records.shortenedKeySlots, getShortenedKey(index).hashCode(), index);
+			}
+			return records;
+		}
+
+		//
+		// PRIVATE METHODS
+		//
+
+		/**
+		 * Returns the routing key of the given record.
+		 *
+		 * @param index
+		 *            The index of the record
+		 * @return The routing key
+		 */
+		private byte[] getRoutingKey(int index) {
+			return Arrays.copyOfRange(routingKeys, index * ROUTING_KEY_LENGTH, (index + 1) * ROUTING_KEY_LENGTH);
+		}
+
+		/**
+		 * Adds the given record to the given hash table.
+		 *
+		 * @param slots
+		 *            The hash table
+		 * @param hash
+		 *            The hash code of the key
+		 * @param index
+		 *            The index of the record
+		 */
+		private static void insertSlot(int[] slots, int hash, int index) {
+			int mask = slots.length - 1;
+			int slot = spread(hash) & mask;
+			while (slots[slot] != 0) {
+				slot = (slot + 1) & mask;
+			}
+			slots[slot] = index + 1;
+		}
+
+		/**
+		 * Spreads the bits of the given hash code so that keys with similar
+		 * hash codes do not end up in neighbouring slots.
+		 *
+		 * @param hash
+		 *            The hash code
+		 * @return The spread hash code
+		 */
+		private static int spread(int hash) {
+			int spreadHash = hash * 0x9e3779b9;
+			return spreadHash ^ (spreadHash >>> 16);
+		}
+
+	}
+
+	/**
+	 * Immutable view of the store at a certain point in time.
+	 *
+	 * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+	 */
+	public static class Snapshot extends AbstractList<ShortenedKey> {
+
+		/** The records, possibly shared. */
+		private final Records records;
+
+		/** The number of shortened keys in this snapshot. */
+		private final int size;
+
+		/** The original keys of the aliases, by alias. */
+		private final Map<String, String> aliases;
+
+		/** The version of the store. */
+		private final long version;
+
+		/**
+		 * Creates a new snapshot.
+		 *
+		 * @param records
+		 *            The records of the shortened keys
+		 * @param size
+		 *            The number of shortened keys in this snapshot
+		 * @param aliases
+		 *            The original keys of the aliases, by alias
+		 * @param version
+		 *            The version of the store
+		 */
+		Snapshot(Records records, int size, Map<String, String> aliases, long version) {
+			this.records = records;
+			this.size = size;
+			this.aliases = aliases;
+			this.version = version;
+		}
+
+		/**
+		 * Returns the version of the store this snapshot was taken of. The
+		 * version is incremented with every change of the store.
+		 *
+		 * @return The version of the store
+		 */
+		public long getVersion() {
+			return version;
+		}
+
+		/**
+		 * Returns the aliases of this snapshot: shortened keys that have been
+		 * replaced by a shorter key but still redirect to their original key.
+		 * Aliases are not contained in the list of shortened keys.
+		 *
+		 * @return The original keys of the aliases, by alias
+		 */
+		public Map<String, String> getAliases() {
+			return aliases;
+		}
+
+		/**
+		 * Returns the shortened key for the given original key.
+		 *
+		 * @param originalKey
+		 *            The normalized original key
+		 * @return The shortened key, or {@code null} if this snapshot does not
+		 *         contain the original key
+		 */
+		public ShortenedKey find(String originalKey) {
+			int index = records.find(originalKey, originalKey.hashCode(), size);
+			return (index == -1) ? null : get(index);
+		}
+
+		/**
+		 * Returns the original key for the given shortened key, which may
+		 * also be an alias.
+		 *
+		 * @param shortenedKey
+		 *            The shortened key
+		 * @return The original key, or {@code null} if this snapshot does not
+		 *         contain the shortened key
+		 */
+		public String findOriginalKey(String shortenedKey) {
+			int index = records.findShortenedKey(shortenedKey, size);
+			return (index == -1) ? aliases.get(shortenedKey) : records.getOriginalKey(index);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public ShortenedKey get(int index) {
+			if ((index < 0) || (index >= size)) {
+				throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+			}
+			return new ShortenedKey(records.getOriginalKey(index), records.getShortenedKey(index));
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public int size() {
+			return size;
+		}
+
+	}
+
+}
@@ -17,18 +17,30 @@
 
 package plugin.shortener;
 
+import java.io.IOException;
 import java.net.MalformedURLException;
-import java.util.HashSet;
-import java.util.LinkedHashMap;
-import java.util.Map;
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import net.pterodactylus.util.template.Accessor;
-import freenet.client.HighLevelSimpleClient;
-import freenet.client.InsertException;
+import plugin.shortener.ChangeLog.Change;
+import plugin.shortener.InsertLimiter.LimitListener;
+import plugin.shortener.Journal.Record;
+import plugin.shortener.Journal.Record.Type;
+import plugin.shortener.Segment.Entry;
+import plugin.shortener.ShortenedKeyStore.Snapshot;
+import plugin.shortener.ShorteningScheduler.Priority;
 import freenet.keys.FreenetURI;
 import freenet.support.Base64;
 import freenet.support.Executor;
+import freenet.support.Logger;
 import freenet.support.TimeUtil;
 
 /**
@@ -39,98 +51,1579 @@ import freenet.support.TimeUtil;
  */
 public class Shortener {
 
-	/** The already shortened keys. */
-	private final Map<String, ShortenedKey> shortenedKeys = new LinkedHashMap<String, ShortenedKey>();
+	/** The maximum length of a shortened key, without the “KSK@”. */
+	static final int MAXIMUM_LENGTH = 42;
 
-	/** The keys that are currently shortened. */
-	private final Set<KeyShorteningProgress> keyShorteningProgresses = new HashSet<KeyShorteningProgress>();
+	/** The largest number of candidates that are tried per length. */
+	static final int MAXIMUM_CANDIDATES = 8;
+
+	/** The number of cancelled key shortenings that are remembered. */
+	private static final int MAXIMUM_CANCELLED_KEY_SHORTENINGS = 20;
+
+	/** The shortened keys that have not yet been written to a segment. */
+	private volatile ShortenedKeyStore shortenedKeys = new ShortenedKeyStore();
+
+	/** The segments with all older shortened keys. */
+	private final SegmentStore segmentStore;
+
+	/** Lock for adding shortened keys and writing them to segments. */
+	private final Object storeLock = new Object();
+
+	/** Writes the shortened keys to segments. */
+	private final SegmentFlusher segmentFlusher;
+
+	/** Stores the changes of other processes from a shared change log. */
+	private final SharedChangeFollower sharedChangeFollower;
+
+	/** The prefixes that are known to be occupied. */
+	private final PrefixTrie occupiedPrefixes = new PrefixTrie();
+
+	/** The keys that are currently shortened, by their normalized keys. */
+	private final ConcurrentMap<String, KeyShorteningProgress> keyShorteningProgresses = new ConcurrentHashMap<String, KeyShorteningProgress>();
+
+	/** Immutable copy of the running key shortenings, for readers. */
+	private volatile Collection<KeyShorteningProgress> keyShorteningProgressSnapshot = Collections.emptyList();
+
+	/** The most recently cancelled key shortenings, newest first. */
+	private volatile List<KeyShorteningProgress> cancelledKeyShortenings = Collections.emptyList();
+
+	/** The listeners for key shortening events. */
+	private final List<ShortenerListener> shortenerListeners = new CopyOnWriteArrayList<ShortenerListener>();
+
+	/** Keys from the journal whose shortening has not been resumed yet. */
+	private final Queue<String> keysToResume = new ConcurrentLinkedQueue<String>();
+
+	/** The keys whose search for a shorter key has to be resumed. */
+	private final Queue<String> keysToUpgrade = new ConcurrentLinkedQueue<String>();
 
 	/** The node’s executor. */
 	private final Executor nodeExecutor;
 
-	/** The node’s high-level simple client. */
-	private final HighLevelSimpleClient highLevelSimpleClient;
+	/** The scheduler for the shortening jobs. */
+	private final ShorteningScheduler shorteningScheduler;
+
+	/** The backend that inserts the redirects. */
+	private final InsertBackend insertBackend;
+
+	/** The journal that records all shortened keys. */
+	private final Journal journal;
+
+	/** The numbered changes to the shortened keys, for other nodes. */
+	private final ChangeLog changeLog;
+
+	/** The sequence number of the last change that is stored here. */
+	private long storedChangeSequence;
+
+	/** The claims on keys, if the change log is shared. */
+	private volatile KeyClaims keyClaims;
+
+	/** The coordinator that gives keys to peers. */
+	private volatile PeerCoordinator peerCoordinator;
+
+	/** Whether the shortener has been stopped. */
+	private volatile boolean stopped;
+
+	/** The time running jobs are given to finish when stopping. */
+	private volatile long drainTimeout = 30 * 1000;
+
+	/** The minimum number of keys that are shortened locally at once. */
+	private volatile int localWorkers = 4;
+
+	/** The number of key lengths that are tried in parallel. */
+	private volatile int searchWindow = 1;
+
+	/** The number of candidates per length of a search with a budget. */
+	private volatile int candidateCount = 4;
+
+	/** The collision statistics that choose the start length, or null. */
+	private volatile LengthStatistics lengthStatistics;
+
+	/** The filter of prefixes that are probably occupied, or null. */
+	private volatile OccupancyFilter occupancyFilter;
+
+	/** The length of provisional keys, or 0 to not use them. */
+	private volatile int provisionalLength;
+
+	/** The allocator for names from the plugin’s namespace, or null. */
+	private volatile CounterAllocator counterAllocator;
+
+	/** The allocation of jobs that do not choose one. */
+	private volatile Allocation defaultAllocation = Allocation.PREFIX;
+
+	/** The retry policy for transient insert failures. */
+	private volatile RetryPolicy retryPolicy = new RetryPolicy(5, 5 * 1000, 2 * 60 * 1000);
+
+	/** The statistics about all inserts. */
+	private final InsertStatistics insertStatistics = new InsertStatistics();
+
+	/** The clock that measures latencies, deadlines, and retry delays. */
+	private final Clock clock;
+
+	/** The limiter for concurrently running inserts. */
+	private final InsertLimiter insertLimiter;
+
+	/** The insert attempts that are currently running. */
+	private final RunningAttempts runningAttempts;
+
+	/**
+	 * Creates a new key shortener.
+	 *
+	 * @param nodeExecutor
+	 *            The node’s executor
+	 * @param insertBackend
+	 *            The backend that inserts the redirects
+	 * @param journal
+	 *            The journal that records all shortened keys
+	 * @param segmentStore
+	 *            The segments with the shortened keys
+	 * @param changeLog
+	 *            The numbered changes to the shortened keys
+	 */
+	public Shortener(Executor nodeExecutor, InsertBackend insertBackend, Journal journal, SegmentStore segmentStore, ChangeLog changeLog) {
+		this(nodeExecutor, insertBackend, journal, segmentStore, changeLog, SystemClock.INSTANCE);
+	}
+
+	/**
+	 * Creates a new key shortener that measures all latencies, deadlines,
+	 * and retry delays with the given clock.
+	 *
+	 * @param nodeExecutor
+	 *            The node’s executor
+	 * @param insertBackend
+	 *            The backend that inserts the redirects
+	 * @param journal
+	 *            The journal that records all shortened keys
+	 * @param segmentStore
+	 *            The segments with the shortened keys
+	 * @param changeLog
+	 *            The numbered changes to the shortened keys
+	 * @param clock
+	 *            The clock that measures latencies, deadlines, and retry
+	 *            delays
+	 */
+	public Shortener(Executor nodeExecutor, InsertBackend insertBackend, Journal journal, SegmentStore segmentStore, ChangeLog changeLog, Clock clock) {
+		this.nodeExecutor = nodeExecutor;
+		this.insertBackend = insertBackend;
+		this.journal = journal;
+		this.segmentStore = segmentStore;
+		this.changeLog = changeLog;
+		this.clock = clock;
+		this.segmentFlusher = new SegmentFlusher(this, nodeExecutor, segmentStore, journal, changeLog);
+		this.sharedChangeFollower = new SharedChangeFollower(this, journal, changeLog, segmentStore, segmentFlusher);
+		this.insertLimiter = new InsertLimiter(4, 1, 64, 5 * 60 * 1000, 0.5, clock);
+		this.runningAttempts = new RunningAttempts(clock);
+		this.shorteningScheduler = new ShorteningScheduler(nodeExecutor, localWorkers, 100, clock);
+		insertLimiter.addLimitListener(new LimitListener() {
+
+			public void limitChanged(int limit) {
+				updateWorkerLimit();
+			}
+
+		});
+		updateWorkerLimit();
+	}
+
+	//
+	// LISTENER MANAGEMENT
+	//
+
+	/**
+	 * Adds a listener for key shortening events.
+	 *
+	 * @param shortenerListener
+	 *            The listener to add
+	 */
+	public void addShortenerListener(ShortenerListener shortenerListener) {
+		shortenerListeners.add(shortenerListener);
+	}
+
+	/**
+	 * Removes a listener for key shortening events.
+	 *
+	 * @param shortenerListener
+	 *            The listener to remove
+	 */
+	public void removeShortenerListener(ShortenerListener shortenerListener) {
+		shortenerListeners.remove(shortenerListener);
+	}
+
+	//
+	// ACCESSORS
+	//
+
+	/**
+	 * Returns progress information about all currently running key shortenings.
+	 * The returned collection is immutable and is not affected by key
+	 * shortenings that are started or finished later.
+	 *
+	 * @return Progress information about the current key shortenings
+	 */
+	public Collection<KeyShorteningProgress> getKeyShorteningProgresses() {
+		return keyShorteningProgressSnapshot;
+	}
+
+	/**
+	 * Returns the most recently cancelled or expired key shortenings, newest
+	 * first. At most {@value #MAXIMUM_CANCELLED_KEY_SHORTENINGS} key
+	 * shortenings are remembered. The returned list is immutable.
+	 *
+	 * @return The most recently cancelled key shortenings
+	 */
+	public List<KeyShorteningProgress> getCancelledKeyShortenings() {
+		return cancelledKeyShortenings;
+	}
+
+	/**
+	 * Returns the shortened keys that have not yet been written to a segment.
+	 * The returned snapshot is immutable and is not affected by keys that are
+	 * shortened later.
+	 *
+	 * @return The shortened keys that are kept in memory
+	 */
+	public Snapshot getShortenedKeys() {
+		return shortenedKeys.getSnapshot();
+	}
+
+	/**
+	 * Returns a page of the shortened keys. The keys that are kept in memory
+	 * come first, in the order they were shortened, followed by the keys from
+	 * the segments, sorted by original key.
+	 *
+	 * @param offset
+	 *            The index of the first shortened key to return
+	 * @param count
+	 *            The maximum number of shortened keys to return
+	 * @return The shortened keys
+	 */
+	public List<ShortenedKey> getShortenedKeys(int offset, int count) {
+		Snapshot snapshot = shortenedKeys.getSnapshot();
+		List<ShortenedKey> page = new ArrayList<ShortenedKey>();
+		for (int index = offset; (index < snapshot.size()) && (page.size() < count); ++index) {
+			page.add(snapshot.get(index));
+		}
+		if (page.size() < count) {
+			for (Entry entry : segmentStore.getEntries(Math.max(0, offset - snapshot.size()), count - page.size())) {
+				page.add(new ShortenedKey(Segment.decode(entry.getKey()), Segment.decode(entry.getValue())));
+			}
+		}
+		return page;
+	}
+
+	/**
+	 * Returns the number of shortened keys. Keys that have been shortened
+	 * again are counted more than once until their segments are merged.
+	 *
+	 * @return The number of shortened keys
+	 */
+	public int getShortenedKeyCount() {
+		return shortenedKeys.getSnapshot().size() + segmentStore.getEntryCount();
+	}
+
+	/**
+	 * Returns the shortened key for the given original key.
+	 *
+	 * @param key
+	 *            The normalized original key
+	 * @return The shortened key, or {@code null} if the key has not been
+	 *         shortened
+	 */
+	public ShortenedKey getShortenedKey(String key) {
+		ShortenedKey shortenedKey = shortenedKeys.get(key);
+		if (shortenedKey != null) {
+			return shortenedKey;
+		}
+		String storedShortenedKey = segmentStore.getShortenedKey(key);
+		return (storedShortenedKey == null) ? null : new ShortenedKey(key, storedShortenedKey);
+	}
+
+	/**
+	 * Returns the original key for the given shortened key.
+	 *
+	 * @param shortenedKey
+	 *            The normalized shortened key
+	 * @return The original key, or {@code null} if no key has been shortened
+	 *         to the given key
+	 */
+	public String getOriginalKey(String shortenedKey) {
+		String originalKey = shortenedKeys.getOriginalKey(shortenedKey);
+		if (originalKey != null) {
+			return originalKey;
+		}
+		return segmentStore.getOriginalKey(shortenedKey);
+	}
+
+	/**
+	 * Returns the progress of the running shortening of the given key.
+	 *
+	 * @param key
+	 *            The normalized original key
+	 * @return The progress of the key shortening, or {@code null} if the key
+	 *         is not being shortened
+	 */
+	public KeyShorteningProgress getKeyShorteningProgress(String key) {
+		return keyShorteningProgresses.get(key);
+	}
+
+	/**
+	 * Returns the number of routing key prefixes that are known to be
+	 * occupied.
+	 *
+	 * @return The number of occupied prefixes
+	 */
+	public int getOccupiedPrefixCount() {
+		return occupiedPrefixes.size();
+	}
+
+	/**
+	 * Returns the scheduler that runs the shortening jobs.
+	 *
+	 * @return The shortening scheduler
+	 */
+	public ShorteningScheduler getShorteningScheduler() {
+		return shorteningScheduler;
+	}
+
+	/**
+	 * Returns the statistics about all inserts.
+	 *
+	 * @return The insert statistics
+	 */
+	public InsertStatistics getInsertStatistics() {
+		return insertStatistics;
+	}
+
+	/**
+	 * Returns the limiter for concurrently running inserts.
+	 *
+	 * @return The insert limiter
+	 */
+	public InsertLimiter getInsertLimiter() {
+		return insertLimiter;
+	}
+
+	/**
+	 * Returns the numbered changes to the shortened keys.
+	 *
+	 * @return The change log
+	 */
+	public ChangeLog getChangeLog() {
+		return changeLog;
+	}
+
+	/**
+	 * Returns the retry policy for transient insert failures.
+	 *
+	 * @return The retry policy
+	 */
+	public RetryPolicy getRetryPolicy() {
+		return retryPolicy;
+	}
+
+	/**
+	 * Returns the claims on keys that are shared with the other processes
+	 * that use the same shared change log.
+	 *
+	 * @return The claims on keys, or {@code null} if keys are not claimed
+	 */
+	public KeyClaims getKeyClaims() {
+		return keyClaims;
+	}
+
+	/**
+	 * Sets the claims on keys that are shared with the other processes that
+	 * use the same shared change log. Only one process shortens a key; the
+	 * others wait for its result.
+	 *
+	 * @param keyClaims
+	 *            The claims on keys, or {@code null} to not claim keys
+	 */
+	public void setKeyClaims(KeyClaims keyClaims) {
+		this.keyClaims = keyClaims;
+	}
+
+	/**
+	 * Returns the coordinator that gives keys to peers.
+	 *
+	 * @return The peer coordinator, or {@code null} if all keys are shortened
+	 *         locally
+	 */
+	public PeerCoordinator getPeerCoordinator() {
+		return peerCoordinator;
+	}
+
+	/**
+	 * Sets the coordinator that gives keys to peers. Keys are offered to the
+	 * peers before they are shortened locally.
+	 *
+	 * @param peerCoordinator
+	 *            The peer coordinator, or {@code null} to shorten all keys
+	 *            locally
+	 */
+	public void setPeerCoordinator(PeerCoordinator peerCoordinator) {
+		this.peerCoordinator = peerCoordinator;
+		updateWorkerLimit();
+	}
+
+	/**
+	 * Returns the minimum number of keys that are shortened locally at the
+	 * same time. More keys are shortened if the {@link InsertLimiter} allows
+	 * more inserts than these workers can start.
+	 *
+	 * @return The number of local workers
+	 */
+	public int getLocalWorkers() {
+		return localWorkers;
+	}
+
+	/**
+	 * Sets the minimum number of keys that are shortened locally at the same
+	 * time.
+	 *
+	 * @param localWorkers
+	 *            The number of local workers
+	 */
+	public void setLocalWorkers(int localWorkers) {
+		this.localWorkers = Math.max(1, localWorkers);
+		updateWorkerLimit();
+	}
+
+	/**
+	 * Sets the number of jobs per priority that may wait for a worker. Jobs
+	 * that are submitted while the queue is full are rejected.
+	 *
+	 * @param queueCapacity
+	 *            The number of waiting jobs per priority
+	 */
+	public void setQueueCapacity(int queueCapacity) {
+		shorteningScheduler.setQueueCapacity(queueCapacity);
+	}
+
+	/**
+	 * Sets the retry policy for transient insert failures.
+	 *
+	 * @param retryPolicy
+	 *            The new retry policy
+	 */
+	public void setRetryPolicy(RetryPolicy retryPolicy) {
+		this.retryPolicy = retryPolicy;
+	}
+
+	/**
+	 * Returns the number of shortened keys that are kept in memory before
+	 * they are written to a new segment.
+	 *
+	 * @return The flush threshold
+	 */
+	public int getFlushThreshold() {
+		return segmentFlusher.getFlushThreshold();
+	}
+
+	/**
+	 * Sets the number of shortened keys that are kept in memory before they
+	 * are written to a new segment.
+	 *
+	 * @param flushThreshold
+	 *            The new flush threshold
+	 */
+	public void setFlushThreshold(int flushThreshold) {
+		segmentFlusher.setFlushThreshold(flushThreshold);
+	}
+
+	/**
+	 * Returns the number of key lengths that are tried in parallel.
+	 *
+	 * @return The number of key lengths that are tried in parallel
+	 */
+	public int getSearchWindow() {
+		return searchWindow;
+	}
+
+	/**
+	 * Sets the number of key lengths that are tried in parallel. With a search
+	 * window of {@code 1} every length is tried after the previous one has
+	 * failed; with a larger search window the next lengths are already being
+	 * inserted while the shorter ones are still running. The shortest
+	 * successful insert wins, longer attempts are cancelled.
+	 *
+	 * @param searchWindow
+	 *            The number of key lengths to try in parallel
+	 */
+	public void setSearchWindow(int searchWindow) {
+		this.searchWindow = Math.max(1, searchWindow);
+		updateWorkerLimit();
+	}
+
+	/**
+	 * Returns the number of candidates that a search with a latency budget
+	 * tries per length.
+	 *
+	 * @return The number of candidates per length
+	 */
+	public int getCandidateCount() {
+		return candidateCount;
+	}
+
+	/**
+	 * Sets the number of candidates that a search with a latency budget tries
+	 * per length. The candidates of a length are the substrings of the
+	 * encoded routing key that start at the first characters.
+	 *
+	 * @param candidateCount
+	 *            The number of candidates per length (between {@code 1} and
+	 *            {@value #MAXIMUM_CANDIDATES})
+	 */
+	public void setCandidateCount(int candidateCount) {
+		this.candidateCount = Math.max(1, Math.min(MAXIMUM_CANDIDATES, candidateCount));
+	}
+
+	/**
+	 * Returns the collision statistics that choose the length new jobs start
+	 * at.
+	 *
+	 * @return The length statistics, or {@code null} if every job starts at
+	 *         the shortest length that is not known to be occupied
+	 */
+	public LengthStatistics getLengthStatistics() {
+		return lengthStatistics;
+	}
+
+	/**
+	 * Sets the collision statistics that choose the length new jobs start at.
+	 * The statistics are updated with the outcome of every insert, and stored
+	 * when the shortener is stopped.
+	 *
+	 * @param lengthStatistics
+	 *            The length statistics, or {@code null} to start every job at
+	 *            the shortest length that is not known to be occupied
+	 */
+	public void setLengthStatistics(LengthStatistics lengthStatistics) {
+		this.lengthStatistics = lengthStatistics;
+	}
+
+	/**
+	 * Returns the filter of prefixes that are probably occupied.
+	 *
+	 * @return The occupancy filter, or {@code null} if only prefixes that are
+	 *         known to be occupied are skipped
+	 */
+	public OccupancyFilter getOccupancyFilter() {
+		return occupancyFilter;
+	}
+
+	/**
+	 * Sets the filter of prefixes that are probably occupied. The filter is
+	 * fed with all prefixes that are stored or collide, consulted before
+	 * every insert, and stored when the shortener is stopped.
+	 *
+	 * @param occupancyFilter
+	 *            The occupancy filter, or {@code null} to only skip prefixes
+	 *            that are known to be occupied
+	 */
+	public void setOccupancyFilter(OccupancyFilter occupancyFilter) {
+		OccupancyFilter oldOccupancyFilter = this.occupancyFilter;
+		this.occupancyFilter = occupancyFilter;
+		if (oldOccupancyFilter != null) {
+			oldOccupancyFilter.save();
+		}
+	}
+
+	/**
+	 * Returns the length of provisional keys.
+	 *
+	 * @return The length of provisional keys, or {@code 0} if no provisional
+	 *         keys are used
+	 */
+	public int getProvisionalLength() {
+		return provisionalLength;
+	}
+
+	/**
+	 * Sets the length of provisional keys. If a length is set, every job
+	 * first inserts a key of this length, which almost never collides, and
+	 * finishes with it; the search for a shorter key continues in the
+	 * background with bulk priority and replaces the provisional key once it
+	 * has found one.
+	 *
+	 * @param provisionalLength
+	 *            The length of provisional keys, or {@code 0} to search for
+	 *            the shortest key before finishing
+	 */
+	public void setProvisionalLength(int provisionalLength) {
+		this.provisionalLength = Math.max(0, Math.min(MAXIMUM_LENGTH, provisionalLength));
+	}
+
+	/**
+	 * Returns the allocator for names from the plugin’s namespace.
+	 *
+	 * @return The counter allocator, or {@code null} if
+	 *         {@link Allocation#COUNTER} is not available
+	 */
+	public CounterAllocator getCounterAllocator() {
+		return counterAllocator;
+	}
+
+	/**
+	 * Sets the allocator for names from the plugin’s namespace. Without an
+	 * allocator, jobs with {@link Allocation#COUNTER} search a prefix of the
+	 * routing key instead.
+	 *
+	 * @param counterAllocator
+	 *            The counter allocator, or {@code null}
+	 */
+	public void setCounterAllocator(CounterAllocator counterAllocator) {
+		this.counterAllocator = counterAllocator;
+	}
+
+	/**
+	 * Returns the allocation of jobs that do not choose one.
+	 *
+	 * @return The default allocation
+	 */
+	public Allocation getDefaultAllocation() {
+		return defaultAllocation;
+	}
+
+	/**
+	 * Sets the allocation of jobs that do not choose one, including the jobs
+	 * that are resumed after a restart.
+	 *
+	 * @param defaultAllocation
+	 *            The default allocation
+	 */
+	public void setDefaultAllocation(Allocation defaultAllocation) {
+		this.defaultAllocation = defaultAllocation;
+	}
+
+	/**
+	 * Returns the time running jobs are given to finish when the shortener is
+	 * stopped.
+	 *
+	 * @return The drain timeout (in milliseconds)
+	 */
+	public long getDrainTimeout() {
+		return drainTimeout;
+	}
+
+	/**
+	 * Sets the time running jobs are given to finish when the shortener is
+	 * stopped. Afterwards all insert attempts that are still running are
+	 * cancelled; the jobs are resumed after the next start.
+	 *
+	 * @param drainTimeout
+	 *            The drain timeout (in milliseconds)
+	 */
+	public void setDrainTimeout(long drainTimeout) {
+		this.drainTimeout = Math.max(0, drainTimeout);
+	}
+
+	/**
+	 * Returns the node’s executor, which runs the parallel insert attempts.
+	 *
+	 * @return The node’s executor
+	 */
+	Executor getNodeExecutor() {
+		return nodeExecutor;
+	}
+
+	/**
+	 * Returns the clock that measures latencies, deadlines, and retry delays.
+	 *
+	 * @return The clock of the shortener
+	 */
+	Clock getClock() {
+		return clock;
+	}
+
+	/**
+	 * Returns the insert attempts that are currently running.
+	 *
+	 * @return The running insert attempts
+	 */
+	RunningAttempts getRunningAttempts() {
+		return runningAttempts;
+	}
+
+	/**
+	 * Returns the lock that has to be held for adding shortened keys and
+	 * writing them to segments.
+	 *
+	 * @return The lock of the stores
+	 */
+	Object getStoreLock() {
+		return storeLock;
+	}
+
+	/**
+	 * Returns the follower of the shared change log.
+	 *
+	 * @return The follower of the shared change log
+	 */
+	SharedChangeFollower getSharedChangeFollower() {
+		return sharedChangeFollower;
+	}
+
+	/**
+	 * Returns the sequence number of the last change that is stored here.
+	 * The caller has to hold {@link #storeLock}.
+	 *
+	 * @return The sequence number of the last stored change
+	 */
+	long getStoredChangeSequence() {
+		return storedChangeSequence;
+	}
+
+	/**
+	 * Returns whether the shortener has been stopped.
+	 *
+	 * @return {@code true} if the shortener has been stopped, {@code false}
+	 *         otherwise
+	 */
+	boolean isStopped() {
+		return stopped;
+	}
+
+	//
+	// ACTIONS
+	//
+
+	/**
+	 * Starts the shortener, mapping the segments and restoring the shortened
+	 * keys that were not yet written to a segment from the journal. Key
+	 * shortenings that were not finished when the shortener was stopped are
+	 * started again; they continue with the first length that did not
+	 * collide. If the change log is empty, all shortened keys are added to it.
+	 * If the change log is shared, the changes of the other processes are
+	 * added to the shortened keys, and followed while the shortener runs.
+	 * <p>
+	 * If the stores can not be opened, the shortener stays read-only: it
+	 * only answers lookups of the keys that could be read, and rejects all
+	 * new key shortenings as if it had been stopped.
+	 *
+	 * @throws IOException
+	 *             if the segments, the journal, or the change log can not be
+	 *             read
+	 */
+	public void start() throws IOException {
+		JournalReplayer journalReplayer;
+		boolean seedChangeLog;
+		try {
+			changeLog.open();
+			seedChangeLog = !changeLog.isShared() && (changeLog.getLastSequence() == 0);
+			segmentStore.open();
+			journalReplayer = new JournalReplayer(this, !changeLog.isShared() && !seedChangeLog);
+			journal.open(journalReplayer);
+		} catch (IOException ioe1) {
+			/* without a journal, no new job could be recorded. */
+			stopped = true;
+			throw ioe1;
+		}
+		if (seedChangeLog) {
+			new ChangeLogSeeder(this, segmentStore, changeLog).seed();
+		}
+		if (changeLog.isShared()) {
+			sharedChangeFollower.join();
+			nodeExecutor.execute(sharedChangeFollower, "Shortener Shared Change Follower");
+		}
+		segmentFlusher.flushIfNecessary();
+		nodeExecutor.execute(new DeadlineWatcher(this), "Shortener Deadline Watcher");
+		keysToResume.addAll(journalReplayer.getUnfinishedKeys());
+		keysToUpgrade.addAll(journalReplayer.getUnfinishedUpgrades());
+		if (!keysToResume.isEmpty() || !keysToUpgrade.isEmpty()) {
+			nodeExecutor.execute(new JobResumer(this, keysToResume, keysToUpgrade), "Shortener Job Resumer");
+		}
+	}
+
+	/**
+	 * Stops the shortener. No more jobs are accepted, and all running and
+	 * queued jobs are cancelled; they are given the
+	 * {@link #setDrainTimeout(long) drain timeout} to finish. Cancelled jobs
+	 * keep their records in the journal so that they are resumed with the
+	 * first length that did not collide when the shortener is started again.
+	 * Afterwards all outstanding journal records are written. If jobs are
+	 * still running after the drain timeout, all insert attempts that are
+	 * still running, including the parallel attempts of search windows, are
+	 * cancelled. Inserts that are already running in the backend can not be
+	 * stopped, so the stores are then only closed in the background when the
+	 * last worker and the last insert attempt have returned.
+	 */
+	public void stop() {
+		stopped = true;
+		shorteningScheduler.stop();
+		for (KeyShorteningProgress keyShorteningProgress : keyShorteningProgresses.values()) {
+			keyShorteningProgress.cancel(CancelReason.STOPPED);
+		}
+		long drainTimeout = this.drainTimeout;
+		boolean drained = shorteningScheduler.waitUntilIdle(drainTimeout);
+		if (!drained) {
+			Logger.normal(this, shorteningScheduler.getRunningWorkers() + " jobs did not finish within " + drainTimeout + " ms, they will be resumed after the next start.");
+		}
+		runningAttempts.cancelAll();
+		if (!drained || !runningAttempts.waitUntilEmpty(0)) {
+			Logger.normal(this, "The stores are closed when all jobs and insert attempts have returned.");
+			nodeExecutor.execute(new StoreCloser(this), "Shortener Store Closer");
+			return;
+		}
+		closeStores();
+	}
+
+	/**
+	 * Shortens the given key with the default allocation. If the key has
+	 * already been shortened, a finished progress containing the existing
+	 * shortened key is returned. If the key is currently being shortened, the
+	 * progress of the running job is returned; no second job is started.
+	 *
+	 * @param key
+	 *            The key to shorten
+	 * @param priority
+	 *            The priority of the shortening job
+	 * @return The progress of the key shortening
+	 * @throws MalformedURLException
+	 *             if the key is not a valid Freenet URI
+	 * @throws SchedulerFullException
+	 *             if too many keys with the same priority are already waiting
+	 *             to be shortened
+	 */
+	public KeyShorteningProgress shortenKey(String key, Priority priority) throws MalformedURLException, SchedulerFullException {
+		return shortenKey(key, priority, defaultAllocation);
+	}
+
+	/**
+	 * Shortens the given key. If the key has already been shortened, a
+	 * finished progress containing the existing shortened key is returned. If
+	 * the key is currently being shortened, the progress of the running job is
+	 * returned; no second job is started.
+	 *
+	 * @param key
+	 *            The key to shorten
+	 * @param priority
+	 *            The priority of the shortening job
+	 * @param allocation
+	 *            The way the shortened key is chosen
+	 * @return The progress of the key shortening
+	 * @throws MalformedURLException
+	 *             if the key is not a valid Freenet URI
+	 * @throws SchedulerFullException
+	 *             if too many keys with the same priority are already waiting
+	 *             to be shortened
+	 */
+	public KeyShorteningProgress shortenKey(String key, Priority priority, Allocation allocation) throws MalformedURLException, SchedulerFullException {
+		return shortenKey(key, priority, allocation, 0);
+	}
+
+	/**
+	 * Shortens the given key. If the key has already been shortened, a
+	 * finished progress containing the existing shortened key is returned. If
+	 * the key is currently being shortened, the progress of the running job is
+	 * returned; no second job is started.
+	 * <p>
+	 * With a latency budget, several candidates are tried for every length,
+	 * and the shortest key that could be inserted when the budget has been
+	 * used up is taken. If no key could be inserted by then, the first key
+	 * that can be inserted afterwards is taken.
+	 *
+	 * @param key
+	 *            The key to shorten
+	 * @param priority
+	 *            The priority of the shortening job
+	 * @param allocation
+	 *            The way the shortened key is chosen
+	 * @param latencyBudget
+	 *            The time after which the shortest inserted key is taken (in
+	 *            milliseconds), or {@code 0} to try a single candidate per
+	 *            length
+	 * @return The progress of the key shortening
+	 * @throws MalformedURLException
+	 *             if the key is not a valid Freenet URI
+	 * @throws SchedulerFullException
+	 *             if too many keys with the same priority are already waiting
+	 *             to be shortened
+	 */
+	public KeyShorteningProgress shortenKey(String key, Priority priority, Allocation allocation, long latencyBudget) throws MalformedURLException, SchedulerFullException {
+		return shortenKey(key, priority, allocation, latencyBudget, 0);
+	}
+
+	/**
+	 * Shortens the given key. If the key has already been shortened, a
+	 * finished progress containing the existing shortened key is returned. If
+	 * the key is currently being shortened, the progress of the running job is
+	 * returned; no second job is started, but the deadline of the running job
+	 * is extended to the given timeout.
+	 * <p>
+	 * With a timeout, the job is cancelled once the timeout has passed, and
+	 * its progress shows it as {@link KeyShorteningProgress#isExpired()
+	 * expired}. A key whose insert has already succeeded is still stored.
+	 *
+	 * @param key
+	 *            The key to shorten
+	 * @param priority
+	 *            The priority of the shortening job
+	 * @param allocation
+	 *            The way the shortened key is chosen
+	 * @param latencyBudget
+	 *            The time after which the shortest inserted key is taken (in
+	 *            milliseconds), or {@code 0} to try a single candidate per
+	 *            length
+	 * @param timeout
+	 *            The time after which the job is cancelled (in
+	 *            milliseconds), or {@code 0} to not cancel it
+	 * @return The progress of the key shortening
+	 * @throws MalformedURLException
+	 *             if the key is not a valid Freenet URI
+	 * @throws SchedulerFullException
+	 *             if too many keys with the same priority are already waiting
+	 *             to be shortened, or the shortener has been stopped
+	 */
+	public KeyShorteningProgress shortenKey(String key, Priority priority, Allocation allocation, long latencyBudget, long timeout) throws MalformedURLException, SchedulerFullException {
+		long deadline = (timeout > 0) ? (clock.currentTimeMillis() + timeout) : 0;
+		FreenetURI originalKey = new FreenetURI(key);
+		String normalizedKey = originalKey.toString();
+		ShortenedKey shortenedKey = getShortenedKey(normalizedKey);
+		if (shortenedKey != null) {
+			return new KeyShorteningProgress(normalizedKey, shortenedKey);
+		}
+		if (stopped) {
+			/* the journal is closed, a new job could not be recorded. */
+			throw new SchedulerFullException(60);
+		}
+		KeyShorteningProgress keyShorteningProgress = new KeyShorteningProgress(normalizedKey);
+		keyShorteningProgress.setDeadline(deadline);
+		keyShorteningProgress.addRequester();
+		KeyShorteningProgress runningKeyShorteningProgress = keyShorteningProgresses.putIfAbsent(normalizedKey, keyShorteningProgress);
+		if (runningKeyShorteningProgress != null) {
+			runningKeyShorteningProgress.extendDeadline(deadline);
+			runningKeyShorteningProgress.addRequester();
+			return runningKeyShorteningProgress;
+		}
+		updateKeyShorteningProgressSnapshot();
+		/* the job might have finished between the first check and now. */
+		shortenedKey = getShortenedKey(normalizedKey);
+		if (shortenedKey != null) {
+			finishKeyShortening(keyShorteningProgress, shortenedKey);
+			return keyShorteningProgress;
+		}
+		journal.write(new Record(Type.STARTED, normalizedKey, null));
+		try {
+			shorteningScheduler.submit(new ShorteningJob(this, normalizedKey, originalKey, keyShorteningProgress, allocation, latencyBudget), priority);
+		} catch (SchedulerFullException sfe1) {
+			journal.write(new Record(Type.FAILED, normalizedKey, null));
+			finishKeyShortening(keyShorteningProgress, null);
+			throw sfe1;
+		}
+		return keyShorteningProgress;
+	}
+
+	/**
+	 * Adjusts the number of keys that are shortened at the same time to the
+	 * limit of the {@link InsertLimiter} and the capacity of the peers. There
+	 * are at least as many local workers as are needed to keep the limiter
+	 * busy with the current search window. This is called whenever the limit
+	 * changes, and has to be called after peers have been added to or
+	 * removed from the {@link PeerCoordinator}.
+	 */
+	public void updateWorkerLimit() {
+		PeerCoordinator peerCoordinator = this.peerCoordinator;
+		int searchWindow = this.searchWindow;
+		int insertWorkers = (insertLimiter.getLimit() + searchWindow - 1) / searchWindow;
+		shorteningScheduler.setWorkerLimit(Math.max(localWorkers, insertWorkers) + ((peerCoordinator == null) ? 0 : peerCoordinator.getCapacity()));
+	}
+
+	/**
+	 * Cancels the shortening of the given key. A running insert can not be
+	 * stopped but its result is ignored; no further inserts are started.
+	 *
+	 * @param key
+	 *            The key whose shortening to cancel
+	 * @return {@code true} if the key was being shortened, {@code false}
+	 *         otherwise
+	 * @throws MalformedURLException
+	 *             if the key is not a valid Freenet URI
+	 */
+	public boolean cancelKeyShortening(String key) throws MalformedURLException {
+		KeyShorteningProgress keyShorteningProgress = keyShorteningProgresses.get(new FreenetURI(key).toString());
+		if (keyShorteningProgress == null) {
+			return false;
+		}
+		keyShorteningProgress.cancel(CancelReason.CANCELLED);
+		return true;
+	}
+
+	/**
+	 * Releases a key shortening that was returned by
+	 * {@link #shortenKey(String, Priority, Allocation, long, long)} to a
+	 * client that is no longer interested in it. The key shortening is only
+	 * cancelled if no other client has requested the same key, so that
+	 * cancelling one client’s request does not cancel the request of another
+	 * client.
+	 *
+	 * @param keyShorteningProgress
+	 *            The progress of the key shortening to release
+	 * @return {@code true} if the key shortening was cancelled, {@code false}
+	 *         if it has finished or other clients still wait for it
+	 */
+	public boolean releaseKeyShortening(KeyShorteningProgress keyShorteningProgress) {
+		if (keyShorteningProgress.isFinished() || !keyShorteningProgress.removeRequester()) {
+			return false;
+		}
+		keyShorteningProgress.cancel(CancelReason.CANCELLED);
+		return true;
+	}
+
+	/**
+	 * Adds shortened keys that were created by another node. Keys that have
+	 * already been shortened here are skipped unless the imported shortened
+	 * key is shorter, as are shortened keys that are already used for
+	 * another key, so importing the same keys again does not change
+	 * anything. Imported keys get new sequence numbers in the change log. A
+	 * running shortening of an imported key stops and uses the imported key.
+	 *
+	 * @param importedKeys
+	 *            The shortened keys to import
+	 * @return The number of keys that were added
+	 */
+	public int importShortenedKeys(List<ShortenedKey> importedKeys) {
+		if (stopped) {
+			return 0;
+		}
+		int importedCount = 0;
+		long sequence = 0;
+		for (ShortenedKey importedKey : importedKeys) {
+			String key = importedKey.getOriginalKey();
+			String prefix = importedKey.getShortenedKey().substring(importedKey.getShortenedKey().indexOf('@') + 1);
+			if (getStoredLength(key) <= prefix.length()) {
+				continue;
+			}
+			String existingOriginalKey = getOriginalKey(importedKey.getShortenedKey());
+			if (existingOriginalKey != null) {
+				Logger.normal(this, "Not importing " + key + ", " + importedKey.getShortenedKey() + " is used for " + existingOriginalKey + ".");
+				continue;
+			}
+			byte[] routingKey;
+			try {
+				routingKey = new FreenetURI(key).getRoutingKey();
+			} catch (MalformedURLException mue1) {
+				Logger.normal(this, "Not importing invalid key: " + key);
+				continue;
+			}
+			if (!matchesRoutingKey(prefix, routingKey)) {
+				Logger.normal(this, "Not importing " + key + ", " + importedKey.getShortenedKey() + " does not match.");
+				continue;
+			}
+			long recordSequence;
+			synchronized (storeLock) {
+				if (getStoredLength(key) <= prefix.length()) {
+					continue;
+				}
+				recordSequence = storeShortenedKey(key, importedKey.getShortenedKey(), routingKey, prefix);
+			}
+			if (recordSequence == 0) {
+				continue;
+			}
+			sequence = recordSequence;
+			++importedCount;
+			KeyShorteningProgress keyShorteningProgress = keyShorteningProgresses.get(key);
+			if (keyShorteningProgress != null) {
+				keyShorteningProgress.cancel(CancelReason.CANCELLED);
+			}
+		}
+		if (sequence > 0) {
+			waitForJournal(sequence);
+		}
+		segmentFlusher.flushIfNecessary();
+		return importedCount;
+	}
+
+	//
+	// PRIVATE METHODS
+	//
+
+	/**
+	 * Closes the journal and the change log, and saves the length statistics
+	 * and the occupancy filter. No job may be running anymore.
+	 */
+	void closeStores() {
+		journal.close();
+		changeLog.close();
+		LengthStatistics lengthStatistics = this.lengthStatistics;
+		if (lengthStatistics != null) {
+			lengthStatistics.save();
+		}
+		OccupancyFilter occupancyFilter = this.occupancyFilter;
+		if (occupancyFilter != null) {
+			occupancyFilter.save();
+		}
+	}
+
+	/**
+	 * Removes all shortened keys from memory after they have been written to
+	 * a segment. The caller has to hold {@link #storeLock}.
+	 */
+	void clearShortenedKeys() {
+		shortenedKeys = new ShortenedKeyStore();
+	}
+
+	/**
+	 * Writes the state that has to survive emptying the journal: the position
+	 * in a shared change log, and the key shortenings that have not finished
+	 * yet, with their last collision. The caller has to hold
+	 * {@link #storeLock}.
+	 */
+	void writeJournalState() {
+		if (changeLog.isShared()) {
+			journal.write(new Record(Type.POSITION, "", null, storedChangeSequence));
+		}
+		for (KeyShorteningProgress keyShorteningProgress : keyShorteningProgresses.values()) {
+			journal.write(new Record(keyShorteningProgress.isUpgrade() ? Type.UPGRADING : Type.STARTED, keyShorteningProgress.getOriginalKey(), null));
+			if (keyShorteningProgress.getLastCollision() != null) {
+				journal.write(new Record(Type.COLLISION, keyShorteningProgress.getOriginalKey(), keyShorteningProgress.getLastCollision()));
+			}
+		}
+		for (String keyToResume : keysToResume) {
+			journal.write(new Record(Type.STARTED, keyToResume, null));
+		}
+		for (String keyToUpgrade : keysToUpgrade) {
+			journal.write(new Record(Type.UPGRADING, keyToUpgrade, null));
+		}
+	}
+
+	/**
+	 * Replaces the snapshot of the running key shortenings with a copy of the
+	 * current running key shortenings. This method has to be called after
+	 * every change of {@link #keyShorteningProgresses}.
+	 */
+	private synchronized void updateKeyShorteningProgressSnapshot() {
+		keyShorteningProgressSnapshot = Collections.unmodifiableList(new ArrayList<KeyShorteningProgress>(keyShorteningProgresses.values()));
+	}
+
+	/**
+	 * Remembers the given cancelled key shortening, forgetting the oldest
+	 * one if too many cancelled key shortenings are remembered.
+	 *
+	 * @param keyShorteningProgress
+	 *            The cancelled key shortening
+	 */
+	private synchronized void addCancelledKeyShortening(KeyShorteningProgress keyShorteningProgress) {
+		List<KeyShorteningProgress> newCancelledKeyShortenings = new ArrayList<KeyShorteningProgress>(cancelledKeyShortenings);
+		newCancelledKeyShortenings.add(0, keyShorteningProgress);
+		while (newCancelledKeyShortenings.size() > MAXIMUM_CANCELLED_KEY_SHORTENINGS) {
+			newCancelledKeyShortenings.remove(newCancelledKeyShortenings.size() - 1);
+		}
+		cancelledKeyShortenings = Collections.unmodifiableList(newCancelledKeyShortenings);
+	}
+
+	/**
+	 * Removes the given key shortening from the running key shortenings,
+	 * marks it as finished, and notifies all listeners. Cancelled key
+	 * shortenings are remembered so that they can still be shown.
+	 *
+	 * @param keyShorteningProgress
+	 *            The finished key shortening
+	 * @param shortenedKey
+	 *            The shortened key, or {@code null} if the key shortening
+	 *            failed
+	 */
+	void finishKeyShortening(KeyShorteningProgress keyShorteningProgress, ShortenedKey shortenedKey) {
+		keyShorteningProgresses.remove(keyShorteningProgress.getOriginalKey(), keyShorteningProgress);
+		updateKeyShorteningProgressSnapshot();
+		if (keyShorteningProgress.isCancelled()) {
+			/* remember it before waiters see the finished progress. */
+			addCancelledKeyShortening(keyShorteningProgress);
+		}
+		keyShorteningProgress.finish(shortenedKey);
+		for (ShortenerListener shortenerListener : shortenerListeners) {
+			shortenerListener.keyShorteningFinished(keyShorteningProgress);
+		}
+	}
+
+	/**
+	 * Stores a shortened key and marks its name as occupied. Names that are
+	 * not a prefix of the encoded routing key are stored with the key because
+	 * they can not be derived from the routing key alone.
+	 *
+	 * @param key
+	 *            The normalized original key
+	 * @param routingKey
+	 *            The routing key of the original key
+	 * @param name
+	 *            The name of the shortened key, without “KSK@”
+	 */
+	void addShortenedKey(String key, byte[] routingKey, String name) {
+		if (CounterAllocator.isAllocatedName(name)) {
+			synchronized (storeLock) {
+				shortenedKeys.put(key, routingKey, name);
+			}
+			return;
+		}
+		synchronized (storeLock) {
+			if (Base64.encode(routingKey).startsWith(name)) {
+				shortenedKeys.put(key, routingKey, name.length());
+			} else {
+				shortenedKeys.put(key, routingKey, name);
+			}
+		}
+		markOccupied(name);
+	}
+
+	/**
+	 * Returns the length of the prefix of the stored shortened key for the
+	 * given key.
+	 *
+	 * @param key
+	 *            The normalized original key
+	 * @return The length of the prefix, or {@link Integer#MAX_VALUE} if the
+	 *         key has not been shortened
+	 */
+	int getStoredLength(String key) {
+		ShortenedKey shortenedKey = getShortenedKey(key);
+		if (shortenedKey == null) {
+			return Integer.MAX_VALUE;
+		}
+		return shortenedKey.getShortenedKey().length() - shortenedKey.getShortenedKey().indexOf('@') - 1;
+	}
+
+	/**
+	 * Returns whether the given name may be used as shortened key for a key
+	 * with the given routing key, i.e. whether it is a prefix of the encoded
+	 * routing key or a name allocated by a {@link CounterAllocator}.
+	 *
+	 * @param name
+	 *            The name of the shortened key, without “KSK@”
+	 * @param routingKey
+	 *            The routing key of the original key
+	 * @return {@code true} if the name may be used, {@code false} otherwise
+	 */
+	static boolean matchesRoutingKey(String name, byte[] routingKey) {
+		return CounterAllocator.isAllocatedName(name) || isCandidate(name, Base64.encode(routingKey));
+	}
 
 	/**
-	 * Creates a new key shortener.
+	 * Returns whether the given name is one of the candidates for a key with
+	 * the given encoded routing key, i.e. whether it is a substring of the
+	 * encoded routing key that starts at one of the first
+	 * {@value #MAXIMUM_CANDIDATES} characters.
 	 *
-	 * @param nodeExecutor
-	 *            The node’s executor
-	 * @param highLevelSimpleClient
-	 *            The node’s high-level simple client
+	 * @param name
+	 *            The name of the shortened key, without “KSK@”
+	 * @param encodedRoutingKey
+	 *            The Base64-encoded routing key of the original key
+	 * @return {@code true} if the name is a candidate, {@code false}
+	 *         otherwise
 	 */
-	public Shortener(Executor nodeExecutor, HighLevelSimpleClient highLevelSimpleClient) {
-		this.nodeExecutor = nodeExecutor;
-		this.highLevelSimpleClient = highLevelSimpleClient;
+	static boolean isCandidate(String name, String encodedRoutingKey) {
+		for (int index = 0; index < MAXIMUM_CANDIDATES; ++index) {
+			if (encodedRoutingKey.startsWith(name, index)) {
+				return true;
+			}
+		}
+		return false;
 	}
 
-	//
-	// ACCESSORS
-	//
+	/**
+	 * Starts the search for a shorter key than the provisional key of the
+	 * given key in the background.
+	 *
+	 * @param key
+	 *            The normalized original key
+	 * @throws MalformedURLException
+	 *             if the key is not a valid Freenet URI
+	 * @throws SchedulerFullException
+	 *             if too many keys with bulk priority are already waiting to
+	 *             be shortened
+	 */
+	void upgradeKey(String key) throws MalformedURLException, SchedulerFullException {
+		FreenetURI originalKey = new FreenetURI(key);
+		KeyShorteningProgress keyShorteningProgress = new KeyShorteningProgress(key, true);
+		if (keyShorteningProgresses.putIfAbsent(key, keyShorteningProgress) != null) {
+			return;
+		}
+		updateKeyShorteningProgressSnapshot();
+		journal.write(new Record(Type.UPGRADING, key, null));
+		try {
+			shorteningScheduler.submit(new ShorteningJob(this, key, originalKey, keyShorteningProgress, Allocation.PREFIX, 0), Priority.BULK);
+		} catch (SchedulerFullException sfe1) {
+			if (!stopped) {
+				/* when stopped, the search is resumed after the next start. */
+				journal.write(new Record(Type.FAILED, key, null));
+			}
+			finishKeyShortening(keyShorteningProgress, getShortenedKey(key));
+			throw sfe1;
+		}
+	}
 
 	/**
-	 * Returns progress information about all currently running key shortenings.
+	 * Records a new shortened key in the change log and in the journal, and
+	 * stores it. A key that has already been shortened is only stored again
+	 * if the new shortened key is shorter. The caller has to hold {@link #storeLock} so that the journal
+	 * record can not be removed by a flush before the key is stored.
 	 *
-	 * @return Progress information about the current key shortenings
+	 * @param key
+	 *            The normalized original key
+	 * @param shortenedKey
+	 *            The shortened key
+	 * @param routingKey
+	 *            The routing key of the original key
+	 * @param prefix
+	 *            The prefix of the encoded routing key used for the shortened
+	 *            key
+	 * @return The sequence number of the journal record, to be used with
+	 *         {@link Journal#waitForSync(long)}, or {@code 0} if the key
+	 *         has already been shortened to a key that is not longer, e.g.
+	 *         by another process sharing the change log
 	 */
-	public Set<KeyShorteningProgress> getKeyShorteningProgresses() {
-		return new HashSet<KeyShorteningProgress>(keyShorteningProgresses);
+	private long storeShortenedKey(String key, String shortenedKey, byte[] routingKey, String prefix) {
+		long changeSequence = 0;
+		try {
+			List<Change> sharedChanges = changeLog.lock();
+			try {
+				sharedChangeFollower.storeChanges(sharedChanges);
+				if (getStoredLength(key) <= prefix.length()) {
+					return 0;
+				}
+				changeSequence = changeLog.append(key, shortenedKey);
+				storedChangeSequence = changeSequence;
+			} finally {
+				changeLog.unlock();
+			}
+		} catch (IOException ioe1) {
+			Logger.error(this, "Could not write " + key + " to change log!", ioe1);
+		}
+		long sequence = journal.write(new Record(Type.SHORTENED, key, shortenedKey, changeSequence));
+		addShortenedKey(key, routingKey, prefix);
+		return sequence;
 	}
 
 	/**
-	 * Returns all shortened keys.
+	 * Remembers that the change with the given sequence number is stored
+	 * here, unless a later change is already stored.
 	 *
-	 * @return The shortened keys
+	 * @param changeSequence
+	 *            The sequence number of the stored change
 	 */
-	public Set<ShortenedKey> getShortenedKeys() {
-		return new HashSet<ShortenedKey>(shortenedKeys.values());
+	void advanceStoredChangeSequence(long changeSequence) {
+		storedChangeSequence = Math.max(storedChangeSequence, changeSequence);
 	}
 
-	//
-	// ACTIONS
-	//
+	/**
+	 * Returns whether the given prefix is known to be occupied, either from
+	 * collisions or because the prefix has been used for a shortened key.
+	 *
+	 * @param prefix
+	 *            The prefix to check
+	 * @return {@code true} if the prefix is known to be occupied, {@code false}
+	 *         otherwise
+	 */
+	boolean isOccupied(String prefix) {
+		return occupiedPrefixes.isOccupied(prefix) || (segmentStore.getOriginalKey("KSK@" + prefix) != null);
+	}
+
+	/**
+	 * Returns whether the given prefix should not be inserted, because it is
+	 * known to be occupied or the occupancy filter contains it.
+	 *
+	 * @param prefix
+	 *            The prefix to check
+	 * @return {@code true} if the prefix should be skipped, {@code false} if
+	 *         it should be inserted
+	 */
+	boolean isSkipped(String prefix) {
+		if (isOccupied(prefix)) {
+			return true;
+		}
+		OccupancyFilter occupancyFilter = this.occupancyFilter;
+		return (occupancyFilter != null) && occupancyFilter.shouldSkip(prefix);
+	}
+
+	/**
+	 * Marks the given prefix as occupied, and adds it to the occupancy
+	 * filter.
+	 *
+	 * @param prefix
+	 *            The occupied prefix
+	 */
+	void markOccupied(String prefix) {
+		occupiedPrefixes.markOccupied(prefix);
+		OccupancyFilter occupancyFilter = this.occupancyFilter;
+		if (occupancyFilter != null) {
+			occupancyFilter.add(prefix);
+		}
+	}
+
+	/**
+	 * Records the outcome of an insert of the given prefix in the occupancy
+	 * filter.
+	 *
+	 * @param prefix
+	 *            The inserted prefix
+	 * @param insertOutcome
+	 *            The outcome of the insert
+	 */
+	void recordOutcome(String prefix, InsertOutcome insertOutcome) {
+		OccupancyFilter occupancyFilter = this.occupancyFilter;
+		if (occupancyFilter != null) {
+			occupancyFilter.recordOutcome(prefix, insertOutcome);
+		}
+	}
+
+	/**
+	 * Waits until the journal record with the given sequence number has been
+	 * synced. If the record could not be written, the error is logged; the
+	 * key is already stored in memory, and the journal writes the record
+	 * again together with the next record.
+	 *
+	 * @param sequence
+	 *            The sequence number of the journal record
+	 */
+	private void waitForJournal(long sequence) {
+		try {
+			journal.waitForSync(sequence);
+		} catch (IOException ioe1) {
+			Logger.error(this, "Could not sync journal!", ioe1);
+		}
+	}
+
+	/**
+	 * Creates an attempt to insert the given shortened key with the current
+	 * retry policy.
+	 *
+	 * @param length
+	 *            The length that the attempt is counted for
+	 * @param shortenedKey
+	 *            The shortened key to insert
+	 * @param originalKey
+	 *            The key the redirect points to
+	 * @return The insert attempt
+	 */
+	InsertAttempt createInsertAttempt(int length, FreenetURI shortenedKey, FreenetURI originalKey) {
+		return new InsertAttempt(insertBackend, length, shortenedKey, originalKey, retryPolicy, insertStatistics, insertLimiter, runningAttempts, clock);
+	}
 
 	/**
-	 * Shortens the given key.
+	 * Stores a shortened key that a job has found, and waits until its
+	 * journal record has been written.
 	 *
 	 * @param key
-	 *            The key to shorten
-	 * @throws MalformedURLException
-	 *             if the key is not a valid Freenet URI
+	 *            The normalized original key
+	 * @param shortenedKey
+	 *            The shortened key
+	 * @param routingKey
+	 *            The routing key of the original key
+	 * @param name
+	 *            The name of the shortened key, without “KSK@”
+	 * @return The stored shortened key, which is the key of another process
+	 *         if that has stored a key that is not longer
 	 */
-	public void shortenKey(final String key) throws MalformedURLException {
-		final KeyShorteningProgress keyShorteningProgress = new KeyShorteningProgress(key);
-		final FreenetURI originalKey = new FreenetURI(key);
-		keyShorteningProgresses.add(keyShorteningProgress);
-		nodeExecutor.execute(new Runnable() {
-
-			@SuppressWarnings("synthetic-access")
-			public void run() {
-				boolean inserted = false;
-				int length = 0;
-				FreenetURI shortenedKey = null;
-				do {
-					if (++length == 43) {
-						break;
-					}
-					try {
-						String shortenedKeyString = "KSK@" + Base64.encode(originalKey.getRoutingKey()).substring(0, length);
-						keyShorteningProgress.setCurrentKey(shortenedKeyString);
-						shortenedKey = new FreenetURI(shortenedKeyString);
-						highLevelSimpleClient.insertRedirect(shortenedKey, originalKey);
-						inserted = true;
-					} catch (MalformedURLException mue1) {
-						/* TODO - now this should not be happening. */
-					} catch (InsertException ie1) {
-						/* TODO - check for collisions */
-					}
-				} while (!inserted);
-				if (inserted) {
-					keyShorteningProgresses.remove(keyShorteningProgress);
-					shortenedKeys.put(key, new ShortenedKey(originalKey, shortenedKey));
-				}
-			}
-		}, "Shortening Key: " + originalKey);
+	ShortenedKey storeFoundKey(String key, String shortenedKey, byte[] routingKey, String name) {
+		long sequence;
+		synchronized (storeLock) {
+			sequence = storeShortenedKey(key, shortenedKey, routingKey, name);
+		}
+		ShortenedKey storedKey;
+		if (sequence == 0) {
+			/* another process was faster. */
+			storedKey = getShortenedKey(key);
+		} else {
+			waitForJournal(sequence);
+			storedKey = new ShortenedKey(key, shortenedKey);
+		}
+		segmentFlusher.flushIfNecessary();
+		return storedKey;
+	}
+
+	/**
+	 * Returns the length of the shortest prefix of the given encoded routing
+	 * key that is not known to be occupied.
+	 *
+	 * @param encodedRoutingKey
+	 *            The Base64-encoded routing key
+	 * @return The length of the first unoccupied prefix
+	 */
+	int getFirstUnoccupiedLength(String encodedRoutingKey) {
+		return occupiedPrefixes.getFirstUnoccupiedLength(encodedRoutingKey);
+	}
+
+	/**
+	 * Records that the given shortened key of a key shortening collided: its
+	 * prefix is marked as occupied, and the collision is written to the
+	 * journal so that a resumed job does not try it again.
+	 *
+	 * @param keyShorteningProgress
+	 *            The progress of the key shortening
+	 * @param shortenedKey
+	 *            The shortened key that collided
+	 */
+	void recordCollision(KeyShorteningProgress keyShorteningProgress, String shortenedKey) {
+		markOccupied(shortenedKey.substring(shortenedKey.indexOf('@') + 1));
+		keyShorteningProgress.setLastCollision(shortenedKey);
+		journal.write(new Record(Type.COLLISION, keyShorteningProgress.getOriginalKey(), shortenedKey));
+	}
+
+	/**
+	 * Records in the journal that the given key shortening has failed. A key
+	 * shortening that was cancelled because the shortener is stopped keeps
+	 * its records so that it is resumed after the next start.
+	 *
+	 * @param keyShorteningProgress
+	 *            The failed key shortening
+	 */
+	void recordFailure(KeyShorteningProgress keyShorteningProgress) {
+		if (keyShorteningProgress.getCancelReason() != CancelReason.STOPPED) {
+			journal.write(new Record(Type.FAILED, keyShorteningProgress.getOriginalKey(), null));
+		}
+	}
+
+	/**
+	 * Notifies all listeners that the given key shortening moved on to a new
+	 * shortened key.
+	 *
+	 * @param keyShorteningProgress
+	 *            The progress of the key shortening
+	 */
+	void fireKeyShorteningAdvanced(KeyShorteningProgress keyShorteningProgress) {
+		for (ShortenerListener shortenerListener : shortenerListeners) {
+			shortenerListener.keyShorteningAdvanced(keyShorteningProgress);
+		}
+	}
+
+	/**
+	 * The ways a shortened key can be chosen.
+	 *
+	 * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+	 */
+	public enum Allocation {
+
+		/**
+		 * The shortest unused prefix of the routing key is searched; the key
+		 * can be found again from the original key alone.
+		 */
+		PREFIX,
+
+		/**
+		 * The next name from the plugin’s namespace is used; the key is
+		 * short and needs a single insert, but can only be found again
+		 * through the stored keys.
+		 */
+		COUNTER;
+
+	}
+
+	/**
+	 * The reasons a key shortening can be cancelled for.
+	 *
+	 * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+	 */
+	public enum CancelReason {
+
+		/** The key shortening was cancelled by a user or made obsolete. */
+		CANCELLED,
+
+		/** The deadline of the key shortening has passed. */
+		EXPIRED,
+
+		/**
+		 * The shortener is stopped; the key shortening is resumed when the
+		 * shortener is started again.
+		 */
+		STOPPED;
+
 	}
 
 	/**
@@ -141,13 +1634,40 @@ public class Shortener {
 	public class KeyShorteningProgress {
 
 		/** The start time of the key shortening. */
-		private final long startTime = System.currentTimeMillis();
+		private final long startTime = clock.currentTimeMillis();
 
 		/** The original key. */
 		private final String originalKey;
 
+		/** Whether this searches a shorter key than a provisional one. */
+		private final boolean upgrade;
+
 		/** The key that is currently being tried. */
-		private String currentKey;
+		private volatile String currentKey;
+
+		/** The longest shortened key that collided. */
+		private volatile String lastCollision;
+
+		/** The insert attempt that is currently waited for. */
+		private InsertAttempt currentAttempt;
+
+		/** Why the key shortening has been cancelled, or null. */
+		private CancelReason cancelReason;
+
+		/** The time after which the key shortening expires, or 0. */
+		private long deadline;
+
+		/** The number of clients that have requested the key shortening. */
+		private int requesters;
+
+		/** Whether the key shortening has finished. */
+		private boolean finished;
+
+		/** The time the key shortening has finished, or 0. */
+		private long finishTime;
+
+		/** The shortened key, if the key shortening was successful. */
+		private ShortenedKey shortenedKey;
 
 		/**
 		 * Creates a new progress information container.
@@ -156,7 +1676,39 @@ public class Shortener {
 		 *            The original key
 		 */
 		public KeyShorteningProgress(String originalKey) {
+			this(originalKey, false);
+		}
+
+		/**
+		 * Creates a new progress information container.
+		 *
+		 * @param originalKey
+		 *            The original key
+		 * @param upgrade
+		 *            {@code true} if a shorter key than the provisional key
+		 *            of the original key is searched, {@code false}
+		 *            otherwise
+		 */
+		public KeyShorteningProgress(String originalKey, boolean upgrade) {
+			this.originalKey = originalKey;
+			this.upgrade = upgrade;
+		}
+
+		/**
+		 * Creates a new progress information container for a key that has
+		 * already been shortened.
+		 *
+		 * @param originalKey
+		 *            The original key
+		 * @param shortenedKey
+		 *            The shortened key
+		 */
+		public KeyShorteningProgress(String originalKey, ShortenedKey shortenedKey) {
 			this.originalKey = originalKey;
+			this.upgrade = false;
+			this.currentKey = shortenedKey.getShortenedKey();
+			this.finished = true;
+			this.shortenedKey = shortenedKey;
 		}
 
 		/**
@@ -177,6 +1729,17 @@ public class Shortener {
 			return originalKey;
 		}
 
+		/**
+		 * Returns whether this key shortening searches a shorter key than the
+		 * provisional key the original key has already been shortened to.
+		 *
+		 * @return {@code true} if a shorter key is searched, {@code false}
+		 *         otherwise
+		 */
+		public boolean isUpgrade() {
+			return upgrade;
+		}
+
 		/**
 		 * Returns the shortened key that is currently being tried.
 		 *
@@ -196,20 +1759,228 @@ public class Shortener {
 			this.currentKey = currentKey;
 		}
 
+		/**
+		 * Returns the longest shortened key that collided. All shorter keys
+		 * are known to be occupied, too.
+		 *
+		 * @return The longest collided key, or {@code null} if no key has
+		 *         collided yet
+		 */
+		public String getLastCollision() {
+			return lastCollision;
+		}
+
+		/**
+		 * Sets the longest shortened key that collided.
+		 *
+		 * @param lastCollision
+		 *            The longest collided key
+		 */
+		void setLastCollision(String lastCollision) {
+			this.lastCollision = lastCollision;
+		}
+
+		/**
+		 * Sets the insert attempt that is currently waited for.
+		 *
+		 * @param currentAttempt
+		 *            The current insert attempt
+		 * @return {@code true} if the attempt may be run, {@code false} if
+		 *         the key shortening has been cancelled
+		 */
+		synchronized boolean setCurrentAttempt(InsertAttempt currentAttempt) {
+			this.currentAttempt = currentAttempt;
+			return cancelReason == null;
+		}
+
+		/**
+		 * Returns the time after which the key shortening expires.
+		 *
+		 * @return The deadline of the key shortening, or {@code 0} if it does
+		 *         not expire
+		 */
+		public synchronized long getDeadline() {
+			return deadline;
+		}
+
+		/**
+		 * Sets the time after which the key shortening expires.
+		 *
+		 * @param deadline
+		 *            The deadline of the key shortening, or {@code 0} if it
+		 *            does not expire
+		 */
+		synchronized void setDeadline(long deadline) {
+			this.deadline = deadline;
+		}
+
+		/**
+		 * Moves the deadline of the key shortening to the given time if that
+		 * is later. Every client that requests the key may extend the
+		 * deadline, but none may shorten it.
+		 *
+		 * @param deadline
+		 *            The requested deadline, or {@code 0} if the key
+		 *            shortening should not expire
+		 */
+		synchronized void extendDeadline(long deadline) {
+			if ((this.deadline != 0) && ((deadline == 0) || (deadline > this.deadline))) {
+				this.deadline = deadline;
+			}
+		}
+
+		/**
+		 * Counts another client that has requested the key shortening.
+		 */
+		synchronized void addRequester() {
+			++requesters;
+		}
+
+		/**
+		 * Removes a client that has requested the key shortening.
+		 *
+		 * @return {@code true} if no client is left, {@code false} otherwise
+		 */
+		synchronized boolean removeRequester() {
+			if (requesters > 0) {
+				--requesters;
+			}
+			return requesters == 0;
+		}
+
+		/**
+		 * Returns whether the key shortening has been cancelled.
+		 *
+		 * @return {@code true} if the key shortening has been cancelled,
+		 *         {@code false} otherwise
+		 */
+		public synchronized boolean isCancelled() {
+			return cancelReason != null;
+		}
+
+		/**
+		 * Returns whether the key shortening has been cancelled because its
+		 * deadline has passed.
+		 *
+		 * @return {@code true} if the key shortening has expired, {@code
+		 *         false} otherwise
+		 */
+		public synchronized boolean isExpired() {
+			return cancelReason == CancelReason.EXPIRED;
+		}
+
+		/**
+		 * Returns why the key shortening has been cancelled.
+		 *
+		 * @return The reason of the cancellation, or {@code null} if the key
+		 *         shortening has not been cancelled
+		 */
+		public synchronized CancelReason getCancelReason() {
+			return cancelReason;
+		}
+
+		/**
+		 * Cancels the key shortening, including the insert attempt that is
+		 * currently waited for. If the key shortening has already been
+		 * cancelled, the first reason is kept.
+		 *
+		 * @param cancelReason
+		 *            The reason of the cancellation
+		 */
+		void cancel(CancelReason cancelReason) {
+			InsertAttempt cancelledAttempt;
+			synchronized (this) {
+				if (this.cancelReason == null) {
+					this.cancelReason = cancelReason;
+				}
+				cancelledAttempt = currentAttempt;
+			}
+			if (cancelledAttempt != null) {
+				cancelledAttempt.cancel();
+			}
+		}
+
+		/**
+		 * Returns whether the key shortening has finished.
+		 *
+		 * @return {@code true} if the key shortening has finished, {@code
+		 *         false} if it is still running
+		 */
+		public synchronized boolean isFinished() {
+			return finished;
+		}
+
+		/**
+		 * Returns the time the key shortening has finished.
+		 *
+		 * @return The finish time of the key shortening, or {@code 0} if it
+		 *         has not finished yet
+		 */
+		public synchronized long getFinishTime() {
+			return finishTime;
+		}
+
+		/**
+		 * Returns the shortened key.
+		 *
+		 * @return The shortened key, or {@code null} if the key shortening has
+		 *         not finished yet or has failed
+		 */
+		public synchronized ShortenedKey getShortenedKey() {
+			return shortenedKey;
+		}
+
+		/**
+		 * Marks the key shortening as finished.
+		 *
+		 * @param shortenedKey
+		 *            The shortened key, or {@code null} if the key shortening
+		 *            failed
+		 */
+		synchronized void finish(ShortenedKey shortenedKey) {
+			this.shortenedKey = shortenedKey;
+			this.finished = true;
+			this.finishTime = clock.currentTimeMillis();
+			clock.wakeAll(this);
+		}
+
+		/**
+		 * Waits until the key shortening has finished or the given time has
+		 * passed.
+		 *
+		 * @param timeout
+		 *            The maximum time to wait (in milliseconds)
+		 * @return {@code true} if the key shortening has finished, {@code
+		 *         false} otherwise
+		 */
+		public synchronized boolean waitUntilFinished(long timeout) {
+			long end = clock.currentTimeMillis() + timeout;
+			long now;
+			while (!finished && ((now = clock.currentTimeMillis()) < end)) {
+				try {
+					clock.waitOn(this, end - now);
+				} catch (InterruptedException ie1) {
+					/* ignore, keep waiting. */
+				}
+			}
+			return finished;
+		}
+
 	}
 
 	/**
-	 * Container for the original and the shortened key.
+	 * Container for the original and the shortened key. Shortened keys are not
+	 * stored as objects; they are created when they are requested.
 	 *
 	 * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
 	 */
-	public class ShortenedKey {
+	public static class ShortenedKey {
 
 		/** The original key. */
-		private final FreenetURI originalKey;
+		private final String originalKey;
 
 		/** The shortened key. */
-		private final FreenetURI shortenedKey;
+		private final String shortenedKey;
 
 		/**
 		 * Creates a new shortened key container.
@@ -219,7 +1990,7 @@ public class Shortener {
 		 * @param shortenedKey
 		 *            The shortened key
 		 */
-		public ShortenedKey(FreenetURI originalKey, FreenetURI shortenedKey) {
+		public ShortenedKey(String originalKey, String shortenedKey) {
 			this.originalKey = originalKey;
 			this.shortenedKey = shortenedKey;
 		}
@@ -229,7 +2000,7 @@ public class Shortener {
 		 *
 		 * @return The original key
 		 */
-		public FreenetURI getOriginalKey() {
+		public String getOriginalKey() {
 			return originalKey;
 		}
 
@@ -238,7 +2009,7 @@ public class Shortener {
 		 *
 		 * @return The shortened key
 		 */
-		public FreenetURI getShortenedKey() {
+		public String getShortenedKey() {
 			return shortenedKey;
 		}
 
@@ -263,11 +2034,41 @@ public class Shortener {
 			} else if ("currentKey".equals(member)) {
 				return keyShorteningProgress.getCurrentKey();
 			} else if ("duration".equals(member)) {
-				return TimeUtil.formatTime(System.currentTimeMillis() - keyShorteningProgress.getStartTime(), 2, false);
+				long finishTime = keyShorteningProgress.getFinishTime();
+				return TimeUtil.formatTime(((finishTime != 0) ? finishTime : System.currentTimeMillis()) - keyShorteningProgress.getStartTime(), 2, false);
+			} else if ("state".equals(member)) {
+				return getState(keyShorteningProgress);
+			} else if ("cancelled".equals(member)) {
+				return keyShorteningProgress.isCancelled();
+			} else if ("expired".equals(member)) {
+				return keyShorteningProgress.isExpired();
+			} else if ("cancelReason".equals(member)) {
+				return keyShorteningProgress.getCancelReason();
 			}
 			return null;
 		}
 
+		/**
+		 * Returns the l10n key of the state of the given key shortening.
+		 *
+		 * @param keyShorteningProgress
+		 *            The key shortening
+		 * @return The l10n key of the state
+		 */
+		private static String getState(KeyShorteningProgress keyShorteningProgress) {
+			CancelReason cancelReason = keyShorteningProgress.getCancelReason();
+			if (cancelReason == CancelReason.EXPIRED) {
+				return "State.Expired";
+			} else if (cancelReason == CancelReason.STOPPED) {
+				return "State.Stopped";
+			} else if (cancelReason != null) {
+				return "State.Cancelled";
+			} else if (keyShorteningProgress.isFinished()) {
+				return "State.Finished";
+			}
+			return "State.Running";
+		}
+
 	}
 
 	/**
@@ -17,7 +17,7 @@
 
 package plugin.shortener;
 
-import java.util.Set;
+import java.util.Collection;
 
 import plugin.shortener.Shortener.KeyShorteningProgress;
 import plugin.shortener.Shortener.ShortenedKey;
@@ -42,7 +42,7 @@ public class ShortenerHtml {
 	 *         shortenings, or an empty node
 	 */
 	public static HTMLNode getRunningKeyShortenings(Shortener shortener) {
-		Set<KeyShorteningProgress> keyShorteningProgresses = shortener.getKeyShorteningProgresses();
+		Collection<KeyShorteningProgress> keyShorteningProgresses = shortener.getKeyShorteningProgresses();
 		if (keyShorteningProgresses.isEmpty()) {
 			return new HTMLNode("#");
 		}
@@ -74,7 +74,7 @@ public class ShortenerHtml {
 	 * @return The infobox with information about shortened keys
 	 */
 	public static HTMLNode getShortenedKeys(Shortener shortener) {
-		Set<ShortenedKey> shortenedKeys = shortener.getShortenedKeys();
+		Collection<ShortenedKey> shortenedKeys = shortener.getShortenedKeys();
 		if (shortenedKeys.isEmpty()) {
 			return new HTMLNode("#");
 		}
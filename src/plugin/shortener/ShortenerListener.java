@@ -0,0 +1,51 @@
+/*
+ * shortener - ShortenerListener.java - Copyright © 2010 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugin.shortener;
+
+import java.util.EventListener;
+
+import plugin.shortener.Shortener.KeyShorteningProgress;
+
+/**
+ * Interface for objects that want to be notified about the progress of key
+ * shortenings. The methods are called from the threads that shorten the
+ * keys and must not block.
+ *
+ * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+ */
+public interface ShortenerListener extends EventListener {
+
+	/**
+	 * Notifies a listener that a key shortening moved on to a new shortened
+	 * key.
+	 *
+	 * @param keyShorteningProgress
+	 *            The progress of the key shortening
+	 */
+	public void keyShorteningAdvanced(KeyShorteningProgress keyShorteningProgress);
+
+	/**
+	 * Notifies a listener that a key shortening has finished, either
+	 * successfully or not.
+	 *
+	 * @param keyShorteningProgress
+	 *            The progress of the key shortening
+	 */
+	public void keyShorteningFinished(KeyShorteningProgress keyShorteningProgress);
+
+}
@@ -17,14 +17,19 @@
 
 package plugin.shortener;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.Reader;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Random;
 
 import net.pterodactylus.util.template.Accessor;
 import net.pterodactylus.util.template.Template;
+import plugin.shortener.InsertLimiter.LimitChange;
+import plugin.shortener.Shortener.Allocation;
 import plugin.shortener.Shortener.KeyShorteningProgress;
 import plugin.shortener.Shortener.ShortenedKey;
 import freenet.clients.http.LinkEnabledCallback;
@@ -39,6 +44,7 @@ import freenet.pluginmanager.FredPluginL10n;
 import freenet.pluginmanager.FredPluginThreadless;
 import freenet.pluginmanager.PluginReplySender;
 import freenet.pluginmanager.PluginRespirator;
+import freenet.support.Logger;
 import freenet.support.SimpleFieldSet;
 import freenet.support.api.Bucket;
 
@@ -61,6 +67,12 @@ public class ShortenerPlugin implements FredPlugin, FredPluginFCP, FredPluginL10
 	/** The key shortener. */
 	private Shortener shortener;
 
+	/** The resolver for shortened keys. */
+	private KeyResolver keyResolver;
+
+	/** The handler for FCP messages. */
+	private FcpHandler fcpHandler;
+
 	//
 	// PRIVATE METHODS
 	//
@@ -101,17 +113,95 @@ public class ShortenerPlugin implements FredPlugin, FredPluginFCP, FredPluginL10
 		toadletContainer = pluginRespirator.getToadletContainer();
 		String formPassword = toadletContainer.getFormPassword();
 
-		shortener = new Shortener(pluginRespirator.getNode().executor, pluginRespirator.getHLSimpleClient());
+		File dataDirectory = new File(pluginRespirator.getNode().getNodeDir(), "shortener");
+		if (!dataDirectory.exists() && !dataDirectory.mkdirs()) {
+			Logger.error(this, "Could not create data directory " + dataDirectory + "!");
+		}
+		File segmentDirectory = new File(dataDirectory, "segments");
+		if (!segmentDirectory.exists() && !segmentDirectory.mkdirs()) {
+			Logger.error(this, "Could not create segment directory " + segmentDirectory + "!");
+		}
+		Journal journal = new Journal(new File(dataDirectory, "shortened-keys.journal"), pluginRespirator.getNode().executor);
+		SegmentStore segmentStore = new SegmentStore(segmentDirectory, pluginRespirator.getNode().executor);
+		Configuration configuration = new Configuration(new File(dataDirectory, "shortener.properties"));
+		String sharedDirectoryName = configuration.getString("shared.directory", null);
+		ChangeLog changeLog;
+		KeyClaims keyClaims = null;
+		File counterFile = new File(dataDirectory, "counter.dat");
+		if (sharedDirectoryName != null) {
+			File sharedDirectory = new File(sharedDirectoryName);
+			if (!sharedDirectory.exists() && !sharedDirectory.mkdirs()) {
+				Logger.error(this, "Could not create shared directory " + sharedDirectory + "!");
+			}
+			changeLog = new ChangeLog(new File(sharedDirectory, "changes.log"), true);
+			keyClaims = new KeyClaims(new File(sharedDirectory, "claims"), dataDirectory.getAbsolutePath());
+			counterFile = new File(sharedDirectory, "counter.dat");
+		} else {
+			changeLog = new ChangeLog(new File(dataDirectory, "changes.log"));
+		}
+		shortener = new Shortener(pluginRespirator.getNode().executor, new FreenetInsertBackend(pluginRespirator.getHLSimpleClient()), journal, segmentStore, changeLog);
+		shortener.setKeyClaims(keyClaims);
+		shortener.setProvisionalLength(configuration.getInt("provisional.length", 0));
+		shortener.setLocalWorkers(configuration.getInt("scheduler.workers", 4));
+		shortener.setQueueCapacity(configuration.getInt("scheduler.queue", 100));
+		shortener.setSearchWindow(configuration.getInt("search.window", 1));
+		shortener.setCandidateCount(configuration.getInt("search.candidates", 4));
+		shortener.setDrainTimeout(configuration.getLong("drain.timeout", 30) * 1000);
+		if (configuration.getBoolean("start.adaptive", false)) {
+			LengthStatistics lengthStatistics = new LengthStatistics(new File(dataDirectory, "length-statistics.dat"), configuration.getInt("start.window", 1000), new Random());
+			lengthStatistics.setThreshold(configuration.getDouble("start.threshold", 0.1));
+			lengthStatistics.setMinimumSamples(configuration.getInt("start.minimumSamples", 20));
+			lengthStatistics.setExplorationRate(configuration.getDouble("start.exploration", 0.02));
+			shortener.setLengthStatistics(lengthStatistics);
+		}
+		if (configuration.getBoolean("filter.enabled", false)) {
+			OccupancyFilter occupancyFilter = new OccupancyFilter(new File(dataDirectory, "occupancy-filter.dat"), configuration.getInt("filter.size", 4096) * 1024, configuration.getInt("filter.hashes", 7), new Random());
+			occupancyFilter.setVerificationRate(configuration.getDouble("filter.verification", 0.05));
+			shortener.setOccupancyFilter(occupancyFilter);
+		}
+		try {
+			shortener.setCounterAllocator(new CounterAllocator(counterFile, configuration.getString("counter.prefix", "s."), configuration.getInt("counter.blockSize", 100)));
+		} catch (IllegalArgumentException iae1) {
+			Logger.error(this, "Invalid counter configuration, keys will not be shortened to allocated names!", iae1);
+		}
+		if ("counter".equalsIgnoreCase(configuration.getString("allocation", "prefix"))) {
+			shortener.setDefaultAllocation(Allocation.COUNTER);
+		}
+		if (configuration.getBoolean("coordinator.enabled", false)) {
+			PeerCoordinator peerCoordinator = new PeerCoordinator(configuration.getLong("coordinator.timeout", 30 * 60) * 1000);
+			for (int index = 0; configuration.getString("peer." + index + ".host", null) != null; ++index) {
+				String host = configuration.getString("peer." + index + ".host", null);
+				int port = configuration.getInt("peer." + index + ".port", 9481);
+				peerCoordinator.addPeer(new FcpPeer(configuration.getString("peer." + index + ".name", host + ":" + port), host, port, configuration.getInt("peer." + index + ".capacity", 4)));
+			}
+			shortener.setPeerCoordinator(peerCoordinator);
+		}
+		try {
+			shortener.start();
+		} catch (IOException ioe1) {
+			Logger.error(this, "Could not open segments or journal, no keys will be shortened until the plugin is restarted!", ioe1);
+		}
+		keyResolver = new KeyResolver(shortener, pluginRespirator.getHLSimpleClient());
+		FeedImporter feedImporter = new FeedImporter(shortener, new File(dataDirectory, "peer-positions.properties"));
+		fcpHandler = new FcpHandler(shortener, keyResolver, feedImporter, pluginRespirator.getNode().executor);
+		fcpHandler.setMaximumBudget(configuration.getLong("fcp.maximumBudget", 60) * 1000);
+		fcpHandler.setMaximumTimeout(configuration.getLong("fcp.maximumTimeout", 60 * 60) * 1000);
 		L10nTemplateFactory templateFactory = new L10nTemplateFactory(l10n.getBase());
 		PageToadletFactory pageToadletFactory = new PageToadletFactory(pluginRespirator.getHLSimpleClient(), "/Shortener/");
 
 		Accessor keyShorteningProgressAccessor = new Shortener.KeyShorteningProgressAccessor();
 		Accessor shortenedKeyAccessor = new Shortener.ShortenedKeyAccessor();
+		Accessor insertStatisticsAccessor = new InsertStatistics.InsertStatisticsAccessor();
+		Accessor insertLimiterAccessor = new InsertLimiter.InsertLimiterAccessor();
+		Accessor limitChangeAccessor = new InsertLimiter.LimitChangeAccessor();
 
 		Template indexTemplate = templateFactory.createTemplate(createReader("/plugin/shortener/html/Index.html"));
 		indexTemplate.set("formPassword", formPassword);
 		indexTemplate.addAccessor(KeyShorteningProgress.class, keyShorteningProgressAccessor);
 		indexTemplate.addAccessor(ShortenedKey.class, shortenedKeyAccessor);
+		indexTemplate.addAccessor(InsertStatistics.class, insertStatisticsAccessor);
+		indexTemplate.addAccessor(InsertLimiter.class, insertLimiterAccessor);
+		indexTemplate.addAccessor(LimitChange.class, limitChangeAccessor);
 		pageToadlets.add(pageToadletFactory.createPageToadlet(new IndexPage(shortener, indexTemplate, l10n.getBase()), "Index"));
 
 		Template invalidFormPasswordTemplate = templateFactory.createTemplate(createReader("/plugin/shortener/html/InvalidFormPassword.html"));
@@ -120,7 +210,12 @@ public class ShortenerPlugin implements FredPlugin, FredPluginFCP, FredPluginL10
 		Template invalidKeyTemplate = templateFactory.createTemplate(createReader("/plugin/shortener/html/InvalidKey.html"));
 		pageToadlets.add(pageToadletFactory.createPageToadlet(new TemplatePage("InvalidKey", invalidKeyTemplate, l10n.getBase(), "Page.InvalidKey.Title")));
 
+		Template unknownKeyTemplate = templateFactory.createTemplate(createReader("/plugin/shortener/html/UnknownKey.html"));
+		pageToadlets.add(pageToadletFactory.createPageToadlet(new TemplatePage("UnknownKey", unknownKeyTemplate, l10n.getBase(), "Page.UnknownKey.Title")));
+
 		pageToadlets.add(pageToadletFactory.createPageToadlet(new ShortenPage(shortener, toadletContainer.getFormPassword())));
+		pageToadlets.add(pageToadletFactory.createPageToadlet(new ResolvePage(keyResolver)));
+		pageToadlets.add(pageToadletFactory.createPageToadlet(new FeedPage(changeLog)));
 		pageToadlets.add(pageToadletFactory.createPageToadlet(new CSSPage("css/", "/plugin/shortener/css/")));
 
 		registerToadlets();
@@ -131,6 +226,8 @@ public class ShortenerPlugin implements FredPlugin, FredPluginFCP, FredPluginL10
 	 */
 	public void terminate() {
 		unregisterToadlets();
+		fcpHandler.stop();
+		shortener.stop();
 	}
 
 	/**
@@ -157,7 +254,7 @@ public class ShortenerPlugin implements FredPlugin, FredPluginFCP, FredPluginL10
 	 * {@inheritDoc}
 	 */
 	public void handle(PluginReplySender replySender, SimpleFieldSet parameters, Bucket data, int accessType) {
-		/* TODO - implements */
+		fcpHandler.handle(replySender, parameters, data, accessType);
 	}
 
 	//
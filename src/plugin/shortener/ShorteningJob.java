@@ -0,0 +1,184 @@
+/*
+ * shortener - ShorteningJob.java - Copyright © 2010 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugin.shortener;
+
+import plugin.shortener.Shortener.Allocation;
+import plugin.shortener.Shortener.KeyShorteningProgress;
+import plugin.shortener.Shortener.ShortenedKey;
+import freenet.keys.FreenetURI;
+import freenet.support.Logger;
+
+/**
+ * The job that shortens a single key. The job claims the key if the change
+ * log is shared, offers it to the peers of the {@link PeerCoordinator}, and
+ * otherwise runs the {@link KeySearch} that matches the job’s allocation and
+ * the shortener’s configuration. Whatever happens, the progress of the job
+ * is finished when the job exits.
+ *
+ * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+ */
+class ShorteningJob implements Runnable {
+
+	/** The shortener the job runs for. */
+	private final Shortener shortener;
+
+	/** The normalized original key. */
+	private final String key;
+
+	/** The original key. */
+	private final FreenetURI originalKey;
+
+	/** The progress of the job. */
+	private final KeyShorteningProgress keyShorteningProgress;
+
+	/** The way the shortened key is chosen. */
+	private final Allocation allocation;
+
+	/** The latency budget of the search, or 0. */
+	private final long latencyBudget;
+
+	/**
+	 * Creates a new shortening job.
+	 *
+	 * @param shortener
+	 *            The shortener the job runs for
+	 * @param key
+	 *            The normalized original key
+	 * @param originalKey
+	 *            The original key
+	 * @param keyShorteningProgress
+	 *            The progress of the job
+	 * @param allocation
+	 *            The way the shortened key is chosen
+	 * @param latencyBudget
+	 *            The latency budget of the search (in milliseconds), or
+	 *            {@code 0} to try a single candidate per length
+	 */
+	public ShorteningJob(Shortener shortener, String key, FreenetURI originalKey, KeyShorteningProgress keyShorteningProgress, Allocation allocation, long latencyBudget) {
+		this.shortener = shortener;
+		this.key = key;
+		this.originalKey = originalKey;
+		this.keyShorteningProgress = keyShorteningProgress;
+		this.allocation = allocation;
+		this.latencyBudget = latencyBudget;
+	}
+
+	//
+	// INTERFACE Runnable
+	//
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void run() {
+		try {
+			if (keyShorteningProgress.isCancelled()) {
+				/* cancelled or expired while waiting in the queue. */
+				finishWithStoredKey();
+				return;
+			}
+			KeyClaims keyClaims = shortener.getKeyClaims();
+			if ((keyClaims != null) && !shortener.getSharedChangeFollower().waitForClaim(keyClaims, key, keyShorteningProgress)) {
+				finishWithStoredKey();
+				return;
+			}
+			try {
+				if (keyShorteningProgress.isUpgrade() || !shortenKeyOnPeer()) {
+					createKeySearch(keyClaims).search();
+				}
+			} finally {
+				if (keyClaims != null) {
+					keyClaims.release(key);
+				}
+			}
+		} finally {
+			if (!keyShorteningProgress.isFinished()) {
+				/* the job failed unexpectedly; nobody may wait forever. */
+				finishWithStoredKey();
+			}
+		}
+	}
+
+	//
+	// PRIVATE METHODS
+	//
+
+	/**
+	 * Creates the search for the shortened key. A search for a shorter key
+	 * than the stored provisional key always searches a prefix.
+	 *
+	 * @param keyClaims
+	 *            The claims on keys, or {@code null} if keys are not claimed
+	 * @return The key search
+	 */
+	private KeySearch createKeySearch(KeyClaims keyClaims) {
+		if (!keyShorteningProgress.isUpgrade()) {
+			CounterAllocator counterAllocator = shortener.getCounterAllocator();
+			if ((allocation == Allocation.COUNTER) && (counterAllocator != null)) {
+				return new CounterSearch(shortener, key, originalKey, keyShorteningProgress, keyClaims, counterAllocator);
+			}
+			if (latencyBudget > 0) {
+				return new BudgetSearch(shortener, key, originalKey, keyShorteningProgress, keyClaims, keyShorteningProgress.getStartTime() + latencyBudget);
+			}
+			int provisionalLength = shortener.getProvisionalLength();
+			if (provisionalLength > 0) {
+				return new ProvisionalSearch(shortener, key, originalKey, keyShorteningProgress, keyClaims, provisionalLength);
+			}
+		}
+		return new PrefixSearch(shortener, key, originalKey, keyShorteningProgress, keyClaims);
+	}
+
+	/**
+	 * Lets a peer shorten the key, and stores the shortened key.
+	 *
+	 * @return {@code true} if a peer has shortened the key, {@code false} if
+	 *         the key has to be shortened locally
+	 */
+	private boolean shortenKeyOnPeer() {
+		PeerCoordinator peerCoordinator = shortener.getPeerCoordinator();
+		if ((peerCoordinator == null) || keyShorteningProgress.isCancelled()) {
+			return false;
+		}
+		String peerShortenedKey = peerCoordinator.shortenKey(key);
+		if (peerShortenedKey == null) {
+			return false;
+		}
+		String prefix = peerShortenedKey.substring(peerShortenedKey.indexOf('@') + 1);
+		if (!peerShortenedKey.startsWith("KSK@") || (prefix.length() == 0) || !Shortener.matchesRoutingKey(prefix, originalKey.getRoutingKey())) {
+			Logger.error(this, "Peer shortened " + key + " to non-matching " + peerShortenedKey + ", shortening locally.");
+			return false;
+		}
+		ShortenedKey shortenedKey = shortener.storeFoundKey(key, peerShortenedKey, originalKey.getRoutingKey(), prefix);
+		shortener.finishKeyShortening(keyShorteningProgress, shortenedKey);
+		return true;
+	}
+
+	/**
+	 * Finishes the job with the key that is stored for the original key. If
+	 * no key is stored, or a shorter key was searched, the job is recorded as
+	 * failed.
+	 */
+	private void finishWithStoredKey() {
+		ShortenedKey storedKey = shortener.getShortenedKey(key);
+		if ((storedKey == null) || keyShorteningProgress.isUpgrade()) {
+			shortener.recordFailure(keyShorteningProgress);
+		}
+		shortener.finishKeyShortening(keyShorteningProgress, storedKey);
+	}
+
+}
@@ -0,0 +1,59 @@
+/*
+ * shortener - ShorteningPeer.java - Copyright © 2010 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugin.shortener;
+
+/**
+ * Interface for peers that shorten keys on behalf of a {@link Shortener}, so
+ * that keys can be shortened by several nodes at once. Peers are used by a
+ * {@link PeerCoordinator}.
+ *
+ * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+ */
+public interface ShorteningPeer {
+
+	/**
+	 * Returns the name of this peer.
+	 *
+	 * @return The name of this peer
+	 */
+	public String getName();
+
+	/**
+	 * Returns the number of keys this peer can shorten at the same time.
+	 *
+	 * @return The capacity of this peer
+	 */
+	public int getCapacity();
+
+	/**
+	 * Shortens the given key, waiting until the peer has shortened it or the
+	 * given time has passed.
+	 *
+	 * @param key
+	 *            The normalized key to shorten
+	 * @param timeout
+	 *            The maximum time to wait (in milliseconds)
+	 * @return The shortened key, or {@code null} if the peer could not
+	 *         shorten the key
+	 * @throws PeerException
+	 *             if the peer can not be reached, does not answer in time, or
+	 *             answers with an error
+	 */
+	public String shortenKey(String key, long timeout) throws PeerException;
+
+}
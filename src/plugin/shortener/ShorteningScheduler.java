@@ -0,0 +1,320 @@
+/*
+ * shortener - ShorteningScheduler.java - Copyright © 2010 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugin.shortener;
+
+import java.util.EnumMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+import freenet.support.Executor;
+import freenet.support.Logger;
+
+/**
+ * Runs shortening jobs with a limited number of workers. Jobs wait in one
+ * bounded queue per {@link Priority}; workers always take jobs of a higher
+ * priority first. When the queue of a priority is full, further submissions
+ * are rejected with a {@link SchedulerFullException}. A stopped scheduler
+ * rejects all submissions but still runs the jobs that are already queued.
+ *
+ * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+ */
+public class ShorteningScheduler {
+
+	/**
+	 * The priorities of shortening jobs, from highest to lowest.
+	 *
+	 * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+	 */
+	public enum Priority {
+
+		/** Jobs submitted by a user who is waiting for the result. */
+		INTERACTIVE,
+
+		/** Jobs submitted in bulk. */
+		BULK
+
+	}
+
+	/** The executor that runs the workers. */
+	private final Executor executor;
+
+	/** The clock that measures job durations and waits. */
+	private final Clock clock;
+
+	/** The queued jobs, per priority. */
+	private final Map<Priority, LinkedList<Runnable>> queues = new EnumMap<Priority, LinkedList<Runnable>>(Priority.class);
+
+	/** The maximum number of queued jobs per priority. */
+	private int queueCapacity;
+
+	/** The maximum number of workers. */
+	private int workerLimit;
+
+	/** The number of running workers. */
+	private int runningWorkers;
+
+	/** The moving average of the job durations (in milliseconds). */
+	private long averageJobDuration = 60 * 1000;
+
+	/** Whether the scheduler has been stopped. */
+	private boolean stopped;
+
+	/**
+	 * Creates a new scheduler.
+	 *
+	 * @param executor
+	 *            The executor that runs the workers
+	 * @param workerLimit
+	 *            The maximum number of workers
+	 * @param queueCapacity
+	 *            The maximum number of queued jobs per priority
+	 */
+	public ShorteningScheduler(Executor executor, int workerLimit, int queueCapacity) {
+		this(executor, workerLimit, queueCapacity, SystemClock.INSTANCE);
+	}
+
+	/**
+	 * Creates a new scheduler.
+	 *
+	 * @param executor
+	 *            The executor that runs the workers
+	 * @param workerLimit
+	 *            The maximum number of workers
+	 * @param queueCapacity
+	 *            The maximum number of queued jobs per priority
+	 * @param clock
+	 *            The clock that measures job durations and waits
+	 */
+	public ShorteningScheduler(Executor executor, int workerLimit, int queueCapacity, Clock clock) {
+		this.executor = executor;
+		this.clock = clock;
+		this.workerLimit = workerLimit;
+		this.queueCapacity = queueCapacity;
+		for (Priority priority : Priority.values()) {
+			queues.put(priority, new LinkedList<Runnable>());
+		}
+	}
+
+	//
+	// ACCESSORS
+	//
+
+	/**
+	 * Returns the maximum number of workers.
+	 *
+	 * @return The maximum number of workers
+	 */
+	public synchronized int getWorkerLimit() {
+		return workerLimit;
+	}
+
+	/**
+	 * Sets the maximum number of workers. Lowering the limit does not stop
+	 * running jobs; workers quit once they finish their current job.
+	 *
+	 * @param workerLimit
+	 *            The maximum number of workers
+	 */
+	public synchronized void setWorkerLimit(int workerLimit) {
+		this.workerLimit = Math.max(1, workerLimit);
+		startWorkers();
+	}
+
+	/**
+	 * Returns the maximum number of queued jobs per priority.
+	 *
+	 * @return The queue capacity
+	 */
+	public synchronized int getQueueCapacity() {
+		return queueCapacity;
+	}
+
+	/**
+	 * Sets the maximum number of queued jobs per priority. Lowering the
+	 * capacity does not remove jobs that are already queued.
+	 *
+	 * @param queueCapacity
+	 *            The queue capacity
+	 */
+	public synchronized void setQueueCapacity(int queueCapacity) {
+		this.queueCapacity = Math.max(0, queueCapacity);
+	}
+
+	/**
+	 * Returns the number of queued jobs with the given priority.
+	 *
+	 * @param priority
+	 *            The priority of the jobs
+	 * @return The number of queued jobs
+	 */
+	public synchronized int getQueueSize(Priority priority) {
+		return queues.get(priority).size();
+	}
+
+	/**
+	 * Returns the number of running workers.
+	 *
+	 * @return The number of running workers
+	 */
+	public synchronized int getRunningWorkers() {
+		return runningWorkers;
+	}
+
+	//
+	// ACTIONS
+	//
+
+	/**
+	 * Queues the given job.
+	 *
+	 * @param job
+	 *            The job to run
+	 * @param priority
+	 *            The priority of the job
+	 * @throws SchedulerFullException
+	 *             if the queue for the given priority is full, or the
+	 *             scheduler has been stopped
+	 */
+	public synchronized void submit(Runnable job, Priority priority) throws SchedulerFullException {
+		LinkedList<Runnable> queue = queues.get(priority);
+		if (stopped || (queue.size() >= queueCapacity)) {
+			throw new SchedulerFullException(getRetryAfter());
+		}
+		queue.add(job);
+		startWorkers();
+	}
+
+	/**
+	 * Stops the scheduler. Further submissions are rejected; jobs that are
+	 * already queued or running are not interrupted.
+	 */
+	public synchronized void stop() {
+		stopped = true;
+	}
+
+	/**
+	 * Waits until all queued jobs have been run and all workers have stopped,
+	 * or the given time has passed.
+	 *
+	 * @param timeout
+	 *            The maximum time to wait (in milliseconds)
+	 * @return {@code true} if no worker is running anymore, {@code false}
+	 *         otherwise
+	 */
+	public synchronized boolean waitUntilIdle(long timeout) {
+		long end = clock.currentTimeMillis() + timeout;
+		long now;
+		while ((runningWorkers > 0) && ((now = clock.currentTimeMillis()) < end)) {
+			try {
+				clock.waitOn(this, end - now);
+			} catch (InterruptedException ie1) {
+				/* ignore, keep waiting. */
+			}
+		}
+		return runningWorkers == 0;
+	}
+
+	//
+	// PRIVATE METHODS
+	//
+
+	/**
+	 * Starts workers until either all queued jobs are being processed or the
+	 * worker limit has been reached.
+	 */
+	private synchronized void startWorkers() {
+		int queuedJobs = 0;
+		for (LinkedList<Runnable> queue : queues.values()) {
+			queuedJobs += queue.size();
+		}
+		while ((runningWorkers < workerLimit) && (runningWorkers < queuedJobs)) {
+			++runningWorkers;
+			executor.execute(new Worker(), "Shortener Worker");
+		}
+	}
+
+	/**
+	 * Removes the next job from the queues. If there is no job left, or if
+	 * there are more workers than allowed, the calling worker is counted as
+	 * stopped.
+	 *
+	 * @return The next job, or {@code null} if the calling worker should stop
+	 */
+	private synchronized Runnable nextJob() {
+		if (runningWorkers <= workerLimit) {
+			for (Priority priority : Priority.values()) {
+				LinkedList<Runnable> queue = queues.get(priority);
+				if (!queue.isEmpty()) {
+					return queue.removeFirst();
+				}
+			}
+		}
+		--runningWorkers;
+		clock.wakeAll(this);
+		return null;
+	}
+
+	/**
+	 * Updates the average job duration.
+	 *
+	 * @param jobDuration
+	 *            The duration of the last job (in milliseconds)
+	 */
+	private synchronized void recordJobDuration(long jobDuration) {
+		averageJobDuration = (averageJobDuration * 7 + jobDuration) / 8;
+	}
+
+	/**
+	 * Estimates the number of seconds until a worker will be available again.
+	 *
+	 * @return The number of seconds after which a new submission might succeed
+	 */
+	private synchronized int getRetryAfter() {
+		long retryAfter = averageJobDuration / Math.max(1, workerLimit) / 1000;
+		return (int) Math.max(1, Math.min(3600, retryAfter));
+	}
+
+	/**
+	 * A worker that runs queued jobs until there are no more jobs left.
+	 *
+	 * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+	 */
+	private class Worker implements Runnable {
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@SuppressWarnings("synthetic-access")
+		public void run() {
+			Runnable job;
+			while ((job = nextJob()) != null) {
+				long startTime = clock.currentTimeMillis();
+				try {
+					job.run();
+				} catch (RuntimeException re1) {
+					/* a failing job must not stop the worker. */
+					Logger.error(this, "Shortening job failed!", re1);
+				} finally {
+					recordJobDuration(clock.currentTimeMillis() - startTime);
+				}
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,63 @@
+/*
+ * shortener - StoreCloser.java - Copyright © 2010 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugin.shortener;
+
+import freenet.support.Logger;
+
+/**
+ * Waits until the last worker and the last insert attempt of a stopped
+ * {@link Shortener} have returned, and closes the shortener’s stores
+ * afterwards.
+ *
+ * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+ */
+class StoreCloser implements Runnable {
+
+	/** The stopped shortener. */
+	private final Shortener shortener;
+
+	/**
+	 * Creates a new store closer.
+	 *
+	 * @param shortener
+	 *            The stopped shortener
+	 */
+	public StoreCloser(Shortener shortener) {
+		this.shortener = shortener;
+	}
+
+	//
+	// INTERFACE Runnable
+	//
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void run() {
+		ShorteningScheduler shorteningScheduler = shortener.getShorteningScheduler();
+		while (!shorteningScheduler.waitUntilIdle(60 * 1000)) {
+			Logger.normal(this, "Waiting for " + shorteningScheduler.getRunningWorkers() + " jobs to exit before closing the stores.");
+		}
+		RunningAttempts runningAttempts = shortener.getRunningAttempts();
+		while (!runningAttempts.waitUntilEmpty(60 * 1000)) {
+			Logger.normal(this, "Waiting for " + runningAttempts.size() + " insert attempts to return before closing the stores.");
+		}
+		shortener.closeStores();
+	}
+
+}
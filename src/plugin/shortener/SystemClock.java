@@ -0,0 +1,69 @@
+/*
+ * shortener - SystemClock.java - Copyright © 2010 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugin.shortener;
+
+/**
+ * {@link Clock} that returns the system time and waits in real time.
+ *
+ * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+ */
+public class SystemClock implements Clock {
+
+	/** The only instance of the system clock. */
+	public static final SystemClock INSTANCE = new SystemClock();
+
+	/**
+	 * Creates the system clock.
+	 */
+	private SystemClock() {
+		/* use INSTANCE. */
+	}
+
+	//
+	// INTERFACE Clock
+	//
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public long currentTimeMillis() {
+		return System.currentTimeMillis();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void waitOn(Object monitor, long timeout) throws InterruptedException {
+		monitor.wait(timeout);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void wakeAll(Object monitor) {
+		monitor.notifyAll();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void sleep(long time) throws InterruptedException {
+		Thread.sleep(time);
+	}
+
+}
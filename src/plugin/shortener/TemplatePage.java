@@ -85,7 +85,7 @@ public class TemplatePage implements Page {
 			pageNode.addCustomStyleSheet(styleSheet);
 		}
 
-		processTemplate(template);
+		processTemplate(request, template);
 		StringWriter stringWriter = new StringWriter();
 		template.render(stringWriter);
 		pageNode.content.addChild("%", stringWriter.toString());
@@ -103,6 +103,20 @@ public class TemplatePage implements Page {
 		return Collections.emptySet();
 	}
 
+	/**
+	 * Can be overridden when extending classes need to set variables in the
+	 * template that depend on the request. The default implementation calls
+	 * {@link #processTemplate(Template)}.
+	 *
+	 * @param request
+	 *            The request that is processed
+	 * @param template
+	 *            The template to set variables in
+	 */
+	protected void processTemplate(Request request, Template template) {
+		processTemplate(template);
+	}
+
 	/**
 	 * Can be overridden when extending classes need to set variables in the
 	 * template before it is rendered.
@@ -0,0 +1,195 @@
+/*
+ * shortener - ChangeLogTest.java - Copyright © 2010 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package plugin.shortener;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import junit.framework.TestCase;
+import plugin.shortener.ChangeLog.Change;
+
+/**
+ * Tests for {@link ChangeLog}.
+ *
+ * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+ */
+public class ChangeLogTest extends TestCase {
+
+	/** The directory of the change log. */
+	private File directory;
+
+	/** The change log file. */
+	private File file;
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected void setUp() throws Exception {
+		directory = TemporaryDirectory.create("changelog");
+		file = new File(directory, "changes.log");
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected void tearDown() throws Exception {
+		TemporaryDirectory.delete(directory);
+	}
+
+	/**
+	 * Tests that appended changes can be read back, also after the log is
+	 * opened again.
+	 *
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public void testAppendAndReopen() throws IOException {
+		ChangeLog changeLog = new ChangeLog(file);
+		changeLog.open();
+		for (int index = 1; index <= 10; ++index) {
+			assertEquals(index, changeLog.append("CHK@" + index, "KSK@" + index));
+		}
+		assertEquals(10, changeLog.getLastSequence());
+		changeLog.close();
+		changeLog = new ChangeLog(file);
+		changeLog.open();
+		try {
+			assertEquals(10, changeLog.getLastSequence());
+			List<Change> changes = changeLog.getChanges(7, 100);
+			assertEquals(3, changes.size());
+			for (int index = 0; index < 3; ++index) {
+				assertEquals(8 + index, changes.get(index).getSequence());
+				assertEquals("CHK@" + (8 + index), changes.get(index).getOriginalKey());
+				assertEquals("KSK@" + (8 + index), changes.get(index).getShortenedKey());
+			}
+			assertEquals(2, changeLog.getChanges(0, 2).size());
+			assertTrue(changeLog.getChanges(10, 100).isEmpty());
+		} finally {
+			changeLog.close();
+		}
+	}
+
+	/**
+	 * Tests that changes have to be appended in order.
+	 *
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public void testSequenceOrder() throws IOException {
+		ChangeLog changeLog = new ChangeLog(file);
+		changeLog.open();
+		try {
+			changeLog.append(5, "CHK@5", "KSK@5");
+			try {
+				changeLog.append(5, "CHK@other", "KSK@other");
+				fail("sequence was accepted twice");
+			} catch (IllegalArgumentException iae1) {
+				/* expected. */
+			}
+			assertEquals(6, changeLog.append("CHK@6", "KSK@6"));
+		} finally {
+			changeLog.close();
+		}
+	}
+
+	/**
+	 * Tests that a torn record at the end of the log is removed.
+	 *
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public void testTornRecord() throws IOException {
+		ChangeLog changeLog = new ChangeLog(file);
+		changeLog.open();
+		changeLog.append("CHK@1", "KSK@1");
+		changeLog.append("CHK@2", "KSK@2");
+		changeLog.close();
+		long length = file.length();
+		FileOutputStream fileOutputStream = new FileOutputStream(file, true);
+		fileOutputStream.write(new byte[] { 0, 0, 0, 20, 1, 2, 3 });
+		fileOutputStream.close();
+		changeLog = new ChangeLog(file);
+		changeLog.open();
+		try {
+			assertEquals(2, changeLog.getLastSequence());
+			assertEquals(length, file.length());
+			assertEquals(3, changeLog.append("CHK@3", "KSK@3"));
+			assertEquals(3, changeLog.getChanges(0, 100).size());
+		} finally {
+			changeLog.close();
+		}
+	}
+
+	/**
+	 * Tests that a shared log sees the changes of another instance and
+	 * requires the lock for appending.
+	 *
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public void testShared() throws IOException {
+		ChangeLog firstChangeLog = new ChangeLog(file, true);
+		ChangeLog secondChangeLog = new ChangeLog(file, true);
+		firstChangeLog.open();
+		secondChangeLog.open();
+		try {
+			try {
+				firstChangeLog.append("CHK@1", "KSK@1");
+				fail("unlocked shared log was appended to");
+			} catch (IllegalStateException ise1) {
+				/* expected. */
+			}
+			assertTrue(firstChangeLog.lock().isEmpty());
+			try {
+				firstChangeLog.append("CHK@1", "KSK@1");
+			} finally {
+				firstChangeLog.unlock();
+			}
+			List<Change> changes = secondChangeLog.lock();
+			try {
+				assertEquals(1, changes.size());
+				assertEquals("KSK@1", changes.get(0).getShortenedKey());
+				assertEquals(2, secondChangeLog.append("CHK@2", "KSK@2"));
+			} finally {
+				secondChangeLog.unlock();
+			}
+		} finally {
+			firstChangeLog.close();
+			secondChangeLog.close();
+		}
+	}
+
+	/**
+	 * Tests that a closed log can not be appended to.
+	 */
+	public void testClosed() {
+		ChangeLog changeLog = new ChangeLog(file);
+		try {
+			changeLog.append("CHK@1", "KSK@1");
+			fail("closed log was appended to");
+		} catch (IOException ioe1) {
+			/* expected. */
+		}
+	}
+
+}
@@ -0,0 +1,508 @@
+/*
+ * shortener - DiscreteEventClock.java - Copyright © 2010 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugin.shortener;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import freenet.support.Executor;
+import freenet.support.PooledExecutor;
+
+/**
+ * {@link Clock} that runs in virtual time, for simulations of the
+ * {@link Shortener}. The clock knows all simulated threads: the thread that
+ * creates the clock, and all threads that are started by its
+ * {@link #getExecutor() executor}. Only one simulated thread runs at a time;
+ * it runs until it waits on the clock, sleeps, or returns. Then the thread
+ * that was woken or started first continues, and if there is none, the time
+ * jumps to the earliest wake-up time and the thread that waits for it
+ * continues. With the same decisions the threads always run in the same
+ * order, and a simulated hour takes as long as the code that runs in it.
+ * <p>
+ * Simulated threads may only wait and wake each other through the clock. A
+ * thread that continues while another simulated thread waits on the clock
+ * but still owns a monitor the continuing thread needs can not run; the
+ * clock notices this after a few real milliseconds and lets the blocked
+ * thread run on its own until it waits on the clock again, so that the order
+ * of the threads is not fixed in this case.
+ *
+ * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+ */
+public class DiscreteEventClock implements Clock {
+
+	/** The virtual time every clock starts at (2010-01-01 00:00 UTC). */
+	public static final long START_TIME = 1262304000000L;
+
+	/** The real time between two checks for blocked threads. */
+	private static final long BLOCK_CHECK_INTERVAL = 10;
+
+	/** The lock for the state of the clock. */
+	private final Object lock = new Object();
+
+	/** The threads that wait for a wake-up, in the order they started waiting. */
+	private final List<Waiter> waiters = new ArrayList<Waiter>();
+
+	/** The threads that wait with a wake-up time, earliest first. */
+	private final PriorityQueue<Waiter> timedWaiters = new PriorityQueue<Waiter>();
+
+	/** The threads that may continue at the current time, in order. */
+	private final LinkedList<Waiter> readyWaiters = new LinkedList<Waiter>();
+
+	/** The threads that run on their own because they were blocked. */
+	private final Set<Thread> detachedThreads = new HashSet<Thread>();
+
+	/** The executor that starts simulated threads. */
+	private final Executor executor = new SimulatedExecutor();
+
+	/** The current virtual time. */
+	private long now = START_TIME;
+
+	/** The number of waits so far, for the order of simultaneous wake-ups. */
+	private long waitCount;
+
+	/** The simulated thread that is running, or {@code null}. */
+	private Thread runningThread = Thread.currentThread();
+
+	/** The number of times a thread has been allowed to continue. */
+	private long turnCount;
+
+	/** Whether the simulation is over. */
+	private boolean finished;
+
+	/**
+	 * Creates a new discrete-event clock. The calling thread becomes the
+	 * first simulated thread; it has to call {@link #finish()} when the
+	 * simulation is over.
+	 */
+	public DiscreteEventClock() {
+		Thread blockDetector = new Thread(new BlockDetector(), "Discrete Event Clock Block Detector");
+		blockDetector.setDaemon(true);
+		blockDetector.start();
+	}
+
+	//
+	// ACCESSORS
+	//
+
+	/**
+	 * Returns the executor that runs every job in a new simulated thread.
+	 *
+	 * @return The executor of this clock
+	 */
+	public Executor getExecutor() {
+		return executor;
+	}
+
+	//
+	// ACTIONS
+	//
+
+	/**
+	 * Ends the simulation for the calling thread, which has to be the thread
+	 * that created this clock. The other simulated threads run on until they
+	 * have all returned, or until they all wait for a wake-up that can not
+	 * happen anymore. The calling thread must not use this clock afterwards.
+	 */
+	public void finish() {
+		synchronized (lock) {
+			yieldTurn();
+			while ((runningThread != null) || !readyWaiters.isEmpty() || !timedWaiters.isEmpty() || !detachedThreads.isEmpty()) {
+				try {
+					lock.wait();
+				} catch (InterruptedException ie1) {
+					/* ignore, keep waiting. */
+				}
+			}
+			finished = true;
+		}
+	}
+
+	//
+	// INTERFACE Clock
+	//
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public long currentTimeMillis() {
+		synchronized (lock) {
+			return now;
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The wait is never interrupted; the clock interrupts the waiting thread
+	 * itself when it may continue.
+	 */
+	public void waitOn(Object monitor, long timeout) {
+		Waiter waiter;
+		synchronized (lock) {
+			waiter = new Waiter(Thread.currentThread(), monitor, (timeout > 0) ? (now + timeout) : -1, waitCount++);
+			waiters.add(waiter);
+			if (timeout > 0) {
+				timedWaiters.add(waiter);
+			}
+			yieldTurn();
+		}
+		while (!hasTurn(waiter)) {
+			try {
+				monitor.wait();
+			} catch (InterruptedException ie1) {
+				/* the clock wakes a waiting thread this way. */
+			}
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void wakeAll(Object monitor) {
+		synchronized (lock) {
+			Iterator<Waiter> waiterIterator = waiters.iterator();
+			while (waiterIterator.hasNext()) {
+				Waiter waiter = waiterIterator.next();
+				if (waiter.monitor == monitor) {
+					waiterIterator.remove();
+					timedWaiters.remove(waiter);
+					readyWaiters.add(waiter);
+				}
+			}
+			if (runningThread == null) {
+				handOver(false);
+			}
+		}
+		monitor.notifyAll();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void sleep(long time) {
+		if (time <= 0) {
+			return;
+		}
+		synchronized (lock) {
+			Waiter waiter = new Waiter(Thread.currentThread(), null, now + time, waitCount++);
+			waiters.add(waiter);
+			timedWaiters.add(waiter);
+			yieldTurn();
+			awaitTurn(waiter);
+		}
+	}
+
+	//
+	// PRIVATE METHODS
+	//
+
+	/**
+	 * Ends the turn of the calling thread and lets the next thread continue.
+	 * The caller has to hold the lock of this clock.
+	 */
+	private void yieldTurn() {
+		Thread currentThread = Thread.currentThread();
+		if (!detachedThreads.remove(currentThread) && (runningThread == currentThread)) {
+			runningThread = null;
+		}
+		if (runningThread == null) {
+			handOver(false);
+		}
+	}
+
+	/**
+	 * Lets the next thread continue: the first thread that has been woken or
+	 * started, or else the thread with the earliest wake-up time, advancing
+	 * the time to its wake-up time. The time is not advanced while detached
+	 * threads run, unless they are all blocked. If no thread can continue,
+	 * {@link #finish()} is woken. The caller has to hold the lock of this
+	 * clock.
+	 *
+	 * @param ignoreDetachedThreads
+	 *            {@code true} to advance the time even if detached threads
+	 *            exist, {@code false} otherwise
+	 */
+	private void handOver(boolean ignoreDetachedThreads) {
+		Waiter waiter = readyWaiters.poll();
+		if ((waiter == null) && (ignoreDetachedThreads || detachedThreads.isEmpty())) {
+			waiter = timedWaiters.poll();
+			if (waiter != null) {
+				now = Math.max(now, waiter.wakeUpTime);
+				waiters.remove(waiter);
+			}
+		}
+		if (waiter == null) {
+			lock.notifyAll();
+			return;
+		}
+		runningThread = waiter.thread;
+		waiter.turn = true;
+		++turnCount;
+		if (waiter.monitor == null) {
+			lock.notifyAll();
+		} else {
+			/* the monitor may be owned by another thread, interrupt instead. */
+			waiter.thread.interrupt();
+		}
+	}
+
+	/**
+	 * Returns whether the thread of the given waiter may continue. A waiter
+	 * that waits on a monitor is interrupted when it may continue; the
+	 * interrupt is cleared before the thread continues.
+	 *
+	 * @param waiter
+	 *            The waiter of the calling thread
+	 * @return {@code true} if the thread may continue, {@code false}
+	 *         otherwise
+	 */
+	private boolean hasTurn(Waiter waiter) {
+		synchronized (lock) {
+			if (waiter.turn) {
+				Thread.interrupted();
+			}
+			return waiter.turn;
+		}
+	}
+
+	/**
+	 * Waits until the thread of the given waiter may continue. The caller has
+	 * to hold the lock of this clock.
+	 *
+	 * @param waiter
+	 *            The waiter of the calling thread
+	 */
+	private void awaitTurn(Waiter waiter) {
+		while (!waiter.turn) {
+			try {
+				lock.wait();
+			} catch (InterruptedException ie1) {
+				/* ignore, keep waiting. */
+			}
+		}
+	}
+
+	/**
+	 * A thread that waits on the clock.
+	 *
+	 * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+	 */
+	private static class Waiter implements Comparable<Waiter> {
+
+		/** The waiting thread. */
+		final Thread thread;
+
+		/** The monitor the thread waits on, or {@code null}. */
+		final Object monitor;
+
+		/** The time to wake up the thread at, or {@code -1}. */
+		final long wakeUpTime;
+
+		/** The number of the wait, for the order of simultaneous wake-ups. */
+		final long sequence;
+
+		/** Whether the thread may continue. */
+		boolean turn;
+
+		/**
+		 * Creates a new waiter.
+		 *
+		 * @param thread
+		 *            The waiting thread
+		 * @param monitor
+		 *            The monitor the thread waits on, or {@code null}
+		 * @param wakeUpTime
+		 *            The time to wake up the thread at, or {@code -1}
+		 * @param sequence
+		 *            The number of the wait
+		 */
+		Waiter(Thread thread, Object monitor, long wakeUpTime, long sequence) {
+			this.thread = thread;
+			this.monitor = monitor;
+			this.wakeUpTime = wakeUpTime;
+			this.sequence = sequence;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		public int compareTo(Waiter waiter) {
+			if (wakeUpTime != waiter.wakeUpTime) {
+				return (wakeUpTime < waiter.wakeUpTime) ? -1 : 1;
+			}
+			return (sequence < waiter.sequence) ? -1 : ((sequence > waiter.sequence) ? 1 : 0);
+		}
+
+	}
+
+	/**
+	 * Executor that runs every job in a new simulated thread. The thread
+	 * starts to run the job when it gets its first turn.
+	 *
+	 * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+	 */
+	private class SimulatedExecutor extends PooledExecutor {
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		@SuppressWarnings("synthetic-access")
+		public void execute(Runnable job, String jobName) {
+			SimulatedJob simulatedJob = new SimulatedJob(job);
+			Thread thread = new Thread(simulatedJob, jobName);
+			thread.setDaemon(true);
+			synchronized (lock) {
+				simulatedJob.waiter = new Waiter(thread, null, -1, waitCount++);
+				readyWaiters.add(simulatedJob.waiter);
+				if (runningThread == null) {
+					handOver(false);
+				}
+			}
+			thread.start();
+		}
+
+	}
+
+	/**
+	 * A job that runs in a simulated thread.
+	 *
+	 * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+	 */
+	private class SimulatedJob implements Runnable {
+
+		/** The job to run. */
+		private final Runnable job;
+
+		/** The waiter of the thread until its first turn. */
+		Waiter waiter;
+
+		/**
+		 * Creates a new simulated job.
+		 *
+		 * @param job
+		 *            The job to run
+		 */
+		public SimulatedJob(Runnable job) {
+			this.job = job;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@SuppressWarnings("synthetic-access")
+		public void run() {
+			synchronized (lock) {
+				awaitTurn(waiter);
+			}
+			try {
+				job.run();
+			} finally {
+				synchronized (lock) {
+					yieldTurn();
+				}
+			}
+		}
+
+	}
+
+	/**
+	 * Lets a simulated thread run on its own if it has been blocked for two
+	 * checks in a row during the same turn, and advances the time if all
+	 * threads that run on their own are blocked and no other thread can
+	 * continue.
+	 *
+	 * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+	 */
+	private class BlockDetector implements Runnable {
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@SuppressWarnings("synthetic-access")
+		public void run() {
+			long blockedTurn = -1;
+			while (true) {
+				try {
+					Thread.sleep(BLOCK_CHECK_INTERVAL);
+				} catch (InterruptedException ie1) {
+					/* ignore, check now. */
+				}
+				Thread thread;
+				long turn;
+				List<Thread> threads;
+				synchronized (lock) {
+					if (finished) {
+						return;
+					}
+					thread = runningThread;
+					turn = turnCount;
+					threads = new ArrayList<Thread>(detachedThreads);
+				}
+				if (thread != null) {
+					threads = Collections.singletonList(thread);
+				}
+				if (threads.isEmpty() || !areBlocked(threads)) {
+					blockedTurn = -1;
+					continue;
+				}
+				if (blockedTurn != turn) {
+					blockedTurn = turn;
+					continue;
+				}
+				synchronized (lock) {
+					if ((turnCount == turn) && (runningThread == thread)) {
+						if (thread != null) {
+							detachedThreads.add(thread);
+							runningThread = null;
+							handOver(false);
+						} else if (readyWaiters.isEmpty() && detachedThreads.containsAll(threads)) {
+							handOver(true);
+						}
+					}
+				}
+				blockedTurn = -1;
+			}
+		}
+
+		/**
+		 * Returns whether all given threads are blocked on a monitor.
+		 *
+		 * @param threads
+		 *            The threads to check
+		 * @return {@code true} if all threads are blocked, {@code false}
+		 *         otherwise
+		 */
+		private boolean areBlocked(List<Thread> threads) {
+			for (Thread thread : threads) {
+				if (thread.getState() != Thread.State.BLOCKED) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+	}
+
+}
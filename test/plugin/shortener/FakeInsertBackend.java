@@ -0,0 +1,466 @@
+/*
+ * shortener - FakeInsertBackend.java - Copyright © 2010 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugin.shortener;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import freenet.keys.FreenetURI;
+
+/**
+ * {@link InsertBackend} that only pretends to insert redirects, for
+ * measuring the {@link Shortener} without a node. The latency of the inserts
+ * follows a configurable {@link Latency} distribution; inserts fail
+ * transiently or fatally with configurable probabilities.
+ * <p>
+ * Whether a shortened key is already occupied depends on its length: a key
+ * with a prefix of length <i>n</i> is occupied with the <i>n</i>-th
+ * collision probability. The decision is derived from the seed and the key
+ * so that the same key always collides, and keys that have been inserted
+ * successfully collide afterwards, too. The latency and the failures of an
+ * insert are derived from the seed, the key, and the number of earlier
+ * inserts of the key, so that runs can be repeated even if the inserts of
+ * different keys are made in a different order.
+ * <p>
+ * Inserts wait for their latency on a {@link Clock}; with a
+ * {@link DiscreteEventClock}, an insert of one minute takes no real time.
+ *
+ * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+ */
+public class FakeInsertBackend implements InsertBackend {
+
+	/** The seed of all random decisions. */
+	private final long seed;
+
+	/** The shortened keys that have been inserted. */
+	private final Set<String> insertedKeys = new HashSet<String>();
+
+	/** The number of inserts, by shortened key. */
+	private final Map<String, Integer> keyInsertCounts = new HashMap<String, Integer>();
+
+	/** The distribution of the insert latencies. */
+	private Latency latency = Latency.constant(0);
+
+	/** The collision probabilities, by prefix length (starting at 1). */
+	private double[] collisionProbabilities = new double[] { 0 };
+
+	/** The probability of a transient failure. */
+	private double transientFailureProbability;
+
+	/** The probability of a fatal failure. */
+	private double fatalFailureProbability;
+
+	/** The clock that inserts wait on. */
+	private Clock clock = SystemClock.INSTANCE;
+
+	/** The number of inserts. */
+	private long insertCount;
+
+	/** The number of collisions. */
+	private long collisionCount;
+
+	/** The number of transient failures. */
+	private long transientFailureCount;
+
+	/** The number of fatal failures. */
+	private long fatalFailureCount;
+
+	/**
+	 * Creates a new fake insert backend.
+	 *
+	 * @param seed
+	 *            The seed of all random decisions
+	 */
+	public FakeInsertBackend(long seed) {
+		this.seed = seed;
+	}
+
+	//
+	// ACCESSORS
+	//
+
+	/**
+	 * Sets the distribution of the insert latencies.
+	 *
+	 * @param latency
+	 *            The distribution of the insert latencies
+	 */
+	public synchronized void setLatency(Latency latency) {
+		this.latency = latency;
+	}
+
+	/**
+	 * Sets the probabilities that a shortened key is already occupied. The
+	 * first probability is used for prefixes of length 1, the second for
+	 * prefixes of length 2, and so on; the last probability is used for all
+	 * longer prefixes.
+	 *
+	 * @param collisionProbabilities
+	 *            The collision probabilities, by prefix length
+	 */
+	public synchronized void setCollisionProbabilities(double... collisionProbabilities) {
+		if (collisionProbabilities.length == 0) {
+			throw new IllegalArgumentException("At least one collision probability is required.");
+		}
+		this.collisionProbabilities = collisionProbabilities.clone();
+	}
+
+	/**
+	 * Sets the probability that an insert fails transiently.
+	 *
+	 * @param transientFailureProbability
+	 *            The probability of a transient failure
+	 */
+	public synchronized void setTransientFailureProbability(double transientFailureProbability) {
+		this.transientFailureProbability = transientFailureProbability;
+	}
+
+	/**
+	 * Sets the probability that an insert fails fatally.
+	 *
+	 * @param fatalFailureProbability
+	 *            The probability of a fatal failure
+	 */
+	public synchronized void setFatalFailureProbability(double fatalFailureProbability) {
+		this.fatalFailureProbability = fatalFailureProbability;
+	}
+
+	/**
+	 * Sets the clock that {@link #insertRedirect(FreenetURI, FreenetURI)}
+	 * waits for the latency of an insert on.
+	 *
+	 * @param clock
+	 *            The clock that inserts wait on
+	 */
+	public synchronized void setClock(Clock clock) {
+		this.clock = clock;
+	}
+
+	/**
+	 * Returns the number of inserts.
+	 *
+	 * @return The number of inserts
+	 */
+	public synchronized long getInsertCount() {
+		return insertCount;
+	}
+
+	/**
+	 * Returns the number of inserts that collided.
+	 *
+	 * @return The number of collisions
+	 */
+	public synchronized long getCollisionCount() {
+		return collisionCount;
+	}
+
+	/**
+	 * Returns the number of inserts that failed transiently.
+	 *
+	 * @return The number of transient failures
+	 */
+	public synchronized long getTransientFailureCount() {
+		return transientFailureCount;
+	}
+
+	/**
+	 * Returns the number of inserts that failed fatally.
+	 *
+	 * @return The number of fatal failures
+	 */
+	public synchronized long getFatalFailureCount() {
+		return fatalFailureCount;
+	}
+
+	//
+	// ACTIONS
+	//
+
+	/**
+	 * Decides the latency and the outcome of an insert of the given shortened
+	 * key without waiting. A successful insert occupies the key.
+	 *
+	 * @param shortenedKey
+	 *            The shortened key, including the “KSK@”
+	 * @return The simulated insert
+	 */
+	private synchronized SimulatedInsert simulateInsert(String shortenedKey) {
+		++insertCount;
+		Integer keyInsertCount = keyInsertCounts.get(shortenedKey);
+		int earlierInserts = (keyInsertCount == null) ? 0 : keyInsertCount;
+		keyInsertCounts.put(shortenedKey, earlierInserts + 1);
+		Random random = new Random(hash(shortenedKey + "#" + earlierInserts));
+		long insertLatency = latency.sample(random);
+		double failure = random.nextDouble();
+		InsertOutcome insertOutcome;
+		if (failure < fatalFailureProbability) {
+			++fatalFailureCount;
+			insertOutcome = InsertOutcome.FATAL;
+		} else if (failure < (fatalFailureProbability + transientFailureProbability)) {
+			++transientFailureCount;
+			insertOutcome = InsertOutcome.TRANSIENT;
+		} else if (isOccupied(shortenedKey)) {
+			++collisionCount;
+			insertOutcome = InsertOutcome.COLLISION;
+		} else {
+			insertedKeys.add(shortenedKey);
+			insertOutcome = InsertOutcome.SUCCESS;
+		}
+		return new SimulatedInsert(insertLatency, insertOutcome);
+	}
+
+	//
+	// INTERFACE InsertBackend
+	//
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public InsertOutcome insertRedirect(FreenetURI shortenedKey, FreenetURI originalKey) {
+		SimulatedInsert simulatedInsert = simulateInsert(shortenedKey.toString());
+		Clock clock;
+		synchronized (this) {
+			clock = this.clock;
+		}
+		long end = clock.currentTimeMillis() + simulatedInsert.getLatency();
+		long now;
+		while ((now = clock.currentTimeMillis()) < end) {
+			try {
+				clock.sleep(end - now);
+			} catch (InterruptedException ie1) {
+				/* ignore, keep waiting. */
+			}
+		}
+		return simulatedInsert.getOutcome();
+	}
+
+	//
+	// PRIVATE METHODS
+	//
+
+	/**
+	 * Returns whether the given shortened key is occupied.
+	 *
+	 * @param shortenedKey
+	 *            The shortened key, including the “KSK@”
+	 * @return {@code true} if the key is occupied, {@code false} otherwise
+	 */
+	private boolean isOccupied(String shortenedKey) {
+		if (insertedKeys.contains(shortenedKey)) {
+			return true;
+		}
+		int prefixLength = shortenedKey.length() - shortenedKey.indexOf('@') - 1;
+		double collisionProbability = collisionProbabilities[Math.max(0, Math.min(prefixLength, collisionProbabilities.length) - 1)];
+		return ((hash(shortenedKey) >>> 11) / (double) (1L << 53)) < collisionProbability;
+	}
+
+	/**
+	 * Hashes the given text together with the seed.
+	 *
+	 * @param text
+	 *            The text to hash
+	 * @return The hash of the text, always the same for the same text
+	 */
+	private long hash(String text) {
+		/* FNV-1a over the text, mixed with the seed. */
+		long hash = seed ^ 0xcbf29ce484222325L;
+		for (int index = 0; index < text.length(); ++index) {
+			hash = (hash ^ text.charAt(index)) * 0x100000001b3L;
+		}
+		hash = (hash ^ (hash >>> 33)) * 0xff51afd7ed558ccdL;
+		hash = (hash ^ (hash >>> 33)) * 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+
+	/**
+	 * The latency and the outcome of a simulated insert.
+	 *
+	 * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+	 */
+	private static class SimulatedInsert {
+
+		/** The latency of the insert (in milliseconds). */
+		private final long latency;
+
+		/** The outcome of the insert. */
+		private final InsertOutcome outcome;
+
+		/**
+		 * Creates a new simulated insert.
+		 *
+		 * @param latency
+		 *            The latency of the insert (in milliseconds)
+		 * @param outcome
+		 *            The outcome of the insert
+		 */
+		public SimulatedInsert(long latency, InsertOutcome outcome) {
+			this.latency = latency;
+			this.outcome = outcome;
+		}
+
+		/**
+		 * Returns the latency of the insert.
+		 *
+		 * @return The latency of the insert (in milliseconds)
+		 */
+		public long getLatency() {
+			return latency;
+		}
+
+		/**
+		 * Returns the outcome of the insert.
+		 *
+		 * @return The outcome of the insert
+		 */
+		public InsertOutcome getOutcome() {
+			return outcome;
+		}
+
+	}
+
+	/**
+	 * A distribution of insert latencies.
+	 *
+	 * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+	 */
+	public static abstract class Latency {
+
+		/**
+		 * Returns a random latency from this distribution.
+		 *
+		 * @param random
+		 *            The random number generator to use
+		 * @return The latency (in milliseconds)
+		 */
+		public abstract long sample(Random random);
+
+		/**
+		 * Returns a distribution that always has the same latency.
+		 *
+		 * @param latency
+		 *            The latency (in milliseconds)
+		 * @return The distribution
+		 */
+		public static Latency constant(final long latency) {
+			return new Latency() {
+
+				@Override
+				public long sample(Random random) {
+					return latency;
+				}
+			};
+		}
+
+		/**
+		 * Returns a distribution with latencies that are uniformly distributed
+		 * between the given bounds.
+		 *
+		 * @param minimum
+		 *            The minimum latency (in milliseconds)
+		 * @param maximum
+		 *            The maximum latency (in milliseconds)
+		 * @return The distribution
+		 */
+		public static Latency uniform(final long minimum, final long maximum) {
+			return new Latency() {
+
+				@Override
+				public long sample(Random random) {
+					return minimum + (long) (random.nextDouble() * (maximum - minimum));
+				}
+			};
+		}
+
+		/**
+		 * Returns a distribution with exponentially distributed latencies.
+		 *
+		 * @param mean
+		 *            The mean latency (in milliseconds)
+		 * @return The distribution
+		 */
+		public static Latency exponential(final long mean) {
+			return new Latency() {
+
+				@Override
+				public long sample(Random random) {
+					return (long) (-Math.log(1 - random.nextDouble()) * mean);
+				}
+			};
+		}
+
+		/**
+		 * Returns a distribution with log-normally distributed latencies,
+		 * which resembles the long tail of real inserts.
+		 *
+		 * @param median
+		 *            The median latency (in milliseconds)
+		 * @param sigma
+		 *            The standard deviation of the latency’s logarithm
+		 * @return The distribution
+		 */
+		public static Latency logNormal(final long median, final double sigma) {
+			return new Latency() {
+
+				@Override
+				public long sample(Random random) {
+					return (long) (median * Math.exp(sigma * random.nextGaussian()));
+				}
+			};
+		}
+
+		/**
+		 * Parses a distribution from its description. Descriptions are
+		 * “constant:<i>latency</i>”, “uniform:<i>minimum</i>:<i>maximum</i>”,
+		 * “exponential:<i>mean</i>”, and
+		 * “lognormal:<i>median</i>:<i>sigma</i>”, with all times in
+		 * milliseconds.
+		 *
+		 * @param description
+		 *            The description of the distribution
+		 * @return The distribution
+		 * @throws IllegalArgumentException
+		 *             if the description is invalid
+		 */
+		public static Latency parse(String description) throws IllegalArgumentException {
+			String[] parts = description.split(":");
+			try {
+				if ((parts.length == 2) && parts[0].equals("constant")) {
+					return constant(Long.parseLong(parts[1]));
+				}
+				if ((parts.length == 3) && parts[0].equals("uniform")) {
+					return uniform(Long.parseLong(parts[1]), Long.parseLong(parts[2]));
+				}
+				if ((parts.length == 2) && parts[0].equals("exponential")) {
+					return exponential(Long.parseLong(parts[1]));
+				}
+				if ((parts.length == 3) && parts[0].equals("lognormal")) {
+					return logNormal(Long.parseLong(parts[1]), Double.parseDouble(parts[2]));
+				}
+			} catch (NumberFormatException nfe1) {
+				throw new IllegalArgumentException("Invalid latency distribution: " + description, nfe1);
+			}
+			throw new IllegalArgumentException("Invalid latency distribution: " + description);
+		}
+
+	}
+
+}
@@ -0,0 +1,274 @@
+/*
+ * shortener - FcpHandlerTest.java - Copyright © 2010 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugin.shortener;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+import plugin.shortener.FakeInsertBackend.Latency;
+import plugin.shortener.Shortener.KeyShorteningProgress;
+import freenet.pluginmanager.FredPluginFCP;
+import freenet.pluginmanager.PluginNotFoundException;
+import freenet.pluginmanager.PluginReplySender;
+import freenet.support.Base64;
+import freenet.support.PooledExecutor;
+import freenet.support.SimpleFieldSet;
+import freenet.support.api.Bucket;
+
+/**
+ * Tests for {@link FcpHandler}.
+ *
+ * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+ */
+public class FcpHandlerTest extends TestCase {
+
+	/** The directory of the stores. */
+	private File directory;
+
+	/** The key shortener. */
+	private Shortener shortener;
+
+	/** The FCP handler. */
+	private FcpHandler fcpHandler;
+
+	/** The sender that collects the replies. */
+	private RecordingReplySender replySender;
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected void setUp() throws Exception {
+		PooledExecutor executor = new PooledExecutor();
+		executor.start();
+		directory = TemporaryDirectory.create("fcphandler");
+		File segmentDirectory = new File(directory, "segments");
+		segmentDirectory.mkdir();
+		FakeInsertBackend insertBackend = new FakeInsertBackend(1);
+		insertBackend.setLatency(Latency.constant(1000));
+		shortener = new Shortener(executor, insertBackend, new Journal(new File(directory, "journal.dat"), executor), new SegmentStore(segmentDirectory, executor), new ChangeLog(new File(directory, "changes.log")));
+		shortener.start();
+		fcpHandler = new FcpHandler(shortener, null, null, executor);
+		replySender = new RecordingReplySender();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected void tearDown() throws Exception {
+		fcpHandler.stop();
+		shortener.stop();
+		TemporaryDirectory.delete(directory);
+	}
+
+	/**
+	 * Tests that a client with restricted access can not set a budget.
+	 */
+	public void testRestrictedClientMayNotSetBudget() {
+		String key = createKey((byte) 0x31);
+		fcpHandler.handle(replySender, createShorten(key, "Budget", "10000"), null, FredPluginFCP.ACCESS_FCP_RESTRICTED);
+		assertEquals("Error", replySender.getLastReply().get("Message"));
+		assertEquals("AccessDenied", replySender.getLastReply().get("Code"));
+		assertNull(shortener.getKeyShorteningProgress(key));
+	}
+
+	/**
+	 * Tests that a client with restricted access can still shorten keys
+	 * without a budget, and that a client with full access can set one.
+	 */
+	public void testBudgetWithFullAccess() {
+		fcpHandler.handle(replySender, createShorten(createKey((byte) 0x32), "Budget", "0"), null, FredPluginFCP.ACCESS_FCP_RESTRICTED);
+		assertEquals("Shortening", replySender.getLastReply().get("Message"));
+		fcpHandler.handle(replySender, createShorten(createKey((byte) 0x33), "Budget", "10000"), null, FredPluginFCP.ACCESS_FCP_FULL);
+		assertEquals("Shortening", replySender.getLastReply().get("Message"));
+	}
+
+	/**
+	 * Tests that a timeout larger than the maximum timeout is reduced.
+	 */
+	public void testTimeoutIsLimited() {
+		fcpHandler.setMaximumTimeout(5000);
+		String key = createKey((byte) 0x34);
+		long now = System.currentTimeMillis();
+		fcpHandler.handle(replySender, createShorten(key, "Timeout", String.valueOf(24 * 60 * 60 * 1000)), null, FredPluginFCP.ACCESS_FCP_RESTRICTED);
+		assertEquals("Shortening", replySender.getLastReply().get("Message"));
+		KeyShorteningProgress keyShorteningProgress = shortener.getKeyShorteningProgress(key);
+		assertNotNull(keyShorteningProgress);
+		assertTrue(keyShorteningProgress.getDeadline() > 0);
+		assertTrue(keyShorteningProgress.getDeadline() <= System.currentTimeMillis() + 5000);
+		assertTrue(keyShorteningProgress.getDeadline() >= now + 5000);
+	}
+
+	/**
+	 * Tests that clients with restricted access can only hold a limited
+	 * number of subscriptions, and that unsubscribing frees a subscription.
+	 */
+	public void testRestrictedSubscriptionsAreLimited() {
+		String id = null;
+		for (int index = 0; index < FcpHandler.MAXIMUM_RESTRICTED_SUBSCRIPTIONS; ++index) {
+			fcpHandler.handle(replySender, createMessage("Subscribe"), null, FredPluginFCP.ACCESS_FCP_RESTRICTED);
+			assertEquals("Subscribed", replySender.getLastReply().get("Message"));
+			id = replySender.getLastReply().get("Subscription");
+		}
+		fcpHandler.handle(replySender, createMessage("Subscribe"), null, FredPluginFCP.ACCESS_FCP_RESTRICTED);
+		assertEquals("TooManySubscriptions", replySender.getLastReply().get("Code"));
+		fcpHandler.handle(replySender, createMessage("Subscribe"), null, FredPluginFCP.ACCESS_FCP_FULL);
+		assertEquals("Subscribed", replySender.getLastReply().get("Message"));
+		SimpleFieldSet unsubscribe = createMessage("Unsubscribe");
+		unsubscribe.putSingle("Subscription", id);
+		fcpHandler.handle(replySender, unsubscribe, null, FredPluginFCP.ACCESS_FCP_RESTRICTED);
+		assertEquals("true", replySender.getLastReply().get("Found"));
+		fcpHandler.handle(replySender, createMessage("Subscribe"), null, FredPluginFCP.ACCESS_FCP_RESTRICTED);
+		assertEquals("Subscribed", replySender.getLastReply().get("Message"));
+	}
+
+	/**
+	 * Tests that a subscription whose client is gone removes itself, so that
+	 * it does not count against the limit of restricted subscriptions.
+	 *
+	 * @throws InterruptedException
+	 *             if the test is interrupted
+	 */
+	public void testSubscriptionOfGoneClientIsRemoved() throws InterruptedException {
+		for (int index = 1; index < FcpHandler.MAXIMUM_RESTRICTED_SUBSCRIPTIONS; ++index) {
+			fcpHandler.handle(replySender, createMessage("Subscribe"), null, FredPluginFCP.ACCESS_FCP_RESTRICTED);
+		}
+		RecordingReplySender goneReplySender = new RecordingReplySender();
+		fcpHandler.handle(goneReplySender, createMessage("Subscribe"), null, FredPluginFCP.ACCESS_FCP_RESTRICTED);
+		assertEquals("Subscribed", goneReplySender.getLastReply().get("Message"));
+		goneReplySender.setGone(true);
+		fcpHandler.handle(replySender, createMessage("Subscribe"), null, FredPluginFCP.ACCESS_FCP_RESTRICTED);
+		assertEquals("TooManySubscriptions", replySender.getLastReply().get("Code"));
+		fcpHandler.handle(replySender, createShorten(createKey((byte) 0x35), "Priority", "Bulk"), null, FredPluginFCP.ACCESS_FCP_FULL);
+		long end = System.currentTimeMillis() + 10000;
+		do {
+			Thread.sleep(10);
+			fcpHandler.handle(replySender, createMessage("Subscribe"), null, FredPluginFCP.ACCESS_FCP_RESTRICTED);
+		} while (!"Subscribed".equals(replySender.getLastReply().get("Message")) && (System.currentTimeMillis() < end));
+		assertEquals("Subscribed", replySender.getLastReply().get("Message"));
+	}
+
+	//
+	// PRIVATE METHODS
+	//
+
+	/**
+	 * Creates a message without any additional fields.
+	 *
+	 * @param message
+	 *            The name of the message
+	 * @return The message
+	 */
+	private static SimpleFieldSet createMessage(String message) {
+		SimpleFieldSet parameters = new SimpleFieldSet(true);
+		parameters.putSingle("Message", message);
+		return parameters;
+	}
+
+	/**
+	 * Creates a “Shorten” message for the given key with one additional
+	 * field.
+	 *
+	 * @param key
+	 *            The key to shorten
+	 * @param name
+	 *            The name of the additional field
+	 * @param value
+	 *            The value of the additional field
+	 * @return The message
+	 */
+	private static SimpleFieldSet createShorten(String key, String name, String value) {
+		SimpleFieldSet parameters = new SimpleFieldSet(true);
+		parameters.putSingle("Message", "Shorten");
+		parameters.putSingle("Key", key);
+		parameters.putSingle(name, value);
+		return parameters;
+	}
+
+	/**
+	 * Creates a CHK whose routing key consists of the given byte.
+	 *
+	 * @param routingKeyByte
+	 *            The byte of the routing key
+	 * @return The key
+	 */
+	private static String createKey(byte routingKeyByte) {
+		byte[] routingKey = new byte[ShortenedKeyStore.ROUTING_KEY_LENGTH];
+		Arrays.fill(routingKey, routingKeyByte);
+		return "CHK@" + Base64.encode(routingKey) + ",crypto,AAIC--8";
+	}
+
+	/**
+	 * {@link PluginReplySender} that remembers all replies, or behaves as if
+	 * its client was gone.
+	 *
+	 * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+	 */
+	private static class RecordingReplySender extends PluginReplySender {
+
+		/** The replies that have been sent. */
+		private final List<SimpleFieldSet> replies = new ArrayList<SimpleFieldSet>();
+
+		/** Whether the client is gone. */
+		private boolean gone;
+
+		/**
+		 * Creates a new recording reply sender.
+		 */
+		public RecordingReplySender() {
+			super("shortener", "test");
+		}
+
+		/**
+		 * Returns the last reply that has been sent.
+		 *
+		 * @return The last reply, or {@code null} if no reply has been sent
+		 */
+		public synchronized SimpleFieldSet getLastReply() {
+			return replies.isEmpty() ? null : replies.get(replies.size() - 1);
+		}
+
+		/**
+		 * Sets whether the client is gone. Sending to a gone client fails.
+		 *
+		 * @param gone
+		 *            {@code true} if the client is gone, {@code false}
+		 *            otherwise
+		 */
+		public synchronized void setGone(boolean gone) {
+			this.gone = gone;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public synchronized void send(SimpleFieldSet parameters, Bucket bucket) throws PluginNotFoundException {
+			if (gone) {
+				throw new PluginNotFoundException();
+			}
+			replies.add(parameters);
+		}
+
+	}
+
+}
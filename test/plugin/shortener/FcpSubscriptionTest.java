@@ -0,0 +1,206 @@
+/*
+ * shortener - FcpSubscriptionTest.java - Copyright © 2010 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugin.shortener;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import plugin.shortener.Shortener.KeyShorteningProgress;
+import plugin.shortener.Shortener.ShortenedKey;
+import freenet.pluginmanager.PluginReplySender;
+import freenet.support.PooledExecutor;
+import freenet.support.SimpleFieldSet;
+import freenet.support.api.Bucket;
+
+/**
+ * Tests for {@link FcpSubscription}.
+ *
+ * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+ */
+public class FcpSubscriptionTest extends TestCase {
+
+	/** The directory of the stores. */
+	private File directory;
+
+	/** The key shortener. */
+	private Shortener shortener;
+
+	/** The sender that blocks until it is released. */
+	private BlockingReplySender replySender;
+
+	/** The subscription to all keys. */
+	private FcpSubscription subscription;
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected void setUp() throws Exception {
+		PooledExecutor executor = new PooledExecutor();
+		executor.start();
+		directory = TemporaryDirectory.create("subscription");
+		File segmentDirectory = new File(directory, "segments");
+		segmentDirectory.mkdir();
+		shortener = new Shortener(executor, new FakeInsertBackend(1), new Journal(new File(directory, "journal.dat"), executor), new SegmentStore(segmentDirectory, executor), new ChangeLog(new File(directory, "changes.log")));
+		replySender = new BlockingReplySender();
+		subscription = new FcpSubscription("1", null, replySender, executor, shortener);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected void tearDown() throws Exception {
+		subscription.cancel();
+		replySender.release();
+		TemporaryDirectory.delete(directory);
+	}
+
+	/**
+	 * Tests that the event of a finished key shortening is not replaced by
+	 * an event of the next key shortening of the same key.
+	 *
+	 * @throws InterruptedException
+	 *             if the test is interrupted
+	 */
+	public void testFinishedEventIsNotReplaced() throws InterruptedException {
+		subscription.keyShorteningAdvanced(shortener.new KeyShorteningProgress("CHK@other"));
+		assertTrue(replySender.waitForEvents(1, 10000));
+		KeyShorteningProgress keyShorteningProgress = shortener.new KeyShorteningProgress("CHK@key");
+		keyShorteningProgress.setCurrentKey("KSK@abc");
+		subscription.keyShorteningAdvanced(keyShorteningProgress);
+		keyShorteningProgress.finish(new ShortenedKey("CHK@key", "KSK@abc"));
+		subscription.keyShorteningFinished(keyShorteningProgress);
+		KeyShorteningProgress upgradeProgress = shortener.new KeyShorteningProgress("CHK@key", true);
+		upgradeProgress.setCurrentKey("KSK@a");
+		subscription.keyShorteningAdvanced(upgradeProgress);
+		replySender.release();
+		assertTrue(replySender.waitForEvents(3, 10000));
+		List<SimpleFieldSet> events = replySender.getEvents();
+		assertEquals(3, events.size());
+		assertEquals("KeyShortened", events.get(1).get("Message"));
+		assertEquals("KSK@abc", events.get(1).get("ShortenedKey"));
+		assertEquals("KeyShorteningAdvanced", events.get(2).get("Message"));
+		assertEquals("KSK@a", events.get(2).get("CurrentKey"));
+	}
+
+	/**
+	 * Tests that the event of a finished key shortening makes room by
+	 * dropping a progress event when too many events are pending.
+	 *
+	 * @throws InterruptedException
+	 *             if the test is interrupted
+	 */
+	public void testFinishedEventIsNotDropped() throws InterruptedException {
+		subscription.keyShorteningAdvanced(shortener.new KeyShorteningProgress("CHK@other"));
+		assertTrue(replySender.waitForEvents(1, 10000));
+		for (int index = 0; index < 1000; ++index) {
+			subscription.keyShorteningAdvanced(shortener.new KeyShorteningProgress("CHK@" + index));
+		}
+		KeyShorteningProgress keyShorteningProgress = shortener.new KeyShorteningProgress("CHK@key");
+		keyShorteningProgress.finish(new ShortenedKey("CHK@key", "KSK@abc"));
+		subscription.keyShorteningFinished(keyShorteningProgress);
+		replySender.release();
+		assertTrue(replySender.waitForEvents(1002, 10000));
+		List<SimpleFieldSet> events = replySender.getEvents();
+		assertEquals("EventsDropped", events.get(1).get("Message"));
+		assertEquals("1", events.get(1).get("Count"));
+		assertEquals("CHK@1", events.get(2).get("OriginalKey"));
+		assertEquals("KeyShortened", events.get(events.size() - 1).get("Message"));
+	}
+
+	/**
+	 * {@link PluginReplySender} that blocks until it is released, and
+	 * remembers all events.
+	 *
+	 * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+	 */
+	private static class BlockingReplySender extends PluginReplySender {
+
+		/** The events that have been sent. */
+		private final List<SimpleFieldSet> events = new ArrayList<SimpleFieldSet>();
+
+		/** Whether the sender has been released. */
+		private boolean released;
+
+		/**
+		 * Creates a new blocking reply sender.
+		 */
+		public BlockingReplySender() {
+			super("shortener", "test");
+		}
+
+		/**
+		 * Returns all events that have been sent.
+		 *
+		 * @return The sent events
+		 */
+		public synchronized List<SimpleFieldSet> getEvents() {
+			return new ArrayList<SimpleFieldSet>(events);
+		}
+
+		/**
+		 * Waits until the given number of events has been sent.
+		 *
+		 * @param count
+		 *            The number of events to wait for
+		 * @param timeout
+		 *            The maximum time to wait (in milliseconds)
+		 * @return {@code true} if the events have been sent, {@code false}
+		 *         otherwise
+		 * @throws InterruptedException
+		 *             if the wait is interrupted
+		 */
+		public synchronized boolean waitForEvents(int count, long timeout) throws InterruptedException {
+			long end = System.currentTimeMillis() + timeout;
+			long now;
+			while ((events.size() < count) && ((now = System.currentTimeMillis()) < end)) {
+				wait(end - now);
+			}
+			return events.size() >= count;
+		}
+
+		/**
+		 * Lets the sender send all further events.
+		 */
+		public synchronized void release() {
+			released = true;
+			notifyAll();
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public synchronized void send(SimpleFieldSet parameters, Bucket bucket) {
+			events.add(parameters);
+			notifyAll();
+			while (!released) {
+				try {
+					wait();
+				} catch (InterruptedException ie1) {
+					/* ignore, keep waiting. */
+				}
+			}
+		}
+
+	}
+
+}
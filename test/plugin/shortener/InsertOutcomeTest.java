@@ -0,0 +1,59 @@
+/*
+ * shortener - InsertOutcomeTest.java - Copyright © 2010 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugin.shortener;
+
+import junit.framework.TestCase;
+import freenet.client.InsertException;
+
+/**
+ * Tests for {@link InsertOutcome}.
+ *
+ * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+ */
+public class InsertOutcomeTest extends TestCase {
+
+	/**
+	 * Tests that only a collision is classified as collision.
+	 */
+	public void testCollision() {
+		assertEquals(InsertOutcome.COLLISION, InsertOutcome.classify(new InsertException(InsertException.COLLISION)));
+	}
+
+	/**
+	 * Tests that overload and routing errors are classified as transient.
+	 */
+	public void testTransient() {
+		assertEquals(InsertOutcome.TRANSIENT, InsertOutcome.classify(new InsertException(InsertException.REJECTED_OVERLOAD)));
+		assertEquals(InsertOutcome.TRANSIENT, InsertOutcome.classify(new InsertException(InsertException.ROUTE_NOT_FOUND)));
+		assertEquals(InsertOutcome.TRANSIENT, InsertOutcome.classify(new InsertException(InsertException.ROUTE_REALLY_NOT_FOUND)));
+		assertEquals(InsertOutcome.TRANSIENT, InsertOutcome.classify(new InsertException(InsertException.TOO_MANY_RETRIES_IN_BLOCKS)));
+	}
+
+	/**
+	 * Tests that errors of the local node and invalid inserts are classified
+	 * as fatal.
+	 */
+	public void testFatal() {
+		assertEquals(InsertOutcome.FATAL, InsertOutcome.classify(new InsertException(InsertException.BUCKET_ERROR)));
+		assertEquals(InsertOutcome.FATAL, InsertOutcome.classify(new InsertException(InsertException.INTERNAL_ERROR)));
+		assertEquals(InsertOutcome.FATAL, InsertOutcome.classify(new InsertException(InsertException.INVALID_URI)));
+		assertEquals(InsertOutcome.FATAL, InsertOutcome.classify(new InsertException(InsertException.FATAL_ERRORS_IN_BLOCKS)));
+		assertEquals(InsertOutcome.FATAL, InsertOutcome.classify(new InsertException(InsertException.CANCELLED)));
+	}
+
+}
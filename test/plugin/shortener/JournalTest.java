@@ -0,0 +1,165 @@
+/*
+ * shortener - JournalTest.java - Copyright © 2010 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package plugin.shortener;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import plugin.shortener.Journal.Record;
+import plugin.shortener.Journal.RecordHandler;
+import plugin.shortener.Journal.Record.Type;
+import freenet.support.PooledExecutor;
+
+/**
+ * Tests for {@link Journal}.
+ *
+ * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+ */
+public class JournalTest extends TestCase {
+
+	/** The executor for the writer of the journal. */
+	private PooledExecutor executor;
+
+	/** The directory of the journal. */
+	private File directory;
+
+	/** The journal file. */
+	private File file;
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected void setUp() throws Exception {
+		executor = new PooledExecutor();
+		executor.start();
+		directory = TemporaryDirectory.create("journal");
+		file = new File(directory, "journal.dat");
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected void tearDown() throws Exception {
+		TemporaryDirectory.delete(directory);
+	}
+
+	/**
+	 * Tests that synced records are read back when the journal is opened
+	 * again.
+	 *
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public void testWriteAndReopen() throws IOException {
+		Journal journal = new Journal(file, executor);
+		assertTrue(readRecords(journal).isEmpty());
+		journal.write(new Record(Type.STARTED, "CHK@1", null));
+		journal.write(new Record(Type.COLLISION, "CHK@1", "KSK@a"));
+		long sequence = journal.write(new Record(Type.SHORTENED, "CHK@1", "KSK@ab", 17));
+		journal.waitForSync(sequence);
+		journal.close();
+		List<Record> records = readRecords(journal = new Journal(file, executor));
+		journal.close();
+		assertEquals(3, records.size());
+		assertEquals(Type.STARTED, records.get(0).getType());
+		assertNull(records.get(0).getShortenedKey());
+		assertEquals(Type.COLLISION, records.get(1).getType());
+		assertEquals("KSK@a", records.get(1).getShortenedKey());
+		assertEquals(Type.SHORTENED, records.get(2).getType());
+		assertEquals("CHK@1", records.get(2).getOriginalKey());
+		assertEquals("KSK@ab", records.get(2).getShortenedKey());
+		assertEquals(17, records.get(2).getChangeSequence());
+	}
+
+	/**
+	 * Tests that a torn record at the end of the journal is removed.
+	 *
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public void testTornRecord() throws IOException {
+		Journal journal = new Journal(file, executor);
+		readRecords(journal);
+		journal.waitForSync(journal.write(new Record(Type.STARTED, "CHK@1", null)));
+		journal.close();
+		long length = file.length();
+		FileOutputStream fileOutputStream = new FileOutputStream(file, true);
+		fileOutputStream.write(new byte[] { 0, 0, 0, 40, 9, 9, 9, 9, 1, 2 });
+		fileOutputStream.close();
+		journal = new Journal(file, executor);
+		assertEquals(1, readRecords(journal).size());
+		assertEquals(length, file.length());
+		journal.waitForSync(journal.write(new Record(Type.FAILED, "CHK@1", null)));
+		journal.close();
+		assertEquals(2, readRecords(journal = new Journal(file, executor)).size());
+		journal.close();
+	}
+
+	/**
+	 * Tests that resetting the journal removes all records.
+	 *
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public void testReset() throws IOException {
+		Journal journal = new Journal(file, executor);
+		readRecords(journal);
+		journal.write(new Record(Type.STARTED, "CHK@1", null));
+		journal.reset();
+		assertEquals(0, file.length());
+		journal.waitForSync(journal.write(new Record(Type.STARTED, "CHK@2", null)));
+		journal.close();
+		List<Record> records = readRecords(journal = new Journal(file, executor));
+		journal.close();
+		assertEquals(1, records.size());
+		assertEquals("CHK@2", records.get(0).getOriginalKey());
+	}
+
+	//
+	// PRIVATE METHODS
+	//
+
+	/**
+	 * Opens the given journal and returns all records it contains.
+	 *
+	 * @param journal
+	 *            The journal to open
+	 * @return The records of the journal
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	private static List<Record> readRecords(Journal journal) throws IOException {
+		final List<Record> records = new ArrayList<Record>();
+		journal.open(new RecordHandler() {
+
+			public void handleRecord(Record record) {
+				records.add(record);
+			}
+
+		});
+		return records;
+	}
+
+}
@@ -0,0 +1,102 @@
+/*
+ * shortener - KeyClaimsTest.java - Copyright © 2010 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package plugin.shortener;
+
+import java.io.File;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link KeyClaims}.
+ *
+ * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+ */
+public class KeyClaimsTest extends TestCase {
+
+	/** The directory of the claims. */
+	private File directory;
+
+	/** The claims of the first process. */
+	private KeyClaims firstKeyClaims;
+
+	/** The claims of the second process. */
+	private KeyClaims secondKeyClaims;
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected void setUp() throws Exception {
+		directory = TemporaryDirectory.create("claims");
+		firstKeyClaims = new KeyClaims(directory, "first");
+		secondKeyClaims = new KeyClaims(directory, "second");
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected void tearDown() throws Exception {
+		TemporaryDirectory.delete(directory);
+	}
+
+	/**
+	 * Tests that a claim is only held by one process at a time, and that
+	 * only the owner can release it.
+	 */
+	public void testClaimAndRelease() {
+		assertTrue(firstKeyClaims.claim("CHK@key"));
+		assertTrue(firstKeyClaims.claim("CHK@key"));
+		assertFalse(secondKeyClaims.claim("CHK@key"));
+		assertTrue(secondKeyClaims.claim("CHK@other"));
+		secondKeyClaims.release("CHK@key");
+		assertFalse(secondKeyClaims.claim("CHK@key"));
+		firstKeyClaims.release("CHK@key");
+		assertTrue(secondKeyClaims.claim("CHK@key"));
+	}
+
+	/**
+	 * Tests that a stale claim is taken over exactly once.
+	 */
+	public void testStaleClaim() {
+		assertTrue(firstKeyClaims.claim("CHK@key"));
+		makeStale();
+		assertTrue(secondKeyClaims.claim("CHK@key"));
+		assertFalse(new KeyClaims(directory, "third").claim("CHK@key"));
+		assertFalse(firstKeyClaims.claim("CHK@key"));
+		firstKeyClaims.release("CHK@key");
+		assertTrue(secondKeyClaims.claim("CHK@key"));
+	}
+
+	//
+	// PRIVATE METHODS
+	//
+
+	/**
+	 * Moves the modification time of all claim files back by an hour.
+	 */
+	private void makeStale() {
+		for (File claimFile : directory.listFiles()) {
+			if (claimFile.getName().endsWith(".claim")) {
+				claimFile.setLastModified(System.currentTimeMillis() - 60 * 60 * 1000);
+			}
+		}
+	}
+
+}
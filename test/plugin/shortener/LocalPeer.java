@@ -0,0 +1,98 @@
+/*
+ * shortener - LocalPeer.java - Copyright © 2010 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugin.shortener;
+
+import java.net.MalformedURLException;
+
+import plugin.shortener.Shortener.KeyShorteningProgress;
+import plugin.shortener.Shortener.ShortenedKey;
+import plugin.shortener.ShorteningScheduler.Priority;
+
+/**
+ * A {@link ShorteningPeer} that hands the keys to another {@link Shortener}
+ * in the same process. It stands in for a real peer in the tests of the
+ * {@link PeerCoordinator}. The shortener must not use the coordinator the
+ * peer is added to, or it would wait for itself.
+ *
+ * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+ */
+public class LocalPeer implements ShorteningPeer {
+
+	/** The name of the peer. */
+	private final String name;
+
+	/** The shortener that shortens the keys. */
+	private final Shortener shortener;
+
+	/** The number of keys the peer can shorten at the same time. */
+	private final int capacity;
+
+	/**
+	 * Creates a new local peer.
+	 *
+	 * @param name
+	 *            The name of the peer
+	 * @param shortener
+	 *            The shortener that shortens the keys
+	 * @param capacity
+	 *            The number of keys the peer can shorten at the same time
+	 */
+	public LocalPeer(String name, Shortener shortener, int capacity) {
+		this.name = name;
+		this.shortener = shortener;
+		this.capacity = Math.max(1, capacity);
+	}
+
+	//
+	// INTERFACE ShorteningPeer
+	//
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public String shortenKey(String key, long timeout) throws PeerException {
+		KeyShorteningProgress keyShorteningProgress;
+		try {
+			keyShorteningProgress = shortener.shortenKey(key, Priority.BULK);
+		} catch (MalformedURLException mue1) {
+			throw new PeerException("Peer " + name + " can not shorten invalid key " + key + ".", mue1);
+		} catch (SchedulerFullException sfe1) {
+			throw new PeerException("Peer " + name + " is busy.", sfe1);
+		}
+		if (!keyShorteningProgress.waitUntilFinished(timeout)) {
+			throw new PeerException("Peer " + name + " did not shorten " + key + " in time.");
+		}
+		ShortenedKey shortenedKey = keyShorteningProgress.getShortenedKey();
+		return (shortenedKey == null) ? null : shortenedKey.getShortenedKey();
+	}
+
+}
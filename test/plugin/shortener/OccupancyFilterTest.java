@@ -0,0 +1,139 @@
+/*
+ * shortener - OccupancyFilterTest.java - Copyright © 2010 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package plugin.shortener;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link OccupancyFilter}.
+ *
+ * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+ */
+public class OccupancyFilterTest extends TestCase {
+
+	/** The directory of the filter file. */
+	private File directory;
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected void setUp() throws Exception {
+		directory = TemporaryDirectory.create("filter");
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected void tearDown() throws Exception {
+		TemporaryDirectory.delete(directory);
+	}
+
+	/**
+	 * Tests that added prefixes are always contained and that the filter
+	 * only rarely contains other prefixes.
+	 */
+	public void testContains() {
+		OccupancyFilter occupancyFilter = new OccupancyFilter(null, 4096, 4, new Random(1));
+		for (int index = 0; index < 1000; ++index) {
+			occupancyFilter.add("prefix" + index);
+		}
+		for (int index = 0; index < 1000; ++index) {
+			assertTrue(occupancyFilter.mightContain("prefix" + index));
+		}
+		int falsePositives = 0;
+		for (int index = 1000; index < 11000; ++index) {
+			if (occupancyFilter.mightContain("prefix" + index)) {
+				++falsePositives;
+			}
+		}
+		assertTrue(falsePositives < 10000 * occupancyFilter.getExpectedFalsePositiveRate() * 2 + 10);
+	}
+
+	/**
+	 * Tests that contained prefixes are skipped unless they are verified, and
+	 * that verified prefixes that could be inserted count as false
+	 * positives.
+	 */
+	public void testSkipAndVerify() {
+		OccupancyFilter occupancyFilter = new OccupancyFilter(null, 1024, 3, new Random(1));
+		assertFalse(occupancyFilter.shouldSkip("free"));
+		occupancyFilter.recordOutcome("free", InsertOutcome.TRANSIENT);
+		assertFalse(occupancyFilter.mightContain("free"));
+		occupancyFilter.recordOutcome("taken", InsertOutcome.COLLISION);
+		assertTrue(occupancyFilter.shouldSkip("taken"));
+		assertEquals(1, occupancyFilter.getSkippedCount());
+		occupancyFilter.setVerificationRate(1);
+		assertFalse(occupancyFilter.shouldSkip("taken"));
+		assertEquals(1, occupancyFilter.getVerificationCount());
+		occupancyFilter.recordOutcome("taken", InsertOutcome.SUCCESS);
+		assertEquals(1, occupancyFilter.getFalsePositiveCount());
+		assertEquals(1.0, occupancyFilter.getFalsePositiveRate(), 0);
+	}
+
+	/**
+	 * Tests that a saved filter is loaded again, including its counters.
+	 */
+	public void testSaveAndLoad() {
+		File file = new File(directory, "filter.dat");
+		OccupancyFilter occupancyFilter = new OccupancyFilter(file, 1024, 3, new Random(1));
+		occupancyFilter.add("taken");
+		assertTrue(occupancyFilter.shouldSkip("taken"));
+		occupancyFilter.save();
+		assertTrue(file.exists());
+		assertFalse(new File(directory, "filter.dat.tmp").exists());
+		OccupancyFilter loadedOccupancyFilter = new OccupancyFilter(file, 1024, 3, new Random(1));
+		assertTrue(loadedOccupancyFilter.mightContain("taken"));
+		assertEquals(1, loadedOccupancyFilter.getSkippedCount());
+	}
+
+	/**
+	 * Tests that an exported filter can be merged into a filter of the same
+	 * size, but not into a filter of a different size.
+	 *
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public void testExportAndMerge() throws IOException {
+		OccupancyFilter occupancyFilter = new OccupancyFilter(null, 1024, 3, new Random(1));
+		occupancyFilter.add("taken");
+		ByteArrayOutputStream filterOutputStream = new ByteArrayOutputStream();
+		occupancyFilter.export(filterOutputStream);
+		OccupancyFilter otherOccupancyFilter = new OccupancyFilter(null, 1024, 3, new Random(1));
+		otherOccupancyFilter.add("other");
+		otherOccupancyFilter.merge(new ByteArrayInputStream(filterOutputStream.toByteArray()));
+		assertTrue(otherOccupancyFilter.mightContain("taken"));
+		assertTrue(otherOccupancyFilter.mightContain("other"));
+		OccupancyFilter smallerOccupancyFilter = new OccupancyFilter(null, 512, 3, new Random(1));
+		try {
+			smallerOccupancyFilter.merge(new ByteArrayInputStream(filterOutputStream.toByteArray()));
+			fail("filter of different size was merged");
+		} catch (IOException ioe1) {
+			/* expected. */
+		}
+	}
+
+}
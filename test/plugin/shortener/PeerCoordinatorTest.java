@@ -0,0 +1,234 @@
+/*
+ * shortener - PeerCoordinatorTest.java - Copyright © 2010 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package plugin.shortener;
+
+import java.io.File;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+import plugin.shortener.PeerCoordinator.PeerState;
+import freenet.support.Base64;
+import freenet.support.PooledExecutor;
+
+/**
+ * Tests for {@link PeerCoordinator}.
+ *
+ * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+ */
+public class PeerCoordinatorTest extends TestCase {
+
+	/** The coordinator being tested. */
+	private PeerCoordinator peerCoordinator;
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected void setUp() throws Exception {
+		peerCoordinator = new PeerCoordinator(10 * 1000);
+	}
+
+	/**
+	 * Tests that no key is shortened without peers.
+	 */
+	public void testNoPeers() {
+		assertNull(peerCoordinator.shortenKey("CHK@key"));
+		assertEquals(0, peerCoordinator.getCapacity());
+	}
+
+	/**
+	 * Tests that adding a peer with the same name replaces the peer, and
+	 * that the capacities of all peers are added.
+	 */
+	public void testAddAndRemovePeers() {
+		peerCoordinator.addPeer(new TestPeer("first", 2, "KSK@a"));
+		peerCoordinator.addPeer(new TestPeer("second", 3, "KSK@b"));
+		peerCoordinator.addPeer(new TestPeer("first", 4, "KSK@c"));
+		assertEquals(2, peerCoordinator.getPeerStates().size());
+		assertEquals(7, peerCoordinator.getCapacity());
+		assertTrue(peerCoordinator.removePeer("second"));
+		assertFalse(peerCoordinator.removePeer("second"));
+		assertEquals(4, peerCoordinator.getCapacity());
+	}
+
+	/**
+	 * Tests that the key of a failing peer is given to another peer, and
+	 * that the failing peer is not used while it backs off.
+	 */
+	public void testFailover() {
+		TestPeer failingPeer = new TestPeer("failing", 10, null);
+		failingPeer.setFailing(true);
+		TestPeer workingPeer = new TestPeer("working", 1, "KSK@short");
+		peerCoordinator.addPeer(failingPeer);
+		peerCoordinator.addPeer(workingPeer);
+		assertEquals("KSK@short", peerCoordinator.shortenKey("CHK@key"));
+		assertEquals(1, failingPeer.getRequestCount());
+		assertEquals(1, workingPeer.getRequestCount());
+		assertEquals("KSK@short", peerCoordinator.shortenKey("CHK@other"));
+		assertEquals(1, failingPeer.getRequestCount());
+		assertEquals(2, workingPeer.getRequestCount());
+		for (PeerState peerState : peerCoordinator.getPeerStates()) {
+			assertEquals(0, peerState.getRunning());
+			if (peerState.getPeer() == failingPeer) {
+				assertEquals(1, peerState.getFailures());
+				assertTrue(peerState.getBackoffUntil() > System.currentTimeMillis());
+			} else {
+				assertEquals(2, peerState.getShortened());
+			}
+		}
+	}
+
+	/**
+	 * Tests that a peer that could not shorten a key is not counted as
+	 * failed, and that the key is not given to another peer.
+	 */
+	public void testNotShortened() {
+		TestPeer firstPeer = new TestPeer("first", 2, null);
+		TestPeer secondPeer = new TestPeer("second", 1, "KSK@short");
+		peerCoordinator.addPeer(firstPeer);
+		peerCoordinator.addPeer(secondPeer);
+		assertNull(peerCoordinator.shortenKey("CHK@key"));
+		assertEquals(1, firstPeer.getRequestCount());
+		assertEquals(0, secondPeer.getRequestCount());
+		for (PeerState peerState : peerCoordinator.getPeerStates()) {
+			assertEquals(0, peerState.getFailures());
+		}
+		assertEquals(1, peerCoordinator.getPeerStates().get(0).getNotShortened());
+	}
+
+	/**
+	 * Tests that a key is shortened by a {@link LocalPeer} that hands it to
+	 * another shortener.
+	 *
+	 * @throws Exception
+	 *             if an error occurs
+	 */
+	public void testLocalPeer() throws Exception {
+		File directory = TemporaryDirectory.create("peer");
+		try {
+			PooledExecutor executor = new PooledExecutor();
+			executor.start();
+			File segmentDirectory = new File(directory, "segments");
+			segmentDirectory.mkdir();
+			Shortener shortener = new Shortener(executor, new FakeInsertBackend(1), new Journal(new File(directory, "journal.dat"), executor), new SegmentStore(segmentDirectory, executor), new ChangeLog(new File(directory, "changes.log")));
+			shortener.start();
+			try {
+				peerCoordinator.addPeer(new LocalPeer("local", shortener, 2));
+				byte[] routingKey = new byte[ShortenedKeyStore.ROUTING_KEY_LENGTH];
+				Arrays.fill(routingKey, (byte) 0x17);
+				String key = "CHK@" + Base64.encode(routingKey) + ",crypto,AAIC--8";
+				String shortenedKey = peerCoordinator.shortenKey(key);
+				assertNotNull(shortenedKey);
+				assertTrue(key.startsWith("CHK@" + shortenedKey.substring(4)));
+				assertEquals(key, shortener.getOriginalKey(shortenedKey));
+			} finally {
+				shortener.stop();
+			}
+		} finally {
+			TemporaryDirectory.delete(directory);
+		}
+	}
+
+	/**
+	 * A peer that answers every key with the same shortened key, or fails.
+	 *
+	 * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+	 */
+	private static class TestPeer implements ShorteningPeer {
+
+		/** The name of the peer. */
+		private final String name;
+
+		/** The capacity of the peer. */
+		private final int capacity;
+
+		/** The shortened key to answer with. */
+		private final String shortenedKey;
+
+		/** Whether the peer fails. */
+		private boolean failing;
+
+		/** The number of keys the peer was asked to shorten. */
+		private int requestCount;
+
+		/**
+		 * Creates a new test peer.
+		 *
+		 * @param name
+		 *            The name of the peer
+		 * @param capacity
+		 *            The capacity of the peer
+		 * @param shortenedKey
+		 *            The shortened key to answer with, or {@code null} to
+		 *            answer that the key could not be shortened
+		 */
+		public TestPeer(String name, int capacity, String shortenedKey) {
+			this.name = name;
+			this.capacity = capacity;
+			this.shortenedKey = shortenedKey;
+		}
+
+		/**
+		 * Sets whether the peer fails.
+		 *
+		 * @param failing
+		 *            {@code true} to fail every request, {@code false} to
+		 *            answer them
+		 */
+		public synchronized void setFailing(boolean failing) {
+			this.failing = failing;
+		}
+
+		/**
+		 * Returns the number of keys the peer was asked to shorten.
+		 *
+		 * @return The number of requests
+		 */
+		public synchronized int getRequestCount() {
+			return requestCount;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		public int getCapacity() {
+			return capacity;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		public synchronized String shortenKey(String key, long timeout) throws PeerException {
+			++requestCount;
+			if (failing) {
+				throw new PeerException("Peer " + name + " failed.");
+			}
+			return shortenedKey;
+		}
+
+	}
+
+}
@@ -0,0 +1,80 @@
+/*
+ * shortener - RetryPolicyTest.java - Copyright © 2010 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugin.shortener;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link RetryPolicy}.
+ *
+ * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+ */
+public class RetryPolicyTest extends TestCase {
+
+	/**
+	 * Tests that only the maximum number of retries is allowed.
+	 */
+	public void testCanRetry() {
+		RetryPolicy retryPolicy = new RetryPolicy(3, 1000, 8000);
+		assertEquals(3, retryPolicy.getMaximumRetries());
+		assertTrue(retryPolicy.canRetry(0));
+		assertTrue(retryPolicy.canRetry(2));
+		assertFalse(retryPolicy.canRetry(3));
+		assertFalse(new RetryPolicy(0, 1000, 8000).canRetry(0));
+	}
+
+	/**
+	 * Tests that the delay doubles with every retry, stays below the maximum
+	 * delay, and has a jitter of at most half the delay.
+	 */
+	public void testDelay() {
+		RetryPolicy retryPolicy = new RetryPolicy(10, 1000, 8000, new Random(1));
+		long[] expectedDelays = { 1000, 2000, 4000, 8000, 8000, 8000 };
+		for (int retry = 0; retry < 100; ++retry) {
+			long expectedDelay = expectedDelays[Math.min(retry, expectedDelays.length - 1)];
+			long delay = retryPolicy.getDelay(retry);
+			assertTrue("delay " + delay + " for retry " + retry, delay <= expectedDelay);
+			assertTrue("delay " + delay + " for retry " + retry, delay >= expectedDelay / 2);
+		}
+	}
+
+	/**
+	 * Tests that the delays are repeated with a seeded random number
+	 * generator.
+	 */
+	public void testRepeatableJitter() {
+		RetryPolicy firstRetryPolicy = new RetryPolicy(10, 1000, 8000, new Random(42));
+		RetryPolicy secondRetryPolicy = new RetryPolicy(10, 1000, 8000, new Random(42));
+		for (int retry = 0; retry < 10; ++retry) {
+			assertEquals(firstRetryPolicy.getDelay(retry), secondRetryPolicy.getDelay(retry));
+		}
+	}
+
+	/**
+	 * Tests that a large number of retries does not overflow the delay.
+	 */
+	public void testNoOverflow() {
+		RetryPolicy retryPolicy = new RetryPolicy(Integer.MAX_VALUE, 1000, 2 * 60 * 1000, new Random(1));
+		long delay = retryPolicy.getDelay(Integer.MAX_VALUE);
+		assertTrue(delay <= 2 * 60 * 1000);
+		assertTrue(delay >= 60 * 1000);
+	}
+
+}
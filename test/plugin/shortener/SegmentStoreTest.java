@@ -0,0 +1,163 @@
+/*
+ * shortener - SegmentStoreTest.java - Copyright © 2010 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package plugin.shortener;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import plugin.shortener.Segment.Entry;
+import freenet.support.PooledExecutor;
+
+/**
+ * Tests for {@link SegmentStore}.
+ *
+ * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+ */
+public class SegmentStoreTest extends TestCase {
+
+	/** The executor for the merges. */
+	private PooledExecutor executor;
+
+	/** The directory of the segments. */
+	private File directory;
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected void setUp() throws Exception {
+		executor = new PooledExecutor();
+		executor.start();
+		directory = TemporaryDirectory.create("segments");
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected void tearDown() throws Exception {
+		TemporaryDirectory.delete(directory);
+	}
+
+	/**
+	 * Tests that the newest segment wins for keys contained in several
+	 * segments.
+	 *
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public void testNewestSegmentWins() throws IOException {
+		SegmentStore segmentStore = createSegmentStore();
+		segmentStore.addSegment(createEntries("CHK@a", "KSK@provisional"));
+		segmentStore.addSegment(createEntries("CHK@a", "KSK@a"));
+		assertEquals(2, segmentStore.getSegmentCount());
+		assertEquals("KSK@a", segmentStore.getShortenedKey("CHK@a"));
+		assertEquals("CHK@a", segmentStore.getOriginalKey("KSK@a"));
+	}
+
+	/**
+	 * Tests that segments are merged after a shortened key has been replaced
+	 * by a shorter one, and that the merged segment returns the newer
+	 * shortened key but still resolves the older one as an alias.
+	 *
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 * @throws InterruptedException
+	 *             if the test is interrupted while waiting for the merge
+	 */
+	public void testCompactionAfterUpgrade() throws IOException, InterruptedException {
+		SegmentStore segmentStore = createSegmentStore();
+		segmentStore.addSegment(createEntries("CHK@upgraded", "KSK@provisional", "CHK@b", "KSK@b"));
+		segmentStore.addSegment(createEntries("CHK@upgraded", "KSK@u"));
+		segmentStore.addSegment(createEntries("CHK@c", "KSK@c"));
+		segmentStore.addSegment(createEntries("CHK@d", "KSK@d"));
+		segmentStore.addSegment(createEntries("CHK@e", "KSK@e"));
+		long timeout = System.currentTimeMillis() + 10000;
+		while ((segmentStore.getSegmentCount() > 1) && (System.currentTimeMillis() < timeout)) {
+			Thread.sleep(10);
+		}
+		assertEquals(1, segmentStore.getSegmentCount());
+		assertEquals(5, segmentStore.getEntryCount());
+		assertEquals("KSK@u", segmentStore.getShortenedKey("CHK@upgraded"));
+		assertEquals("CHK@upgraded", segmentStore.getOriginalKey("KSK@u"));
+		assertEquals("CHK@upgraded", segmentStore.getOriginalKey("KSK@provisional"));
+		assertEquals("KSK@b", segmentStore.getShortenedKey("CHK@b"));
+		assertEquals("CHK@e", segmentStore.getOriginalKey("KSK@e"));
+		File[] files = directory.listFiles();
+		assertEquals(1, files.length);
+		assertTrue(files[0].getName().endsWith(".dat"));
+
+		SegmentStore reopenedStore = createSegmentStore();
+		assertEquals(1, reopenedStore.getSegmentCount());
+		assertEquals("KSK@u", reopenedStore.getShortenedKey("CHK@upgraded"));
+		assertEquals("CHK@upgraded", reopenedStore.getOriginalKey("KSK@provisional"));
+	}
+
+	/**
+	 * Tests that aliases are only found by their shortened key.
+	 *
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public void testAliases() throws IOException {
+		SegmentStore segmentStore = createSegmentStore();
+		segmentStore.addSegment(createEntries("CHK@a", "KSK@a"), createEntries("CHK@a", "KSK@provisional"));
+		assertEquals(1, segmentStore.getEntryCount());
+		assertEquals("KSK@a", segmentStore.getShortenedKey("CHK@a"));
+		assertEquals("CHK@a", segmentStore.getOriginalKey("KSK@a"));
+		assertEquals("CHK@a", segmentStore.getOriginalKey("KSK@provisional"));
+		assertEquals(1, segmentStore.getEntries(0, 10).size());
+	}
+
+	//
+	// PRIVATE METHODS
+	//
+
+	/**
+	 * Creates and opens a segment store in the test directory.
+	 *
+	 * @return The opened segment store
+	 * @throws IOException
+	 *             if the segment store can not be opened
+	 */
+	private SegmentStore createSegmentStore() throws IOException {
+		SegmentStore segmentStore = new SegmentStore(directory, executor);
+		segmentStore.open();
+		return segmentStore;
+	}
+
+	/**
+	 * Creates entries from pairs of original and shortened keys.
+	 *
+	 * @param keys
+	 *            Original and shortened keys, alternating
+	 * @return The entries (original key as key, shortened key as value)
+	 */
+	private static List<Entry> createEntries(String... keys) {
+		List<Entry> entries = new ArrayList<Entry>();
+		for (int index = 0; index < keys.length; index += 2) {
+			entries.add(new Entry(Segment.encode(keys[index]), Segment.encode(keys[index + 1])));
+		}
+		return entries;
+	}
+
+}
@@ -0,0 +1,178 @@
+/*
+ * shortener - SegmentTest.java - Copyright © 2010 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package plugin.shortener;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import junit.framework.TestCase;
+import plugin.shortener.Segment.Cursor;
+import plugin.shortener.Segment.Entry;
+
+/**
+ * Tests for {@link Segment}.
+ *
+ * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+ */
+public class SegmentTest extends TestCase {
+
+	/** Sorts entries by their keys. */
+	private static final Comparator<Entry> ENTRY_COMPARATOR = new Comparator<Entry>() {
+
+		public int compare(Entry leftEntry, Entry rightEntry) {
+			return Segment.BYTES_COMPARATOR.compare(leftEntry.getKey(), rightEntry.getKey());
+		}
+
+	};
+
+	/** The directory of the segment files. */
+	private File directory;
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected void setUp() throws Exception {
+		directory = TemporaryDirectory.create("segment");
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected void tearDown() throws Exception {
+		TemporaryDirectory.delete(directory);
+	}
+
+	/**
+	 * Tests that all entries of a written segment can be found in both
+	 * directions, spanning several blocks.
+	 *
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public void testLookups() throws IOException {
+		Segment segment = writeSegment(100);
+		assertEquals(100, segment.getEntryCount());
+		for (int index = 0; index < 100; ++index) {
+			assertEquals("KSK@short" + index, segment.getShortenedKey("CHK@original" + index));
+			assertEquals("CHK@original" + index, segment.getOriginalKey("KSK@short" + index));
+		}
+		assertNull(segment.getShortenedKey("CHK@original100"));
+		assertNull(segment.getShortenedKey("CHK@"));
+		assertNull(segment.getOriginalKey("KSK@zzz"));
+	}
+
+	/**
+	 * Tests that a cursor returns all entries in sorted order.
+	 *
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public void testCursor() throws IOException {
+		Segment segment = writeSegment(40);
+		Cursor cursor = segment.getOriginalKeyCursor();
+		byte[] lastKey = null;
+		int entryCount = 0;
+		while (cursor.next()) {
+			if (lastKey != null) {
+				assertTrue(Segment.BYTES_COMPARATOR.compare(lastKey, cursor.getKey()) < 0);
+			}
+			lastKey = cursor.getKey();
+			assertEquals(Segment.decode(cursor.getKey()).replace("CHK@original", "KSK@short"), Segment.decode(cursor.getValue()));
+			++entryCount;
+		}
+		assertEquals(40, entryCount);
+	}
+
+	/**
+	 * Tests that unsorted entries are rejected.
+	 *
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public void testUnsortedEntries() throws IOException {
+		List<Entry> entries = new ArrayList<Entry>();
+		entries.add(new Entry(Segment.encode("CHK@b"), Segment.encode("KSK@b")));
+		entries.add(new Entry(Segment.encode("CHK@a"), Segment.encode("KSK@a")));
+		File file = new File(directory, "segment.dat");
+		try {
+			Segment.write(file, entries.iterator(), entries.iterator());
+			fail("unsorted entries were written");
+		} catch (IOException ioe1) {
+			/* expected. */
+		}
+		assertFalse(file.exists());
+		assertEquals(0, directory.listFiles().length);
+	}
+
+	/**
+	 * Tests that a file that is not a segment is rejected.
+	 *
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public void testInvalidSegment() throws IOException {
+		File file = new File(directory, "invalid.dat");
+		FileOutputStream fileOutputStream = new FileOutputStream(file);
+		fileOutputStream.write(new byte[64]);
+		fileOutputStream.close();
+		try {
+			new Segment(file);
+			fail("invalid segment was mapped");
+		} catch (IOException ioe1) {
+			/* expected. */
+		}
+	}
+
+	//
+	// PRIVATE METHODS
+	//
+
+	/**
+	 * Writes a segment with the given number of entries.
+	 *
+	 * @param entryCount
+	 *            The number of entries
+	 * @return The written segment
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	private Segment writeSegment(int entryCount) throws IOException {
+		List<Entry> entries = new ArrayList<Entry>();
+		for (int index = 0; index < entryCount; ++index) {
+			entries.add(new Entry(Segment.encode("CHK@original" + index), Segment.encode("KSK@short" + index)));
+		}
+		Collections.sort(entries, ENTRY_COMPARATOR);
+		List<Entry> swappedEntries = new ArrayList<Entry>();
+		for (Entry entry : entries) {
+			swappedEntries.add(entry.swap());
+		}
+		Collections.sort(swappedEntries, ENTRY_COMPARATOR);
+		File file = new File(directory, "segment.dat");
+		Segment.write(file, entries.iterator(), swappedEntries.iterator());
+		return new Segment(file);
+	}
+
+}
@@ -0,0 +1,146 @@
+/*
+ * shortener - ShortenedKeyStoreTest.java - Copyright © 2010 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package plugin.shortener;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+import plugin.shortener.Shortener.ShortenedKey;
+import plugin.shortener.ShortenedKeyStore.Snapshot;
+import freenet.support.Base64;
+
+/**
+ * Tests for {@link ShortenedKeyStore}.
+ *
+ * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+ */
+public class ShortenedKeyStoreTest extends TestCase {
+
+	/** The store being tested. */
+	private ShortenedKeyStore shortenedKeyStore;
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected void setUp() throws Exception {
+		shortenedKeyStore = new ShortenedKeyStore();
+	}
+
+	/**
+	 * Tests that a prefix of the routing key is stored in both directions.
+	 */
+	public void testPrefix() {
+		byte[] routingKey = createRoutingKey(1);
+		String originalKey = "CHK@" + Base64.encode(routingKey) + ",crypto,AAIC--8/file.txt";
+		shortenedKeyStore.put(originalKey, routingKey, 5);
+		ShortenedKey shortenedKey = shortenedKeyStore.get(originalKey);
+		assertEquals(originalKey, shortenedKey.getOriginalKey());
+		assertEquals("KSK@" + Base64.encode(routingKey).substring(0, 5), shortenedKey.getShortenedKey());
+		assertEquals(originalKey, shortenedKeyStore.getOriginalKey(shortenedKey.getShortenedKey()));
+		assertNull(shortenedKeyStore.get("CHK@unknown"));
+		assertNull(shortenedKeyStore.getOriginalKey("KSK@unknown"));
+	}
+
+	/**
+	 * Tests that original keys that do not start with their routing key are
+	 * stored completely, and that names are stored.
+	 */
+	public void testVerbatimKeyAndName() {
+		byte[] routingKey = createRoutingKey(2);
+		String originalKey = "KSK@some-original-key";
+		shortenedKeyStore.put(originalKey, routingKey, "17");
+		assertEquals(originalKey, shortenedKeyStore.get(originalKey).getOriginalKey());
+		assertEquals("KSK@17", shortenedKeyStore.get(originalKey).getShortenedKey());
+		assertEquals(originalKey, shortenedKeyStore.getOriginalKey("KSK@17"));
+	}
+
+	/**
+	 * Tests that replacing a shortened key keeps the old shortened key as an
+	 * alias, and leaves earlier snapshots unchanged.
+	 */
+	public void testReplace() {
+		byte[] routingKey = createRoutingKey(3);
+		String originalKey = "CHK@" + Base64.encode(routingKey);
+		shortenedKeyStore.put(originalKey, routingKey, 10);
+		String longKey = shortenedKeyStore.get(originalKey).getShortenedKey();
+		Snapshot oldSnapshot = shortenedKeyStore.getSnapshot();
+		shortenedKeyStore.put(originalKey, routingKey, 4);
+		String shortKey = shortenedKeyStore.get(originalKey).getShortenedKey();
+		assertEquals("KSK@" + Base64.encode(routingKey).substring(0, 4), shortKey);
+		assertEquals(originalKey, shortenedKeyStore.getOriginalKey(shortKey));
+		assertEquals(originalKey, shortenedKeyStore.getOriginalKey(longKey));
+		assertEquals(originalKey, shortenedKeyStore.getSnapshot().getAliases().get(longKey));
+		assertEquals(1, shortenedKeyStore.getSnapshot().size());
+		assertTrue(oldSnapshot.getAliases().isEmpty());
+		assertEquals(longKey, oldSnapshot.find(originalKey).getShortenedKey());
+		assertEquals(originalKey, oldSnapshot.findOriginalKey(longKey));
+		assertTrue(shortenedKeyStore.getSnapshot().getVersion() > oldSnapshot.getVersion());
+	}
+
+	/**
+	 * Tests that the store grows and that snapshots keep their size.
+	 */
+	public void testGrowth() {
+		Snapshot emptySnapshot = shortenedKeyStore.getSnapshot();
+		for (int index = 0; index < 1000; ++index) {
+			byte[] routingKey = createRoutingKey(index);
+			shortenedKeyStore.put("CHK@" + Base64.encode(routingKey) + "," + index, routingKey, 43);
+		}
+		assertEquals(0, emptySnapshot.size());
+		assertEquals(1000, shortenedKeyStore.getSnapshot().size());
+		for (int index = 0; index < 1000; ++index) {
+			byte[] routingKey = createRoutingKey(index);
+			String originalKey = "CHK@" + Base64.encode(routingKey) + "," + index;
+			assertEquals(originalKey, shortenedKeyStore.getOriginalKey(shortenedKeyStore.get(originalKey).getShortenedKey()));
+		}
+	}
+
+	/**
+	 * Tests that routing keys of the wrong length are rejected.
+	 */
+	public void testWrongRoutingKeyLength() {
+		try {
+			shortenedKeyStore.put("CHK@key", new byte[16], 5);
+			fail("short routing key was accepted");
+		} catch (IllegalArgumentException iae1) {
+			/* expected. */
+		}
+	}
+
+	//
+	// PRIVATE METHODS
+	//
+
+	/**
+	 * Creates a routing key that is different for every seed.
+	 *
+	 * @param seed
+	 *            The seed of the routing key
+	 * @return The routing key
+	 */
+	private static byte[] createRoutingKey(int seed) {
+		byte[] routingKey = new byte[ShortenedKeyStore.ROUTING_KEY_LENGTH];
+		Arrays.fill(routingKey, (byte) 0x5a);
+		routingKey[0] = (byte) seed;
+		routingKey[1] = (byte) (seed >>> 8);
+		return routingKey;
+	}
+
+}
@@ -0,0 +1,905 @@
+/*
+ * shortener - ShortenerTest.java - Copyright © 2010 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package plugin.shortener;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.TestCase;
+import plugin.shortener.FakeInsertBackend.Latency;
+import plugin.shortener.Journal.Record;
+import plugin.shortener.Journal.RecordHandler;
+import plugin.shortener.Journal.Record.Type;
+import plugin.shortener.Shortener.Allocation;
+import plugin.shortener.Shortener.CancelReason;
+import plugin.shortener.Shortener.KeyShorteningProgress;
+import plugin.shortener.Shortener.KeyShorteningProgressAccessor;
+import plugin.shortener.ShorteningScheduler.Priority;
+import freenet.keys.FreenetURI;
+import freenet.support.Base64;
+import freenet.support.Executor;
+import freenet.support.PooledExecutor;
+
+/**
+ * Tests for {@link Shortener}.
+ *
+ * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+ */
+public class ShortenerTest extends TestCase {
+
+	/** The executor of the shortener. */
+	private PooledExecutor executor;
+
+	/** The directory of the stores. */
+	private File directory;
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected void setUp() throws Exception {
+		executor = new PooledExecutor();
+		executor.start();
+		directory = TemporaryDirectory.create("shortener");
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected void tearDown() throws Exception {
+		TemporaryDirectory.delete(directory);
+	}
+
+	/**
+	 * Tests that the journal of a stopped shortener is only closed when a job
+	 * that did not finish within the drain timeout has exited.
+	 *
+	 * @throws Exception
+	 *             if an error occurs
+	 */
+	public void testStopWaitsForRunningJobs() throws Exception {
+		BlockingInsertBackend insertBackend = new BlockingInsertBackend();
+		ObservedJournal journal = new ObservedJournal(new File(directory, "journal.dat"));
+		File segmentDirectory = new File(directory, "segments");
+		segmentDirectory.mkdir();
+		Shortener shortener = new Shortener(executor, insertBackend, journal, new SegmentStore(segmentDirectory, executor), new ChangeLog(new File(directory, "changes.log")));
+		shortener.setDrainTimeout(100);
+		shortener.start();
+		byte[] routingKey = new byte[ShortenedKeyStore.ROUTING_KEY_LENGTH];
+		Arrays.fill(routingKey, (byte) 0x2a);
+		shortener.shortenKey("CHK@" + Base64.encode(routingKey) + ",crypto,AAIC--8", Priority.BULK);
+		assertTrue(insertBackend.waitForInserts(1, 10000));
+		shortener.stop();
+		assertFalse(journal.waitUntilClosed(0));
+		insertBackend.release();
+		assertTrue(journal.waitUntilClosed(10000));
+	}
+
+	/**
+	 * Tests that a shortener whose journal can not be opened rejects new key
+	 * shortenings instead of running jobs that could not be recorded.
+	 *
+	 * @throws Exception
+	 *             if an error occurs
+	 */
+	public void testShortenerWithoutJournalRejectsKeys() throws Exception {
+		BlockingInsertBackend insertBackend = new BlockingInsertBackend();
+		new File(directory, "journal.dat").mkdir();
+		Shortener shortener = createShortener(insertBackend);
+		try {
+			shortener.start();
+			fail();
+		} catch (IOException ioe1) {
+			/* expected. */
+		}
+		try {
+			shortener.shortenKey(createKey((byte) 0x2c), Priority.BULK);
+			fail();
+		} catch (SchedulerFullException sfe1) {
+			/* expected. */
+		}
+		assertEquals(0, insertBackend.getInserts());
+		shortener.stop();
+	}
+
+	/**
+	 * Tests that the journal of a stopped shortener is only closed when the
+	 * parallel insert attempts of a search window, which are run by the
+	 * node’s executor and outlive their job, have returned.
+	 *
+	 * @throws Exception
+	 *             if an error occurs
+	 */
+	public void testStopWaitsForParallelInsertAttempts() throws Exception {
+		BlockingInsertBackend insertBackend = new BlockingInsertBackend();
+		ObservedJournal journal = new ObservedJournal(new File(directory, "journal.dat"));
+		File segmentDirectory = new File(directory, "segments");
+		segmentDirectory.mkdir();
+		Shortener shortener = new Shortener(executor, insertBackend, journal, new SegmentStore(segmentDirectory, executor), new ChangeLog(new File(directory, "changes.log")));
+		shortener.setSearchWindow(3);
+		shortener.setDrainTimeout(100);
+		shortener.start();
+		KeyShorteningProgress keyShorteningProgress = shortener.shortenKey(createKey((byte) 0x2d), Priority.BULK);
+		assertTrue(insertBackend.waitForInserts(3, 10000));
+		shortener.stop();
+		assertTrue(keyShorteningProgress.waitUntilFinished(10000));
+		assertEquals(0, shortener.getShorteningScheduler().getRunningWorkers());
+		assertEquals(3, shortener.getRunningAttempts().size());
+		assertFalse(journal.waitUntilClosed(200));
+		insertBackend.release();
+		assertTrue(journal.waitUntilClosed(10000));
+		assertEquals(0, shortener.getRunningAttempts().size());
+		assertEquals(3, insertBackend.getInserts());
+	}
+
+	/**
+	 * Tests that a cancelled key shortening is still shown after it has
+	 * finished.
+	 *
+	 * @throws Exception
+	 *             if an error occurs
+	 */
+	public void testCancelledKeyShorteningIsRemembered() throws Exception {
+		BlockingInsertBackend insertBackend = new BlockingInsertBackend();
+		File segmentDirectory = new File(directory, "segments");
+		segmentDirectory.mkdir();
+		Shortener shortener = new Shortener(executor, insertBackend, new Journal(new File(directory, "journal.dat"), executor), new SegmentStore(segmentDirectory, executor), new ChangeLog(new File(directory, "changes.log")));
+		shortener.start();
+		try {
+			byte[] routingKey = new byte[ShortenedKeyStore.ROUTING_KEY_LENGTH];
+			Arrays.fill(routingKey, (byte) 0x2b);
+			String key = "CHK@" + Base64.encode(routingKey) + ",crypto,AAIC--8";
+			KeyShorteningProgress keyShorteningProgress = shortener.shortenKey(key, Priority.BULK);
+			assertTrue(insertBackend.waitForInserts(1, 10000));
+			assertTrue(shortener.cancelKeyShortening(key));
+			insertBackend.release();
+			assertTrue(keyShorteningProgress.waitUntilFinished(10000));
+			assertTrue(shortener.getKeyShorteningProgresses().isEmpty());
+			assertEquals(Arrays.asList(keyShorteningProgress), shortener.getCancelledKeyShortenings());
+			KeyShorteningProgressAccessor accessor = new KeyShorteningProgressAccessor();
+			assertEquals(Boolean.TRUE, accessor.get(keyShorteningProgress, "cancelled"));
+			assertEquals(Boolean.FALSE, accessor.get(keyShorteningProgress, "expired"));
+			assertEquals(CancelReason.CANCELLED, accessor.get(keyShorteningProgress, "cancelReason"));
+			assertEquals("State.Cancelled", accessor.get(keyShorteningProgress, "state"));
+		} finally {
+			shortener.stop();
+		}
+	}
+
+	/**
+	 * Tests that a job that fails unexpectedly still finishes its progress,
+	 * so that a client that requests the same key again gets a new job
+	 * instead of the progress of the failed one.
+	 *
+	 * @throws Exception
+	 *             if an error occurs
+	 */
+	public void testFailingJobFinishesProgress() throws Exception {
+		Shortener shortener = createShortener(new FakeInsertBackend(1));
+		final boolean[] failing = new boolean[] { true };
+		shortener.addShortenerListener(new ShortenerListener() {
+
+			public void keyShorteningAdvanced(KeyShorteningProgress keyShorteningProgress) {
+				if (failing[0]) {
+					throw new IllegalStateException("listener failed");
+				}
+			}
+
+			public void keyShorteningFinished(KeyShorteningProgress keyShorteningProgress) {
+				/* ignore. */
+			}
+		});
+		shortener.start();
+		try {
+			String key = createKey((byte) 0x2c);
+			KeyShorteningProgress keyShorteningProgress = shortener.shortenKey(key, Priority.BULK);
+			assertTrue(keyShorteningProgress.waitUntilFinished(10000));
+			assertNull(keyShorteningProgress.getShortenedKey());
+			assertTrue(shortener.getKeyShorteningProgresses().isEmpty());
+			failing[0] = false;
+			KeyShorteningProgress secondKeyShorteningProgress = shortener.shortenKey(key, Priority.BULK);
+			assertNotSame(keyShorteningProgress, secondKeyShorteningProgress);
+			assertTrue(secondKeyShorteningProgress.waitUntilFinished(10000));
+			assertNotNull(secondKeyShorteningProgress.getShortenedKey());
+		} finally {
+			shortener.stop();
+		}
+	}
+
+	/**
+	 * Tests that with a search window the shortest successful length wins,
+	 * and that longer attempts that are still running are cancelled instead
+	 * of being waited for.
+	 *
+	 * @throws Exception
+	 *             if an error occurs
+	 */
+	public void testShortestSuccessfulLengthOfSearchWindowWins() throws Exception {
+		GatedInsertBackend insertBackend = new GatedInsertBackend(3);
+		insertBackend.setCollisionProbabilities(1, 0);
+		Shortener shortener = createShortener(insertBackend);
+		shortener.setSearchWindow(3);
+		shortener.start();
+		try {
+			String key = createKey((byte) 0x30);
+			KeyShorteningProgress keyShorteningProgress = shortener.shortenKey(key, Priority.BULK);
+			assertTrue(keyShorteningProgress.waitUntilFinished(10000));
+			String encodedRoutingKey = key.substring(4, key.indexOf(','));
+			assertEquals("KSK@" + encodedRoutingKey.substring(0, 2), keyShorteningProgress.getShortenedKey().getShortenedKey());
+			insertBackend.release();
+			assertTrue(shortener.getRunningAttempts().waitUntilEmpty(10000));
+			assertNull(shortener.getOriginalKey("KSK@" + encodedRoutingKey.substring(0, 3)));
+			assertEquals("KSK@" + encodedRoutingKey.substring(0, 2), shortener.getShortenedKey(key).getShortenedKey());
+		} finally {
+			insertBackend.release();
+			shortener.stop();
+		}
+	}
+
+	/**
+	 * Tests that a search starts at the first length whose prefix is not
+	 * known to be occupied, so that prefixes that collided for another key
+	 * are not inserted again.
+	 *
+	 * @throws Exception
+	 *             if an error occurs
+	 */
+	public void testSearchStartsAtFirstUnoccupiedLength() throws Exception {
+		FakeInsertBackend insertBackend = new FakeInsertBackend(1);
+		insertBackend.setCollisionProbabilities(1, 1, 0);
+		Shortener shortener = createShortener(insertBackend);
+		shortener.start();
+		try {
+			byte[] routingKey = new byte[ShortenedKeyStore.ROUTING_KEY_LENGTH];
+			Arrays.fill(routingKey, (byte) 0x31);
+			KeyShorteningProgress firstKeyShorteningProgress = shortener.shortenKey("CHK@" + Base64.encode(routingKey) + ",crypto,AAIC--8", Priority.BULK);
+			assertTrue(firstKeyShorteningProgress.waitUntilFinished(10000));
+			assertEquals(3, insertBackend.getInsertCount());
+			assertEquals(2, insertBackend.getCollisionCount());
+			/* same first two characters, different third character. */
+			routingKey[1] ^= 0x01;
+			String secondKey = "CHK@" + Base64.encode(routingKey) + ",crypto,AAIC--8";
+			KeyShorteningProgress secondKeyShorteningProgress = shortener.shortenKey(secondKey, Priority.BULK);
+			assertTrue(secondKeyShorteningProgress.waitUntilFinished(10000));
+			assertEquals(4, insertBackend.getInsertCount());
+			assertEquals(2, insertBackend.getCollisionCount());
+			assertEquals("KSK@" + secondKey.substring(4, 7), secondKeyShorteningProgress.getShortenedKey().getShortenedKey());
+		} finally {
+			shortener.stop();
+		}
+	}
+
+	/**
+	 * Tests that new searches start at the length that the length
+	 * statistics have learned, skipping lengths that always collided even
+	 * for keys whose prefixes are not known to be occupied.
+	 *
+	 * @throws Exception
+	 *             if an error occurs
+	 */
+	public void testSearchStartsAtLearnedLength() throws Exception {
+		FakeInsertBackend insertBackend = new FakeInsertBackend(1);
+		insertBackend.setCollisionProbabilities(1, 1, 0);
+		Shortener shortener = createShortener(insertBackend);
+		LengthStatistics lengthStatistics = new LengthStatistics(null, 100, new Random(1));
+		lengthStatistics.setMinimumSamples(3);
+		lengthStatistics.setExplorationRate(0);
+		shortener.setLengthStatistics(lengthStatistics);
+		shortener.start();
+		try {
+			/* the keys differ in their first character. */
+			for (byte routingKeyByte : new byte[] { 0x00, 0x10, 0x20 }) {
+				assertTrue(shortener.shortenKey(createKey(routingKeyByte), Priority.BULK).waitUntilFinished(10000));
+			}
+			assertEquals(9, insertBackend.getInsertCount());
+			assertEquals(3, lengthStatistics.getLearnedStartLength());
+			KeyShorteningProgress keyShorteningProgress = shortener.shortenKey(createKey((byte) 0x40), Priority.BULK);
+			assertTrue(keyShorteningProgress.waitUntilFinished(10000));
+			assertEquals(10, insertBackend.getInsertCount());
+			assertEquals(7, keyShorteningProgress.getShortenedKey().getShortenedKey().length());
+		} finally {
+			shortener.stop();
+		}
+	}
+
+	/**
+	 * Tests that inserts that finish within the target latency raise the
+	 * limit of concurrently running inserts.
+	 *
+	 * @throws Exception
+	 *             if an error occurs
+	 */
+	public void testFastInsertsIncreaseInsertLimit() throws Exception {
+		DiscreteEventClock clock = new DiscreteEventClock();
+		FakeInsertBackend insertBackend = new FakeInsertBackend(1);
+		insertBackend.setClock(clock);
+		insertBackend.setLatency(Latency.constant(10 * 1000));
+		Shortener shortener = createShortener(insertBackend, clock.getExecutor(), clock);
+		InsertLimiter insertLimiter = shortener.getInsertLimiter();
+		int initialLimit = insertLimiter.getLimit();
+		shortener.start();
+		try {
+			for (int keyIndex = 0; keyIndex < 20; ++keyIndex) {
+				assertTrue(shortener.shortenKey(createKey((byte) keyIndex), Priority.BULK).waitUntilFinished(60 * 1000));
+			}
+			assertEquals(20, insertBackend.getInsertCount());
+			assertTrue(insertLimiter.getLimit() > initialLimit);
+			assertEquals(DiscreteEventClock.START_TIME + 20 * 10 * 1000, clock.currentTimeMillis());
+		} finally {
+			shortener.stop();
+			clock.finish();
+		}
+	}
+
+	/**
+	 * Tests that an insert that takes longer than the target latency cuts
+	 * the limit of concurrently running inserts.
+	 *
+	 * @throws Exception
+	 *             if an error occurs
+	 */
+	public void testSlowInsertDecreasesInsertLimit() throws Exception {
+		DiscreteEventClock clock = new DiscreteEventClock();
+		FakeInsertBackend insertBackend = new FakeInsertBackend(1);
+		insertBackend.setClock(clock);
+		insertBackend.setLatency(Latency.constant(6 * 60 * 1000));
+		Shortener shortener = createShortener(insertBackend, clock.getExecutor(), clock);
+		InsertLimiter insertLimiter = shortener.getInsertLimiter();
+		int initialLimit = insertLimiter.getLimit();
+		shortener.start();
+		try {
+			assertFalse(shortener.shortenKey(createKey((byte) 0x32), Priority.BULK).waitUntilFinished(6 * 60 * 1000 - 1));
+			assertTrue(shortener.shortenKey(createKey((byte) 0x32), Priority.BULK).waitUntilFinished(1));
+			assertEquals(1, insertBackend.getInsertCount());
+			assertEquals(initialLimit / 2, insertLimiter.getLimit());
+		} finally {
+			shortener.stop();
+			clock.finish();
+		}
+	}
+
+	/**
+	 * Tests that a key that is being shortened is not shortened a second
+	 * time: the progress of the running job is returned while it runs, and a
+	 * finished progress with the stored shortened key afterwards.
+	 *
+	 * @throws Exception
+	 *             if an error occurs
+	 */
+	public void testShortenKeyReturnsRunningOrExistingProgress() throws Exception {
+		GatedInsertBackend insertBackend = new GatedInsertBackend(1);
+		Shortener shortener = createShortener(insertBackend);
+		shortener.start();
+		try {
+			String key = createKey((byte) 0x33);
+			KeyShorteningProgress keyShorteningProgress = shortener.shortenKey(key, Priority.BULK);
+			assertSame(keyShorteningProgress, shortener.shortenKey(key, Priority.INTERACTIVE));
+			assertEquals(1, shortener.getKeyShorteningProgresses().size());
+			insertBackend.release();
+			assertTrue(keyShorteningProgress.waitUntilFinished(10000));
+			KeyShorteningProgress existingKeyShorteningProgress = shortener.shortenKey(key, Priority.BULK);
+			assertNotSame(keyShorteningProgress, existingKeyShorteningProgress);
+			assertTrue(existingKeyShorteningProgress.isFinished());
+			assertEquals(keyShorteningProgress.getShortenedKey().getShortenedKey(), existingKeyShorteningProgress.getShortenedKey().getShortenedKey());
+			assertEquals(1, insertBackend.getInsertCount());
+		} finally {
+			insertBackend.release();
+			shortener.stop();
+		}
+	}
+
+	/**
+	 * Tests that keys that are shortened with the counter allocation get the
+	 * next names of the counter instead of prefixes of their routing keys.
+	 *
+	 * @throws Exception
+	 *             if an error occurs
+	 */
+	public void testCounterAllocationUsesAllocatedNames() throws Exception {
+		FakeInsertBackend insertBackend = new FakeInsertBackend(1);
+		Shortener shortener = createShortener(insertBackend);
+		shortener.setCounterAllocator(new CounterAllocator(new File(directory, "counter.dat"), "_", 10));
+		shortener.start();
+		try {
+			String firstKey = createKey((byte) 0x34);
+			KeyShorteningProgress firstKeyShorteningProgress = shortener.shortenKey(firstKey, Priority.BULK, Allocation.COUNTER);
+			assertTrue(firstKeyShorteningProgress.waitUntilFinished(10000));
+			String secondKey = createKey((byte) 0x35);
+			KeyShorteningProgress secondKeyShorteningProgress = shortener.shortenKey(secondKey, Priority.BULK, Allocation.COUNTER);
+			assertTrue(secondKeyShorteningProgress.waitUntilFinished(10000));
+			assertEquals("KSK@_0", firstKeyShorteningProgress.getShortenedKey().getShortenedKey());
+			assertEquals("KSK@_1", secondKeyShorteningProgress.getShortenedKey().getShortenedKey());
+			assertEquals(firstKey, shortener.getOriginalKey("KSK@_0"));
+			assertEquals(secondKey, shortener.getOriginalKey("KSK@_1"));
+			assertEquals(2, insertBackend.getInsertCount());
+		} finally {
+			shortener.stop();
+		}
+	}
+
+	/**
+	 * Tests that collisions of allocated names are not taken for occupied
+	 * prefixes, neither while searching nor when an older journal that
+	 * recorded them is replayed.
+	 *
+	 * @throws Exception
+	 *             if an error occurs
+	 */
+	public void testCounterCollisionsDoNotOccupyPrefixes() throws Exception {
+		Journal journal = new Journal(new File(directory, "journal.dat"), executor);
+		journal.open(new RecordHandler() {
+
+			public void handleRecord(Record record) {
+				/* the journal is empty. */
+			}
+
+		});
+		journal.write(new Record(Type.COLLISION, createKey((byte) 0x37), "KSK@_3"));
+		journal.write(new Record(Type.COLLISION, createKey((byte) 0x38), "KSK@OD"));
+		journal.close();
+		FakeInsertBackend insertBackend = new FakeInsertBackend(1);
+		insertBackend.setCollisionProbabilities(1);
+		Shortener shortener = createShortener(insertBackend);
+		shortener.setCounterAllocator(new CounterAllocator(new File(directory, "counter.dat"), "_", 10));
+		shortener.start();
+		try {
+			assertTrue(shortener.isOccupied("OD"));
+			assertFalse(shortener.isOccupied("_3"));
+			KeyShorteningProgress keyShorteningProgress = shortener.shortenKey(createKey((byte) 0x39), Priority.BULK, Allocation.COUNTER);
+			assertTrue(keyShorteningProgress.waitUntilFinished(10000));
+			assertNull(keyShorteningProgress.getShortenedKey());
+			assertEquals(CounterSearch.MAXIMUM_ALLOCATION_ATTEMPTS, insertBackend.getInsertCount());
+			assertNull(keyShorteningProgress.getLastCollision());
+			assertFalse(shortener.isOccupied("_0"));
+		} finally {
+			shortener.stop();
+		}
+	}
+
+	/**
+	 * Tests that a provisional key still resolves to its original key after
+	 * it has been replaced by a shorter key, also after the journal has been
+	 * replayed and after the keys have been written to a segment.
+	 *
+	 * @throws Exception
+	 *             if an error occurs
+	 */
+	public void testProvisionalKeyResolvesAfterUpgrade() throws Exception {
+		Shortener shortener = createShortener(new FakeInsertBackend(1));
+		shortener.setProvisionalLength(8);
+		shortener.start();
+		String key = createKey((byte) 0x3a);
+		String provisionalKey;
+		try {
+			KeyShorteningProgress keyShorteningProgress = shortener.shortenKey(key, Priority.BULK);
+			assertTrue(keyShorteningProgress.waitUntilFinished(10000));
+			provisionalKey = keyShorteningProgress.getShortenedKey().getShortenedKey();
+			assertEquals("KSK@".length() + 8, provisionalKey.length());
+			long end = System.currentTimeMillis() + 10000;
+			while (provisionalKey.equals(shortener.getShortenedKey(key).getShortenedKey()) && (System.currentTimeMillis() < end)) {
+				Thread.sleep(10);
+			}
+			assertEquals("KSK@" + key.substring(4, 5), shortener.getShortenedKey(key).getShortenedKey());
+			assertEquals(key, new KeyResolver(shortener, null).resolveLocally(provisionalKey));
+		} finally {
+			shortener.stop();
+		}
+		Shortener restartedShortener = createShortener(new FakeInsertBackend(1));
+		restartedShortener.setFlushThreshold(1);
+		restartedShortener.start();
+		try {
+			long end = System.currentTimeMillis() + 10000;
+			while (!restartedShortener.getShortenedKeys().isEmpty() && (System.currentTimeMillis() < end)) {
+				Thread.sleep(10);
+			}
+			assertTrue(restartedShortener.getShortenedKeys().isEmpty());
+			assertEquals(key, restartedShortener.getOriginalKey(provisionalKey));
+			assertEquals(key, restartedShortener.getOriginalKey("KSK@" + key.substring(4, 5)));
+		} finally {
+			restartedShortener.stop();
+		}
+	}
+
+	/**
+	 * Tests that prefixes the occupancy filter contains are skipped, and that
+	 * verified prefixes that could be inserted are counted as false
+	 * positives of the filter.
+	 *
+	 * @throws Exception
+	 *             if an error occurs
+	 */
+	public void testOccupancyFilterSkipsAndCountsFalsePositives() throws Exception {
+		FakeInsertBackend insertBackend = new FakeInsertBackend(1);
+		insertBackend.setCollisionProbabilities(1, 0);
+		Shortener shortener = createShortener(insertBackend);
+		OccupancyFilter occupancyFilter = new OccupancyFilter(null, 4096, 4, new Random(1));
+		String skippedKey = createKey((byte) 0x36);
+		String verifiedKey = createKey((byte) 0x80);
+		/* the first prefixes really collide, the second ones are free. */
+		for (String key : new String[] { skippedKey, verifiedKey }) {
+			occupancyFilter.add(key.substring(4, 5));
+			occupancyFilter.add(key.substring(4, 6));
+		}
+		shortener.setOccupancyFilter(occupancyFilter);
+		shortener.start();
+		try {
+			occupancyFilter.setVerificationRate(0);
+			KeyShorteningProgress skippedKeyShorteningProgress = shortener.shortenKey(skippedKey, Priority.BULK);
+			assertTrue(skippedKeyShorteningProgress.waitUntilFinished(10000));
+			assertEquals("KSK@" + skippedKey.substring(4, 7), skippedKeyShorteningProgress.getShortenedKey().getShortenedKey());
+			assertEquals(1, insertBackend.getInsertCount());
+			assertEquals(2, occupancyFilter.getSkippedCount());
+			assertEquals(0, occupancyFilter.getFalsePositiveCount());
+			occupancyFilter.setVerificationRate(1);
+			KeyShorteningProgress verifiedKeyShorteningProgress = shortener.shortenKey(verifiedKey, Priority.BULK);
+			assertTrue(verifiedKeyShorteningProgress.waitUntilFinished(10000));
+			assertEquals("KSK@" + verifiedKey.substring(4, 6), verifiedKeyShorteningProgress.getShortenedKey().getShortenedKey());
+			assertEquals(3, insertBackend.getInsertCount());
+			assertEquals(1, insertBackend.getCollisionCount());
+			assertEquals(2, occupancyFilter.getVerificationCount());
+			assertEquals(1, occupancyFilter.getFalsePositiveCount());
+		} finally {
+			shortener.stop();
+		}
+	}
+
+	/**
+	 * Tests that a search with a latency budget does not take a longer
+	 * candidate after a shorter length failed without a collision: the
+	 * longer candidates that are still running are cancelled.
+	 *
+	 * @throws Exception
+	 *             if an error occurs
+	 */
+	public void testBudgetSearchCancelsLongerCandidatesAfterFailure() throws Exception {
+		GatedInsertBackend insertBackend = new GatedInsertBackend(2) {
+
+			@Override
+			public InsertOutcome insertRedirect(FreenetURI shortenedKey, FreenetURI originalKey) {
+				if (shortenedKey.toString().length() == 5) {
+					return InsertOutcome.FATAL;
+				}
+				return super.insertRedirect(shortenedKey, originalKey);
+			}
+		};
+		Shortener shortener = createShortener(insertBackend);
+		shortener.start();
+		try {
+			String key = createKey((byte) 0x37);
+			KeyShorteningProgress keyShorteningProgress = shortener.shortenKey(key, Priority.BULK, Allocation.PREFIX, 60 * 60 * 1000);
+			assertTrue(keyShorteningProgress.waitUntilFinished(10000));
+			assertNull(keyShorteningProgress.getShortenedKey());
+			insertBackend.release();
+			assertTrue(shortener.getRunningAttempts().waitUntilEmpty(10000));
+			assertNull(shortener.getShortenedKey(key));
+		} finally {
+			insertBackend.release();
+			shortener.stop();
+		}
+	}
+
+	/**
+	 * Tests that a longer attempt of a search window that has already been
+	 * inserted when the shortest attempt fails is taken instead of failing
+	 * the whole key shortening.
+	 *
+	 * @throws Exception
+	 *             if an error occurs
+	 */
+	public void testInsertedLongerAttemptIsKeptWhenShortestFails() throws Exception {
+		final CountDownLatch longerInserted = new CountDownLatch(1);
+		InsertBackend insertBackend = new InsertBackend() {
+
+			public InsertOutcome insertRedirect(FreenetURI shortenedKey, FreenetURI originalKey) {
+				int length = shortenedKey.toString().length() - 4;
+				if (length == 2) {
+					longerInserted.countDown();
+					return InsertOutcome.SUCCESS;
+				}
+				try {
+					longerInserted.await();
+					/* give the longer attempt time to finish. */
+					Thread.sleep(100);
+				} catch (InterruptedException ie1) {
+					/* ignore. */
+				}
+				return (length == 1) ? InsertOutcome.FATAL : InsertOutcome.SUCCESS;
+			}
+		};
+		Shortener shortener = createShortener(insertBackend);
+		shortener.setSearchWindow(2);
+		shortener.start();
+		try {
+			String key = createKey((byte) 0x38);
+			KeyShorteningProgress keyShorteningProgress = shortener.shortenKey(key, Priority.BULK);
+			assertTrue(keyShorteningProgress.waitUntilFinished(10000));
+			assertNotNull(keyShorteningProgress.getShortenedKey());
+			assertEquals("KSK@" + key.substring(4, 6), keyShorteningProgress.getShortenedKey().getShortenedKey());
+		} finally {
+			shortener.stop();
+		}
+	}
+
+	/**
+	 * Tests that a transient failure of the shortest attempt of a search
+	 * window is retried on the same key instead of failing the key
+	 * shortening or moving on to a longer key.
+	 *
+	 * @throws Exception
+	 *             if an error occurs
+	 */
+	public void testTransientFailureOfSearchWindowIsRetried() throws Exception {
+		InsertBackend insertBackend = new InsertBackend() {
+
+			private boolean failed;
+
+			public synchronized InsertOutcome insertRedirect(FreenetURI shortenedKey, FreenetURI originalKey) {
+				if ((shortenedKey.toString().length() == 5) && !failed) {
+					failed = true;
+					return InsertOutcome.TRANSIENT;
+				}
+				return InsertOutcome.SUCCESS;
+			}
+		};
+		Shortener shortener = createShortener(insertBackend);
+		shortener.setSearchWindow(3);
+		shortener.setRetryPolicy(new RetryPolicy(3, 10, 10));
+		shortener.start();
+		try {
+			String key = createKey((byte) 0x39);
+			KeyShorteningProgress keyShorteningProgress = shortener.shortenKey(key, Priority.BULK);
+			assertTrue(keyShorteningProgress.waitUntilFinished(10000));
+			assertEquals("KSK@" + key.substring(4, 5), keyShorteningProgress.getShortenedKey().getShortenedKey());
+			assertEquals(1, shortener.getInsertStatistics().getRetries());
+		} finally {
+			shortener.stop();
+		}
+	}
+
+	//
+	// PRIVATE METHODS
+	//
+
+	/**
+	 * Creates a shortener with stores in the temporary directory.
+	 *
+	 * @param insertBackend
+	 *            The insert backend of the shortener
+	 * @return The new shortener
+	 */
+	private Shortener createShortener(InsertBackend insertBackend) {
+		return createShortener(insertBackend, executor, SystemClock.INSTANCE);
+	}
+
+	/**
+	 * Creates a shortener with stores in the temporary directory that runs
+	 * its threads with the given executor and measures all latencies with
+	 * the given clock.
+	 *
+	 * @param insertBackend
+	 *            The insert backend of the shortener
+	 * @param shortenerExecutor
+	 *            The executor of the shortener and its stores
+	 * @param clock
+	 *            The clock of the shortener
+	 * @return The new shortener
+	 */
+	private Shortener createShortener(InsertBackend insertBackend, Executor shortenerExecutor, Clock clock) {
+		File segmentDirectory = new File(directory, "segments");
+		segmentDirectory.mkdir();
+		return new Shortener(shortenerExecutor, insertBackend, new Journal(new File(directory, "journal.dat"), shortenerExecutor, clock), new SegmentStore(segmentDirectory, shortenerExecutor), new ChangeLog(new File(directory, "changes.log")), clock);
+	}
+
+	/**
+	 * Creates a CHK whose routing key consists of the given byte.
+	 *
+	 * @param routingKeyByte
+	 *            The byte of the routing key
+	 * @return The key
+	 */
+	private static String createKey(byte routingKeyByte) {
+		byte[] routingKey = new byte[ShortenedKeyStore.ROUTING_KEY_LENGTH];
+		Arrays.fill(routingKey, routingKeyByte);
+		return "CHK@" + Base64.encode(routingKey) + ",crypto,AAIC--8";
+	}
+
+	/**
+	 * A journal that remembers whether it has been closed.
+	 *
+	 * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+	 */
+	private class ObservedJournal extends Journal {
+
+		/** Whether the journal has been closed. */
+		private boolean closed;
+
+		/**
+		 * Creates a new observed journal.
+		 *
+		 * @param file
+		 *            The file of the journal
+		 */
+		public ObservedJournal(File file) {
+			super(file, executor);
+		}
+
+		/**
+		 * Waits until the journal has been closed or the given time has
+		 * passed.
+		 *
+		 * @param timeout
+		 *            The maximum time to wait (in milliseconds)
+		 * @return {@code true} if the journal has been closed, {@code false}
+		 *         otherwise
+		 * @throws InterruptedException
+		 *             if the wait is interrupted
+		 */
+		public synchronized boolean waitUntilClosed(long timeout) throws InterruptedException {
+			long end = System.currentTimeMillis() + timeout;
+			long now;
+			while (!closed && ((now = System.currentTimeMillis()) < end)) {
+				wait(end - now);
+			}
+			return closed;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public void close() {
+			super.close();
+			synchronized (this) {
+				closed = true;
+				notifyAll();
+			}
+		}
+
+	}
+
+	/**
+	 * A fake insert backend whose inserts of long keys block until they are
+	 * released.
+	 *
+	 * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+	 */
+	private static class GatedInsertBackend extends FakeInsertBackend {
+
+		/** The length from which on inserts are blocked. */
+		private final int gatedLength;
+
+		/** Whether the inserts have been released. */
+		private boolean released;
+
+		/**
+		 * Creates a new gated insert backend.
+		 *
+		 * @param gatedLength
+		 *            The length from which on inserts are blocked
+		 */
+		public GatedInsertBackend(int gatedLength) {
+			super(1);
+			this.gatedLength = gatedLength;
+		}
+
+		/**
+		 * Lets all blocked inserts continue.
+		 */
+		public synchronized void release() {
+			released = true;
+			notifyAll();
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public InsertOutcome insertRedirect(FreenetURI shortenedKey, FreenetURI originalKey) {
+			String name = shortenedKey.toString();
+			if ((name.length() - name.indexOf('@') - 1) >= gatedLength) {
+				synchronized (this) {
+					while (!released) {
+						try {
+							wait();
+						} catch (InterruptedException ie1) {
+							/* ignore, keep waiting. */
+						}
+					}
+				}
+			}
+			return super.insertRedirect(shortenedKey, originalKey);
+		}
+
+	}
+
+	/**
+	 * An insert backend whose inserts block until they are released.
+	 *
+	 * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+	 */
+	private static class BlockingInsertBackend implements InsertBackend {
+
+		/** The number of inserts that have been started. */
+		private int inserts;
+
+		/** Whether the inserts have been released. */
+		private boolean released;
+
+		/**
+		 * Returns the number of inserts that have been started.
+		 *
+		 * @return The number of started inserts
+		 */
+		public synchronized int getInserts() {
+			return inserts;
+		}
+
+		/**
+		 * Waits until the given number of inserts has been started or the
+		 * given time has passed.
+		 *
+		 * @param count
+		 *            The number of inserts to wait for
+		 * @param timeout
+		 *            The maximum time to wait (in milliseconds)
+		 * @return {@code true} if the inserts have been started, {@code
+		 *         false} otherwise
+		 * @throws InterruptedException
+		 *             if the wait is interrupted
+		 */
+		public synchronized boolean waitForInserts(int count, long timeout) throws InterruptedException {
+			long end = System.currentTimeMillis() + timeout;
+			long now;
+			while ((inserts < count) && ((now = System.currentTimeMillis()) < end)) {
+				wait(end - now);
+			}
+			return inserts >= count;
+		}
+
+		/**
+		 * Lets all inserts finish.
+		 */
+		public synchronized void release() {
+			released = true;
+			notifyAll();
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		public synchronized InsertOutcome insertRedirect(FreenetURI shortenedKey, FreenetURI originalKey) {
+			++inserts;
+			notifyAll();
+			while (!released) {
+				try {
+					wait();
+				} catch (InterruptedException ie1) {
+					/* ignore, keep waiting. */
+				}
+			}
+			return InsertOutcome.SUCCESS;
+		}
+
+	}
+
+}
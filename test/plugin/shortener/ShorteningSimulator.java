@@ -0,0 +1,588 @@
+/*
+ * shortener - ShorteningSimulator.java - Copyright © 2010 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugin.shortener;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import plugin.shortener.FakeInsertBackend.Latency;
+import plugin.shortener.Shortener.Allocation;
+import plugin.shortener.Shortener.KeyShorteningProgress;
+import plugin.shortener.Shortener.ShortenedKey;
+import plugin.shortener.ShorteningScheduler.Priority;
+import freenet.support.Base64;
+import freenet.support.Executor;
+
+/**
+ * Simulation of the {@link Shortener} against a {@link FakeInsertBackend}.
+ * The simulation runs the real shortener, with its scheduler, its searches,
+ * its {@link InsertLimiter}, and its {@link RetryPolicy}, on stores in a
+ * temporary directory. All threads of the shortener are started by and
+ * wait on a {@link DiscreteEventClock}, so that the time jumps to the next
+ * event whenever nothing can happen before it; an insert of one minute takes
+ * no real time, and scheduling and search strategies can be compared on a
+ * large number of keys before they are deployed.
+ * <p>
+ * The results do not depend on the speed or the load of the machine. With
+ * the same seeds the keys, their arrivals, and the decisions of the backend
+ * are the same; only threads that continue at the same virtual time may
+ * interleave differently between runs.
+ * <p>
+ * The simulation can be run from the command line; see {@link #main}.
+ *
+ * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+ */
+public class ShorteningSimulator {
+
+	/** The backend that decides the inserts. */
+	private final FakeInsertBackend insertBackend;
+
+	/** The random number generator for keys and arrivals. */
+	private final Random random;
+
+	/** The number of jobs that run at the same time. */
+	private int workers = 4;
+
+	/** The number of key lengths that are tried in parallel. */
+	private int searchWindow = 1;
+
+	/** The number of candidates that are tried per length. */
+	private int candidateCount = 1;
+
+	/** The latency budget of every job (in milliseconds), or 0. */
+	private long latencyBudget;
+
+	/** The mean time between two keys (in milliseconds), or 0. */
+	private long arrivalInterval;
+
+	/** The retry policy for transient failures. */
+	private RetryPolicy retryPolicy;
+
+	/** The collision statistics that choose the start length, or null. */
+	private LengthStatistics lengthStatistics;
+
+	/** Whether this simulation has been run. */
+	private boolean run;
+
+	/**
+	 * Creates a new simulator.
+	 *
+	 * @param insertBackend
+	 *            The backend that decides the inserts
+	 * @param seed
+	 *            The seed for keys, arrivals, and retry delays
+	 */
+	public ShorteningSimulator(FakeInsertBackend insertBackend, long seed) {
+		this.insertBackend = insertBackend;
+		this.random = new Random(seed);
+		this.retryPolicy = new RetryPolicy(5, 5 * 1000, 2 * 60 * 1000, new Random(seed + 1));
+	}
+
+	//
+	// ACCESSORS
+	//
+
+	/**
+	 * Sets the minimum number of jobs that run at the same time.
+	 *
+	 * @see Shortener#setLocalWorkers(int)
+	 * @param workers
+	 *            The number of workers
+	 */
+	public void setWorkers(int workers) {
+		this.workers = Math.max(1, workers);
+	}
+
+	/**
+	 * Sets the number of key lengths that every job tries in parallel.
+	 *
+	 * @see Shortener#setSearchWindow(int)
+	 * @param searchWindow
+	 *            The search window
+	 */
+	public void setSearchWindow(int searchWindow) {
+		this.searchWindow = Math.max(1, searchWindow);
+	}
+
+	/**
+	 * Sets the number of candidates that every job tries per length. The
+	 * candidates are only used by jobs with a latency budget.
+	 *
+	 * @see Shortener#setCandidateCount(int)
+	 * @param candidateCount
+	 *            The number of candidates per length
+	 */
+	public void setCandidateCount(int candidateCount) {
+		this.candidateCount = Math.max(1, Math.min(Shortener.MAXIMUM_CANDIDATES, candidateCount));
+	}
+
+	/**
+	 * Sets the latency budget of every job, counted from the arrival of its
+	 * key.
+	 *
+	 * @param latencyBudget
+	 *            The latency budget (in milliseconds), or {@code 0} to search
+	 *            without a budget
+	 */
+	public void setLatencyBudget(long latencyBudget) {
+		this.latencyBudget = Math.max(0, latencyBudget);
+	}
+
+	/**
+	 * Sets the mean time between the arrivals of two keys. With an interval
+	 * of {@code 0} all keys arrive at the start of the simulation; otherwise
+	 * the arrivals are a Poisson process. As with a bulk shortening, a key
+	 * that arrives while the queue of the shortener is full is submitted
+	 * when the next job has finished.
+	 *
+	 * @param arrivalInterval
+	 *            The mean time between two keys (in milliseconds)
+	 */
+	public void setArrivalInterval(long arrivalInterval) {
+		this.arrivalInterval = Math.max(0, arrivalInterval);
+	}
+
+	/**
+	 * Sets the retry policy for transient failures. For repeatable delays
+	 * its jitter has to come from a seeded random number generator.
+	 *
+	 * @param retryPolicy
+	 *            The retry policy
+	 */
+	public void setRetryPolicy(RetryPolicy retryPolicy) {
+		this.retryPolicy = retryPolicy;
+	}
+
+	/**
+	 * Sets the collision statistics that choose the length new jobs start at.
+	 * They should not store their state in a file.
+	 *
+	 * @param lengthStatistics
+	 *            The length statistics, or {@code null} to start every job at
+	 *            the shortest length that is not known to be occupied
+	 */
+	public void setLengthStatistics(LengthStatistics lengthStatistics) {
+		this.lengthStatistics = lengthStatistics;
+	}
+
+	//
+	// ACTIONS
+	//
+
+	/**
+	 * Runs the simulation until the given number of keys has been shortened
+	 * or has failed. The simulation runs on the calling thread, which becomes
+	 * a simulated thread of the clock. A simulator can only be run once.
+	 *
+	 * @param keyCount
+	 *            The number of keys to shorten
+	 * @return The result of the simulation
+	 * @throws IOException
+	 *             if the stores of the shortener can not be created
+	 * @throws SchedulerFullException
+	 *             if the shortener does not accept a key
+	 * @throws IllegalStateException
+	 *             if the simulator has already been run
+	 */
+	public Result run(int keyCount) throws IOException, SchedulerFullException, IllegalStateException {
+		if (run) {
+			throw new IllegalStateException("Simulator has already been run.");
+		}
+		run = true;
+		File directory = TemporaryDirectory.create("simulator");
+		final DiscreteEventClock clock = new DiscreteEventClock();
+		Executor executor = clock.getExecutor();
+		insertBackend.setClock(clock);
+		File segmentDirectory = new File(directory, "segments");
+		segmentDirectory.mkdir();
+		Shortener shortener = new Shortener(executor, insertBackend, new Journal(new File(directory, "journal.dat"), executor, clock), new SegmentStore(segmentDirectory, executor), new ChangeLog(new File(directory, "changes.log")), clock);
+		shortener.setLocalWorkers(workers);
+		shortener.setSearchWindow(searchWindow);
+		shortener.setCandidateCount(candidateCount);
+		shortener.setRetryPolicy(retryPolicy);
+		shortener.setLengthStatistics(lengthStatistics);
+		final Result result = new Result(keyCount, clock);
+		shortener.addShortenerListener(new ShortenerListener() {
+
+			public void keyShorteningAdvanced(KeyShorteningProgress keyShorteningProgress) {
+				/* ignore. */
+			}
+
+			@SuppressWarnings("synthetic-access")
+			public void keyShorteningFinished(KeyShorteningProgress keyShorteningProgress) {
+				ShortenedKey shortenedKey = keyShorteningProgress.getShortenedKey();
+				String name = (shortenedKey == null) ? "" : shortenedKey.getShortenedKey();
+				result.recordJob(name.substring(name.indexOf('@') + 1).length(), clock.currentTimeMillis() - keyShorteningProgress.getStartTime());
+			}
+		});
+		shortener.start();
+		long startTime = clock.currentTimeMillis();
+		try {
+			for (int keyIndex = 0; keyIndex < keyCount; ++keyIndex) {
+				if ((arrivalInterval > 0) && (keyIndex > 0)) {
+					clock.sleep((long) (-Math.log(1 - random.nextDouble()) * arrivalInterval));
+				}
+				ShorteningScheduler shorteningScheduler = shortener.getShorteningScheduler();
+				while (shorteningScheduler.getQueueSize(Priority.BULK) >= shorteningScheduler.getQueueCapacity()) {
+					result.waitUntilFinished(result.getShortenedCount() + result.getFailedCount() + 1);
+				}
+				shortener.shortenKey(createKey(), Priority.BULK, Allocation.PREFIX, latencyBudget);
+			}
+			result.waitUntilFinished(keyCount);
+			result.virtualDuration = clock.currentTimeMillis() - startTime;
+			result.insertCount = shortener.getInsertStatistics().getInserts();
+			result.retryCount = shortener.getInsertStatistics().getRetries();
+			result.insertLimit = shortener.getInsertLimiter().getLimit();
+		} finally {
+			shortener.stop();
+			clock.finish();
+			TemporaryDirectory.delete(directory);
+		}
+		return result;
+	}
+
+	//
+	// PRIVATE METHODS
+	//
+
+	/**
+	 * Returns a CHK with a random routing key.
+	 *
+	 * @return A random key
+	 */
+	private String createKey() {
+		byte[] routingKey = new byte[ShortenedKeyStore.ROUTING_KEY_LENGTH];
+		random.nextBytes(routingKey);
+		return "CHK@" + Base64.encode(routingKey) + ",crypto,AAIC--8";
+	}
+
+	/**
+	 * Parses the arguments, runs a simulation, and prints its result.
+	 * Arguments are given as “<i>name</i>=<i>value</i>”:
+	 * <dl>
+	 * <dt>keys</dt>
+	 * <dd>The number of keys to shorten (default 100000)</dd>
+	 * <dt>workers</dt>
+	 * <dd>The minimum number of jobs at the same time (default 4)</dd>
+	 * <dt>window</dt>
+	 * <dd>The search window (default 1)</dd>
+	 * <dt>candidates</dt>
+	 * <dd>The number of candidates per length (default 1)</dd>
+	 * <dt>budget</dt>
+	 * <dd>The latency budget of every key in milliseconds, or 0 for none
+	 * (default 0)</dd>
+	 * <dt>arrival</dt>
+	 * <dd>The mean time between two keys in milliseconds (default 0)</dd>
+	 * <dt>latency</dt>
+	 * <dd>The insert latency, see {@link Latency#parse(String)} (default
+	 * “lognormal:60000:0.5”)</dd>
+	 * <dt>collisions</dt>
+	 * <dd>The collision probabilities by length, separated by commas (default
+	 * “1,1,0.9,0.2,0.01,0”)</dd>
+	 * <dt>transient</dt>
+	 * <dd>The probability of a transient failure (default 0.05)</dd>
+	 * <dt>fatal</dt>
+	 * <dd>The probability of a fatal failure (default 0.001)</dd>
+	 * <dt>retries</dt>
+	 * <dd>The maximum number of retries (default 5)</dd>
+	 * <dt>threshold</dt>
+	 * <dd>The success rate a start length needs, or 0 to always start at the
+	 * shortest length (default 0)</dd>
+	 * <dt>seed</dt>
+	 * <dd>The seed of all random decisions (default 1)</dd>
+	 * </dl>
+	 * The number of inserts at the same time is not an option anymore; it is
+	 * chosen by the shortener’s {@link InsertLimiter}, and its last value is
+	 * printed.
+	 *
+	 * @param arguments
+	 *            The command-line arguments
+	 * @throws Exception
+	 *             if the simulation fails
+	 */
+	public static void main(String... arguments) throws Exception {
+		Map<String, String> options = new HashMap<String, String>();
+		for (String argument : arguments) {
+			int equals = argument.indexOf('=');
+			if (equals == -1) {
+				System.err.println("Invalid argument: " + argument);
+				System.exit(1);
+			}
+			options.put(argument.substring(0, equals), argument.substring(equals + 1));
+		}
+		long seed = Long.parseLong(getOption(options, "seed", "1"));
+		FakeInsertBackend fakeInsertBackend = new FakeInsertBackend(seed);
+		fakeInsertBackend.setLatency(Latency.parse(getOption(options, "latency", "lognormal:60000:0.5")));
+		String[] collisionProbabilityStrings = getOption(options, "collisions", "1,1,0.9,0.2,0.01,0").split(",");
+		double[] collisionProbabilities = new double[collisionProbabilityStrings.length];
+		for (int index = 0; index < collisionProbabilities.length; ++index) {
+			collisionProbabilities[index] = Double.parseDouble(collisionProbabilityStrings[index].trim());
+		}
+		fakeInsertBackend.setCollisionProbabilities(collisionProbabilities);
+		fakeInsertBackend.setTransientFailureProbability(Double.parseDouble(getOption(options, "transient", "0.05")));
+		fakeInsertBackend.setFatalFailureProbability(Double.parseDouble(getOption(options, "fatal", "0.001")));
+		ShorteningSimulator shorteningSimulator = new ShorteningSimulator(fakeInsertBackend, seed);
+		shorteningSimulator.setWorkers(Integer.parseInt(getOption(options, "workers", "4")));
+		shorteningSimulator.setSearchWindow(Integer.parseInt(getOption(options, "window", "1")));
+		shorteningSimulator.setCandidateCount(Integer.parseInt(getOption(options, "candidates", "1")));
+		shorteningSimulator.setLatencyBudget(Long.parseLong(getOption(options, "budget", "0")));
+		shorteningSimulator.setArrivalInterval(Long.parseLong(getOption(options, "arrival", "0")));
+		shorteningSimulator.setRetryPolicy(new RetryPolicy(Integer.parseInt(getOption(options, "retries", "5")), 5 * 1000, 2 * 60 * 1000, new Random(seed + 1)));
+		double threshold = Double.parseDouble(getOption(options, "threshold", "0"));
+		if (threshold > 0) {
+			LengthStatistics lengthStatistics = new LengthStatistics(null, 1000, new Random(seed + 2));
+			lengthStatistics.setThreshold(threshold);
+			shorteningSimulator.setLengthStatistics(lengthStatistics);
+		}
+		long startTime = System.currentTimeMillis();
+		Result result = shorteningSimulator.run(Integer.parseInt(getOption(options, "keys", "100000")));
+		long wallTime = Math.max(1, System.currentTimeMillis() - startTime);
+		double virtualHours = result.getVirtualDuration() / (60.0 * 60 * 1000);
+		System.out.println("Keys:              " + result.getKeyCount() + " (" + result.getShortenedCount() + " shortened, " + result.getFailedCount() + " failed)");
+		System.out.println("Inserts:           " + result.getInsertCount() + " (" + fakeInsertBackend.getCollisionCount() + " collisions, " + fakeInsertBackend.getTransientFailureCount() + " transient, " + fakeInsertBackend.getFatalFailureCount() + " fatal, " + result.getRetryCount() + " retries)");
+		System.out.println("Inserts per key:   " + String.format("%.2f", result.getInsertCount() / (double) Math.max(1, result.getKeyCount())));
+		System.out.println("Insert limit:      " + result.getInsertLimit());
+		System.out.println("Average length:    " + String.format("%.2f", result.getAverageLength()));
+		System.out.println("Length histogram:  " + result.getLengthHistogram());
+		System.out.println("Virtual duration:  " + String.format("%.2f h", virtualHours));
+		System.out.println("Throughput:        " + String.format("%.1f keys/h", result.getShortenedCount() / Math.max(virtualHours, 1e-9)));
+		System.out.println("Latency p50/p90/p99: " + result.getLatencyPercentile(0.5) / 1000 + " s / " + result.getLatencyPercentile(0.9) / 1000 + " s / " + result.getLatencyPercentile(0.99) / 1000 + " s");
+		System.out.println("Wall time:         " + wallTime + " ms (" + (result.getInsertCount() * 1000 / wallTime) + " virtual inserts/s)");
+	}
+
+	/**
+	 * Returns the value of the given option.
+	 *
+	 * @param options
+	 *            The options
+	 * @param name
+	 *            The name of the option
+	 * @param defaultValue
+	 *            The value to return if the option is not given
+	 * @return The value of the option
+	 */
+	private static String getOption(Map<String, String> options, String name, String defaultValue) {
+		String value = options.get(name);
+		return (value == null) ? defaultValue : value;
+	}
+
+	/**
+	 * The result of a simulation.
+	 *
+	 * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+	 */
+	public static class Result {
+
+		/** The number of keys. */
+		private final int keyCount;
+
+		/** The clock of the simulation. */
+		private final Clock clock;
+
+		/** The latencies of the shortened keys. */
+		private final long[] latencies;
+
+		/** The number of keys with each length. */
+		private final int[] lengthCounts = new int[Shortener.MAXIMUM_LENGTH + 1];
+
+		/** The number of shortened keys. */
+		private int shortenedCount;
+
+		/** The number of keys that could not be shortened. */
+		private int failedCount;
+
+		/** The sum of the lengths of the shortened keys. */
+		private long lengthSum;
+
+		/** The number of inserts. */
+		private long insertCount;
+
+		/** The number of retries. */
+		private long retryCount;
+
+		/** The limit of the insert limiter at the end of the simulation. */
+		private int insertLimit;
+
+		/** The virtual duration of the simulation (in milliseconds). */
+		private long virtualDuration;
+
+		/**
+		 * Creates a new result.
+		 *
+		 * @param keyCount
+		 *            The number of keys
+		 * @param clock
+		 *            The clock of the simulation
+		 */
+		Result(int keyCount, Clock clock) {
+			this.keyCount = keyCount;
+			this.clock = clock;
+			this.latencies = new long[keyCount];
+		}
+
+		/**
+		 * Returns the number of keys.
+		 *
+		 * @return The number of keys
+		 */
+		public int getKeyCount() {
+			return keyCount;
+		}
+
+		/**
+		 * Returns the number of shortened keys.
+		 *
+		 * @return The number of shortened keys
+		 */
+		public synchronized int getShortenedCount() {
+			return shortenedCount;
+		}
+
+		/**
+		 * Returns the number of keys that could not be shortened.
+		 *
+		 * @return The number of failed keys
+		 */
+		public synchronized int getFailedCount() {
+			return failedCount;
+		}
+
+		/**
+		 * Returns the number of inserts, including retries.
+		 *
+		 * @return The number of inserts
+		 */
+		public long getInsertCount() {
+			return insertCount;
+		}
+
+		/**
+		 * Returns the number of retries after transient failures.
+		 *
+		 * @return The number of retries
+		 */
+		public long getRetryCount() {
+			return retryCount;
+		}
+
+		/**
+		 * Returns the limit of the shortener’s insert limiter at the end of
+		 * the simulation.
+		 *
+		 * @return The last insert limit
+		 */
+		public int getInsertLimit() {
+			return insertLimit;
+		}
+
+		/**
+		 * Returns the virtual time from the start of the simulation until the
+		 * last key was finished.
+		 *
+		 * @return The virtual duration (in milliseconds)
+		 */
+		public long getVirtualDuration() {
+			return virtualDuration;
+		}
+
+		/**
+		 * Returns the average length of the shortened keys.
+		 *
+		 * @return The average length
+		 */
+		public synchronized double getAverageLength() {
+			return (shortenedCount == 0) ? 0 : (lengthSum / (double) shortenedCount);
+		}
+
+		/**
+		 * Returns the number of shortened keys by length.
+		 *
+		 * @return The number of shortened keys, by length
+		 */
+		public synchronized Map<Integer, Integer> getLengthHistogram() {
+			Map<Integer, Integer> lengthHistogram = new TreeMap<Integer, Integer>();
+			for (int length = 1; length < lengthCounts.length; ++length) {
+				if (lengthCounts[length] > 0) {
+					lengthHistogram.put(length, lengthCounts[length]);
+				}
+			}
+			return lengthHistogram;
+		}
+
+		/**
+		 * Returns the given percentile of the times from the arrival of a key
+		 * until it was shortened.
+		 *
+		 * @param percentile
+		 *            The percentile (between {@code 0} and {@code 1})
+		 * @return The latency at the percentile (in milliseconds)
+		 */
+		public synchronized long getLatencyPercentile(double percentile) {
+			if (shortenedCount == 0) {
+				return 0;
+			}
+			long[] sortedLatencies = Arrays.copyOf(latencies, shortenedCount);
+			Arrays.sort(sortedLatencies);
+			return sortedLatencies[Math.min(shortenedCount - 1, (int) (percentile * shortenedCount))];
+		}
+
+		/**
+		 * Records a finished job.
+		 *
+		 * @param length
+		 *            The length of the shortened key, or {@code 0} if the key
+		 *            could not be shortened
+		 * @param latency
+		 *            The time from the arrival of the key until it was
+		 *            finished (in milliseconds)
+		 */
+		synchronized void recordJob(int length, long latency) {
+			if (length == 0) {
+				++failedCount;
+			} else {
+				latencies[shortenedCount++] = latency;
+				lengthSum += length;
+				++lengthCounts[length];
+			}
+			clock.wakeAll(this);
+		}
+
+		/**
+		 * Waits until the given number of keys has been finished.
+		 *
+		 * @param finishedCount
+		 *            The number of finished keys to wait for
+		 */
+		synchronized void waitUntilFinished(int finishedCount) {
+			while ((shortenedCount + failedCount) < finishedCount) {
+				try {
+					clock.waitOn(this, 0);
+				} catch (InterruptedException ie1) {
+					/* ignore, keep waiting. */
+				}
+			}
+		}
+
+	}
+
+}
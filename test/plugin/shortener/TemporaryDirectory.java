@@ -0,0 +1,67 @@
+/*
+ * shortener - TemporaryDirectory.java - Copyright © 2010 David Roden
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package plugin.shortener;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Creates and removes temporary directories for tests.
+ *
+ * @author <a href="mailto:bombe@pterodactylus.net">David ‘Bombe’ Roden</a>
+ */
+public class TemporaryDirectory {
+
+	/**
+	 * Creates a new, empty temporary directory.
+	 *
+	 * @param prefix
+	 *            The prefix of the directory name
+	 * @return The new directory
+	 * @throws IOException
+	 *             if the directory can not be created
+	 */
+	public static File create(String prefix) throws IOException {
+		File directory = File.createTempFile(prefix, "");
+		if (!directory.delete() || !directory.mkdir()) {
+			throw new IOException("Could not create directory " + directory);
+		}
+		return directory;
+	}
+
+	/**
+	 * Removes the given file or directory, including everything it contains.
+	 *
+	 * @param file
+	 *            The file or directory to remove (may be {@code null})
+	 */
+	public static void delete(File file) {
+		if (file == null) {
+			return;
+		}
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (File containedFile : files) {
+				delete(containedFile);
+			}
+		}
+		file.delete();
+	}
+
+}